@@ -0,0 +1,52 @@
+package io.topiacoin.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once for each of a list of thread counts, writing the results of each run to a JSON file so that
+ * they can be compared between releases.
+ *
+ * Any of the standard JMH command line options can be given, e.g. a regular expression selecting the benchmarks to
+ * run, or -p chunkSize=65536 to restrict a parameter. The thread counts are taken from the benchmark.threads system
+ * property (default 1,4), and the results are written to the directory named by the benchmark.results property
+ * (default benchmark-results), one file per thread count.
+ *
+ *   java -Dbenchmark.threads=1,2,8 -jar benchmarks/target/benchmarks.jar CryptoBenchmark
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList()) {
+            // Let JMH print the help or the list of benchmarks.
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        String[] threadCounts = System.getProperty("benchmark.threads", "1,4").split(",");
+        File resultsDir = new File(System.getProperty("benchmark.results", "benchmark-results"));
+        if (!resultsDir.isDirectory() && !resultsDir.mkdirs()) {
+            throw new IllegalStateException("Unable to create the results directory " + resultsDir);
+        }
+
+        for (String threadCount : threadCounts) {
+            int threads = Integer.parseInt(threadCount.trim());
+            File resultFile = new File(resultsDir, "jmh-" + threads + "-threads.json");
+
+            Options options = new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultFile.getPath())
+                    .build();
+
+            new Runner(options).run();
+        }
+    }
+}
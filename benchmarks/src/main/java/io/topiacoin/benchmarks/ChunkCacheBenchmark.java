@@ -0,0 +1,129 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.chunks.impl.CachingChunkStorage;
+import io.topiacoin.chunks.impl.FileSystemChunkStorage;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures reading chunks through the CachingChunkStorage, compared with reading them from the FileSystemChunkStorage
+ * directly.
+ *
+ * The chunks are read with a Zipf distribution, so that a few chunks are read far more often than the rest, as when a
+ * newly shared file is fetched by every member of a workspace.  The hit ratio of each run is printed at the end of the
+ * trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkCacheBenchmark {
+
+    private static final int CHUNK_COUNT = 1024;
+    private static final int CHUNK_SIZE = 65536;
+    private static final int READ_SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"none", "heap", "offheap"})
+    public String cacheType;
+
+    @Param({"8388608"})
+    public long cacheSize;
+
+    private File storageDir;
+    private FileSystemChunkStorage fileSystemChunkStorage;
+    private ChunkStorage chunkStorage;
+
+    private int[] readSequence;
+    private final AtomicLong nextRead = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storageDir = Files.createTempDirectory("chunk-cache-benchmark").toFile();
+
+        fileSystemChunkStorage = new FileSystemChunkStorage();
+        fileSystemChunkStorage.setChunkStorageDirectory(storageDir);
+        fileSystemChunkStorage.setStorageQuota(Long.MAX_VALUE / 2);
+        fileSystemChunkStorage.init();
+
+        Random random = new Random(CHUNK_COUNT);
+        byte[] chunkData = new byte[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            random.nextBytes(chunkData);
+            fileSystemChunkStorage.addChunk(chunkID(i), new ByteArrayInputStream(chunkData), null, false);
+        }
+
+        if ("none".equals(cacheType)) {
+            chunkStorage = fileSystemChunkStorage;
+        } else {
+            CachingChunkStorage cachingChunkStorage = new CachingChunkStorage();
+            cachingChunkStorage.setChunkStorage(fileSystemChunkStorage);
+            cachingChunkStorage.setCacheSize(cacheSize);
+            cachingChunkStorage.setOffHeap("offheap".equals(cacheType));
+            cachingChunkStorage.init();
+            chunkStorage = cachingChunkStorage;
+        }
+
+        readSequence = zipfSequence(random);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (chunkStorage instanceof CachingChunkStorage) {
+            CachingChunkStorage cachingChunkStorage = (CachingChunkStorage) chunkStorage;
+            System.out.printf("%nHit ratio %.3f, %d MB not read from storage%n", cachingChunkStorage.getHitRatio(),
+                    cachingChunkStorage.getBytesSaved() / (1024 * 1024));
+        }
+        chunkStorage.shutdown();
+        FileUtils.deleteDirectory(storageDir);
+    }
+
+    @Benchmark
+    public byte[] getChunkData() throws Exception {
+        int read = (int) (nextRead.getAndIncrement() % READ_SEQUENCE_LENGTH);
+        return chunkStorage.getChunkData(chunkID(readSequence[read]));
+    }
+
+    private static String chunkID(int index) {
+        return "chunk-" + index;
+    }
+
+    private static int[] zipfSequence(Random random) {
+        double[] cumulative = new double[CHUNK_COUNT];
+        double total = 0;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        int[] sequence = new int[READ_SEQUENCE_LENGTH];
+        for (int i = 0; i < sequence.length; i++) {
+            double target = random.nextDouble() * total;
+            int index = Arrays.binarySearch(cumulative, target);
+            sequence[i] = Math.min(index < 0 ? -index - 1 : index, CHUNK_COUNT - 1);
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,168 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.chunks.ChunkManager;
+import io.topiacoin.core.Configuration;
+import io.topiacoin.core.impl.DefaultConfiguration;
+import io.topiacoin.model.CurrentUser;
+import io.topiacoin.model.DataModel;
+import io.topiacoin.model.FileChunk;
+import io.topiacoin.sdk.impl.ChunkEncoder;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a file into chunks, comparing the serial configuration of the ChunkEncoder (one thread per stage,
+ * one chunk in flight) with its default parallel configuration.
+ *
+ * The encoded file is a new version of a file that has already been encoded, sharing the given percentage of its
+ * chunks with the earlier version. The bytes the encoder stored and the bytes it was able to reuse from the earlier
+ * version are reported as secondary results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChunkEncoderBenchmark {
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"serial", "parallel"})
+    public String pipeline;
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    @Param({"0", "50", "90"})
+    public int sharedPercent;
+
+    private File workDir;
+    private ChunkManager chunkManager;
+    private ChunkEncoder encoder;
+    private File modifiedFile;
+
+    private final Map<String, FileChunk> previousVersionChunks = new ConcurrentHashMap<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        workDir = Files.createTempDirectory("chunk-encoder-benchmark").toFile();
+
+        Configuration configuration = new DefaultConfiguration();
+        configuration.setConfigurationOption("chunkStorageLoc", new File(workDir, "chunks").getAbsolutePath());
+        configuration.setConfigurationOption("chunkStorageQuota", Long.toString(Long.MAX_VALUE / 2));
+        configuration.setConfigurationOption("chunkListenerPort", "0");
+
+        // The data model only needs to find the chunks of the previous version of the file.
+        DataModel dataModel = new DataModel(new DefaultConfiguration()) {
+            @Override
+            public FileChunk getFileChunkWithClearHash(String clearChunkHash) {
+                return previousVersionChunks.get(clearChunkHash);
+            }
+        };
+        CurrentUser currentUser = new CurrentUser();
+        currentUser.setUserID("benchmark-user");
+        dataModel.setCurrentUser(currentUser);
+
+        chunkManager = new ChunkManager(configuration, dataModel);
+        if ("serial".equals(pipeline)) {
+            encoder = new ChunkEncoder(dataModel, chunkManager, 1, 1, 1, 1, 1);
+        } else {
+            encoder = new ChunkEncoder(configuration, dataModel, chunkManager);
+        }
+
+        // Encode the previous version of the file, then change the chunks that aren't shared with the new version.
+        Random random = new Random(FILE_SIZE);
+        byte[] fileData = new byte[FILE_SIZE];
+        random.nextBytes(fileData);
+        File previousFile = new File(workDir, "previous.dat");
+        FileUtils.writeByteArrayToFile(previousFile, fileData);
+        for (FileChunk fileChunk : encoder.encode(previousFile, chunkSize).getFileChunks()) {
+            previousVersionChunks.put(fileChunk.getClearTextHash(), fileChunk);
+        }
+
+        int chunkCount = (FILE_SIZE + chunkSize - 1) / chunkSize;
+        int sharedChunks = chunkCount * sharedPercent / 100;
+        byte[] changedChunk = new byte[chunkSize];
+        for (int i = sharedChunks; i < chunkCount; i++) {
+            random.nextBytes(changedChunk);
+            int offset = i * chunkSize;
+            System.arraycopy(changedChunk, 0, fileData, offset, Math.min(chunkSize, FILE_SIZE - offset));
+        }
+        modifiedFile = new File(workDir, "modified.dat");
+        FileUtils.writeByteArrayToFile(modifiedFile, fileData);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        encoder.shutdown();
+        chunkManager.stop();
+        FileUtils.deleteDirectory(workDir);
+    }
+
+    @Benchmark
+    public List<FileChunk> encode(EncodeCounters counters) throws Exception {
+        long bytesStored = encoder.getBytesStored();
+        long bytesReused = encoder.getBytesReused();
+
+        List<FileChunk> fileChunks = encoder.encode(modifiedFile, chunkSize).getFileChunks();
+
+        // The totals are shared by every thread using the encoder, so these are only exact with a single thread.
+        counters.bytesStored += encoder.getBytesStored() - bytesStored;
+        counters.bytesReused += encoder.getBytesReused() - bytesReused;
+        counters.encodedChunks = fileChunks;
+        return fileChunks;
+    }
+
+    /**
+     * The bytes stored and reused by each thread during an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EncodeCounters {
+        public long bytesStored;
+        public long bytesReused;
+
+        private List<FileChunk> encodedChunks = Collections.emptyList();
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesStored = 0;
+            bytesReused = 0;
+        }
+
+        /**
+         * Drops the chunks stored, and the references added, by the last encode, so that every encode starts from the
+         * same state and the storage used by the benchmark stays bounded.
+         */
+        @TearDown(Level.Invocation)
+        public void removeEncodedChunks(ChunkEncoderBenchmark benchmark) {
+            for (FileChunk fileChunk : encodedChunks) {
+                benchmark.chunkManager.removeChunk(fileChunk.getChunkID());
+            }
+            encodedChunks = Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.chunks.impl.FileSystemChunkStorage;
+import io.topiacoin.chunks.impl.PackFileChunkStorage;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures adding chunks to, and reading chunks from, the FileSystemChunkStorage, which stores each chunk in a file of
+ * its own, and the PackFileChunkStorage, which appends the chunks to segment files.
+ *
+ * Adding is measured a batch at a time, and the chunks added during an iteration are removed once it is done, so that
+ * the amount of disk used by the benchmark stays bounded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkStorageBenchmark {
+
+    private static final int ADD_BATCH_SIZE = 256;
+    private static final int STORED_CHUNK_COUNT = 32;
+
+    @Param({"4096", "65536", "1048576", "4194304"})
+    public int chunkSize;
+
+    @Param({"filesystem", "packfile"})
+    public String storageType;
+
+    private File storageDir;
+    private ChunkStorage chunkStorage;
+    private byte[] chunkData;
+
+    private final AtomicLong nextChunkID = new AtomicLong();
+    private final AtomicLong nextReadIndex = new AtomicLong();
+    private final Queue<String> addedChunkIDs = new ConcurrentLinkedQueue<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storageDir = Files.createTempDirectory("chunk-storage-benchmark").toFile();
+
+        if ("packfile".equals(storageType)) {
+            PackFileChunkStorage packFileChunkStorage = new PackFileChunkStorage();
+            packFileChunkStorage.setChunkStorageDirectory(storageDir);
+            packFileChunkStorage.setStorageQuota(Long.MAX_VALUE / 2);
+            packFileChunkStorage.setReservationInactivityTimeout(60000);
+            packFileChunkStorage.init();
+            chunkStorage = packFileChunkStorage;
+        } else {
+            FileSystemChunkStorage fileSystemChunkStorage = new FileSystemChunkStorage();
+            fileSystemChunkStorage.setChunkStorageDirectory(storageDir);
+            fileSystemChunkStorage.setStorageQuota(Long.MAX_VALUE / 2);
+            fileSystemChunkStorage.setReservationInactivityTimeout(60000);
+            fileSystemChunkStorage.init();
+            chunkStorage = fileSystemChunkStorage;
+        }
+
+        chunkData = new byte[chunkSize];
+        new Random(chunkSize).nextBytes(chunkData);
+
+        for (int i = 0; i < STORED_CHUNK_COUNT; i++) {
+            chunkStorage.addChunk(storedChunkID(i), new ByteArrayInputStream(chunkData), null, false);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeAddedChunks() {
+        String chunkID;
+        while ((chunkID = addedChunkIDs.poll()) != null) {
+            chunkStorage.removeChunk(chunkID);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        chunkStorage.shutdown();
+        FileUtils.deleteDirectory(storageDir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = ADD_BATCH_SIZE)
+    @Measurement(iterations = 10, batchSize = ADD_BATCH_SIZE)
+    public void addChunk() throws Exception {
+        String chunkID = "added-chunk-" + nextChunkID.incrementAndGet();
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, false);
+        addedChunkIDs.add(chunkID);
+    }
+
+    @Benchmark
+    public byte[] getChunkData() throws Exception {
+        int index = (int) (nextReadIndex.getAndIncrement() % STORED_CHUNK_COUNT);
+        return chunkStorage.getChunkData(storedChunkID(index));
+    }
+
+    private static String storedChunkID(int index) {
+        return "stored-chunk-" + index;
+    }
+}
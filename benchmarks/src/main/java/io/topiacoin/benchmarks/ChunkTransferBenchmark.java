@@ -0,0 +1,204 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.chunks.impl.FileSystemChunkStorage;
+import io.topiacoin.chunks.impl.SDFSChunkTransferer;
+import io.topiacoin.chunks.impl.SimpleChunkRetrievalStrategyFactory;
+import io.topiacoin.chunks.intf.ChunkRetrievalStrategy;
+import io.topiacoin.chunks.intf.ChunksTransferHandler;
+import io.topiacoin.core.impl.DefaultConfiguration;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.model.CurrentUser;
+import io.topiacoin.model.DataModel;
+import io.topiacoin.model.FileChunk;
+import io.topiacoin.model.FileVersion;
+import io.topiacoin.model.Member;
+import io.topiacoin.model.User;
+import io.topiacoin.model.UserNode;
+import io.topiacoin.model.Workspace;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures fetching chunks between two SDFSChunkTransferers over loopback. Each operation asks the server which chunks
+ * it has, fetches the chunk, and stores it in the client's FileSystemChunkStorage, so the measurement covers the
+ * whole transfer - key agreement, signing, encryption, framing, the reactor and handler threads, and storing the chunk.
+ * The chunk is removed from the client again after each fetch, so that every operation transfers it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChunkTransferBenchmark {
+
+    private static final long RESPONSE_TIMEOUT_MS = 10000;
+    private static final String CHUNK_ID = "benchmark-chunk";
+    private static final long WORKSPACE_ID = 12345L;
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    private File clientStorageDir;
+    private File serverStorageDir;
+    private FileSystemChunkStorage clientStorage;
+    private FileSystemChunkStorage serverStorage;
+    private SDFSChunkTransferer client;
+    private SDFSChunkTransferer server;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyPair clientTransferKeyPair = CryptoUtils.generateECKeyPair();
+        KeyPair serverTransferKeyPair = CryptoUtils.generateECKeyPair();
+        KeyPair clientSigningKeyPair = CryptoUtils.generateECKeyPair();
+        KeyPair serverSigningKeyPair = CryptoUtils.generateECKeyPair();
+
+        client = new SDFSChunkTransferer(clientTransferKeyPair, 0);
+        server = new SDFSChunkTransferer(serverTransferKeyPair, 0);
+
+        UserNode clientNode = new UserNode("client", "127.0.0.1", client.getListenPort(), clientTransferKeyPair.getPublic().getEncoded());
+        UserNode serverNode = new UserNode("server", "127.0.0.1", server.getListenPort(), serverTransferKeyPair.getPublic().getEncoded());
+        CurrentUser clientUser = new CurrentUser("client", "client@example.com", clientSigningKeyPair.getPublic(), clientSigningKeyPair.getPrivate());
+        CurrentUser serverUser = new CurrentUser("server", "server@example.com", serverSigningKeyPair.getPublic(), serverSigningKeyPair.getPrivate());
+
+        clientStorageDir = Files.createTempDirectory("chunk-transfer-benchmark-client").toFile();
+        serverStorageDir = Files.createTempDirectory("chunk-transfer-benchmark-server").toFile();
+        clientStorage = createChunkStorage(clientStorageDir);
+        serverStorage = createChunkStorage(serverStorageDir);
+
+        byte[] chunkData = new byte[chunkSize];
+        new Random(chunkSize).nextBytes(chunkData);
+        serverStorage.addChunk(CHUNK_ID, new ByteArrayInputStream(chunkData), null, true);
+
+        client.setChunkRetrievalStrategyFactory(new SimpleChunkRetrievalStrategyFactory());
+        server.setChunkRetrievalStrategyFactory(new SimpleChunkRetrievalStrategyFactory());
+        client.setChunkStorage(clientStorage);
+        server.setChunkStorage(serverStorage);
+        client.setDataModel(createDataModel(clientUser, clientUser, serverUser, clientNode, serverNode));
+        server.setDataModel(createDataModel(serverUser, clientUser, serverUser, clientNode, serverNode));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        server.stop();
+        clientStorage.shutdown();
+        serverStorage.shutdown();
+        FileUtils.deleteDirectory(clientStorageDir);
+        FileUtils.deleteDirectory(serverStorageDir);
+    }
+
+    @Benchmark
+    public boolean fetchChunk() throws Exception {
+        final CountDownLatch fetchComplete = new CountDownLatch(1);
+        final AtomicBoolean fetched = new AtomicBoolean();
+        // The retrieval plan modifies the list it is given, so each fetch gets a list of its own.
+        List<String> chunkIDs = new ArrayList<String>(Collections.singletonList(CHUNK_ID));
+        client.fetchChunksRemotely(chunkIDs, WORKSPACE_ID, new ChunksTransferHandler() {
+            @Override public void didFetchChunk(String chunkID, ChunkRetrievalStrategy strategy, Object state) {
+            }
+
+            @Override public void failedToFetchChunk(String chunkID, String message, Exception cause, Object state) {
+            }
+
+            @Override public void fetchedAllChunksSuccessfully(Object state) {
+                fetched.set(true);
+                fetchComplete.countDown();
+            }
+
+            @Override public void failedToBuildFetchPlan(Object state) {
+                fetchComplete.countDown();
+            }
+
+            @Override public void fetchPlanBuiltSuccessfully(ChunkRetrievalStrategy strategy, Object state) {
+            }
+
+            @Override public void failedToFetchAllChunks(Object state) {
+                fetchComplete.countDown();
+            }
+        }, null);
+        boolean success = fetchComplete.await(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS) && fetched.get();
+        clientStorage.removeChunk(CHUNK_ID);
+        return success;
+    }
+
+    private static FileSystemChunkStorage createChunkStorage(File storageDir) throws Exception {
+        FileSystemChunkStorage chunkStorage = new FileSystemChunkStorage();
+        chunkStorage.setChunkStorageDirectory(storageDir);
+        chunkStorage.setStorageQuota(Long.MAX_VALUE / 2);
+        chunkStorage.init();
+        return chunkStorage;
+    }
+
+    /**
+     * Builds the model for one side of the transfer - both users are members of a workspace holding the chunk.
+     */
+    private static DataModel createDataModel(CurrentUser me, CurrentUser clientUser, CurrentUser serverUser, UserNode clientNode, UserNode serverNode) throws Exception {
+        Member clientMember = new Member();
+        clientMember.setUserID(clientUser.getUserID());
+        clientMember.setAuthToken("client-auth-token");
+        Member serverMember = new Member();
+        serverMember.setUserID(serverUser.getUserID());
+        serverMember.setAuthToken("server-auth-token");
+        List<Member> members = new ArrayList<Member>();
+        members.add(clientMember);
+        members.add(serverMember);
+
+        Workspace workspace = new Workspace();
+        workspace.setGuid(WORKSPACE_ID);
+        workspace.setMembers(members);
+        io.topiacoin.model.File file = new io.topiacoin.model.File();
+        file.setEntryID("benchmark-file");
+        FileVersion version = new FileVersion();
+        version.setVersionID("benchmark-version");
+        FileChunk chunk = new FileChunk();
+        chunk.setChunkID(CHUNK_ID);
+
+        DataModel model = new BenchmarkDataModel();
+        model.addUser(new User(clientUser));
+        model.addUser(new User(serverUser));
+        model.addUserNode(clientNode);
+        model.addUserNode(serverNode);
+        model.setCurrentUser(me);
+        model.addWorkspace(workspace);
+        model.addMemberToWorkspace(WORKSPACE_ID, clientMember);
+        model.addMemberToWorkspace(WORKSPACE_ID, serverMember);
+        model.addFileToWorkspace(WORKSPACE_ID, file);
+        model.addFileVersion(file.getEntryID(), version);
+        model.addChunkForFile(file.getEntryID(), version.getVersionID(), chunk);
+        return model;
+    }
+
+    /**
+     * Each side of the transfer needs a model of its own, rather than the shared DataModel instance.
+     */
+    private static class BenchmarkDataModel extends DataModel {
+        BenchmarkDataModel() {
+            super(new DefaultConfiguration());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.CryptographicException;
+import io.topiacoin.crypto.HashUtils;
+import io.topiacoin.crypto.MessageSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cryptographic operations applied to every chunk: encryption and decryption with the chunk's secret
+ * key, hashing, and signing and verifying with an EC key pair.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CryptoBenchmark {
+
+    @Param({"4096", "65536", "1048576"})
+    public int chunkSize;
+
+    private byte[] clearData;
+    private byte[] cipherData;
+    private byte[] signature;
+    private SecretKey secretKey;
+    private IvParameterSpec iv;
+    private KeyPair keyPair;
+
+    @Setup
+    public void setup() throws CryptographicException {
+        clearData = new byte[chunkSize];
+        new Random(chunkSize).nextBytes(clearData);
+
+        secretKey = CryptoUtils.generateAESKey();
+        iv = CryptoUtils.generateIV("AES");
+        cipherData = CryptoUtils.encryptWithSecretKey(clearData, secretKey, iv);
+
+        keyPair = CryptoUtils.generateECKeyPair();
+        signature = MessageSigner.sign(clearData, keyPair);
+    }
+
+    @Benchmark
+    public byte[] encryptWithSecretKey() throws CryptographicException {
+        return CryptoUtils.encryptWithSecretKey(clearData, secretKey, iv);
+    }
+
+    @Benchmark
+    public byte[] decryptWithSecretKey() throws CryptographicException {
+        return CryptoUtils.decryptWithSecretKey(cipherData, secretKey, iv);
+    }
+
+    @Benchmark
+    public byte[] sha256() {
+        return HashUtils.sha256(clearData);
+    }
+
+    @Benchmark
+    public byte[] sign() throws CryptographicException {
+        return MessageSigner.sign(clearData, keyPair);
+    }
+
+    @Benchmark
+    public boolean verify() throws CryptographicException {
+        return MessageSigner.verify(clearData, keyPair.getPublic(), signature);
+    }
+}
@@ -0,0 +1,128 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.core.impl.DefaultConfiguration;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.MessageSigner;
+import io.topiacoin.dht.DHTComponents;
+import io.topiacoin.dht.config.DHTConfiguration;
+import io.topiacoin.dht.content.InMemoryExpiringValueStorage;
+import io.topiacoin.dht.intf.Message;
+import io.topiacoin.dht.intf.ResponseHandler;
+import io.topiacoin.dht.intf.ValueStorage;
+import io.topiacoin.dht.messages.MessageFactory;
+import io.topiacoin.dht.messages.StoreValueRequest;
+import io.topiacoin.dht.network.CommunicationServer;
+import io.topiacoin.dht.network.Node;
+import io.topiacoin.dht.network.NodeIDGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the DHT's CommunicationServer on loopback. Each operation sends a signed Store Value request from one
+ * server to another and waits for the signed response, so every operation is two packets, each of which is signed,
+ * sent, received, verified and handled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DHTTransportBenchmark {
+
+    private static final long RESPONSE_TIMEOUT_MS = 2000;
+
+    @Param({"1", "4"})
+    public int workerThreads;
+
+    private CommunicationServer client;
+    private CommunicationServer server;
+    private Node serverNode;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = createServer();
+        client = createServer();
+        serverNode = new Node(new NodeIDGenerator(createConfiguration()).generateNodeID(), InetAddress.getLoopbackAddress(), server.getPort());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public boolean roundTrip() throws InterruptedException {
+        StoreValueRequest request = new StoreValueRequest();
+        request.setKey("benchmark-key");
+        request.setValue("benchmark-value");
+
+        final CountDownLatch responseReceived = new CountDownLatch(1);
+        client.sendMessage(serverNode, request, new ResponseHandler() {
+            public void receive(Node origin, Message msg, int msgID) {
+                responseReceived.countDown();
+            }
+
+            public void timeout(int msgID) {
+                responseReceived.countDown();
+            }
+        });
+
+        return responseReceived.await(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private DHTConfiguration createConfiguration() {
+        DHTConfiguration configuration = new DHTConfiguration(new DefaultConfiguration());
+
+        // Keep the Node ID puzzle cheap, as generating IDs isn't what is being measured.
+        configuration.setC1(4);
+        configuration.setC2(8);
+        configuration.setResponseTimeout(RESPONSE_TIMEOUT_MS);
+        configuration.setEntryExpirationTime(60000);
+        configuration.setWorkerThreads(workerThreads);
+        return configuration;
+    }
+
+    private CommunicationServer createServer() throws Exception {
+        DHTConfiguration configuration = createConfiguration();
+        Node node = new Node(new NodeIDGenerator(configuration).generateNodeID(), InetAddress.getLoopbackAddress(), 0);
+
+        CommunicationServer communicationServer = new CommunicationServer(0, CryptoUtils.generateECKeyPair(), node);
+        node.setPort(communicationServer.getPort());
+
+        MessageFactory messageFactory = new MessageFactory();
+        ValueStorage valueStorage = new InMemoryExpiringValueStorage();
+
+        DHTComponents dhtComponents = new DHTComponents();
+        dhtComponents.setConfiguration(configuration);
+        dhtComponents.setMessageSigner(new MessageSigner());
+        dhtComponents.setMessageFactory(messageFactory);
+        dhtComponents.setValueStorage(valueStorage);
+        dhtComponents.setCommunicationServer(communicationServer);
+
+        communicationServer.setDHTComponents(dhtComponents);
+        messageFactory.setDhtComponents(dhtComponents);
+
+        messageFactory.initialize();
+        valueStorage.initialize();
+        communicationServer.start();
+
+        return communicationServer;
+    }
+}
@@ -0,0 +1,76 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.chunks.impl.FileSystemChunkStorage;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures adding chunks to the FileSystemChunkStorage under each sync policy.  Run with several threads to see the
+ * group commit policy share each sync between concurrent additions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DurableWriteBenchmark {
+
+    private static final int CHUNK_SIZE = 65536;
+
+    @Param({"none", "always", "group"})
+    public String syncPolicy;
+
+    @Param({"2000"})
+    public long groupCommitWindowMicros;
+
+    private File storageDir;
+    private FileSystemChunkStorage chunkStorage;
+    private byte[] chunkData;
+    private final AtomicLong nextChunk = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        storageDir = Files.createTempDirectory("durable-write-benchmark").toFile();
+
+        chunkStorage = new FileSystemChunkStorage();
+        chunkStorage.setChunkStorageDirectory(storageDir);
+        chunkStorage.setStorageQuota(Long.MAX_VALUE / 2);
+        chunkStorage.setSyncPolicy(FileSystemChunkStorage.SyncPolicy.valueOf(syncPolicy.toUpperCase()));
+        chunkStorage.setGroupCommitWindow(groupCommitWindowMicros);
+        chunkStorage.init();
+
+        chunkData = new byte[CHUNK_SIZE];
+        new Random(CHUNK_SIZE).nextBytes(chunkData);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        chunkStorage.shutdown();
+        FileUtils.deleteDirectory(storageDir);
+    }
+
+    @Benchmark
+    public void addChunk() throws Exception {
+        chunkStorage.addChunk("chunk-" + nextChunk.getAndIncrement(), new ByteArrayInputStream(chunkData), null, false);
+    }
+}
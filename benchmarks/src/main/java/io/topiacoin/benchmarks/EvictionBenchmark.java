@@ -0,0 +1,118 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.chunks.impl.LRUEvictionPolicy;
+import io.topiacoin.chunks.impl.SegmentedLRUEvictionPolicy;
+import io.topiacoin.chunks.intf.EvictionPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures choosing chunks to evict from a storage holding a million chunks.
+ *
+ * The eviction policies are kept up to date as chunks are added and read, so both the bookkeeping on each read and the
+ * cost of evicting a chunk to make room for a new one are measured.  For comparison, fullSort measures sorting every
+ * chunk by its last access, the way the chunk index does, which is what choosing the first chunk to evict cost before
+ * the policies, not counting the directory walk that came with it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EvictionBenchmark {
+
+    private static final int CHUNK_COUNT = 1000000;
+
+    @Benchmark
+    public void access(PolicyState state) {
+        state.policy.chunkAccessed(state.randomChunkID());
+    }
+
+    @Benchmark
+    public String addAndEvict(PolicyState state) {
+        state.policy.chunkAdded("added-chunk-" + state.nextChunkID.incrementAndGet());
+        String evicted = state.policy.getEvictionCandidates(1).get(0);
+        state.policy.chunkRemoved(evicted);
+        return evicted;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String fullSort(IndexState state) {
+        List<Map.Entry<String, Long>> sortedEntries = new ArrayList<>(state.lastAccess.entrySet());
+        Collections.sort(sortedEntries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                int chrono = Long.compare(o1.getValue(), o2.getValue());
+                return (chrono != 0 ? chrono : o1.getKey().compareTo(o2.getKey()));
+            }
+        });
+        return sortedEntries.get(0).getKey();
+    }
+
+    private static String chunkID(int index) {
+        return "chunk-" + index;
+    }
+
+    @State(Scope.Benchmark)
+    public static class PolicyState {
+
+        @Param({"lru", "slru"})
+        public String policyType;
+
+        private EvictionPolicy policy;
+        private final AtomicLong nextChunkID = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            policy = ("slru".equals(policyType) ? new SegmentedLRUEvictionPolicy() : new LRUEvictionPolicy());
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                policy.chunkAdded(chunkID(i));
+            }
+
+            // Read a third of the chunks again, so that the segmented policy has chunks to protect.
+            for (int i = 0; i < CHUNK_COUNT; i += 3) {
+                policy.chunkAccessed(chunkID(i));
+            }
+        }
+
+        private String randomChunkID() {
+            return chunkID(ThreadLocalRandom.current().nextInt(CHUNK_COUNT));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class IndexState {
+
+        private final Map<String, Long> lastAccess = new HashMap<>();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                lastAccess.put(chunkID(i), now - ThreadLocalRandom.current().nextInt(86400000));
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.topiacoin.benchmarks;
+
+import io.topiacoin.chunks.exceptions.UnknownMessageTypeException;
+import io.topiacoin.chunks.model.protocol.GiveChunkProtocolResponse;
+import io.topiacoin.chunks.model.protocol.HaveChunksProtocolResponse;
+import io.topiacoin.chunks.model.protocol.ProtocolMessage;
+import io.topiacoin.chunks.model.protocol.ProtocolMessageFactory;
+import io.topiacoin.chunks.model.protocol.QueryChunksProtocolRequest;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.CryptographicException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encoding and decoding of the chunk protocol messages. The GiveChunk response carries the chunk data, so
+ * it is measured at each chunk size, while the Query and Have messages carry a list of chunk IDs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProtocolCodecBenchmark {
+
+    private static final byte QUERY_CHUNKS = 0x01;
+    private static final byte HAVE_CHUNKS = 0x02;
+    private static final byte GIVE_CHUNK = 0x04;
+    private static final int CHUNK_ID_COUNT = 100;
+
+    @Param({"4096", "65536", "1048576"})
+    public int chunkSize;
+
+    private ProtocolMessageFactory messageFactory;
+    private KeyPair keyPair;
+
+    private QueryChunksProtocolRequest queryChunks;
+    private HaveChunksProtocolResponse haveChunks;
+    private GiveChunkProtocolResponse giveChunk;
+
+    private ByteBuffer encodedQueryChunks;
+    private ByteBuffer encodedHaveChunks;
+    private ByteBuffer encodedGiveChunk;
+
+    @Setup
+    public void setup() throws CryptographicException, InvalidKeyException {
+        messageFactory = new ProtocolMessageFactory();
+        keyPair = CryptoUtils.generateECKeyPair();
+
+        String[] chunkIDs = new String[CHUNK_ID_COUNT];
+        for (int i = 0; i < chunkIDs.length; i++) {
+            chunkIDs[i] = "chunk-" + i + "-0123456789abcdef0123456789abcdef";
+        }
+        byte[] chunkData = new byte[chunkSize];
+        new Random(chunkSize).nextBytes(chunkData);
+
+        queryChunks = new QueryChunksProtocolRequest(chunkIDs, "userA", "authToken");
+        queryChunks.sign(keyPair.getPrivate());
+        haveChunks = new HaveChunksProtocolResponse(chunkIDs, "userB");
+        haveChunks.sign(keyPair.getPrivate());
+        giveChunk = new GiveChunkProtocolResponse(chunkIDs[0], chunkData, "userB");
+        giveChunk.sign(keyPair.getPrivate());
+
+        encodedQueryChunks = encode(queryChunks);
+        encodedHaveChunks = encode(haveChunks);
+        encodedGiveChunk = encode(giveChunk);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeQueryChunks() {
+        return queryChunks.toBytes();
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeQueryChunks() throws UnknownMessageTypeException {
+        return messageFactory.getMessage(QUERY_CHUNKS, encodedQueryChunks.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeHaveChunks() {
+        return haveChunks.toBytes();
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeHaveChunks() throws UnknownMessageTypeException {
+        return messageFactory.getMessage(HAVE_CHUNKS, encodedHaveChunks.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeGiveChunk() {
+        return giveChunk.toBytes();
+    }
+
+    @Benchmark
+    public ProtocolMessage decodeGiveChunk() throws UnknownMessageTypeException {
+        return messageFactory.getMessage(GIVE_CHUNK, encodedGiveChunk.duplicate());
+    }
+
+    @Benchmark
+    public boolean decodeAndVerifyGiveChunk() throws Exception {
+        ProtocolMessage message = messageFactory.getMessage(GIVE_CHUNK, encodedGiveChunk.duplicate());
+        return message.verify(keyPair.getPublic());
+    }
+
+    private static ByteBuffer encode(ProtocolMessage message) {
+        ByteBuffer encoded = message.toBytes();
+        encoded.flip();
+        return encoded.asReadOnlyBuffer();
+    }
+}
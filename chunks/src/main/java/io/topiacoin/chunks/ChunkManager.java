@@ -5,14 +5,27 @@ import io.topiacoin.chunks.exceptions.FailedToStartCommsListenerException;
 import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
 import io.topiacoin.chunks.exceptions.InvalidReservationException;
 import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.impl.CachingChunkStorage;
+import io.topiacoin.chunks.impl.ExecutorAsyncChunkStorage;
 import io.topiacoin.chunks.impl.FileSystemChunkStorage;
-import io.topiacoin.chunks.impl.InMemoryChunkInfoManager;
+import io.topiacoin.chunks.impl.LRUEvictionPolicy;
+import io.topiacoin.chunks.impl.MultiVolumeChunkStorage;
+import io.topiacoin.chunks.impl.PackFileChunkStorage;
+import io.topiacoin.chunks.impl.PersistentChunkInfoManager;
 import io.topiacoin.chunks.impl.SDFSChunkTransferer;
+import io.topiacoin.chunks.impl.SegmentedLRUEvictionPolicy;
 import io.topiacoin.chunks.impl.SimpleChunkRetrievalStrategyFactory;
+import io.topiacoin.chunks.impl.TCPProtocolCommsService;
+import io.topiacoin.chunks.impl.TieredChunkStorage;
+import io.topiacoin.chunks.intf.AsyncChunkStorage;
+import io.topiacoin.chunks.intf.ChunkInfoManager;
 import io.topiacoin.chunks.intf.ChunkRetrievalStrategy;
+import io.topiacoin.chunks.intf.ChunkStorage;
 import io.topiacoin.chunks.intf.ChunkTransferer;
 import io.topiacoin.chunks.intf.ChunksFetchHandler;
 import io.topiacoin.chunks.intf.ChunksTransferHandler;
+import io.topiacoin.chunks.intf.EvictionPolicy;
+import io.topiacoin.chunks.model.ChunkRetrievalPlan;
 import io.topiacoin.core.Configuration;
 import io.topiacoin.crypto.CryptoUtils;
 import io.topiacoin.crypto.CryptographicException;
@@ -29,46 +42,156 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class ChunkManager {
 	private static final Log _log = LogFactory.getLog(ChunkManager.class);
 	private ChunkTransferer _chunkTransferer;
-	private FileSystemChunkStorage _chunkStorage;
+	private ChunkStorage _chunkStorage;
 	KeyPair _myChunkTransferPair;
 	private int _listenPort;
 	private String _listenAddress;
 	private DataModel _model;
 	private NotificationCenter _notificationCenter;
+	private ChunkScrubber _chunkScrubber;
+	private PersistentChunkInfoManager _chunkInfoManager;
+	private AsyncChunkStorage _asyncChunkStorage;
 
 	public ChunkManager(Configuration config, DataModel model) throws NoSuchUserException, IOException, FailedToStartCommsListenerException, CryptographicException {
 		_notificationCenter = NotificationCenter.defaultCenter();
 		_model = model;
-		InMemoryChunkInfoManager infomgr = new InMemoryChunkInfoManager();
-		infomgr.init();
+		_chunkInfoManager = new PersistentChunkInfoManager();
+		_chunkInfoManager.setPinDirectory(new File(config.getConfigurationOption("chunkPinLoc", config.getConfigurationOption("chunkStorageLoc") + "-pins")));
+		_chunkInfoManager.init();
 
-		File _chunkDir = new File(config.getConfigurationOption("chunkStorageLoc"));
-		_chunkStorage = new FileSystemChunkStorage();
-		_chunkStorage.setChunkStorageDirectory(_chunkDir);
-		_chunkStorage.setStorageQuota(config.getConfigurationOption("chunkStorageQuota", Long.class));
-		_chunkStorage.setReservationInactivityTimeout(30000);
-		_chunkStorage.setChunkInfoManager(infomgr);
-		_chunkStorage.init();
+		_chunkStorage = createChunkStorage(config, _chunkInfoManager);
+		String fastStorageLoc = config.getConfigurationOption("chunkFastStorageLoc", "");
+		if (!fastStorageLoc.isEmpty()) {
+			// The fast tier's chunks are demoted rather than evicted when it fills up.
+			FileSystemChunkStorage fastTier = createFileSystemChunkStorage(config, new File(fastStorageLoc),
+					config.getConfigurationOption("chunkFastStorageQuota", Long.class), _chunkInfoManager);
+			fastTier.setEvictionWatermarks(0, 0);
+			fastTier.init();
+
+			TieredChunkStorage tieredChunkStorage = new TieredChunkStorage();
+			tieredChunkStorage.setFastTier(fastTier);
+			tieredChunkStorage.setCapacityTier(_chunkStorage);
+			tieredChunkStorage.setMigrationRate(config.getConfigurationOption("chunkTierMigrationBytesPerSecond", TieredChunkStorage.DEFAULT_MIGRATION_RATE));
+			tieredChunkStorage.setPromotionThreshold(config.getConfigurationOption("chunkPromotionThreshold", TieredChunkStorage.DEFAULT_PROMOTION_THRESHOLD));
+			tieredChunkStorage.init();
+			_chunkStorage = tieredChunkStorage;
+		}
+		long chunkCacheSize = config.getConfigurationOption("chunkCacheSize", 0L);
+		if (chunkCacheSize > 0) {
+			CachingChunkStorage cachingChunkStorage = new CachingChunkStorage();
+			cachingChunkStorage.setChunkStorage(_chunkStorage);
+			cachingChunkStorage.setCacheSize(chunkCacheSize);
+			cachingChunkStorage.setOffHeap(config.getConfigurationOption("chunkCacheOffHeap", false));
+			cachingChunkStorage.init();
+			_chunkStorage = cachingChunkStorage;
+		}
+
+		_asyncChunkStorage = new ExecutorAsyncChunkStorage(_chunkStorage,
+				config.getConfigurationOption("chunkIOThreads", ExecutorAsyncChunkStorage.DEFAULT_THREAD_COUNT),
+				config.getConfigurationOption("chunkIOQueueSize", ExecutorAsyncChunkStorage.DEFAULT_QUEUE_SIZE));
 
 		_myChunkTransferPair = CryptoUtils.generateECKeyPair();
 		String myUserID = _model.getCurrentUser().getUserID();
-		_chunkTransferer = new SDFSChunkTransferer(_myChunkTransferPair, config.getConfigurationOption("chunkListenerPort", 0), config.getConfigurationOption("protocolTimeoutMs", 30000));
+		_chunkTransferer = new SDFSChunkTransferer(_myChunkTransferPair, config.getConfigurationOption("chunkListenerPort", 0), config.getConfigurationOption("protocolTimeoutMs", 30000),
+				config.getConfigurationOption("chunkReactorThreads", TCPProtocolCommsService.DEFAULT_REACTOR_COUNT),
+				config.getConfigurationOption("chunkHandlerThreads", TCPProtocolCommsService.DEFAULT_HANDLER_COUNT));
 		_listenPort = _chunkTransferer.getListenPort();
 		_listenAddress = "127.0.0.1";
 		UserNode thisNode = new UserNode(myUserID, _listenAddress, _listenPort, _myChunkTransferPair.getPublic().getEncoded());
 		_model.addUserNode(thisNode);
 		_chunkTransferer.setDataModel(_model);
-		_chunkTransferer.setChunkRetrievalStrategyFactory(new SimpleChunkRetrievalStrategyFactory());
+		SimpleChunkRetrievalStrategyFactory strategyFactory = new SimpleChunkRetrievalStrategyFactory();
+		strategyFactory.setMaxRequestsPerSource(config.getConfigurationOption("chunkFetchWindow", ChunkRetrievalPlan.DEFAULT_MAX_REQUESTS_PER_SOURCE));
+		strategyFactory.setMaxChunksPerRequest(config.getConfigurationOption("chunkFetchBatchSize", ChunkRetrievalPlan.DEFAULT_MAX_CHUNKS_PER_REQUEST));
+		strategyFactory.setAdaptiveWindow(config.getConfigurationOption("chunkFetchWindowAdaptive", true));
+		_chunkTransferer.setChunkRetrievalStrategyFactory(strategyFactory);
 		_chunkTransferer.setChunkStorage(_chunkStorage);
+
+		long scrubBytesPerSecond = config.getConfigurationOption("chunkScrubBytesPerSecond", ChunkScrubber.DEFAULT_BYTES_PER_SECOND);
+		if (scrubBytesPerSecond > 0) {
+			File quarantineDir = new File(config.getConfigurationOption("chunkQuarantineLoc", config.getConfigurationOption("chunkStorageLoc") + "-quarantine"));
+			_chunkScrubber = new ChunkScrubber(this, _chunkStorage, _model, quarantineDir, scrubBytesPerSecond);
+			_chunkScrubber.start(config.getConfigurationOption("chunkScrubStartDelayMs", ChunkScrubber.DEFAULT_START_DELAY),
+					config.getConfigurationOption("chunkScrubIntervalMs", ChunkScrubber.DEFAULT_SCRUB_INTERVAL));
+		}
+	}
+
+	/**
+	 * Creates the chunk storage selected by the chunkStorageType configuration option.  "filesystem", the default,
+	 * stores each chunk in a file of its own, while "packfile" appends the chunks to large segment files.  The
+	 * chunkSyncPolicy option ("none", the default, "always" or "group") decides how file system chunks are made durable.
+	 * If the chunkStorageVolumes option lists several directories, separated by commas, file system chunks are spread
+	 * across them, each holding an equal share of the chunkStorageQuota.
+	 */
+	private ChunkStorage createChunkStorage(Configuration config, ChunkInfoManager infomgr) {
+		File chunkDir = new File(config.getConfigurationOption("chunkStorageLoc"));
+		long quota = config.getConfigurationOption("chunkStorageQuota", Long.class);
+
+		String storageType = config.getConfigurationOption("chunkStorageType", "filesystem");
+		if ("packfile".equalsIgnoreCase(storageType)) {
+			PackFileChunkStorage chunkStorage = new PackFileChunkStorage();
+			chunkStorage.setChunkStorageDirectory(chunkDir);
+			chunkStorage.setStorageQuota(quota);
+			chunkStorage.setReservationInactivityTimeout(30000);
+			chunkStorage.setChunkInfoManager(infomgr);
+			chunkStorage.setEvictionPolicy(createEvictionPolicy(config));
+			chunkStorage.setSegmentSize(config.getConfigurationOption("chunkSegmentSize", PackFileChunkStorage.DEFAULT_SEGMENT_SIZE));
+			chunkStorage.setCompactionThreshold(config.getConfigurationOption("chunkSegmentCompactionThreshold", PackFileChunkStorage.DEFAULT_COMPACTION_THRESHOLD));
+			chunkStorage.init();
+			return chunkStorage;
+		}
+		if (!"filesystem".equalsIgnoreCase(storageType)) {
+			throw new IllegalArgumentException("Unknown chunk storage type: " + storageType);
+		}
+
+		String volumes = config.getConfigurationOption("chunkStorageVolumes", "");
+		if (volumes.trim().isEmpty()) {
+			FileSystemChunkStorage chunkStorage = createFileSystemChunkStorage(config, chunkDir, quota, infomgr);
+			chunkStorage.init();
+			return chunkStorage;
+		}
+
+		String[] volumeDirs = volumes.split(",");
+		MultiVolumeChunkStorage chunkStorage = new MultiVolumeChunkStorage();
+		for (String volumeDir : volumeDirs) {
+			File volumeFile = new File(volumeDir.trim());
+			FileSystemChunkStorage volume = createFileSystemChunkStorage(config, volumeFile, quota / volumeDirs.length, infomgr);
+			volume.init();
+			chunkStorage.addVolume(volumeFile.getAbsolutePath(), volume);
+		}
+		chunkStorage.init();
+		return chunkStorage;
+	}
+
+	private FileSystemChunkStorage createFileSystemChunkStorage(Configuration config, File chunkDir, long quota, ChunkInfoManager infomgr) {
+		FileSystemChunkStorage chunkStorage = new FileSystemChunkStorage();
+		chunkStorage.setChunkStorageDirectory(chunkDir);
+		chunkStorage.setStorageQuota(quota);
+		chunkStorage.setReservationInactivityTimeout(30000);
+		chunkStorage.setChunkInfoManager(infomgr);
+		chunkStorage.setEvictionPolicy(createEvictionPolicy(config));
+		chunkStorage.setEvictionWatermarks(config.getConfigurationOption("chunkEvictionLowWatermark", 0.0),
+				config.getConfigurationOption("chunkEvictionHighWatermark", 0.0));
+		chunkStorage.setSyncPolicy(FileSystemChunkStorage.SyncPolicy.valueOf(config.getConfigurationOption("chunkSyncPolicy", "none").toUpperCase()));
+		chunkStorage.setGroupCommitWindow(config.getConfigurationOption("chunkGroupCommitWindowMicros", FileSystemChunkStorage.DEFAULT_GROUP_COMMIT_WINDOW_MICROS));
+		return chunkStorage;
+	}
+
+	private EvictionPolicy createEvictionPolicy(Configuration config) {
+		return ("slru".equalsIgnoreCase(config.getConfigurationOption("chunkEvictionPolicy", "lru")) ?
+				new SegmentedLRUEvictionPolicy() : new LRUEvictionPolicy());
 	}
 
 	/**
@@ -119,6 +242,19 @@ public class ChunkManager {
 		}
 	}
 
+	/**
+	 * Records another reference to a chunk already stored in the Chunk Manager, such as when a new file reuses a chunk
+	 * of an existing one.  The chunk data is kept until every reference to it has been removed with removeChunk().
+	 *
+	 * @param chunkID The ID of the chunk being referenced.
+	 *
+	 * @return True if the reference was recorded.  False if the Chunk Manager does not have data for the specified
+	 * chunkID, in which case the chunk must be added again.
+	 */
+	public boolean addChunkReference(final String chunkID) {
+		return _chunkStorage.addChunkReference(chunkID);
+	}
+
 	/**
 	 * Retrieves chunk data stored in the Chunk Manager.  The chunk data associated with the specified chunkID is
 	 * returned. If the Chunk Manager does not contain the requested chunk, a NoSuchChunkException is thrown.
@@ -152,6 +288,26 @@ public class ChunkManager {
 		return _chunkStorage.getChunkDataStream(chunkID);
 	}
 
+	/**
+	 * Retrieves chunk data stored in the Chunk Manager as a read-only buffer.  Chunks kept in files are mapped into
+	 * memory rather than read onto the heap.  If the Chunk Manager does not contain the requested chunk, a
+	 * NoSuchChunkException is thrown.
+	 *
+	 * @param chunkID The ID of the chunk whose data is being requested.
+	 *
+	 * @return A ByteBuffer containing the requested chunk data.
+	 *
+	 * @throws NoSuchChunkException If the Chunk Manager does not have data for the requested chunk.
+	 */
+	public ByteBuffer getChunkDataAsBuffer(final String chunkID) throws NoSuchChunkException {
+		try {
+			return _chunkStorage.getChunkDataBuffer(chunkID);
+		} catch (IOException e) {
+			_log.error("Failed to get ChunkData", e);
+			throw new NoSuchChunkException("Failed to get Chunk", e);
+		}
+	}
+
 	/**
 	 * Indicates whether the Chunk Manager has chunk data for the specified chunkID.
 	 *
@@ -166,17 +322,70 @@ public class ChunkManager {
 
 	/**
 	 * Tells the Chunk Manager to remove the specified chunk.  The chunk data for the specified chunkID is purged from
-	 * the Chunk Manager's local storage.
+	 * the Chunk Manager's local storage once every reference to it has been removed.
 	 *
 	 * @param chunkID The ID of the chunk that is being removed.
 	 *
-	 * @return True if the chunk data has been removed.  False if the Chunk Manager does not have data for the requested
-	 * chunkID.
+	 * @return True if the reference to the chunk has been removed.  False if the Chunk Manager does not have data for
+	 * the requested chunkID.
 	 */
 	public boolean removeChunk(final String chunkID) {
 		return _chunkStorage.removeChunk(chunkID);
 	}
 
+	/**
+	 * Adds several chunks to the Chunk Manager in the background.  The chunks are written in parallel on the Chunk
+	 * Manager's I/O threads.  Cancelling the returned future skips the chunks that haven't been started yet.
+	 *
+	 * @param chunks A map from the ID of each chunk being added to the chunk's data.
+	 *
+	 * @return A future completed once every chunk has been added, or failed with the exception that stopped a chunk
+	 * from being added, such as a DuplicateChunkException or an InsufficientSpaceException.
+	 */
+	public CompletableFuture<Void> addChunks(final Map<String, byte[]> chunks) {
+		return _asyncChunkStorage.addChunks(chunks, false);
+	}
+
+	/**
+	 * Retrieves the data of several chunks stored in the Chunk Manager in the background.  The chunks are read in
+	 * parallel on the Chunk Manager's I/O threads.  Cancelling the returned future skips the chunks that haven't been
+	 * started yet.
+	 *
+	 * @param chunkIDs The IDs of the chunks whose data is being requested.
+	 *
+	 * @return A future completed with a map from each chunk ID, in the order given, to the chunk's data, or failed with
+	 * the exception that stopped a chunk from being read, such as a NoSuchChunkException.
+	 */
+	public CompletableFuture<Map<String, byte[]>> getChunks(final Collection<String> chunkIDs) {
+		return _asyncChunkStorage.getChunks(chunkIDs);
+	}
+
+	/**
+	 * Retrieves the data of several chunks stored in the Chunk Manager in the background, as read-only buffers.  Chunks
+	 * kept in files are mapped into memory rather than read onto the heap, so they can be decrypted straight from the
+	 * page cache.
+	 *
+	 * @param chunkIDs The IDs of the chunks whose data is being requested.
+	 *
+	 * @return A future completed with a map from each chunk ID, in the order given, to a buffer over the chunk's data,
+	 * or failed with the exception that stopped a chunk from being read, such as a NoSuchChunkException.
+	 */
+	public CompletableFuture<Map<String, ByteBuffer>> getChunkBuffers(final Collection<String> chunkIDs) {
+		return _asyncChunkStorage.getChunkBuffers(chunkIDs);
+	}
+
+	/**
+	 * Checks in the background whether the Chunk Manager has chunk data for several chunks.
+	 *
+	 * @param chunkIDs The IDs of the chunks whose existence is being checked.
+	 *
+	 * @return A future completed with a map from each chunk ID, in the order given, to true if the Chunk Manager has
+	 * the data for the chunk, or false if it does not.
+	 */
+	public CompletableFuture<Map<String, Boolean>> hasChunks(final Collection<String> chunkIDs) {
+		return _asyncChunkStorage.hasChunks(chunkIDs);
+	}
+
 	/**
 	 * Requests that the Chunk Manager fetch the chunk data for the specified chunkIDs.  The Chunk Manager will
 	 * communicate with the other nodes that make up the micro-network for the associated container to retrieve the data
@@ -233,12 +442,67 @@ public class ChunkManager {
 		_chunkTransferer.fetchChunksRemotely(unfetchedChunks, containerID, chunkFetchHandler, state);
 	}
 
+	/**
+	 * Pins chunks on behalf of a file version, so that they are not purged from the Chunk Manager while the version
+	 * needs them.  Pins survive restarts.
+	 *
+	 * @param fileID    The ID of the file.
+	 * @param versionID The ID of the version that needs the chunks.
+	 * @param chunkIDs  The IDs of the chunks to pin.
+	 */
+	public void pinChunksForFileVersion(String fileID, String versionID, Collection<String> chunkIDs) {
+		_chunkInfoManager.pinChunksForFileVersion(fileID, versionID, chunkIDs);
+	}
+
+	/**
+	 * Removes all of a file version's pins.  Chunks no other file version or workspace pins can be purged again.
+	 *
+	 * @param fileID    The ID of the file.
+	 * @param versionID The ID of the version that no longer needs its chunks.
+	 */
+	public void unpinFileVersion(String fileID, String versionID) {
+		_chunkInfoManager.unpinFileVersion(fileID, versionID);
+	}
+
+	/**
+	 * Pins chunks on behalf of a workspace, so that they are not purged from the Chunk Manager while the workspace
+	 * needs them.  Pins survive restarts.
+	 *
+	 * @param workspaceGuid The workspace that needs the chunks.
+	 * @param chunkIDs      The IDs of the chunks to pin.
+	 */
+	public void pinChunksForWorkspace(long workspaceGuid, Collection<String> chunkIDs) {
+		_chunkInfoManager.pinChunksForWorkspace(workspaceGuid, chunkIDs);
+	}
+
+	/**
+	 * Removes all of a workspace's pins.  Chunks no other workspace or file version pins can be purged again.
+	 *
+	 * @param workspaceGuid The workspace that no longer needs its chunks.
+	 */
+	public void unpinWorkspace(long workspaceGuid) {
+		_chunkInfoManager.unpinWorkspace(workspaceGuid);
+	}
+
 	public UserNode getMyUserNode() throws NoSuchUserException {
 		return new UserNode(_model.getCurrentUser().getUserID(), _listenAddress, _listenPort, _myChunkTransferPair.getPublic().getEncoded());
 	}
 
+	/**
+	 * Returns the scrubber checking the stored chunks for corruption, or null if scrubbing is disabled.
+	 */
+	ChunkScrubber getChunkScrubber() {
+		return _chunkScrubber;
+	}
+
 	public void stop() {
+		if (_chunkScrubber != null) {
+			_chunkScrubber.stop();
+		}
 		_chunkTransferer.stop();
+		_asyncChunkStorage.shutdown();
+		_chunkStorage.shutdown();
+		_chunkInfoManager.shutdown();
 	}
 
 	private void updateTransferProgress(ChunkRetrievalStrategy strategy, Object state) {
@@ -0,0 +1,353 @@
+package io.topiacoin.chunks;
+
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import io.topiacoin.chunks.intf.ChunksFetchHandler;
+import io.topiacoin.model.DataModel;
+import io.topiacoin.model.FileChunk;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks the chunks in storage for corruption in the background.  Each chunk is read back and its hash compared with
+ * the cipher text hash recorded for it in the data model.  A chunk that doesn't match, or can't be read, is
+ * quarantined: a copy of its data is kept in the quarantine directory for inspection, it is removed from storage, and
+ * it is fetched again from the other members of its workspace.
+ * <p>
+ * The scrubber reads the chunks through a token bucket, so that it never uses more than its share of the disk, nor of
+ * the CPU spent hashing, and leaves both to the transfers in progress.
+ */
+public class ChunkScrubber {
+
+	public static final long DEFAULT_BYTES_PER_SECOND = 4 * 1024 * 1024;
+	public static final long DEFAULT_SCRUB_INTERVAL = TimeUnit.DAYS.toMillis(1);
+	public static final long DEFAULT_START_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+	private static final String HASH_PREFIX = "SHA-256:";
+	private static final int READ_BUFFER_SIZE = 65536;
+	private static final String REFETCH_STATE = "chunkScrubber";
+
+	private static final Log _log = LogFactory.getLog(ChunkScrubber.class);
+
+	private final ChunkManager _chunkManager;
+	private final ChunkStorage _chunkStorage;
+	private final DataModel _model;
+	private final File _quarantineDirectory;
+	private final TokenBucket _throttle;
+
+	// The chunks that have been quarantined and are waiting to be fetched again, with the number of references each
+	// had, so that the references can be restored once it has been fetched.
+	private final Map<String, Integer> _quarantinedChunks = new ConcurrentHashMap<>();
+	private final Set<String> _refetchingChunks = ConcurrentHashMap.newKeySet();
+
+	private Thread _scrubThread;
+
+	private final AtomicLong _scrubbedChunkCount = new AtomicLong();
+	private final AtomicLong _scrubbedBytes = new AtomicLong();
+	private final AtomicLong _corruptChunkCount = new AtomicLong();
+	private final AtomicLong _refetchedChunkCount = new AtomicLong();
+
+	/**
+	 * Creates a Chunk Scrubber.
+	 *
+	 * @param chunkManager        The Chunk Manager through which corrupt chunks are fetched again.
+	 * @param chunkStorage        The storage whose chunks are checked.  This must be the Chunk Manager's storage.
+	 * @param model               The data model holding the hash of each chunk.
+	 * @param quarantineDirectory The directory in which the data of corrupt chunks is kept.
+	 * @param bytesPerSecond      The most chunk data read each second.
+	 */
+	ChunkScrubber(ChunkManager chunkManager, ChunkStorage chunkStorage, DataModel model, File quarantineDirectory, long bytesPerSecond) {
+		_chunkManager = chunkManager;
+		_chunkStorage = chunkStorage;
+		_model = model;
+		_quarantineDirectory = quarantineDirectory;
+		_throttle = new TokenBucket(bytesPerSecond, Math.max(bytesPerSecond, READ_BUFFER_SIZE));
+	}
+
+	/**
+	 * Starts checking the chunks in the background.  The first pass over the chunks starts after a delay, so that the
+	 * scrubber doesn't slow down startup, and each pass starts the specified interval after the last one finished.
+	 *
+	 * @param startDelay    The time, in milliseconds, before the first pass.
+	 * @param scrubInterval The time, in milliseconds, between the passes.
+	 */
+	public synchronized void start(final long startDelay, final long scrubInterval) {
+		if (_scrubThread != null) {
+			return;
+		}
+
+		_scrubThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(startDelay);
+					while (!Thread.currentThread().isInterrupted()) {
+						scrubChunks();
+						Thread.sleep(scrubInterval);
+					}
+				} catch (InterruptedException e) {
+					// Stopped
+				}
+			}
+		}, "Chunk Integrity Scrubber");
+		_scrubThread.setDaemon(true);
+		_scrubThread.setPriority(Thread.MIN_PRIORITY);
+		_scrubThread.start();
+	}
+
+	/**
+	 * Stops checking the chunks, abandoning the pass in progress.
+	 */
+	public void stop() {
+		Thread scrubThread;
+		synchronized (this) {
+			scrubThread = _scrubThread;
+			_scrubThread = null;
+		}
+		if (scrubThread != null) {
+			scrubThread.interrupt();
+			try {
+				scrubThread.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Checks every chunk in storage, quarantining the corrupt ones, and then starts fetching the quarantined chunks
+	 * again.
+	 *
+	 * @throws InterruptedException If the thread is interrupted, in which case the pass is abandoned.
+	 */
+	public void scrubChunks() throws InterruptedException {
+		List<String> chunkIDs = _chunkStorage.getChunkIDs();
+		_log.info("Checking " + chunkIDs.size() + " chunks for corruption");
+
+		int corruptChunks = 0;
+		for (String chunkID : chunkIDs) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException();
+			}
+			if (!scrubChunk(chunkID)) {
+				corruptChunks++;
+			}
+		}
+
+		if (corruptChunks > 0) {
+			_log.warn("Quarantined " + corruptChunks + " corrupt chunks");
+		}
+		refetchQuarantinedChunks();
+	}
+
+	/**
+	 * Checks a chunk, quarantining it if it is corrupt.  Chunks that have no hash in the data model can't be checked,
+	 * and are taken to be intact.
+	 *
+	 * @param chunkID The ID of the chunk being checked.
+	 *
+	 * @return True if the chunk is intact, or can't be checked.  False if it was quarantined.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting to read the chunk.
+	 */
+	boolean scrubChunk(String chunkID) throws InterruptedException {
+		FileChunk fileChunk = _model.getFileChunk(chunkID);
+		if (fileChunk == null || fileChunk.getCipherTextHash() == null || !fileChunk.getCipherTextHash().startsWith(HASH_PREFIX)) {
+			return true;
+		}
+		byte[] expectedHash = Base64.decodeBase64(fileChunk.getCipherTextHash().substring(HASH_PREFIX.length()));
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to Find the SHA-256 Algorithm", e);
+		}
+
+		boolean intact;
+		try (InputStream inputStream = _chunkStorage.getChunkDataStream(chunkID)) {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			int bytesRead;
+			while ((bytesRead = inputStream.read(buffer)) >= 0) {
+				_throttle.acquire(bytesRead);
+				digest.update(buffer, 0, bytesRead);
+				_scrubbedBytes.addAndGet(bytesRead);
+			}
+			intact = MessageDigest.isEqual(expectedHash, digest.digest());
+		} catch (NoSuchChunkException e) {
+			// Removed since the pass started.
+			return true;
+		} catch (IOException e) {
+			_log.warn("Unable to read chunk " + chunkID, e);
+			intact = false;
+		}
+		_scrubbedChunkCount.incrementAndGet();
+
+		if (!intact) {
+			quarantineChunk(chunkID);
+		}
+		return intact;
+	}
+
+	/**
+	 * Starts fetching the quarantined chunks again, grouped by the workspace each belongs to.  Chunks that no file uses
+	 * any more are dropped from the quarantine rather than fetched.
+	 */
+	public void refetchQuarantinedChunks() {
+		Map<Long, List<String>> chunksByContainer = new HashMap<>();
+		for (String chunkID : _quarantinedChunks.keySet()) {
+			if (_refetchingChunks.contains(chunkID)) {
+				continue;
+			}
+			Long containerID = _model.getContainerIDForChunk(chunkID);
+			if (containerID == null) {
+				releaseChunk(chunkID);
+				continue;
+			}
+			List<String> chunkIDs = chunksByContainer.get(containerID);
+			if (chunkIDs == null) {
+				chunkIDs = new ArrayList<>();
+				chunksByContainer.put(containerID, chunkIDs);
+			}
+			chunkIDs.add(chunkID);
+		}
+
+		for (Map.Entry<Long, List<String>> containerChunks : chunksByContainer.entrySet()) {
+			final List<String> chunkIDs = containerChunks.getValue();
+			_refetchingChunks.addAll(chunkIDs);
+			_chunkManager.fetchChunks(chunkIDs, containerChunks.getKey(), new ChunksFetchHandler() {
+				@Override
+				public void finishedFetchingChunks(List<String> successfulChunks, List<String> unsuccessfulChunks, Object state) {
+					for (String chunkID : successfulChunks) {
+						restoreChunk(chunkID);
+					}
+					if (!unsuccessfulChunks.isEmpty()) {
+						_log.warn("Unable to fetch " + unsuccessfulChunks.size() + " quarantined chunks again");
+					}
+					_refetchingChunks.removeAll(chunkIDs);
+				}
+
+				@Override
+				public void errorFetchingChunks(String message, Exception cause, Object state) {
+					_log.warn("Unable to fetch the quarantined chunks again: " + message, cause);
+					_refetchingChunks.removeAll(chunkIDs);
+				}
+			}, REFETCH_STATE);
+		}
+	}
+
+	/**
+	 * Returns the number of chunks checked.
+	 */
+	public long getScrubbedChunkCount() {
+		return _scrubbedChunkCount.get();
+	}
+
+	/**
+	 * Returns the number of bytes of chunk data read while checking the chunks.
+	 */
+	public long getScrubbedBytes() {
+		return _scrubbedBytes.get();
+	}
+
+	/**
+	 * Returns the number of chunks found to be corrupt.
+	 */
+	public long getCorruptChunkCount() {
+		return _corruptChunkCount.get();
+	}
+
+	/**
+	 * Returns the number of quarantined chunks that have been fetched again.
+	 */
+	public long getRefetchedChunkCount() {
+		return _refetchedChunkCount.get();
+	}
+
+	/**
+	 * Returns the IDs of the chunks that are quarantined, waiting to be fetched again.
+	 */
+	public List<String> getQuarantinedChunkIDs() {
+		return new ArrayList<>(_quarantinedChunks.keySet());
+	}
+
+	// -------- Private Methods --------
+
+	/**
+	 * Keeps a copy of a corrupt chunk's data in the quarantine directory, then removes every reference to the chunk
+	 * from storage, so that it is neither served to other members nor used to rebuild a file.
+	 */
+	private void quarantineChunk(String chunkID) {
+		_log.warn("Chunk " + chunkID + " is corrupt; quarantining it");
+		_corruptChunkCount.incrementAndGet();
+
+		File quarantineFile = getQuarantineFile(chunkID);
+		try (InputStream inputStream = _chunkStorage.getChunkDataStream(chunkID)) {
+			if (!_quarantineDirectory.mkdirs() && !_quarantineDirectory.isDirectory()) {
+				throw new IOException("Unable to create the quarantine directory " + _quarantineDirectory);
+			}
+			Files.copy(inputStream, quarantineFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchChunkException e) {
+			return;
+		} catch (IOException e) {
+			_log.warn("Unable to keep a copy of the corrupt chunk " + chunkID, e);
+		}
+
+		int references = 0;
+		while (_chunkStorage.hasChunk(chunkID) && _chunkStorage.removeChunk(chunkID)) {
+			references++;
+		}
+		_quarantinedChunks.put(chunkID, Math.max(references, 1));
+	}
+
+	/**
+	 * Restores the references to a quarantined chunk once it has been fetched again, and deletes the copy of its
+	 * corrupt data.
+	 */
+	private void restoreChunk(String chunkID) {
+		Integer references = _quarantinedChunks.remove(chunkID);
+		if (references == null) {
+			return;
+		}
+		for (int i = 1; i < references; i++) {
+			_chunkStorage.addChunkReference(chunkID);
+		}
+		deleteQuarantineFile(chunkID);
+		_refetchedChunkCount.incrementAndGet();
+	}
+
+	private void releaseChunk(String chunkID) {
+		if (_quarantinedChunks.remove(chunkID) != null) {
+			deleteQuarantineFile(chunkID);
+		}
+	}
+
+	private File getQuarantineFile(String chunkID) {
+		// Chunk IDs may contain characters, such as '/', that can't be used in a file name.
+		return new File(_quarantineDirectory, chunkID.replaceAll("[^A-Za-z0-9._-]", "_"));
+	}
+
+	private void deleteQuarantineFile(String chunkID) {
+		File quarantineFile = getQuarantineFile(chunkID);
+		if (quarantineFile.exists() && !quarantineFile.delete()) {
+			_log.warn("Unable to delete the quarantined copy of chunk " + chunkID);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package io.topiacoin.chunks;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which some work is done.  Tokens are added to the bucket at a fixed rate, up to its capacity, and
+ * each unit of work takes tokens from the bucket, waiting for them to be added if there aren't enough.  A request for
+ * more tokens than the bucket holds is allowed to overdraw it, and later requests wait until the debt has been repaid,
+ * so work done in large pieces is held to the same rate as work done in small ones.
+ */
+public class TokenBucket {
+
+	private final long _tokensPerSecond;
+	private final long _capacity;
+	private double _tokens;
+	private long _lastRefill;
+
+	/**
+	 * Creates a Token Bucket that starts full.
+	 *
+	 * @param tokensPerSecond The rate at which tokens are added to the bucket.
+	 * @param capacity        The most tokens the bucket holds, which is the largest burst allowed.
+	 *
+	 * @throws IllegalArgumentException If the rate or the capacity is not positive.
+	 */
+	public TokenBucket(long tokensPerSecond, long capacity) {
+		if (tokensPerSecond <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("The token rate and capacity must be positive");
+		}
+		_tokensPerSecond = tokensPerSecond;
+		_capacity = capacity;
+		_tokens = capacity;
+		_lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes tokens from the bucket, waiting until the bucket has been refilled enough to cover them.
+	 *
+	 * @param tokens The number of tokens being taken.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting for tokens.
+	 */
+	public void acquire(long tokens) throws InterruptedException {
+		long waitNanos;
+		synchronized (this) {
+			refill();
+			// Overdraw the bucket if need be, then wait until the debt, including any left by earlier callers, has
+			// been repaid.
+			_tokens -= tokens;
+			waitNanos = (_tokens < 0 ? nanosToRefill(-_tokens) : 0);
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * Returns the rate at which tokens are added to the bucket.
+	 */
+	public long getTokensPerSecond() {
+		return _tokensPerSecond;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		_tokens = Math.min(_capacity, _tokens + (now - _lastRefill) * _tokensPerSecond / 1e9);
+		_lastRefill = now;
+	}
+
+	private long nanosToRefill(double tokens) {
+		return (long) (tokens * 1e9 / _tokensPerSecond);
+	}
+}
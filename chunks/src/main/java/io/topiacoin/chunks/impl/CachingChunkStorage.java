@@ -0,0 +1,512 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.exceptions.DuplicateChunkException;
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.chunks.exceptions.InvalidReservationException;
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import io.topiacoin.chunks.intf.ReservationID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Chunk Storage that keeps the most popular chunks in memory in front of another Chunk Storage.  Chunks are added to
+ * the cache as they are read, but only if the TinyLFU admission policy judges them to have been read more often
+ * recently than the chunks they would push out of the cache, so a large scan of chunks that are only read once does
+ * not flush out the chunks that are read repeatedly.  The cache can be kept in direct buffers, outside of the Java
+ * heap.
+ * <p>
+ * Concurrent reads of a chunk that isn't in the cache share a single read from the underlying storage.
+ * <p>
+ * Chunks are never changed once stored, so a cached chunk is always the same as the stored one.  A chunk removed from
+ * the underlying storage by something other than this cache, such as background eviction, may still be read from the
+ * cache until it is pushed out, but hasChunk() always answers from the underlying storage.
+ */
+public class CachingChunkStorage implements ChunkStorage {
+
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    // Used to size the frequency sketch from the cache size.
+    private static final int TYPICAL_CHUNK_SIZE = 65536;
+
+    // A chunk larger than this fraction of the cache is never cached.
+    private static final int MAX_CHUNK_FRACTION = 8;
+
+    private Log _log = LogFactory.getLog(this.getClass());
+
+    private ChunkStorage chunkStorage;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private boolean offHeap;
+
+    private FrequencySketch frequencySketch;
+    private final LinkedHashMap<String, ByteBuffer> cachedChunks = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private final Map<String, FutureTask<ByteBuffer>> chunkReads = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong sharedReadCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (chunkStorage == null) {
+            throw new IllegalStateException("The Caching Chunk Storage needs a Chunk Storage to cache");
+        }
+        frequencySketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, Math.max(cacheSize / TYPICAL_CHUNK_SIZE, 1024)));
+        _log.info("Initialized Caching Chunk Storage with a " + cacheSize + " byte " + (offHeap ? "off-heap " : "") + "cache");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        chunkStorage.shutdown();
+        clearCache();
+    }
+
+    @Override
+    public void addChunk(String chunkID, InputStream chunkStream, ReservationID reservationID, boolean purgeable)
+            throws DuplicateChunkException, InvalidReservationException, InsufficientSpaceException, IOException {
+        chunkStorage.addChunk(chunkID, chunkStream, reservationID, purgeable);
+    }
+
+    @Override
+    public InputStream getChunkDataStream(String chunkID) throws NoSuchChunkException {
+        try {
+            return Channels.newInputStream(new ChunkBufferChannel(getChunkBuffer(chunkID)));
+        } catch (IOException e) {
+            _log.info("Unable to read the requested chunk", e);
+            throw new NoSuchChunkException("Chunk " + chunkID + " could not be read.");
+        }
+    }
+
+    @Override
+    public byte[] getChunkData(String chunkID) throws NoSuchChunkException, IOException {
+        ByteBuffer buffer = getChunkBuffer(chunkID);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    @Override
+    public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+        return new ChunkBufferChannel(getChunkBuffer(chunkID));
+    }
+
+    @Override
+    public ByteBuffer getChunkDataBuffer(String chunkID) throws NoSuchChunkException, IOException {
+        return getChunkBuffer(chunkID);
+    }
+
+    @Override
+    public boolean hasChunk(String chunkID) {
+        return chunkStorage.hasChunk(chunkID);
+    }
+
+    @Override
+    public boolean removeChunk(String chunkID) {
+        boolean removed = chunkStorage.removeChunk(chunkID);
+        if (removed && !chunkStorage.hasChunk(chunkID)) {
+            invalidate(chunkID);
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean addChunkReference(String chunkID) {
+        return chunkStorage.addChunkReference(chunkID);
+    }
+
+    @Override
+    public void chunkAccessed(String chunkID) {
+        chunkStorage.chunkAccessed(chunkID);
+    }
+
+    @Override
+    public List<String> getChunkIDs() {
+        return chunkStorage.getChunkIDs();
+    }
+
+    @Override
+    public long getStorageQuota() {
+        return chunkStorage.getStorageQuota();
+    }
+
+    @Override
+    public long getAvailableStorage() {
+        return chunkStorage.getAvailableStorage();
+    }
+
+    @Override
+    public boolean purgeStorage(long neededAvailableSpace) {
+        boolean purged = chunkStorage.purgeStorage(neededAvailableSpace);
+
+        // Drop the cached copies of the chunks that were purged.
+        List<String> cachedChunkIDs;
+        synchronized (cachedChunks) {
+            cachedChunkIDs = new ArrayList<>(cachedChunks.keySet());
+        }
+        for (String chunkID : cachedChunkIDs) {
+            if (!chunkStorage.hasChunk(chunkID)) {
+                invalidate(chunkID);
+            }
+        }
+
+        return purged;
+    }
+
+    @Override
+    public ReservationID reserveStorageSpace(long spaceToReserve) throws InsufficientSpaceException {
+        return chunkStorage.reserveStorageSpace(spaceToReserve);
+    }
+
+    @Override
+    public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
+        chunkStorage.releaseSpaceReservation(reservationID);
+    }
+
+
+    // -------- Accessor Methods --------
+
+    /**
+     * Sets the Chunk Storage whose chunks are cached.
+     *
+     * @param chunkStorage The Chunk Storage that holds the chunks.
+     */
+    public void setChunkStorage(ChunkStorage chunkStorage) {
+        this.chunkStorage = chunkStorage;
+    }
+
+    public ChunkStorage getChunkStorage() {
+        return chunkStorage;
+    }
+
+    /**
+     * Sets the amount of chunk data that may be cached.  Must be set before the cache is initialized.
+     *
+     * @param cacheSize The size of the cache, in bytes.
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Sets whether the cached chunks are kept in direct buffers, outside of the Java heap.  Off-heap chunks don't add
+     * to garbage collection pauses, but count against the JVM's direct memory limit.
+     *
+     * @param offHeap True to keep the cached chunks outside of the Java heap.
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Returns the number of chunk reads answered from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of chunk reads that had to read the chunk from the underlying storage.  Reads that shared a
+     * read already under way are not counted.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of chunk reads that shared a read of the chunk already under way.
+     */
+    public long getSharedReadCount() {
+        return sharedReadCount.get();
+    }
+
+    /**
+     * Returns the number of chunks that were read but not cached because the admission policy rejected them.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the fraction of chunk reads that didn't have to read the chunk from the underlying storage.
+     *
+     * @return The hit ratio, between 0 and 1, or 0 if no chunks have been read.
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get() + sharedReadCount.get();
+        long reads = hits + missCount.get();
+        return (reads == 0 ? 0 : (double) hits / reads);
+    }
+
+    /**
+     * Returns the number of bytes of chunk data that didn't have to be read from the underlying storage.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Returns the number of bytes of chunk data currently cached.
+     */
+    public long getCachedBytes() {
+        synchronized (cachedChunks) {
+            return cachedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of chunks currently cached.
+     */
+    public int getCachedChunkCount() {
+        synchronized (cachedChunks) {
+            return cachedChunks.size();
+        }
+    }
+
+
+    // -------- Package Methods --------
+
+    /**
+     * Removes every chunk from the cache.
+     */
+    void clearCache() {
+        synchronized (cachedChunks) {
+            cachedChunks.clear();
+            cachedBytes = 0;
+        }
+    }
+
+
+    // -------- Private Methods --------
+
+    /**
+     * Returns a buffer holding the chunk's data, from the cache if it is there, and otherwise from the underlying
+     * storage.
+     */
+    private ByteBuffer getChunkBuffer(final String chunkID) throws NoSuchChunkException, IOException {
+        frequencySketch.increment(chunkID);
+
+        ByteBuffer cachedBuffer;
+        synchronized (cachedChunks) {
+            cachedBuffer = cachedChunks.get(chunkID);
+        }
+        if (cachedBuffer != null) {
+            hitCount.incrementAndGet();
+            bytesSaved.addAndGet(cachedBuffer.remaining());
+
+            // The underlying storage didn't see this read, so tell it the chunk is still in use.  Otherwise the most
+            // popular chunks would look like the least recently used ones to its eviction and tiering.
+            chunkStorage.chunkAccessed(chunkID);
+            return cachedBuffer.duplicate();
+        }
+
+        FutureTask<ByteBuffer> chunkRead = new FutureTask<>(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws Exception {
+                return readChunk(chunkID);
+            }
+        });
+        FutureTask<ByteBuffer> runningRead = chunkReads.putIfAbsent(chunkID, chunkRead);
+        if (runningRead == null) {
+            missCount.incrementAndGet();
+            try {
+                chunkRead.run();
+            } finally {
+                chunkReads.remove(chunkID, chunkRead);
+            }
+            runningRead = chunkRead;
+        } else {
+            sharedReadCount.incrementAndGet();
+        }
+
+        try {
+            ByteBuffer buffer = runningRead.get();
+            if (runningRead != chunkRead) {
+                bytesSaved.addAndGet(buffer.remaining());
+            }
+            return buffer.duplicate();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for chunk " + chunkID, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchChunkException) {
+                throw new NoSuchChunkException(cause.getMessage(), cause);
+            } else if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Unable to read chunk " + chunkID, cause);
+        }
+    }
+
+    private ByteBuffer readChunk(String chunkID) throws NoSuchChunkException, IOException {
+        try (SeekableByteChannel channel = chunkStorage.getChunkDataChannel(chunkID)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Chunk " + chunkID + " is too large to be read into memory.");
+            }
+
+            // Read into the heap, as most chunks read are never cached.  Only those admitted are copied off-heap.
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Unexpected end of chunk " + chunkID);
+                }
+            }
+            buffer.flip();
+
+            ByteBuffer chunkBuffer = buffer.asReadOnlyBuffer();
+            admit(chunkID, chunkBuffer);
+            return chunkBuffer;
+        }
+    }
+
+    /**
+     * Adds a chunk to the cache if it has been read more often recently than each of the least recently used chunks
+     * that would have to be pushed out to make room for it.  In off-heap mode, the chunk is copied into a direct buffer
+     * once it has been admitted.
+     */
+    private void admit(String chunkID, ByteBuffer chunkBuffer) {
+        long size = chunkBuffer.remaining();
+        if (size > cacheSize / MAX_CHUNK_FRACTION) {
+            rejectedCount.incrementAndGet();
+            return;
+        }
+
+        int frequency = frequencySketch.frequency(chunkID);
+        synchronized (cachedChunks) {
+            if (cachedChunks.containsKey(chunkID)) {
+                return;
+            }
+
+            List<String> victims = new ArrayList<>();
+            long freedBytes = 0;
+            Iterator<Map.Entry<String, ByteBuffer>> iterator = cachedChunks.entrySet().iterator();
+            while (cachedBytes - freedBytes + size > cacheSize && iterator.hasNext()) {
+                Map.Entry<String, ByteBuffer> victim = iterator.next();
+                if (frequencySketch.frequency(victim.getKey()) >= frequency) {
+                    rejectedCount.incrementAndGet();
+                    return;
+                }
+                victims.add(victim.getKey());
+                freedBytes += victim.getValue().remaining();
+            }
+
+            for (String victim : victims) {
+                cachedChunks.remove(victim);
+            }
+            ByteBuffer cachedBuffer = chunkBuffer;
+            if (offHeap) {
+                ByteBuffer directBuffer = ByteBuffer.allocateDirect((int) size);
+                directBuffer.put(chunkBuffer.duplicate());
+                directBuffer.flip();
+                cachedBuffer = directBuffer.asReadOnlyBuffer();
+            }
+            cachedChunks.put(chunkID, cachedBuffer);
+            cachedBytes += size - freedBytes;
+        }
+    }
+
+    private void invalidate(String chunkID) {
+        synchronized (cachedChunks) {
+            ByteBuffer removed = cachedChunks.remove(chunkID);
+            if (removed != null) {
+                cachedBytes -= removed.remaining();
+            }
+        }
+    }
+
+    // -------- Inner Classes --------
+
+    /**
+     * A read only channel on a buffer holding a chunk's data.
+     */
+    private static class ChunkBufferChannel implements SeekableByteChannel {
+        private final ByteBuffer buffer;
+        private boolean open = true;
+
+        ChunkBufferChannel(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int bytesRead = Math.min(dst.remaining(), buffer.remaining());
+            ByteBuffer window = buffer.duplicate();
+            window.limit(window.position() + bytesRead);
+            dst.put(window);
+            buffer.position(buffer.position() + bytesRead);
+            return bytesRead;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return buffer.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            buffer.position((int) Math.min(newPosition, buffer.limit()));
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return buffer.limit();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
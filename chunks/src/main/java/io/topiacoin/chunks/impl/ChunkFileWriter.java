@@ -0,0 +1,414 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.impl.FileSystemChunkStorage.SyncPolicy;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes chunk files so that a chunk is either completely present under its final name or not there at all.  Each
+ * chunk is written to a temporary file in the incoming directory, and then renamed into place.  Anything left in the
+ * incoming directory when the storage stopped part way through a write is deleted when the writer is started.
+ * <p>
+ * Depending on the sync policy, the chunk's data and the directory entry created by the rename are also forced to disk
+ * before the write returns.  With the GROUP policy, each writer forces its own chunk's data, and the chunks are then
+ * renamed into place in groups by a single committer thread, which forces each directory involved once per group.  A
+ * group is committed as soon as every writer in progress has joined it, or once the group commit window has passed, so
+ * a lone writer isn't held up for the whole window while concurrent writers share the directory syncs.
+ */
+class ChunkFileWriter {
+
+    // The number of times a chunk is renamed into place before giving up, as removing another chunk may remove the
+    // directory the chunk is being renamed into.
+    private static final int MAX_MOVE_ATTEMPTS = 3;
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    // The most writes made durable together.
+    private static final int MAX_GROUP_SIZE = 256;
+
+    // How long the committer waits for a write before checking whether any writers are still copying a chunk.
+    private static final long MAX_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final Log _log = LogFactory.getLog(this.getClass());
+
+    private final File incomingDirectory;
+    private final SyncPolicy syncPolicy;
+    private final long groupCommitWindowMicros;
+    private final AtomicLong nextTempFileNumber = new AtomicLong();
+
+    private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+    private Thread committer;
+    private volatile boolean running;
+
+    // Held while checking that the committer is running and queueing a write for it, so that shutdown can't drain the
+    // queue for the last time in between.
+    private final Object queueLock = new Object();
+
+    // The writers still copying a chunk that will be committed as part of a group.
+    private final AtomicInteger activeWriters = new AtomicInteger();
+
+    private final AtomicLong groupCount = new AtomicLong();
+    private final AtomicLong groupedWriteCount = new AtomicLong();
+
+    /**
+     * Creates a Chunk File Writer.
+     *
+     * @param incomingDirectory       The directory the chunks are written in before being renamed into place.  It must
+     *                                be on the same file system as the chunks.
+     * @param syncPolicy              How the chunks written are made durable.
+     * @param groupCommitWindowMicros How long, in microseconds, the committer waits for more writes to join a group
+     *                                once the first has arrived.  Only used with the GROUP policy.
+     */
+    ChunkFileWriter(File incomingDirectory, SyncPolicy syncPolicy, long groupCommitWindowMicros) {
+        this.incomingDirectory = incomingDirectory;
+        this.syncPolicy = syncPolicy;
+        this.groupCommitWindowMicros = groupCommitWindowMicros;
+    }
+
+    /**
+     * Prepares the incoming directory, deleting any chunks left part way through being written, and starts the
+     * committer if the sync policy needs one.
+     */
+    void start() throws IOException {
+        if (!incomingDirectory.mkdirs() && !incomingDirectory.isDirectory()) {
+            throw new IOException("Unable to create the incoming chunk directory: " + incomingDirectory);
+        }
+        File[] leftovers = incomingDirectory.listFiles();
+        if (leftovers != null && leftovers.length > 0) {
+            _log.info("Deleting " + leftovers.length + " partly written chunks");
+            for (File leftover : leftovers) {
+                Files.deleteIfExists(leftover.toPath());
+            }
+        }
+
+        if (syncPolicy != SyncPolicy.GROUP) {
+            return;
+        }
+
+        running = true;
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitGroups();
+            }
+        }, "Chunk Group Commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Stops the committer once the writes already waiting for it have been committed.
+     */
+    void shutdown() {
+        synchronized (queueLock) {
+            running = false;
+        }
+        if (committer != null) {
+            committer.interrupt();
+            try {
+                committer.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer = null;
+        }
+
+        // Commit anything added as the committer stopped.  Writes started from here on are committed by the writer.
+        List<PendingWrite> remaining = new ArrayList<>();
+        pendingWrites.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            commitGroup(remaining);
+        }
+    }
+
+    /**
+     * Writes a chunk file.  Once this returns, the file is present under its final name, and is durable if the sync
+     * policy calls for it.  If the write fails, nothing is left under the final name.  The directories the chunk
+     * belongs in are created if they don't exist.  A file already under the final name is replaced.
+     *
+     * @param chunkStream The chunk data.
+     * @param target      The final location of the chunk file.
+     *
+     * @return The number of bytes written.
+     */
+    long write(InputStream chunkStream, File target) throws IOException {
+        Path targetPath = target.toPath();
+        Path tempPath = new File(incomingDirectory, target.getName() + "-" + nextTempFileNumber.incrementAndGet()).toPath();
+
+        boolean grouped = (syncPolicy == SyncPolicy.GROUP);
+        if (grouped) {
+            activeWriters.incrementAndGet();
+        }
+
+        FileChannel channel = null;
+        boolean written = false;
+        try {
+            channel = openTempFile(tempPath);
+            long length = copy(chunkStream, channel);
+
+            if (syncPolicy != SyncPolicy.NONE) {
+                channel.force(true);
+            }
+            channel.close();
+
+            PendingWrite pendingWrite = null;
+            if (grouped) {
+                synchronized (queueLock) {
+                    if (running) {
+                        pendingWrite = new PendingWrite(tempPath, targetPath);
+                        pendingWrites.add(pendingWrite);
+                    }
+                }
+                activeWriters.decrementAndGet();
+                grouped = false;
+            }
+
+            if (pendingWrite != null) {
+                pendingWrite.await();
+            } else {
+                moveIntoPlace(tempPath, targetPath);
+                if (syncPolicy != SyncPolicy.NONE) {
+                    syncDirectory(targetPath.getParent());
+                }
+            }
+
+            written = true;
+            return length;
+        } finally {
+            if (grouped) {
+                activeWriters.decrementAndGet();
+            }
+            if (!written) {
+                if (channel != null) {
+                    closeQuietly(channel);
+                }
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of groups committed.
+     */
+    long getGroupCount() {
+        return groupCount.get();
+    }
+
+    /**
+     * Returns the number of writes committed as part of a group.
+     */
+    long getGroupedWriteCount() {
+        return groupedWriteCount.get();
+    }
+
+    /**
+     * Returns the directory the chunks are written in before being renamed into place.
+     */
+    File getIncomingDirectory() {
+        return incomingDirectory;
+    }
+
+    // -------- Private Methods --------
+
+    private FileChannel openTempFile(Path tempPath) throws IOException {
+        try {
+            return FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            // The incoming directory was removed from under the storage.
+            if (!incomingDirectory.mkdirs() && !incomingDirectory.isDirectory()) {
+                throw e;
+            }
+            return FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+
+    private long copy(InputStream chunkStream, FileChannel channel) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long length = 0;
+        int bytesRead;
+        while ((bytesRead = chunkStream.read(buffer)) >= 0) {
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            length += bytesRead;
+        }
+        return length;
+    }
+
+    private void commitGroups() {
+        List<PendingWrite> group = new ArrayList<>();
+        while (running || !pendingWrites.isEmpty()) {
+            try {
+                PendingWrite first = pendingWrites.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+
+                // Give the writers still copying a chunk until the end of the window to join the group.  Once every
+                // writer has joined, there is nothing more to wait for.
+                pendingWrites.drainTo(group, MAX_GROUP_SIZE - group.size());
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(groupCommitWindowMicros);
+                while (group.size() < MAX_GROUP_SIZE && activeWriters.get() > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    PendingWrite next = pendingWrites.poll(Math.min(remaining, MAX_POLL_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        group.add(next);
+                        pendingWrites.drainTo(group, MAX_GROUP_SIZE - group.size());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Shutting down.  Commit whatever is still waiting.
+                pendingWrites.drainTo(group);
+            }
+
+            if (!group.isEmpty()) {
+                commitGroup(group);
+                group.clear();
+            }
+        }
+    }
+
+    private void commitGroup(List<PendingWrite> group) {
+        // Rename each chunk into place.  Their data was forced to disk by the writers.
+        for (PendingWrite write : group) {
+            try {
+                moveIntoPlace(write.tempPath, write.targetPath);
+            } catch (IOException e) {
+                write.error = e;
+            }
+        }
+
+        // Then force each directory the chunks were renamed into once.
+        Map<Path, List<PendingWrite>> writesByDirectory = new LinkedHashMap<>();
+        for (PendingWrite write : group) {
+            if (write.error == null) {
+                Path directory = write.targetPath.getParent();
+                List<PendingWrite> writes = writesByDirectory.get(directory);
+                if (writes == null) {
+                    writes = new ArrayList<>();
+                    writesByDirectory.put(directory, writes);
+                }
+                writes.add(write);
+            }
+        }
+        for (Map.Entry<Path, List<PendingWrite>> directoryWrites : writesByDirectory.entrySet()) {
+            try {
+                syncDirectory(directoryWrites.getKey());
+            } catch (IOException e) {
+                for (PendingWrite write : directoryWrites.getValue()) {
+                    write.error = e;
+                }
+            }
+        }
+
+        groupCount.incrementAndGet();
+        groupedWriteCount.addAndGet(group.size());
+        for (PendingWrite write : group) {
+            write.done.countDown();
+        }
+    }
+
+    private void moveIntoPlace(Path tempPath, Path targetPath) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            // Create the parent directories so that the chunk can be renamed into them.
+            File parentDir = targetPath.toFile().getParentFile();
+            if (!parentDir.mkdirs() && !parentDir.isDirectory() && attempt == MAX_MOVE_ATTEMPTS) {
+                throw new IOException("Unable to create the chunk directory " + parentDir);
+            }
+
+            try {
+                Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (NoSuchFileException e) {
+                // A directory was removed along with the last of the chunks in it.
+                if (attempt == MAX_MOVE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms, such as Windows, can't open or force a directory.  The rename is as durable as the
+            // platform allows.
+            if (Files.isDirectory(directory)) {
+                _log.debug("Unable to sync the directory " + directory, e);
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already failing.
+        }
+    }
+
+    // -------- Inner Classes --------
+
+    /**
+     * A chunk written to its temporary file, waiting for the committer to make it durable and rename it into place.
+     */
+    private static class PendingWrite {
+        final Path tempPath;
+        final Path targetPath;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile IOException error;
+
+        PendingWrite(Path tempPath, Path targetPath) {
+            this.tempPath = tempPath;
+            this.targetPath = targetPath;
+        }
+
+        void await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // The write can't be abandoned part way through the commit.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw new IOException("Unable to commit the chunk " + targetPath.getFileName(), error);
+            }
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package io.topiacoin.chunks.impl;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of the chunks held by a FileSystemChunkStorage, recording the size, last access time and
+ * reference count of each chunk.
+ * <p>
+ * The index is kept durable by a snapshot file and an append-only journal of the changes made since the snapshot was
+ * written.  Loading the index reads the snapshot and replays the journal on top of it.  Once the journal holds enough
+ * records, a new snapshot is written and the journal is started over.  Every journal record sets a value outright, so
+ * replaying a journal whose changes are already part of the snapshot (as happens if the storage stops between writing
+ * the snapshot and truncating the journal) leaves the index unchanged.
+ * <p>
+ * Changes to the chunks are flushed to the journal as they are made.  Access times are only journaled once they have
+ * moved on by more than a minute, and are flushed with the next change, so a crash can lose a little recency, but
+ * never a chunk.
+ */
+class ChunkIndex {
+
+    public static final String INDEX_FILE_PREFIX = "chunk-index";
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 100000;
+
+    private static final String SNAPSHOT_FILE_NAME = INDEX_FILE_PREFIX;
+    private static final String JOURNAL_FILE_NAME = INDEX_FILE_PREFIX + ".journal";
+
+    private static final int SNAPSHOT_MAGIC = 0x43484958;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte ADD_RECORD = 1;
+    private static final byte TOUCH_RECORD = 2;
+    private static final byte REFERENCES_RECORD = 3;
+    private static final byte REMOVE_RECORD = 4;
+
+    private static final long TOUCH_JOURNAL_GRANULARITY = 60000;
+
+    private final Log _log = LogFactory.getLog(this.getClass());
+
+    private final File snapshotFile;
+    private final File journalFile;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Only changed while holding the index's lock, but read without it.
+    private volatile long totalSize;
+
+    private DataOutputStream journal;
+    private int journalRecords;
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+    /**
+     * Creates an empty index whose snapshot and journal are kept in the specified directory.  Call load() or reset()
+     * before using it.
+     *
+     * @param directory The directory in which to keep the index files.
+     */
+    ChunkIndex(File directory) {
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Loads the index from its snapshot and journal.  A journal that ends part way through a record, as it may after a
+     * crash, is replayed up to the last complete record.
+     *
+     * @return True if the index was loaded.  False if there is no snapshot, or it could not be read, in which case the
+     * index must be rebuilt with reset().
+     */
+    synchronized boolean load() {
+        clear();
+        if (!snapshotFile.exists()) {
+            return false;
+        }
+
+        try {
+            readSnapshot();
+        } catch (IOException e) {
+            _log.warn("Unable to read the chunk index snapshot", e);
+            clear();
+            return false;
+        }
+
+        try {
+            replayJournal();
+            openJournal(false);
+        } catch (IOException e) {
+            _log.warn("Unable to replay the chunk index journal", e);
+            clear();
+            return false;
+        }
+
+        // Fold a long journal into a new snapshot now rather than replaying it again on the next start.
+        if (journalRecords >= snapshotInterval) {
+            snapshot();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the contents of the index, such as after rebuilding it from the chunks on disk, and writes a new
+     * snapshot of it.
+     *
+     * @param newEntries The entries of the index, keyed by chunk ID.
+     */
+    synchronized void reset(Map<String, Entry> newEntries) {
+        clear();
+        for (Map.Entry<String, Entry> entry : newEntries.entrySet()) {
+            entries.put(entry.getKey(), entry.getValue());
+            totalSize += entry.getValue().size;
+        }
+        snapshot();
+    }
+
+    /**
+     * Writes a snapshot of the index and closes the journal.
+     */
+    synchronized void close() {
+        snapshot();
+        closeJournal();
+    }
+
+    synchronized boolean contains(String chunkID) {
+        return entries.containsKey(chunkID);
+    }
+
+    synchronized List<String> getChunkIDs() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the chunks in the index.
+     *
+     * @return The total size, in bytes, of the chunks in the index.
+     */
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Returns the number of references to a chunk.
+     *
+     * @param chunkID The ID of the chunk.
+     *
+     * @return The number of references to the chunk, or 0 if the chunk is not in the index.
+     */
+    synchronized int getReferenceCount(String chunkID) {
+        Entry entry = entries.get(chunkID);
+        return (entry != null ? entry.referenceCount : 0);
+    }
+
+    /**
+     * Adds a chunk with a single reference to the index.
+     *
+     * @param chunkID    The ID of the chunk.
+     * @param size       The size of the chunk, in bytes.
+     * @param accessTime The time the chunk was added, in milliseconds since the epoch.
+     */
+    synchronized void add(String chunkID, long size, long accessTime) {
+        Entry previous = entries.put(chunkID, new Entry(size, accessTime, 1));
+        if (previous != null) {
+            totalSize -= previous.size;
+        }
+        totalSize += size;
+
+        try {
+            if (journal != null) {
+                journal.writeByte(ADD_RECORD);
+                journal.writeUTF(chunkID);
+                journal.writeLong(size);
+                journal.writeLong(accessTime);
+                journaled(true);
+            }
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    /**
+     * Records an access to a chunk.
+     *
+     * @param chunkID    The ID of the chunk.
+     * @param accessTime The time the chunk was accessed, in milliseconds since the epoch.
+     */
+    synchronized void touch(String chunkID, long accessTime) {
+        Entry entry = entries.get(chunkID);
+        if (entry == null || accessTime <= entry.lastAccess) {
+            return;
+        }
+        entry.lastAccess = accessTime;
+        if (accessTime - entry.journaledAccess < TOUCH_JOURNAL_GRANULARITY) {
+            return;
+        }
+        entry.journaledAccess = accessTime;
+
+        try {
+            if (journal != null) {
+                journal.writeByte(TOUCH_RECORD);
+                journal.writeUTF(chunkID);
+                journal.writeLong(accessTime);
+                journaled(false);
+            }
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    /**
+     * Sets the number of references to a chunk.
+     *
+     * @param chunkID        The ID of the chunk.
+     * @param referenceCount The number of references to the chunk.
+     */
+    synchronized void setReferenceCount(String chunkID, int referenceCount) {
+        Entry entry = entries.get(chunkID);
+        if (entry == null || entry.referenceCount == referenceCount) {
+            return;
+        }
+        entry.referenceCount = referenceCount;
+
+        try {
+            if (journal != null) {
+                journal.writeByte(REFERENCES_RECORD);
+                journal.writeUTF(chunkID);
+                journal.writeInt(referenceCount);
+                journaled(true);
+            }
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    /**
+     * Drops every chunk back to a single reference.
+     */
+    synchronized void clearReferenceCounts() {
+        for (String chunkID : new ArrayList<>(entries.keySet())) {
+            setReferenceCount(chunkID, 1);
+        }
+    }
+
+    /**
+     * Removes a chunk from the index.
+     *
+     * @param chunkID The ID of the chunk.
+     *
+     * @return True if the chunk was in the index.
+     */
+    synchronized boolean remove(String chunkID) {
+        Entry entry = entries.remove(chunkID);
+        if (entry == null) {
+            return false;
+        }
+        totalSize -= entry.size;
+
+        try {
+            if (journal != null) {
+                journal.writeByte(REMOVE_RECORD);
+                journal.writeUTF(chunkID);
+                journaled(true);
+            }
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the IDs of the chunks in the index, least recently accessed first.
+     *
+     * @return The IDs of the chunks in the index, ordered by their last access.
+     */
+    synchronized List<String> getChunkIDsByLastAccess() {
+        List<Map.Entry<String, Entry>> sortedEntries = new ArrayList<>(entries.entrySet());
+        Collections.sort(sortedEntries, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+                int chrono = Long.compare(o1.getValue().lastAccess, o2.getValue().lastAccess);
+                return (chrono != 0 ? chrono : o1.getKey().compareTo(o2.getKey()));
+            }
+        });
+
+        List<String> chunkIDs = new ArrayList<>(sortedEntries.size());
+        for (Map.Entry<String, Entry> entry : sortedEntries) {
+            chunkIDs.add(entry.getKey());
+        }
+        return chunkIDs;
+    }
+
+    /**
+     * Sets the number of journal records after which a new snapshot of the index is written.
+     *
+     * @param snapshotInterval The number of journal records between snapshots.
+     */
+    synchronized void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Returns true if the specified file is one of the files of the index.
+     */
+    boolean isIndexFile(File file) {
+        return file.getName().startsWith(INDEX_FILE_PREFIX) && snapshotFile.getParentFile().equals(file.getParentFile());
+    }
+
+    // -------- Private Methods --------
+
+    private void clear() {
+        closeJournal();
+        entries.clear();
+        totalSize = 0;
+        journalRecords = 0;
+    }
+
+    private void journaled(boolean flush) throws IOException {
+        journalRecords++;
+        if (journalRecords >= snapshotInterval) {
+            snapshot();
+        } else if (flush) {
+            journal.flush();
+        }
+    }
+
+    /**
+     * Stops journaling after a failed write.  The snapshot is deleted, so that the index is rebuilt from the chunks on
+     * disk when the storage is next started rather than loaded without the changes the journal has missed.
+     */
+    private void journalFailed(IOException e) {
+        _log.warn("Unable to write to the chunk index journal.  The index will be rebuilt on the next start.", e);
+        closeJournal();
+        if (!snapshotFile.delete() && snapshotFile.exists()) {
+            _log.warn("Unable to delete the chunk index snapshot " + snapshotFile);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the index to a temporary file, which then replaces the previous snapshot, and starts a new
+     * journal.
+     */
+    private void snapshot() {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                output.writeInt(SNAPSHOT_MAGIC);
+                output.writeInt(SNAPSHOT_VERSION);
+                output.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeLong(entry.getValue().size);
+                    output.writeLong(entry.getValue().lastAccess);
+                    output.writeInt(entry.getValue().referenceCount);
+                }
+            }
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            openJournal(true);
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unrecognized chunk index snapshot");
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String chunkID = input.readUTF();
+                long size = input.readLong();
+                long lastAccess = input.readLong();
+                int referenceCount = input.readInt();
+                entries.put(chunkID, new Entry(size, lastAccess, referenceCount));
+                totalSize += size;
+            }
+        }
+    }
+
+    /**
+     * Applies the records in the journal to the index.  Anything after the last complete record is cut off the journal
+     * so that new records are appended to a readable journal.
+     */
+    private void replayJournal() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        long validLength = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+             DataInputStream input = new DataInputStream(counter)) {
+            boolean done = false;
+            while (!done) {
+                int recordType = input.read();
+                if (recordType < 0) {
+                    break;
+                }
+                try {
+                    String chunkID = input.readUTF();
+                    switch (recordType) {
+                        case ADD_RECORD:
+                            long size = input.readLong();
+                            long accessTime = input.readLong();
+                            Entry previous = entries.put(chunkID, new Entry(size, accessTime, 1));
+                            totalSize += size - (previous != null ? previous.size : 0);
+                            break;
+                        case TOUCH_RECORD:
+                            long lastAccess = input.readLong();
+                            Entry touched = entries.get(chunkID);
+                            if (touched != null) {
+                                touched.lastAccess = lastAccess;
+                                touched.journaledAccess = lastAccess;
+                            }
+                            break;
+                        case REFERENCES_RECORD:
+                            int referenceCount = input.readInt();
+                            Entry referenced = entries.get(chunkID);
+                            if (referenced != null) {
+                                referenced.referenceCount = referenceCount;
+                            }
+                            break;
+                        case REMOVE_RECORD:
+                            Entry removed = entries.remove(chunkID);
+                            if (removed != null) {
+                                totalSize -= removed.size;
+                            }
+                            break;
+                        default:
+                            _log.warn("Ignoring the chunk index journal from an unrecognized record at " + validLength);
+                            done = true;
+                            continue;
+                    }
+                    validLength = counter.getByteCount();
+                    journalRecords++;
+                } catch (EOFException e) {
+                    _log.warn("Ignoring an incomplete record at the end of the chunk index journal");
+                    done = true;
+                }
+            }
+        }
+
+        if (validLength < journalFile.length()) {
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    private void openJournal(boolean truncate) throws IOException {
+        closeJournal();
+        journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, !truncate)));
+        if (truncate) {
+            journalRecords = 0;
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                _log.warn("Unable to close the chunk index journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    // -------- Inner Entry Class --------
+
+    /**
+     * What the index knows about a chunk.
+     */
+    static class Entry {
+        final long size;
+        long lastAccess;
+        long journaledAccess;
+        int referenceCount;
+
+        Entry(long size, long lastAccess, int referenceCount) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.journaledAccess = lastAccess;
+            this.referenceCount = referenceCount;
+        }
+    }
+}
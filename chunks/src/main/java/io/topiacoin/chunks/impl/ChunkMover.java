@@ -0,0 +1,62 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.exceptions.DuplicateChunkException;
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.chunks.exceptions.InvalidReservationException;
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.IOException;
+
+/**
+ * Moves chunks from one Chunk Storage to another, for the storages that are built from several others.
+ */
+final class ChunkMover {
+
+    private ChunkMover() {
+    }
+
+    /**
+     * Moves a chunk, along with all of its references, from one Chunk Storage to another.  A chunk that is already in
+     * the target keeps the references from both.  The caller must keep other changes to the chunk from being made while
+     * it is moved.
+     *
+     * @param chunkID The ID of the chunk being moved.
+     * @param source  The Chunk Storage the chunk is moved from.
+     * @param target  The Chunk Storage the chunk is moved to.
+     *
+     * @return The number of bytes copied to the target, which is 0 if the target already had the chunk, or -1 if the
+     * source doesn't have the chunk.
+     *
+     * @throws IOException If the chunk could not be copied to the target, in which case the source is left as it was.
+     */
+    static long moveChunk(String chunkID, ChunkStorage source, ChunkStorage target) throws IOException {
+        if (!source.hasChunk(chunkID)) {
+            return -1;
+        }
+
+        boolean copied = false;
+        long bytesCopied = 0;
+        if (!target.hasChunk(chunkID)) {
+            try (CountingInputStream chunkStream = new CountingInputStream(source.getChunkDataStream(chunkID))) {
+                target.addChunk(chunkID, chunkStream, null, true);
+                bytesCopied = chunkStream.getByteCount();
+                copied = true;
+            } catch (NoSuchChunkException e) {
+                return -1;
+            } catch (DuplicateChunkException | InvalidReservationException | InsufficientSpaceException e) {
+                throw new IOException("Unable to copy chunk " + chunkID, e);
+            }
+        }
+
+        int references = 0;
+        while (source.hasChunk(chunkID) && source.removeChunk(chunkID)) {
+            references++;
+        }
+        for (int i = (copied ? 1 : 0); i < references; i++) {
+            target.addChunkReference(chunkID);
+        }
+        return bytesCopied;
+    }
+}
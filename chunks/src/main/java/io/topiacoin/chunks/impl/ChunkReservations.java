@@ -0,0 +1,294 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.chunks.exceptions.InvalidReservationException;
+import io.topiacoin.chunks.impl.FileSystemChunkStorage.FSReservationID;
+import io.topiacoin.chunks.intf.ReservationID;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the storage space reservations made against a chunk storage.  This holds the reservation semantics
+ * shared by the chunk storage implementations, so that a reservation behaves the same whichever storage it was made
+ * against.
+ * <p>
+ * The ledger is safe for concurrent use.  The space held by the open reservations is kept in a single counter, so the
+ * reserved space can be read without visiting each reservation.  Reservations that expire are found with a hashed timer
+ * wheel, which is advanced each time the reserved space is read, so only the reservations due to expire since the last
+ * read are looked at.
+ * <p>
+ * Adding a chunk against a reservation is done in two steps.  The chunk's expected size is first claimed from the
+ * reservation, so that concurrent additions can't overdraw it, and once the chunk is stored the claim is either
+ * committed with the chunk's actual size or rolled back.  The claimed space stays in the reserved space until then.
+ */
+class ChunkReservations {
+
+    // The number of slots in the timer wheel.  Each slot covers a millisecond, so reservations expire to the
+    // millisecond.
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private final Map<String, FSReservationID> reservationMap = new ConcurrentHashMap<>();
+    private final AtomicLong reservedSpace = new AtomicLong();
+
+    // The timer wheel.  Each slot holds the reservations due to expire on the ticks that map to it.
+    private final List<List<FSReservationID>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long lastTick;
+
+    ChunkReservations() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<FSReservationID>());
+        }
+        lastTick = System.currentTimeMillis();
+    }
+
+    /**
+     * Reserves a requested amount of space.
+     *
+     * @param spaceToReserve     The amount of storage, in bytes, that is being reserved.
+     * @param unreservedStorage  The amount of storage, in bytes, that is available before taking the existing
+     *                           reservations into account.
+     * @param inactivityTimeout  The length of time, in milliseconds, before the reservation expires if it isn't used.
+     *
+     * @return The new reservation.
+     *
+     * @throws InsufficientSpaceException If less storage is available than is being reserved.
+     */
+    FSReservationID reserve(long spaceToReserve, long unreservedStorage, long inactivityTimeout) throws InsufficientSpaceException {
+
+        // Check to make sure that we have enough space left, and take the space in the same step, so that concurrent
+        // reservations can't both take the last of the space.
+        advanceWheel();
+        long reserved;
+        do {
+            reserved = reservedSpace.get();
+            if (unreservedStorage - reserved < spaceToReserve) {
+                throw new InsufficientSpaceException("Unable to reserve the requested amount of storage.");
+            }
+        } while (!reservedSpace.compareAndSet(reserved, reserved + spaceToReserve));
+
+        // Generate a new ID for this Reservation, then create the ReservationID object.
+        String resID = UUID.randomUUID().toString();
+        FSReservationID reservationID = new FSReservationID(resID, spaceToReserve, inactivityTimeout);
+
+        // Save the reservation ID in the internal map for future reference.
+        this.reservationMap.put(resID, reservationID);
+        schedule(reservationID);
+
+        return reservationID;
+    }
+
+    /**
+     * Releases a reservation for storage space, returning its remaining space to the general storage pool.
+     *
+     * @param reservationID The ID of the reservation that is being released.
+     *
+     * @throws InvalidReservationException If the reservation ID is not recognized.
+     */
+    void release(ReservationID reservationID) throws InvalidReservationException {
+        if (!(reservationID instanceof FSReservationID)) {
+            throw new InvalidReservationException("Unrecognized ReservationID");
+        }
+
+        FSReservationID fsReservationID = (FSReservationID) reservationID;
+
+        synchronized (fsReservationID) {
+            if (!close(fsReservationID)) {
+                throw new InvalidReservationException("The specified reservationID is unrecognized");
+            }
+
+            // Set the expiration time to the distant pass to invalidate it.
+            fsReservationID.invalidate();
+        }
+    }
+
+    /**
+     * Claims space from a reservation for a chunk that is about to be added against it.
+     *
+     * @param reservationID The reservation the chunk is being added against.
+     * @param chunkSize     The expected size, in bytes, of the chunk being added.
+     *
+     * @throws InvalidReservationException If the reservation is unrecognized or no longer valid.
+     * @throws InsufficientSpaceException  If the reservation doesn't have enough space remaining for the chunk.
+     */
+    void claim(ReservationID reservationID, long chunkSize) throws InvalidReservationException, InsufficientSpaceException {
+        if (!(reservationID instanceof FSReservationID)) {
+            throw new InvalidReservationException("Unrecognized ReservationID");
+        }
+
+        FSReservationID fsReservationID = (FSReservationID) reservationID;
+
+        synchronized (fsReservationID) {
+            if (this.reservationMap.get(fsReservationID.getResID()) != fsReservationID) {
+                throw new InvalidReservationException("The specified reservationID is unrecognized");
+            }
+            if (fsReservationID.getRemainingSpace() < chunkSize) {
+                throw new InsufficientSpaceException("The specified reservationID does not have enough remaining space for the chunk being added");
+            }
+            if (!fsReservationID.isValid()) {
+                close(fsReservationID);
+                throw new InvalidReservationException("The specified reservationID is not valid");
+            }
+
+            fsReservationID.setRemainingSpace(fsReservationID.getRemainingSpace() - chunkSize);
+        }
+    }
+
+    /**
+     * Commits a claim once its chunk has been added, charging the reservation for the chunk's actual size.
+     *
+     * @param reservationID The reservation the chunk was added against.
+     * @param claimedSpace  The space, in bytes, claimed for the chunk.
+     * @param spaceConsumed The size, in bytes, of the chunk that was added.
+     */
+    void commit(ReservationID reservationID, long claimedSpace, long spaceConsumed) {
+        FSReservationID fsReservationID = (FSReservationID) reservationID;
+
+        synchronized (fsReservationID) {
+            if (this.reservationMap.get(fsReservationID.getResID()) == fsReservationID) {
+                // Return the claim, then charge the reservation for what the chunk actually used.
+                long remainingSpace = fsReservationID.getRemainingSpace() + claimedSpace;
+                fsReservationID.setRemainingSpace(remainingSpace);
+                fsReservationID.consumeReservationSpace(spaceConsumed);
+                reservedSpace.addAndGet(fsReservationID.getRemainingSpace() - remainingSpace);
+            } else {
+                // The reservation was released while the chunk was being added.
+                reservedSpace.addAndGet(-claimedSpace);
+            }
+        }
+    }
+
+    /**
+     * Rolls back a claim for a chunk that couldn't be added, returning the claimed space to the reservation.
+     *
+     * @param reservationID The reservation the chunk was being added against.
+     * @param claimedSpace  The space, in bytes, claimed for the chunk.
+     */
+    void rollback(ReservationID reservationID, long claimedSpace) {
+        FSReservationID fsReservationID = (FSReservationID) reservationID;
+
+        synchronized (fsReservationID) {
+            if (this.reservationMap.get(fsReservationID.getResID()) == fsReservationID) {
+                fsReservationID.setRemainingSpace(fsReservationID.getRemainingSpace() + claimedSpace);
+            } else {
+                reservedSpace.addAndGet(-claimedSpace);
+            }
+        }
+    }
+
+    /**
+     * Returns the space held by the open reservations, including space claimed for chunks that are being added.
+     * Reservations that have expired since the last call are closed first.
+     *
+     * @return The number of bytes reserved, but not yet used.
+     */
+    long getReservedSpace() {
+        advanceWheel();
+        return reservedSpace.get();
+    }
+
+    /**
+     * Returns the number of open reservations.
+     *
+     * @return The number of reservations that haven't been released, used up, or expired.
+     */
+    int size() {
+        advanceWheel();
+        return reservationMap.size();
+    }
+
+    /**
+     * Clears all of the reservations.
+     */
+    void clear() {
+        synchronized (wheel) {
+            for (List<FSReservationID> slot : wheel) {
+                slot.clear();
+            }
+            this.reservationMap.clear();
+            this.reservedSpace.set(0);
+        }
+    }
+
+    /**
+     * Removes a reservation from the ledger, returning its remaining space.  The caller must hold the reservation's
+     * lock.
+     *
+     * @return True if the reservation was open.
+     */
+    private boolean close(FSReservationID reservationID) {
+        if (!this.reservationMap.remove(reservationID.getResID(), reservationID)) {
+            return false;
+        }
+        reservedSpace.addAndGet(-reservationID.getRemainingSpace());
+        return true;
+    }
+
+    private void schedule(FSReservationID reservationID) {
+        // A reservation is valid up to and including its expiration time.
+        long dueTick = reservationID.getExpirationTime() + 1;
+        synchronized (wheel) {
+            wheel.get((int) (dueTick & WHEEL_MASK)).add(reservationID);
+        }
+    }
+
+    /**
+     * Closes the reservations that have expired since the wheel was last advanced.  Reservations whose expiration has
+     * been pushed back since they were scheduled are scheduled again.
+     */
+    private void advanceWheel() {
+        long now = System.currentTimeMillis();
+        List<FSReservationID> rescheduled = null;
+
+        synchronized (wheel) {
+            // The current tick is visited again next time, as reservations may still be added to it.
+            long firstTick = Math.max(lastTick, now - WHEEL_SIZE + 1);
+            for (long tick = firstTick; tick <= now; tick++) {
+                List<FSReservationID> slot = wheel.get((int) (tick & WHEEL_MASK));
+                Iterator<FSReservationID> iterator = slot.iterator();
+                while (iterator.hasNext()) {
+                    FSReservationID reservationID = iterator.next();
+                    long expirationTime = reservationID.getExpirationTime();
+                    if (this.reservationMap.get(reservationID.getResID()) != reservationID) {
+                        // Already released or used up.
+                        iterator.remove();
+                    } else if (expirationTime < now) {
+                        iterator.remove();
+                        synchronized (reservationID) {
+                            if (!reservationID.isValid()) {
+                                close(reservationID);
+                            } else {
+                                rescheduled = reschedule(rescheduled, reservationID);
+                            }
+                        }
+                    } else if (((expirationTime + 1) & WHEEL_MASK) != (tick & WHEEL_MASK)) {
+                        // The reservation was used, so it now expires later.
+                        iterator.remove();
+                        rescheduled = reschedule(rescheduled, reservationID);
+                    }
+                }
+            }
+            lastTick = now;
+        }
+
+        if (rescheduled != null) {
+            for (FSReservationID reservationID : rescheduled) {
+                schedule(reservationID);
+            }
+        }
+    }
+
+    private static List<FSReservationID> reschedule(List<FSReservationID> rescheduled, FSReservationID reservationID) {
+        if (rescheduled == null) {
+            rescheduled = new ArrayList<>();
+        }
+        rescheduled.add(reservationID);
+        return rescheduled;
+    }
+}
@@ -0,0 +1,87 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.exceptions.InvalidMessageException;
+import io.topiacoin.chunks.model.protocol.ProtocolMessage;
+import io.topiacoin.chunks.model.protocol.StreamedProtocolResponse;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.CryptographicException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Rebuilds a response from the frames written by a ChunkStreamWriter. The data segments are
+ * decrypted straight into the chunk data array as they arrive.
+ */
+class ChunkStreamAssembler {
+	private final StreamedProtocolResponse _header;
+	private final Cipher _cipher;
+	private final byte[] _chunkData;
+	private int _received = 0;
+
+	/**
+	 * @param header          An empty response of the kind the start frame announced, which the header is decoded into
+	 * @param decryptedHeader The decrypted contents of the start frame
+	 * @param messageKey      The message key for the connection the stream is arriving on
+	 */
+	ChunkStreamAssembler(StreamedProtocolResponse header, ByteBuffer decryptedHeader, SecretKey messageKey) throws InvalidMessageException {
+		try {
+			_header = header;
+			_header.fromBytes(decryptedHeader);
+			if (!_header.hasValidHeader()) {
+				throw new InvalidMessageException("Chunk stream header is incomplete");
+			}
+			byte[] iv = new byte[decryptedHeader.getInt()];
+			decryptedHeader.get(iv);
+			_cipher = CryptoUtils.getSecretKeyCipher(Cipher.DECRYPT_MODE, messageKey, new IvParameterSpec(iv));
+			_chunkData = new byte[_header.getChunkDataLength()];
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException | CryptographicException e) {
+			throw new InvalidMessageException("Failed to parse chunk stream header", e);
+		}
+	}
+
+	/**
+	 * Decrypts the contents of a CHUNK_STREAM_DATA frame into the chunk data.
+	 */
+	void append(ByteBuffer encryptedSegment) throws InvalidMessageException {
+		try {
+			ByteBuffer out = ByteBuffer.wrap(_chunkData, _received, _chunkData.length - _received);
+			_received += _cipher.update(encryptedSegment, out);
+		} catch (ShortBufferException e) {
+			throw new InvalidMessageException("The " + _header.getType() + " stream contains more data than expected", e);
+		}
+	}
+
+	/**
+	 * Decrypts the contents of the CHUNK_STREAM_END frame and returns the completed response.
+	 */
+	ProtocolMessage finish(ByteBuffer encryptedTrailer) throws InvalidMessageException {
+		try {
+			byte[] encrypted = new byte[encryptedTrailer.remaining()];
+			encryptedTrailer.get(encrypted);
+			byte[] rest = _cipher.doFinal(encrypted);
+			int dataRemaining = _chunkData.length - _received;
+			if (rest.length < dataRemaining + Integer.BYTES) {
+				throw new InvalidMessageException("The " + _header.getType() + " stream ended early");
+			}
+			System.arraycopy(rest, 0, _chunkData, _received, dataRemaining);
+			_received += dataRemaining;
+			ByteBuffer trailer = ByteBuffer.wrap(rest, dataRemaining, rest.length - dataRemaining);
+			int signatureLength = trailer.getInt();
+			if (signatureLength != trailer.remaining()) {
+				throw new InvalidMessageException("The " + _header.getType() + " stream has a malformed signature");
+			}
+			byte[] signature = new byte[signatureLength];
+			trailer.get(signature);
+			return _header.assemble(_chunkData, signature);
+		} catch (BadPaddingException | IllegalBlockSizeException e) {
+			throw new InvalidMessageException("Failed to decrypt " + _header.getType() + " stream", e);
+		}
+	}
+}
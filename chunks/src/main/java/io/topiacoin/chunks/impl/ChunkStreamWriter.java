@@ -0,0 +1,322 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.model.MessageID;
+import io.topiacoin.chunks.model.protocol.ProtocolMessageFactory;
+import io.topiacoin.chunks.model.protocol.StreamedProtocolResponse;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.CryptographicException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes a StreamedProtocolResponse as a series of frames, reading and encrypting one segment of chunk data at a
+ * time. Reading the chunk data and encrypting it both happen on the given executor - the connection's handler pool -
+ * rather than on the reactor. The reactor is only handed frames that are already built, from a small queue that is
+ * refilled as the socket drains it. Only a few segments of a chunk are ever held in memory, and the buffers the
+ * segments are read and encrypted into are pooled direct buffers, so serving a chunk does not create any chunk-sized
+ * garbage.
+ *
+ * The frames use the same layout as every other message. In order, they are:
+ * CHUNK_STREAM_START - the message header and the IV of the data stream, encrypted on its own with the frame's IV
+ * CHUNK_STREAM_DATA  - the next piece of the encrypted data stream, with no IV
+ * CHUNK_STREAM_END   - the end of the encrypted data stream, which carries the signature length and signature
+ * The data stream is a single CBC encryption of the chunk data followed by the signature, split across the frames.
+ * A multi-chunk response starts with a CHUNKS_STREAM_START frame instead, and its data stream is the data of each of
+ * its chunks, back to back.
+ */
+class ChunkStreamWriter implements FrameSource {
+	static final int SEGMENT_SIZE = 64 * 1024;
+	private static final int FRAME_HEADER_SIZE = 1 + Integer.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES;
+	//Room for a full segment, plus the block the cipher may be holding back from the previous segment
+	private static final int POOLED_BUFFER_SIZE = FRAME_HEADER_SIZE + SEGMENT_SIZE + 16;
+	private static final int MAX_POOLED_BUFFERS = 64;
+	//The most frames that are built ahead of the socket
+	static final int MAX_READY_FRAMES = 4;
+	private static final Queue<ByteBuffer> _bufferPool = new ConcurrentLinkedQueue<>();
+
+	private final StreamedProtocolResponse _message;
+	private final byte _startFrameType;
+	private final int _messageID;
+	private final SecretKey _messageKey;
+	private final Executor _executor;
+	private final Runnable _frameReadyListener;
+
+	//Only used by the fill task, which never runs more than once at a time
+	private Cipher _cipher;
+	private Signature _signature;
+	private ByteBuffer _segmentBuffer;
+	private int _remaining;
+	private boolean _started = false;
+
+	//Shared between the fill task and the reactor, guarded by this
+	private final Queue<ByteBuffer> _readyFrames = new ArrayDeque<>();
+	private ByteBuffer _writtenFrame = null;
+	private IOException _failure = null;
+	private boolean _filling = false;
+	private boolean _finished = false;
+	private boolean _closed = false;
+	private boolean _released = false;
+
+	/**
+	 * @param startFrameType     The frame type that starts the stream, which tells the receiver what kind of header follows
+	 * @param executor           Runs the work of building frames, one task at a time
+	 * @param frameReadyListener Called whenever a frame has been built, so the reactor can be woken to write it
+	 */
+	ChunkStreamWriter(StreamedProtocolResponse message, byte startFrameType, MessageID messageID, SecretKey messageKey, Executor executor, Runnable frameReadyListener) {
+		_message = message;
+		_startFrameType = startFrameType;
+		_messageID = messageID.getId();
+		_messageKey = messageKey;
+		_executor = executor;
+		_frameReadyListener = frameReadyListener;
+		_remaining = message.getChunkDataLength();
+	}
+
+	/**
+	 * Starts building the first frames of the stream.
+	 */
+	void start() {
+		synchronized (this) {
+			if (_filling || _closed) {
+				return;
+			}
+			_filling = true;
+		}
+		scheduleFill();
+	}
+
+	@Override public synchronized boolean isReady() {
+		return _closed || _failure != null || !_readyFrames.isEmpty() || _finished;
+	}
+
+	/**
+	 * Hands the reactor the next frame that has been built, and has the executor build another one in its place.
+	 * The previous frame has been completely written by now, so its buffer goes back to the pool.
+	 */
+	@Override public ByteBuffer nextFrame() throws IOException {
+		ByteBuffer frame;
+		boolean fill = false;
+		synchronized (this) {
+			releaseFrame(_writtenFrame);
+			_writtenFrame = null;
+			if (_closed) {
+				return null;
+			}
+			if (_failure != null) {
+				throw _failure;
+			}
+			frame = _readyFrames.poll();
+			_writtenFrame = frame;
+			if (frame != null && !_filling && !_finished) {
+				_filling = true;
+				fill = true;
+			}
+		}
+		if (fill) {
+			scheduleFill();
+		}
+		return frame;
+	}
+
+	private void scheduleFill() {
+		_executor.execute(new Runnable() {
+			@Override public void run() {
+				fill();
+			}
+		});
+	}
+
+	/**
+	 * Builds frames until the ready queue is full or the stream is done. Runs on the executor, never on the reactor.
+	 */
+	private void fill() {
+		while (true) {
+			synchronized (this) {
+				if (_closed || _finished || _failure != null || _readyFrames.size() >= MAX_READY_FRAMES) {
+					_filling = false;
+					if (_closed) {
+						releaseResources();
+					}
+					return;
+				}
+			}
+			ByteBuffer frame;
+			boolean last = false;
+			try {
+				if (!_started) {
+					_started = true;
+					frame = startFrame();
+				} else if (_remaining > 0) {
+					frame = dataFrame();
+				} else {
+					frame = endFrame();
+					last = true;
+				}
+			} catch (IOException | GeneralSecurityException | CryptographicException e) {
+				synchronized (this) {
+					_failure = e instanceof IOException ? (IOException) e : new IOException("Failed to encrypt chunk stream " + _messageID, e);
+				}
+				_frameReadyListener.run();
+				continue;
+			}
+			synchronized (this) {
+				if (_closed) {
+					releaseFrame(frame);
+					continue;
+				}
+				_readyFrames.add(frame);
+				if (last) {
+					_finished = true;
+					releaseResources();
+				}
+			}
+			_frameReadyListener.run();
+		}
+	}
+
+	private ByteBuffer startFrame() throws GeneralSecurityException, CryptographicException {
+		IvParameterSpec headerIV = CryptoUtils.generateIV(_messageKey.getAlgorithm());
+		IvParameterSpec streamIV = CryptoUtils.generateIV(_messageKey.getAlgorithm());
+		ByteBuffer header = _message.toBytes();
+		header.flip();
+		ByteBuffer plainHeader = ByteBuffer.allocate(header.remaining() + Integer.BYTES + streamIV.getIV().length);
+		plainHeader.put(header);
+		plainHeader.putInt(streamIV.getIV().length);
+		plainHeader.put(streamIV.getIV());
+		byte[] encrypted = CryptoUtils.encryptWithSecretKey(plainHeader.array(), _messageKey, headerIV);
+
+		_signature = _message.startSignature();
+		_cipher = CryptoUtils.getSecretKeyCipher(Cipher.ENCRYPT_MODE, _messageKey, streamIV);
+		_segmentBuffer = acquireBuffer();
+
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + headerIV.getIV().length + encrypted.length);
+		frame.put(_startFrameType);
+		frame.putInt(_messageID);
+		frame.putInt(0); //Responses never carry a transfer public key
+		frame.putInt(headerIV.getIV().length);
+		frame.put(headerIV.getIV());
+		frame.putInt(encrypted.length);
+		frame.put(encrypted);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Each data frame gets its own pooled buffer, since several may be waiting to be written at once.
+	 */
+	private ByteBuffer dataFrame() throws IOException, GeneralSecurityException {
+		ReadableByteChannel channel = _message.getChunkDataChannel();
+		_segmentBuffer.clear();
+		_segmentBuffer.limit(Math.min(SEGMENT_SIZE, _remaining));
+		while (_segmentBuffer.hasRemaining()) {
+			if (channel.read(_segmentBuffer) < 0) {
+				throw new IOException("Chunk stream " + _messageID + " ended " + (_remaining - _segmentBuffer.position()) + " bytes early");
+			}
+		}
+		_segmentBuffer.flip();
+		_remaining -= _segmentBuffer.remaining();
+		_signature.update(_segmentBuffer.duplicate());
+
+		ByteBuffer frameBuffer = acquireBuffer();
+		try {
+			frameBuffer.put(ProtocolMessageFactory.CHUNK_STREAM_DATA);
+			frameBuffer.putInt(_messageID);
+			frameBuffer.putInt(0); //No transfer public key
+			frameBuffer.putInt(0); //No IV, the data continues the stream started in the CHUNK_STREAM_START frame
+			frameBuffer.putInt(0); //Data length, filled in once we know how much the cipher produced
+			int encryptedLength = _cipher.update(_segmentBuffer, frameBuffer);
+			frameBuffer.putInt(FRAME_HEADER_SIZE - Integer.BYTES, encryptedLength);
+			frameBuffer.flip();
+			return frameBuffer;
+		} catch (GeneralSecurityException | RuntimeException e) {
+			releaseBuffer(frameBuffer);
+			throw e;
+		}
+	}
+
+	private ByteBuffer endFrame() throws GeneralSecurityException {
+		byte[] signature = _message.finishSignature(_signature);
+		ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES + signature.length);
+		trailer.putInt(signature.length);
+		trailer.put(signature);
+		byte[] encrypted = _cipher.doFinal(trailer.array());
+
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + encrypted.length);
+		frame.put(ProtocolMessageFactory.CHUNK_STREAM_END);
+		frame.putInt(_messageID);
+		frame.putInt(0);
+		frame.putInt(0);
+		frame.putInt(encrypted.length);
+		frame.put(encrypted);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Releases the frames that are still waiting to be written. If a fill task is running, it releases the chunk data
+	 * and segment buffer it is using once it stops.
+	 */
+	@Override public synchronized void close() {
+		if (!_closed) {
+			_closed = true;
+			releaseFrame(_writtenFrame);
+			_writtenFrame = null;
+			ByteBuffer frame;
+			while ((frame = _readyFrames.poll()) != null) {
+				releaseFrame(frame);
+			}
+			if (!_filling) {
+				releaseResources();
+			}
+		}
+	}
+
+	/**
+	 * Closes the chunk data and returns the segment buffer to the pool. Called with the lock held, once nothing more
+	 * will be read or encrypted.
+	 */
+	private void releaseResources() {
+		if (!_released) {
+			_released = true;
+			_message.close();
+			releaseBuffer(_segmentBuffer);
+			_segmentBuffer = null;
+		}
+	}
+
+	/**
+	 * The data frames are pooled direct buffers, while the start and end frames are small heap buffers that are simply
+	 * left for the garbage collector.
+	 */
+	private static void releaseFrame(ByteBuffer frame) {
+		if (frame != null && frame.isDirect()) {
+			releaseBuffer(frame);
+		}
+	}
+
+	private static ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = _bufferPool.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE);
+		}
+		return buffer;
+	}
+
+	private static void releaseBuffer(ByteBuffer buffer) {
+		if (buffer != null && _bufferPool.size() < MAX_POOLED_BUFFERS) {
+			buffer.clear();
+			_bufferPool.offer(buffer);
+		}
+	}
+}
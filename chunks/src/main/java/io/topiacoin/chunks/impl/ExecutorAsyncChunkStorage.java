@@ -0,0 +1,213 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.intf.AsyncChunkStorage;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs batches of chunk operations on a Chunk Storage using a dedicated pool of I/O threads, so that callers can carry
+ * on with other work, such as hashing and decrypting chunks, while the chunks are read and written.  The chunks of a
+ * batch are worked on in parallel, one task per chunk.
+ * <p>
+ * The pool has a bounded queue.  Once it is full, the thread submitting a batch runs the chunks that don't fit itself,
+ * which holds back callers that submit work faster than the storage can do it.  A batch submitted while the pool is
+ * being shut down fails with a RejectedExecutionException.
+ * <p>
+ * Cancelling a batch's future skips the chunks of the batch that haven't been started.  Chunks already being read or
+ * written are finished.  A batch that fails also skips the chunks that haven't been started.
+ */
+public class ExecutorAsyncChunkStorage implements AsyncChunkStorage {
+
+    public static final int DEFAULT_THREAD_COUNT = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private Log _log = LogFactory.getLog(this.getClass());
+
+    private final ChunkStorage chunkStorage;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates an Async Chunk Storage working on the given Chunk Storage.
+     *
+     * @param chunkStorage The Chunk Storage the chunk operations are run on.
+     * @param threadCount  The number of I/O threads.
+     * @param queueSize    The most chunk operations that can wait for an I/O thread.
+     */
+    public ExecutorAsyncChunkStorage(ChunkStorage chunkStorage, int threadCount, int queueSize) {
+        this.chunkStorage = chunkStorage;
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Chunk I/O " + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                // Unlike CallerRunsPolicy, a chunk submitted as the pool shuts down fails its batch rather than being
+                // dropped, which would leave the batch waiting on it forever.
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("The chunk I/O threads have been shut down");
+                }
+                task.run();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Boolean>> hasChunks(Collection<String> chunkIDs) {
+        return forEachChunk(chunkIDs, new ChunkOperation<Boolean>() {
+            @Override
+            public Boolean run(String chunkID) {
+                return chunkStorage.hasChunk(chunkID);
+            }
+        }, ExecutorAsyncChunkStorage.<Map<String, Boolean>>results());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> getChunks(Collection<String> chunkIDs) {
+        return forEachChunk(chunkIDs, new ChunkOperation<byte[]>() {
+            @Override
+            public byte[] run(String chunkID) throws Exception {
+                return chunkStorage.getChunkData(chunkID);
+            }
+        }, ExecutorAsyncChunkStorage.<Map<String, byte[]>>results());
+    }
+
+    @Override
+    public CompletableFuture<Map<String, ByteBuffer>> getChunkBuffers(Collection<String> chunkIDs) {
+        return forEachChunk(chunkIDs, new ChunkOperation<ByteBuffer>() {
+            @Override
+            public ByteBuffer run(String chunkID) throws Exception {
+                return chunkStorage.getChunkDataBuffer(chunkID);
+            }
+        }, ExecutorAsyncChunkStorage.<Map<String, ByteBuffer>>results());
+    }
+
+    @Override
+    public CompletableFuture<Void> addChunks(final Map<String, byte[]> chunks, final boolean purgeable) {
+        return forEachChunk(chunks.keySet(), new ChunkOperation<Boolean>() {
+            @Override
+            public Boolean run(String chunkID) throws Exception {
+                chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunks.get(chunkID)), null, purgeable);
+                return Boolean.TRUE;
+            }
+        }, new Function<Map<String, Boolean>, Void>() {
+            @Override
+            public Void apply(Map<String, Boolean> added) {
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                _log.warn("Timed out waiting for chunk I/O to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // -------- Private Methods --------
+
+    /**
+     * Returns a finisher that makes a batch's results its result.
+     */
+    private static <R> Function<R, R> results() {
+        return new Function<R, R>() {
+            @Override
+            public R apply(R results) {
+                return results;
+            }
+        };
+    }
+
+    /**
+     * Runs an operation on each chunk on the I/O threads, and once every operation has finished, completes the returned
+     * future with the results, in the order of the chunk IDs, as turned into the batch's result by the finisher.  The
+     * future fails with the first exception thrown by an operation.
+     */
+    private <T, R> CompletableFuture<R> forEachChunk(Collection<String> chunkIDs, final ChunkOperation<T> operation,
+                                                     final Function<Map<String, T>, R> finisher) {
+        final List<String> orderedChunkIDs = new ArrayList<>(chunkIDs);
+        final CompletableFuture<R> batch = new CompletableFuture<>();
+        if (executor.isShutdown()) {
+            batch.completeExceptionally(new RejectedExecutionException("The chunk I/O threads have been shut down"));
+            return batch;
+        }
+        if (orderedChunkIDs.isEmpty()) {
+            batch.complete(finisher.apply(Collections.<String, T>emptyMap()));
+            return batch;
+        }
+
+        final Map<String, T> results = new ConcurrentHashMap<>();
+        final AtomicInteger remaining = new AtomicInteger(orderedChunkIDs.size());
+        for (final String chunkID : orderedChunkIDs) {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    // Skip the chunk if the batch has been cancelled or has already failed.
+                    if (batch.isDone()) {
+                        return;
+                    }
+                    try {
+                        results.put(chunkID, operation.run(chunkID));
+                    } catch (Exception e) {
+                        batch.completeExceptionally(e);
+                        return;
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        Map<String, T> orderedResults = new LinkedHashMap<>();
+                        for (String id : orderedChunkIDs) {
+                            orderedResults.put(id, results.get(id));
+                        }
+                        batch.complete(finisher.apply(orderedResults));
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                batch.completeExceptionally(e);
+                break;
+            }
+        }
+        return batch;
+    }
+
+
+    // -------- Inner Classes --------
+
+    private interface ChunkOperation<T> {
+        T run(String chunkID) throws Exception;
+    }
+}
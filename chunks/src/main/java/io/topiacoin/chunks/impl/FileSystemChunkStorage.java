@@ -6,8 +6,8 @@ import io.topiacoin.chunks.exceptions.InvalidReservationException;
 import io.topiacoin.chunks.exceptions.NoSuchChunkException;
 import io.topiacoin.chunks.intf.ChunkInfoManager;
 import io.topiacoin.chunks.intf.ChunkStorage;
+import io.topiacoin.chunks.intf.EvictionPolicy;
 import io.topiacoin.chunks.intf.ReservationID;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -18,14 +18,23 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
-import java.util.Comparator;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.UUID;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileSystemChunkStorage implements ChunkStorage {
 
@@ -38,14 +47,51 @@ public class FileSystemChunkStorage implements ChunkStorage {
     private static final int SPLIT_LENGTH = 2;
     private static final int SPLIT_COUNT = 2;
 
-    private Map<String, FSReservationID> reservationMap;
+    // The number of candidates taken from the eviction policy at a time.
+    private static final int EVICTION_BATCH_SIZE = 64;
+
+    // The number of locks that changes to chunks are spread across.  Changes to different chunks rarely wait for one
+    // another, while changes to the same chunk are always made one at a time.
+    private static final int CHUNK_LOCK_STRIPES = 256;
+
+    // Chunks are written in this directory, under the storage directory, and then renamed into place.
+    private static final String INCOMING_DIRECTORY_NAME = ".incoming";
+
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 2000;
+
+    // The reference counts were kept in this file before they moved into the chunk index.
+    private static final String REFERENCE_COUNT_FILE_NAME = "chunk-references";
+
+    private ChunkReservations reservations;
+
+    private final Object[] chunkLocks = new Object[CHUNK_LOCK_STRIPES];
+
+    {
+        for (int i = 0; i < chunkLocks.length; i++) {
+            chunkLocks[i] = new Object();
+        }
+    }
+
+    // The size, last access and reference count of every stored chunk.
+    private ChunkIndex chunkIndex;
 
     private ChunkInfoManager _chunkInfoManager;
 
     private long storageQuota;
-    private long storageUsed;
 
     private long reservationInactivityTimeout = DEFAULT_INACTIVITY_TIMEOUT;
+    private int indexSnapshotInterval = ChunkIndex.DEFAULT_SNAPSHOT_INTERVAL;
+
+    private EvictionPolicy evictionPolicy = new LRUEvictionPolicy();
+    private double evictionLowWatermark;
+    private double evictionHighWatermark;
+    private ExecutorService evictionExecutor;
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private final AtomicLong evictedChunkCount = new AtomicLong();
+
+    private SyncPolicy syncPolicy = SyncPolicy.NONE;
+    private long groupCommitWindowMicros = DEFAULT_GROUP_COMMIT_WINDOW_MICROS;
+    private ChunkFileWriter chunkFileWriter;
 
     @PostConstruct
     public void init() {
@@ -58,8 +104,33 @@ public class FileSystemChunkStorage implements ChunkStorage {
             }
         }
 
-        reservationMap = new HashMap<>();
-        updateUsedStorage();
+        chunkFileWriter = new ChunkFileWriter(new File(chunkStorageDirectory, INCOMING_DIRECTORY_NAME), syncPolicy, groupCommitWindowMicros);
+        try {
+            chunkFileWriter.start();
+        } catch (IOException e) {
+            _log.fatal("Unable to prepare the incoming chunk directory", e);
+            throw new RuntimeException("Unable to prepare the incoming chunk directory", e);
+        }
+
+        reservations = new ChunkReservations();
+        chunkIndex = new ChunkIndex(chunkStorageDirectory);
+        chunkIndex.setSnapshotInterval(indexSnapshotInterval);
+        if (chunkIndex.load()) {
+            loadEvictionPolicy();
+        } else {
+            _log.info("Rebuilding the chunk index from the chunks on disk");
+            rebuildIndex();
+        }
+
+        evictionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Chunk Eviction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduleEvictionIfNeeded();
 
         _log.info("Initialized File System Chunk Storage");
     }
@@ -68,12 +139,32 @@ public class FileSystemChunkStorage implements ChunkStorage {
     public void shutdown() {
         _log.info("Shutting Down File System Chunk Storage");
 
+        if (evictionExecutor != null) {
+            evictionExecutor.shutdown();
+            try {
+                if (!evictionExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    _log.warn("Timed out waiting for chunk eviction to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (chunkFileWriter != null) {
+            chunkFileWriter.shutdown();
+        }
+
+        if (chunkIndex != null) {
+            chunkIndex.close();
+        }
+
         _log.info("Shut Down File System Chunk Storage");
 
     }
 
     /**
-     * Adds a chunk to the Chunk Storage using the data in the chunkStream.
+     * Adds a chunk to the Chunk Storage using the data in the chunkStream.  Chunks can be added by many threads at
+     * once; only additions of chunks that share a lock stripe wait for one another.
      *
      * @param chunkID     The ID of the chunk whose data is being added.
      * @param chunkStream An InputStream containing the chunk data.
@@ -89,34 +180,38 @@ public class FileSystemChunkStorage implements ChunkStorage {
 
         File storageFile = getDataFilePathForChunkID(chunkID);
 
-        if (storageFile.exists()) {
+        if (chunkIndex.contains(chunkID)) {
             throw new DuplicateChunkException("This chunk is already in chunk Storage");
         }
 
+        long claimedSpace = 0;
         if (reservationID != null) {
-            if (!this.reservationMap.containsValue(reservationID)) {
-                throw new InvalidReservationException("The specified reservationID is unrecognized");
-            }
-            if (reservationID.getRemainingSpace() < chunkStream.available()) {
-                throw new InsufficientSpaceException("The specified reservationID does not have enough remaining space for the chunk being added");
-            }
-            if (!reservationID.isValid()) {
-                this.reservationMap.remove(((FSReservationID) reservationID).resID);
-                throw new InvalidReservationException("The specified reservationID is not valid");
-            }
-        }
-
-        // Create the parent directories so that we can successfully save this file.
-        if (!storageFile.getParentFile().exists() && !storageFile.getParentFile().mkdirs()) {
-            throw new IOException("Unable to save the Chunk");
+            claimedSpace = chunkStream.available();
+            reservations.claim(reservationID, claimedSpace);
         }
 
-        long bytesCopied = Files.copy(chunkStream, storageFile.toPath());
-        this.storageUsed += bytesCopied;
+        long bytesCopied = -1;
+        try {
+            synchronized (lockFor(chunkID)) {
+                if (chunkIndex.contains(chunkID)) {
+                    throw new DuplicateChunkException("This chunk is already in chunk Storage");
+                }
 
-        if (reservationID != null) {
-            ((FSReservationID) reservationID).consumeReservationSpace(bytesCopied);
+                bytesCopied = chunkFileWriter.write(chunkStream, storageFile);
+                chunkIndex.add(chunkID, bytesCopied, System.currentTimeMillis());
+                evictionPolicy.chunkAdded(chunkID);
+            }
+        } finally {
+            if (reservationID != null) {
+                if (bytesCopied >= 0) {
+                    reservations.commit(reservationID, claimedSpace, bytesCopied);
+                } else {
+                    reservations.rollback(reservationID, claimedSpace);
+                }
+            }
         }
+
+        scheduleEvictionIfNeeded();
     }
 
     /**
@@ -130,16 +225,15 @@ public class FileSystemChunkStorage implements ChunkStorage {
      * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
      */
     public InputStream getChunkDataStream(final String chunkID) throws NoSuchChunkException {
-        File storageFile = getDataFilePathForChunkID(chunkID);
-
-        if (!storageFile.exists()) {
+        if (!chunkIndex.contains(chunkID)) {
             throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
         }
 
         try {
-            FileInputStream fis = new FileInputStream(storageFile);
+            FileInputStream fis = new FileInputStream(getDataFilePathForChunkID(chunkID));
 
-            storageFile.setLastModified(System.currentTimeMillis()) ;
+            chunkIndex.touch(chunkID, System.currentTimeMillis());
+            evictionPolicy.chunkAccessed(chunkID);
 
             return fis;
         } catch (FileNotFoundException e) {
@@ -149,10 +243,77 @@ public class FileSystemChunkStorage implements ChunkStorage {
     }
 
     public byte[] getChunkData(final String chunkID) throws NoSuchChunkException, IOException {
-        InputStream data = getChunkDataStream(chunkID);
-        byte[] tr = IOUtils.toByteArray(data);
-        data.close();
-        return tr;
+        // A plain read, rather than a mapping, so that no mapping is left holding on to the file once we return.
+        try (SeekableByteChannel channel = getChunkDataChannel(chunkID)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Chunk " + chunkID + " is too large to read into memory.");
+            }
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new IOException("Chunk " + chunkID + " was truncated while being read.");
+                }
+            }
+            return data.array();
+        }
+    }
+
+    /**
+     * Maps the chunk's data file into memory.  The mapping outlives the file, so the buffer remains readable even if
+     * the chunk is removed while it is in use.  It is only released once the buffer is garbage collected, and some
+     * platforms refuse to delete a mapped file until then, so this is meant for local readers that are done with the
+     * chunk straight away.  Everything else should use getChunkData() or getChunkDataChannel().
+     *
+     * @param chunkID The ID of the chunk whose data is being retrieved.
+     *
+     * @return A read-only buffer mapped over the data for the requested chunkID.
+     *
+     * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
+     */
+    public ByteBuffer getChunkDataBuffer(final String chunkID) throws NoSuchChunkException, IOException {
+        if (!chunkIndex.contains(chunkID)) {
+            throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
+        }
+
+        try (FileChannel channel = FileChannel.open(getDataFilePathForChunkID(chunkID).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            chunkIndex.touch(chunkID, System.currentTimeMillis());
+            evictionPolicy.chunkAccessed(chunkID);
+
+            return buffer;
+        } catch (NoSuchFileException e) {
+            _log.info("Requested chunk not found!");
+            throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
+        }
+    }
+
+    /**
+     * Opens a FileChannel on the chunk's data file.
+     *
+     * @param chunkID The ID of the chunk whose data is being retrieved.
+     *
+     * @return A FileChannel on the data for the requested chunkID.
+     *
+     * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
+     */
+    public SeekableByteChannel getChunkDataChannel(final String chunkID) throws NoSuchChunkException, IOException {
+        if (!chunkIndex.contains(chunkID)) {
+            throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
+        }
+
+        try {
+            FileChannel channel = FileChannel.open(getDataFilePathForChunkID(chunkID).toPath(), StandardOpenOption.READ);
+
+            chunkIndex.touch(chunkID, System.currentTimeMillis());
+            evictionPolicy.chunkAccessed(chunkID);
+
+            return channel;
+        } catch (NoSuchFileException e) {
+            _log.info("Requested chunk not found!");
+            throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
+        }
     }
 
     /**
@@ -164,51 +325,88 @@ public class FileSystemChunkStorage implements ChunkStorage {
      * available.
      */
     public boolean hasChunk(final String chunkID) {
-        File storageFile = getDataFilePathForChunkID(chunkID);
-
-        return storageFile.exists();
+        return chunkIndex.contains(chunkID);
     }
 
     /**
-     * Removes the data for the specified chunkID.
+     * Removes a reference to the data for the specified chunkID.  The data is only removed from storage once its last
+     * reference has been removed.
      *
      * @param chunkID The ID of the chunk whose data is being removed.
      *
-     * @return True if the data was removed from storage.  False if no data was stored with the specified chunkID.
+     * @return True if the reference was removed.  False if no data was stored with the specified chunkID.
      */
     public boolean removeChunk(final String chunkID) {
-        File storageFile = getDataFilePathForChunkID(chunkID);
-
-        long bytesRemoved = storageFile.length();
+        synchronized (lockFor(chunkID)) {
+            int referenceCount = chunkIndex.getReferenceCount(chunkID);
+            if (referenceCount > 1) {
+                chunkIndex.setReferenceCount(chunkID, referenceCount - 1);
+                return true;
+            }
 
-        boolean deleted = storageFile.delete();
-        if(deleted) {
-            this.storageUsed -= bytesRemoved;
+            return referenceCount == 1 && deleteChunk(chunkID);
+        }
+    }
 
-            // Walk up the tree removing empty directories
-            File parentDir = storageFile.getParentFile();
-            boolean done = parentDir.equals(chunkStorageDirectory);
-            while (!done) {
-                String[] filesInDir = parentDir.list();
-                if (filesInDir != null && filesInDir.length == 0) {
-                    if (parentDir.delete()) {
-                        parentDir = parentDir.getParentFile();
-                        done = parentDir.equals(chunkStorageDirectory);
-                    } else {
-                        done = true;
-                    }
-                } else {
-                    done = true;
-                }
+    /**
+     * Records another reference to a chunk that is already in storage, such as when a new file reuses a chunk of an
+     * existing one.  Each reference must be removed with removeChunk() before the chunk's data is removed.
+     *
+     * @param chunkID The ID of the chunk being referenced.
+     *
+     * @return True if the reference was recorded.  False if no data is stored with the specified chunkID.
+     */
+    public boolean addChunkReference(final String chunkID) {
+        synchronized (lockFor(chunkID)) {
+            if (!hasChunk(chunkID)) {
+                return false;
             }
+
+            // Touch the chunk so that it isn't the first to be purged
+            chunkIndex.touch(chunkID, System.currentTimeMillis());
+            evictionPolicy.chunkAccessed(chunkID);
+
+            chunkIndex.setReferenceCount(chunkID, chunkIndex.getReferenceCount(chunkID) + 1);
+            return true;
         }
-        return deleted;
+    }
+
+    /**
+     * Records a read of a chunk whose data was answered from a copy held outside of the storage, such as an in-memory
+     * cache.  The chunk is touched so that it isn't the first to be purged.
+     *
+     * @param chunkID The ID of the chunk that was read.
+     */
+    public void chunkAccessed(final String chunkID) {
+        if (chunkIndex.contains(chunkID)) {
+            chunkIndex.touch(chunkID, System.currentTimeMillis());
+            evictionPolicy.chunkAccessed(chunkID);
+        }
+    }
+
+    @Override
+    public List<String> getChunkIDs() {
+        return chunkIndex.getChunkIDs();
+    }
+
+    /**
+     * Returns the number of references to the specified chunk.
+     *
+     * @param chunkID The ID of the chunk whose references are being counted.
+     *
+     * @return The number of references to the chunk, or 0 if no data is stored with the specified chunkID.
+     */
+    public int getChunkReferenceCount(final String chunkID) {
+        return chunkIndex.getReferenceCount(chunkID);
     }
 
     /**
      * Attempts to remove chunks from the chunk storage in order to make the requested amount of space available.  If
      * the chunk storage is able to make enough space available, the method will return true.  If the chunk storage
      * cannot make enough storage space available, the method will return false.
+     * <p>
+     * Chunks are removed in the order chosen by the eviction policy, skipping any the Chunk Info Manager says cannot
+     * be purged.
      *
      * @param neededAvailableSpace The amount of space, in bytes, that should be made available.
      *
@@ -229,35 +427,12 @@ public class FileSystemChunkStorage implements ChunkStorage {
             return false ;
         }
 
-        Set<File> candidateChunks = getChunkFiles( this.chunkStorageDirectory, new Comparator<File>(){
-
-            @Override
-            public int compare(File o1, File o2) {
-                int chrono = (int)(o1.lastModified() - o2.lastModified()) ;
-                if ( chrono == 0 ) {
-                    return o1.getName().compareTo(o2.getName());
-                } else {
-                    return chrono;
-                }
-            }
-        });
-
         long spaceToBeFreed = neededAvailableSpace - availableStorage ;
 
-        for ( File file : candidateChunks ) {
-            if ( _chunkInfoManager == null || _chunkInfoManager.canPurgeChunk(file.getName()) ) {
-                long fileSize = file.length();
-                if ( file.delete() ) {
-                    spaceToBeFreed -= fileSize;
-                    this.storageUsed -= fileSize;
-                    if ( spaceToBeFreed <= 0 ){
-                        break ;
-                    }
-                }
-            }
-        }
+        long storageUsed = chunkIndex.getTotalSize();
+        long spaceFreed = storageUsed - evictTo(storageUsed - spaceToBeFreed);
 
-        return spaceToBeFreed <= 0 ;
+        return spaceFreed >= spaceToBeFreed ;
     }
 
     /**
@@ -275,20 +450,7 @@ public class FileSystemChunkStorage implements ChunkStorage {
      */
     @Override
     public ReservationID reserveStorageSpace(long spaceToReserve) throws InsufficientSpaceException {
-
-        // Check to make sure that we have enough space left.
-        if (getAvailableStorage() < spaceToReserve) {
-            throw new InsufficientSpaceException("Unable to reserve the requested amount of storage.");
-        }
-
-        // Generate a new ID for this Reservation, then create the ReservationID object.
-        String resID = UUID.randomUUID().toString();
-        FSReservationID reservationID = new FSReservationID(resID, spaceToReserve, this.reservationInactivityTimeout);
-
-        // Save the reservation ID in the internal map for future reference.
-        this.reservationMap.put(resID, reservationID);
-
-        return reservationID;
+        return reservations.reserve(spaceToReserve, this.storageQuota - chunkIndex.getTotalSize(), this.reservationInactivityTimeout);
     }
 
     /**
@@ -302,21 +464,7 @@ public class FileSystemChunkStorage implements ChunkStorage {
     @Override
     public void releaseSpaceReservation(ReservationID reservationID)
             throws InvalidReservationException {
-        if (!(reservationID instanceof FSReservationID)) {
-            throw new InvalidReservationException("Unrecognized ReservationID");
-        }
-
-        FSReservationID fsReservationID = (FSReservationID) reservationID;
-
-        if (!this.reservationMap.containsValue(fsReservationID)) {
-            throw new InvalidReservationException("The specified reservationID is unrecognized");
-        }
-
-        // Remove the reservation from the internal Map
-        this.reservationMap.remove(fsReservationID.resID);
-
-        // Set the expiration time to the distant pass to invalidate it.
-        fsReservationID.expirationTime = 0;
+        reservations.release(reservationID);
     }
 
 
@@ -367,6 +515,90 @@ public class FileSystemChunkStorage implements ChunkStorage {
         this.reservationInactivityTimeout = reservationInactivityTimeout;
     }
 
+    /**
+     * Sets the policy that decides which chunks are removed first when space is needed.  The policy must be set before
+     * the Chunk Storage is initialized.  Defaults to an LRUEvictionPolicy.
+     *
+     * @param evictionPolicy The policy deciding the order in which chunks are evicted.
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Sets the watermarks for background eviction, as fractions of the storage quota.  Once the chunks stored use more
+     * than the high watermark, chunks are evicted in the background until they use no more than the low watermark.  A
+     * high watermark of 0, the default, turns background eviction off.
+     *
+     * @param lowWatermark  The fraction of the quota that eviction brings the storage used down to.
+     * @param highWatermark The fraction of the quota above which chunks are evicted, or 0 to disable eviction.
+     *
+     * @throws IllegalArgumentException If the watermarks are not between 0 and 1, or the low watermark is above the
+     *                                  high watermark.
+     */
+    public void setEvictionWatermarks(double lowWatermark, double highWatermark) {
+        if (lowWatermark < 0 || highWatermark > 1 || (highWatermark > 0 && lowWatermark > highWatermark)) {
+            throw new IllegalArgumentException("The eviction watermarks must satisfy 0 <= low <= high <= 1");
+        }
+        this.evictionLowWatermark = lowWatermark;
+        this.evictionHighWatermark = highWatermark;
+    }
+
+    /**
+     * Returns the number of chunks that have been evicted, either by purgeStorage() or in the background.
+     *
+     * @return The number of chunks evicted since the Chunk Storage was created.
+     */
+    public long getEvictedChunkCount() {
+        return evictedChunkCount.get();
+    }
+
+    /**
+     * Sets how chunks are made durable once they have been written.  With NONE, the default, a chunk is renamed into
+     * place once written, and reaches the disk whenever the operating system writes it out.  With ALWAYS, each chunk
+     * and its directory entry are forced to disk before addChunk() returns.  With GROUP, the chunks added within the
+     * group commit window are forced to disk together, so that concurrent additions share the cost of the sync.  The
+     * policy must be set before the Chunk Storage is initialized.
+     *
+     * @param syncPolicy How chunks are made durable.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Sets how long, once a chunk is ready to be committed, other chunks are given to join it before they are all
+     * forced to disk together.  Only used with the GROUP sync policy.  A longer window lets more chunks share each
+     * sync, at the cost of a longer wait for each addition.
+     *
+     * @param groupCommitWindowMicros The group commit window, in microseconds.
+     */
+    public void setGroupCommitWindow(long groupCommitWindowMicros) {
+        this.groupCommitWindowMicros = groupCommitWindowMicros;
+    }
+
+    /**
+     * Returns the number of groups of chunks that have been forced to disk together under the GROUP sync policy.
+     *
+     * @return The number of group commits since the Chunk Storage was initialized.
+     */
+    public long getGroupCommitCount() {
+        return chunkFileWriter.getGroupCount();
+    }
+
+    /**
+     * Sets how many changes are written to the chunk index journal before a new snapshot of the index is written.
+     * Frequent snapshots keep startup quick, while infrequent ones reduce the amount of index data written.
+     *
+     * @param indexSnapshotInterval The number of journaled changes between snapshots of the chunk index.
+     */
+    public void setIndexSnapshotInterval(int indexSnapshotInterval) {
+        this.indexSnapshotInterval = indexSnapshotInterval;
+        if (chunkIndex != null) {
+            chunkIndex.setSnapshotInterval(indexSnapshotInterval);
+        }
+    }
+
     /**
      * Returns the total amount of storage available from the chunk storage.  Generally speaking, the chunk storage
      * instance will not be able to store more than this amount of data.
@@ -388,16 +620,8 @@ public class FileSystemChunkStorage implements ChunkStorage {
     @Override
     public long getAvailableStorage() {
         long available = this.storageQuota;
-        available -= this.storageUsed;
-        Iterator<FSReservationID> iterator = this.reservationMap.values().iterator();
-        while (iterator.hasNext()) {
-            ReservationID reservationID = iterator.next();
-            if (reservationID.isValid()) {
-                available -= reservationID.getRemainingSpace();
-            } else {
-                iterator.remove();
-            }
-        }
+        available -= chunkIndex.getTotalSize();
+        available -= reservations.getReservedSpace();
         return available;
     }
 
@@ -408,7 +632,7 @@ public class FileSystemChunkStorage implements ChunkStorage {
      * @return The amount of storage, in bytes, currently consumed by the Chunk Storage.
      */
     public long getStorageUsed() {
-        return storageUsed;
+        return chunkIndex.getTotalSize();
     }
 
 
@@ -432,12 +656,140 @@ public class FileSystemChunkStorage implements ChunkStorage {
         return new File(chunkStorageDirectory, toReturn.toString());
     }
 
+    private Object lockFor(final String chunkID) {
+        int hash = chunkID.hashCode();
+        return chunkLocks[(hash ^ (hash >>> 16)) & (CHUNK_LOCK_STRIPES - 1)];
+    }
 
     /**
-     * Updates the variable containing the amount of storage used based on the actual storage used on disk.
+     * Deletes a chunk's data file, removes it from the index, and then walks up the tree removing the directories left
+     * empty.
+     *
+     * @return True if the chunk was deleted.
+     */
+    private boolean deleteChunk(final String chunkID) {
+        File storageFile = getDataFilePathForChunkID(chunkID);
+
+        boolean deleted = storageFile.delete();
+        if (!deleted && storageFile.exists()) {
+            return false;
+        }
+
+        // A chunk whose file has already gone is dropped from the index, but isn't reported as deleted.
+        chunkIndex.remove(chunkID);
+        evictionPolicy.chunkRemoved(chunkID);
+
+        if (deleted) {
+            // Walk up the tree removing empty directories
+            File parentDir = storageFile.getParentFile();
+            boolean done = parentDir.equals(chunkStorageDirectory);
+            while (!done) {
+                String[] filesInDir = parentDir.list();
+                if (filesInDir != null && filesInDir.length == 0) {
+                    if (parentDir.delete()) {
+                        parentDir = parentDir.getParentFile();
+                        done = parentDir.equals(chunkStorageDirectory);
+                    } else {
+                        done = true;
+                    }
+                } else {
+                    done = true;
+                }
+            }
+        }
+        return deleted;
+    }
+
+
+    /**
+     * Evicts chunks, in the order chosen by the eviction policy, until the chunks in storage use no more than the
+     * target amount of storage.  Each chunk is deleted under its own lock, so other callers aren't held up by a long
+     * eviction.
+     *
+     * @param targetStorageUsed The amount of storage, in bytes, that the chunks should use at most.
+     *
+     * @return The amount of storage, in bytes, used by the chunks once eviction is done.
+     */
+    private long evictTo(long targetStorageUsed) {
+        // Each chunk is examined at most once, so that chunks that can't be purged don't keep eviction going forever.
+        int remainingCandidates = evictionPolicy.size();
+
+        while (chunkIndex.getTotalSize() > targetStorageUsed && remainingCandidates > 0) {
+            List<String> candidates = evictionPolicy.getEvictionCandidates(Math.min(EVICTION_BATCH_SIZE, remainingCandidates));
+            if (candidates.isEmpty()) {
+                break;
+            }
+
+            for (String chunkID : candidates) {
+                remainingCandidates--;
+
+                boolean evicted = false;
+                if (_chunkInfoManager == null || _chunkInfoManager.canPurgeChunk(chunkID)) {
+                    synchronized (lockFor(chunkID)) {
+                        evicted = deleteChunk(chunkID);
+                    }
+                }
+                if (evicted) {
+                    evictedChunkCount.incrementAndGet();
+                    if (chunkIndex.getTotalSize() <= targetStorageUsed) {
+                        break;
+                    }
+                } else {
+                    evictionPolicy.chunkRetained(chunkID);
+                }
+            }
+        }
+
+        return chunkIndex.getTotalSize();
+    }
+
+    /**
+     * Starts evicting chunks in the background if the chunks stored use more than the high watermark, and eviction
+     * isn't already under way.
+     */
+    private void scheduleEvictionIfNeeded() {
+        if (evictionHighWatermark <= 0 || evictionExecutor == null) {
+            return;
+        }
+        if (chunkIndex.getTotalSize() <= (long) (storageQuota * evictionHighWatermark)) {
+            return;
+        }
+
+        if (evictionScheduled.compareAndSet(false, true)) {
+            try {
+                evictionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            long storageUsed = evictTo((long) (storageQuota * evictionLowWatermark));
+                            _log.debug("Evicted chunks down to " + storageUsed + " bytes");
+                        } finally {
+                            evictionScheduled.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The storage is shutting down.
+                evictionScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Tells the eviction policy about the chunks in the index, least recently accessed first.
+     */
+    private void loadEvictionPolicy() {
+        evictionPolicy.clear();
+        for (String chunkID : chunkIndex.getChunkIDsByLastAccess()) {
+            evictionPolicy.chunkAdded(chunkID);
+        }
+    }
+
+    /**
+     * Updates the amount of storage used based on the actual storage used on disk, by rebuilding the chunk index.
      */
     void updateUsedStorage() {
-        this.storageUsed = calculateUsedStorage(this.chunkStorageDirectory);
+        rebuildIndex();
     }
 
 
@@ -447,47 +799,115 @@ public class FileSystemChunkStorage implements ChunkStorage {
      * This method is only used for testing purposes.
      */
     void clearReservations() {
-        this.reservationMap.clear();
+        this.reservations.clear();
     }
 
 
     /**
-     * Calculates and returns the total amount of storage used by the chunks stored in the Chunk Storage.
+     * Clears all of the chunk reference counts in the File System Chunk Storage.
+     * <p>
+     * This method is only used for testing purposes.
      */
-    private long calculateUsedStorage(File root) {
-        long storageUsed = 0;
+    synchronized void clearReferenceCounts() {
+        this.chunkIndex.clearReferenceCounts();
+    }
+
+
+    /**
+     * Rebuilds the chunk index from the chunk files on disk, taking the last access time of each chunk from its file's
+     * last modified time.  The reference counts kept in the old reference count file, if there is one, are carried
+     * over into the index, after which that file is no longer needed.
+     */
+    private synchronized void rebuildIndex() {
+        Map<String, ChunkIndex.Entry> entries = new HashMap<>();
+        scanChunkFiles(this.chunkStorageDirectory, entries);
+
+        Map<String, Integer> referenceCounts = loadReferenceCounts();
+        for (Map.Entry<String, Integer> referenceCount : referenceCounts.entrySet()) {
+            ChunkIndex.Entry entry = entries.get(referenceCount.getKey());
+            if (entry != null) {
+                entry.referenceCount = referenceCount.getValue();
+            }
+        }
+
+        chunkIndex.reset(entries);
+        loadEvictionPolicy();
+
+        File referenceFile = new File(chunkStorageDirectory, REFERENCE_COUNT_FILE_NAME);
+        if (referenceFile.exists() && !referenceFile.delete()) {
+            _log.warn("Unable to delete the old chunk reference count file");
+        }
+    }
+
+
+    /**
+     * Adds an index entry for each of the chunk files in the tree under the specified directory.
+     */
+    private void scanChunkFiles(File root, Map<String, ChunkIndex.Entry> entries) {
         File[] children = root.listFiles();
 
         if (children != null) {
             for (File child : children) {
+                if (isInternalFile(child)) {
+                    continue;
+                }
                 if (child.isFile()) {
-                    storageUsed += child.length();
+                    entries.put(child.getName(), new ChunkIndex.Entry(child.length(), child.lastModified(), 1));
                 } else if (child.isDirectory()) {
-                    storageUsed += calculateUsedStorage(child);
+                    scanChunkFiles(child, entries);
                 }
             }
         }
+    }
 
-        return storageUsed;
+    private boolean isInternalFile(File file) {
+        return chunkIndex.isIndexFile(file) || file.equals(chunkFileWriter.getIncomingDirectory()) ||
+                (file.getName().startsWith(REFERENCE_COUNT_FILE_NAME) && chunkStorageDirectory.equals(file.getParentFile()));
     }
 
-    private Set<File> getChunkFiles(File root, Comparator<File> comparator) {
-        TreeSet<File> chunkFiles = new TreeSet<>(comparator);
+    /**
+     * Loads the reference counts of the shared chunks from the old reference count file.
+     */
+    private Map<String, Integer> loadReferenceCounts() {
+        Map<String, Integer> referenceCounts = new HashMap<>();
+        File referenceFile = new File(chunkStorageDirectory, REFERENCE_COUNT_FILE_NAME);
+        if (!referenceFile.exists()) {
+            return referenceCounts;
+        }
 
-        File[] children = root.listFiles();
+        Properties properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(referenceFile)) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            _log.warn("Unable to load the chunk reference counts", e);
+            return referenceCounts;
+        }
 
-        if (children != null) {
-            for (File child : children) {
-                if (child.isFile()) {
-                    chunkFiles.add(child) ;
-                } else if (child.isDirectory()) {
-                    Set<File> descendants = getChunkFiles(child, comparator);
-                    chunkFiles.addAll(descendants);
+        for (String chunkID : properties.stringPropertyNames()) {
+            try {
+                int referenceCount = Integer.parseInt(properties.getProperty(chunkID));
+                if (referenceCount > 1) {
+                    referenceCounts.put(chunkID, referenceCount);
                 }
+            } catch (NumberFormatException e) {
+                _log.warn("Ignoring invalid reference count for chunk " + chunkID);
             }
         }
+        return referenceCounts;
+    }
 
-        return chunkFiles;
+    // -------- Sync Policy --------
+
+    /**
+     * How chunks are made durable once they have been written.
+     */
+    public enum SyncPolicy {
+        /** Chunks reach the disk whenever the operating system writes them out. */
+        NONE,
+        /** Each chunk is forced to disk before it is reported as added. */
+        ALWAYS,
+        /** Chunks added at about the same time are forced to disk together before they are reported as added. */
+        GROUP
     }
 
     // -------- Inner Reservation ID Class --------
@@ -497,8 +917,8 @@ public class FileSystemChunkStorage implements ChunkStorage {
         private final String resID;
         private final long spaceReserved;
         private final long inactivityTimeout;
-        private long spaceRemaining;
-        private long expirationTime;
+        private volatile long spaceRemaining;
+        private volatile long expirationTime;
 
         /**
          * Creates a new FSReservationID object.  The reservation ID will contain the identification String assigned to
@@ -583,6 +1003,21 @@ public class FileSystemChunkStorage implements ChunkStorage {
             this.expirationTime = System.currentTimeMillis() + this.inactivityTimeout;
         }
 
+        void setRemainingSpace(long spaceRemaining) {
+            this.spaceRemaining = spaceRemaining;
+        }
+
+        String getResID() {
+            return this.resID;
+        }
+
+        /**
+         * Invalidates the reservation by moving its expiration time into the distant past.
+         */
+        void invalidate() {
+            this.expirationTime = 0;
+        }
+
         @Override
         public String toString() {
             return "FSReservationID{" +
@@ -0,0 +1,34 @@
+package io.topiacoin.chunks.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Supplies the framed bytes to be written to a connection. Frames are requested one at a time, only after the
+ * previous frame has been completely written, so a source may reuse the same buffer for each frame it returns.
+ *
+ * Frames are requested on the reactor thread, so a source must not block to produce them. A source that builds its
+ * frames elsewhere reports whether one is waiting with isReady(), and wakes the reactor when one becomes available.
+ */
+interface FrameSource {
+
+	/**
+	 * Returns true if nextFrame() can be called without waiting - either a frame is ready, or the source is done.
+	 */
+	boolean isReady();
+
+	/**
+	 * Returns the next frame to be written, or null if this source has nothing more to write. Only called once
+	 * isReady() has returned true.
+	 *
+	 * @return the next frame, ready to be read from, or null when done
+	 * @throws IOException if the next frame cannot be produced
+	 */
+	ByteBuffer nextFrame() throws IOException;
+
+	/**
+	 * Releases any resources held by this source. Called once the source is done, or when the connection is closed
+	 * before it could finish.
+	 */
+	void close();
+}
@@ -0,0 +1,101 @@
+package io.topiacoin.chunks.impl;
+
+/**
+ * A Count-Min sketch estimating how often each chunk has been accessed recently, used by the CachingChunkStorage to
+ * decide whether a chunk is worth caching (the TinyLFU admission policy).
+ * <p>
+ * Each chunk is counted in four 4-bit counters, sixteen to a long, and its frequency is the smallest of the four.  Once
+ * the number of accesses recorded reaches ten times the number of counters, every counter is halved, so that the
+ * estimates follow changes in popularity rather than growing forever.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch sized for the given number of distinct chunks.
+     *
+     * @param expectedChunkCount The number of distinct chunks the sketch should be able to tell apart.
+     */
+    FrequencySketch(int expectedChunkCount) {
+        int tableSize = Integer.highestOneBit(Math.max(expectedChunkCount, 16) - 1) << 1;
+        tableSize = Math.min(Math.max(tableSize, 16), 1 << 26);
+        table = new long[tableSize];
+        tableMask = tableSize - 1;
+        sampleSize = 10 * tableSize;
+    }
+
+    /**
+     * Records an access to a chunk.
+     */
+    synchronized void increment(String chunkID) {
+        int hash = spread(chunkID.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i), i);
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent accesses to a chunk, up to 15.
+     */
+    synchronized int frequency(String chunkID) {
+        int hash = spread(chunkID.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, countAt(indexOf(hash, i), i));
+        }
+        return frequency;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int shift = counterShift(index, counter);
+        long mask = 0xFL << shift;
+        if ((table[index >>> 4 & tableMask] & mask) == mask) {
+            return false;
+        }
+        table[index >>> 4 & tableMask] += 1L << shift;
+        return true;
+    }
+
+    private int countAt(int index, int counter) {
+        return (int) (table[index >>> 4 & tableMask] >>> counterShift(index, counter) & 0xF);
+    }
+
+    private static int counterShift(int index, int counter) {
+        // Each of the four counters for a chunk lives in a different quarter of the long.
+        return ((index & 3) + (counter << 2)) << 2;
+    }
+
+    private int indexOf(int hash, int counter) {
+        long h = (hash + SEEDS[counter]) * SEEDS[counter];
+        h += h >>> 32;
+        return (int) h;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -4,16 +4,16 @@ import io.topiacoin.chunks.intf.ChunkInfoManager;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class InMemoryChunkInfoManager implements ChunkInfoManager {
 
-    private List<String> unpurgeableChunks ;
+    private Set<String> unpurgeableChunks ;
 
     public InMemoryChunkInfoManager () {
-        unpurgeableChunks = new ArrayList<>();
+        unpurgeableChunks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     }
 
     @PostConstruct
@@ -33,11 +33,9 @@ public class InMemoryChunkInfoManager implements ChunkInfoManager {
 
     public void addUnpurgeableChunk(String chunkID) {
         unpurgeableChunks.add(chunkID) ;
-        Collections.sort(unpurgeableChunks);
     }
 
     public void removeUnpurgeableChunk(String chunkID) {
         unpurgeableChunks.remove(chunkID) ;
-        Collections.sort(unpurgeableChunks);
     }
 }
@@ -0,0 +1,58 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.intf.EvictionPolicy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Evicts the least recently used chunks first.  The chunks are kept in an access ordered map, so every notification
+ * and the selection of each candidate take constant time.
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    // The chunks in the storage, least recently used first.
+    private final LinkedHashMap<String, Boolean> chunks = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public synchronized void chunkAdded(String chunkID) {
+        chunks.put(chunkID, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void chunkAccessed(String chunkID) {
+        chunks.get(chunkID);
+    }
+
+    @Override
+    public synchronized void chunkRemoved(String chunkID) {
+        chunks.remove(chunkID);
+    }
+
+    @Override
+    public synchronized void chunkRetained(String chunkID) {
+        chunks.get(chunkID);
+    }
+
+    @Override
+    public synchronized List<String> getEvictionCandidates(int maxCandidates) {
+        List<String> candidates = new ArrayList<>(Math.min(maxCandidates, chunks.size()));
+        Iterator<String> iterator = chunks.keySet().iterator();
+        while (iterator.hasNext() && candidates.size() < maxCandidates) {
+            candidates.add(iterator.next());
+        }
+        return candidates;
+    }
+
+    @Override
+    public synchronized int size() {
+        return chunks.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        chunks.clear();
+    }
+}
@@ -0,0 +1,664 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.exceptions.DuplicateChunkException;
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.chunks.exceptions.InvalidReservationException;
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import io.topiacoin.chunks.intf.ReservationID;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Chunk Storage that spreads its chunks across several volumes, each a Chunk Storage of its own, usually on a disk of
+ * its own.  Chunks are placed on the volumes by consistent hashing, so the reads and writes of different chunks are
+ * spread across the disks, and adding or removing a volume only moves the chunks whose place changes.
+ * <p>
+ * Each volume keeps its own quota and reservations.  A chunk goes to the first volume on the hash ring with room for
+ * it, and a chunk added against a reservation goes to the volume holding the reservation.  Reservations are taken from
+ * the volume with the most available space.
+ * <p>
+ * Volumes can be added and drained while the storage is in use.  A drained volume takes no new chunks, and is removed
+ * and shut down once the chunks on it have been moved to the other volumes.  Chunks are moved in the background, one
+ * at a time, along with their references.  A chunk being moved is read from whichever volume has it.
+ */
+public class MultiVolumeChunkStorage implements ChunkStorage {
+
+    // The number of points each volume has on the hash ring.  More points spread the chunks more evenly.
+    private static final int VIRTUAL_NODES_PER_VOLUME = 160;
+
+    // The number of locks that changes to chunks are spread across.
+    private static final int CHUNK_LOCK_STRIPES = 256;
+
+    private Log _log = LogFactory.getLog(this.getClass());
+
+    private final Object[] chunkLocks = new Object[CHUNK_LOCK_STRIPES];
+
+    {
+        for (int i = 0; i < chunkLocks.length; i++) {
+            chunkLocks[i] = new Object();
+        }
+    }
+
+    // Replaced, never changed, whenever volumes are added or drained.
+    private volatile Layout layout = new Layout(Collections.<Volume>emptyList(), Collections.<Volume>emptyList());
+
+    private ExecutorService rebalanceExecutor;
+    private volatile boolean stopped;
+    private final AtomicInteger pendingRebalances = new AtomicInteger();
+    private final AtomicLong movedChunkCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (layout.active.isEmpty()) {
+            throw new IllegalStateException("The Multi-Volume Chunk Storage needs at least one volume");
+        }
+
+        rebalanceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Chunk Rebalancing");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        _log.info("Initialized Multi-Volume Chunk Storage with " + layout.active.size() + " volumes");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        _log.info("Shutting Down Multi-Volume Chunk Storage");
+
+        stopped = true;
+        if (rebalanceExecutor != null) {
+            rebalanceExecutor.shutdown();
+            try {
+                if (!rebalanceExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    _log.warn("Timed out waiting for chunk rebalancing to stop");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Layout currentLayout = layout;
+        for (Volume volume : currentLayout.allVolumes()) {
+            volume.storage.shutdown();
+        }
+
+        _log.info("Shut Down Multi-Volume Chunk Storage");
+    }
+
+    /**
+     * Adds a chunk to the volume it hashes to, or to the next volume on the hash ring if that volume doesn't have room
+     * for it or turns it down.  A chunk added against a reservation goes to the volume holding the reservation.
+     *
+     * @throws DuplicateChunkException If there is already data in Storage with the specified chunkID.
+     */
+    @Override
+    public void addChunk(String chunkID, InputStream chunkStream, ReservationID reservationID, boolean purgeable)
+            throws DuplicateChunkException, InvalidReservationException, InsufficientSpaceException, IOException {
+
+        Volume target = null;
+        if (reservationID != null) {
+            if (!(reservationID instanceof VolumeReservationID)) {
+                throw new InvalidReservationException("Unrecognized Reservation ID");
+            }
+            target = ((VolumeReservationID) reservationID).volume;
+            if (!layout.allVolumes().contains(target)) {
+                throw new InvalidReservationException("The reservation's volume has been removed");
+            }
+            reservationID = ((VolumeReservationID) reservationID).reservationID;
+        }
+
+        synchronized (lockFor(chunkID)) {
+            if (findVolume(chunkID) != null) {
+                throw new DuplicateChunkException("This chunk is already in chunk Storage");
+            }
+            if (target != null) {
+                target.storage.addChunk(chunkID, chunkStream, reservationID, purgeable);
+                return;
+            }
+
+            // The stream's available() is only an estimate of the chunk's size, so read the chunk in to place it by
+            // its real size, and to be able to offer it to the next volume if a volume turns it down.
+            byte[] chunkData = IOUtils.toByteArray(chunkStream);
+            InsufficientSpaceException lastFailure = null;
+            for (Volume volume : placementsFor(chunkID, chunkData.length)) {
+                try {
+                    volume.storage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, purgeable);
+                    return;
+                } catch (InsufficientSpaceException e) {
+                    lastFailure = e;
+                }
+            }
+            throw lastFailure;
+        }
+    }
+
+    @Override
+    public InputStream getChunkDataStream(String chunkID) throws NoSuchChunkException {
+        try {
+            return getVolumeFor(chunkID).storage.getChunkDataStream(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to another volume.
+            return getVolumeFor(chunkID).storage.getChunkDataStream(chunkID);
+        }
+    }
+
+    @Override
+    public byte[] getChunkData(String chunkID) throws NoSuchChunkException, IOException {
+        try {
+            return getVolumeFor(chunkID).storage.getChunkData(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to another volume.
+            return getVolumeFor(chunkID).storage.getChunkData(chunkID);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+        try {
+            return getVolumeFor(chunkID).storage.getChunkDataChannel(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to another volume.
+            return getVolumeFor(chunkID).storage.getChunkDataChannel(chunkID);
+        }
+    }
+
+    @Override
+    public ByteBuffer getChunkDataBuffer(String chunkID) throws NoSuchChunkException, IOException {
+        try {
+            return getVolumeFor(chunkID).storage.getChunkDataBuffer(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to another volume.
+            return getVolumeFor(chunkID).storage.getChunkDataBuffer(chunkID);
+        }
+    }
+
+    @Override
+    public boolean hasChunk(String chunkID) {
+        return findVolume(chunkID) != null;
+    }
+
+    @Override
+    public boolean removeChunk(String chunkID) {
+        synchronized (lockFor(chunkID)) {
+            Volume volume = findVolume(chunkID);
+            return volume != null && volume.storage.removeChunk(chunkID);
+        }
+    }
+
+    @Override
+    public boolean addChunkReference(String chunkID) {
+        synchronized (lockFor(chunkID)) {
+            Volume volume = findVolume(chunkID);
+            return volume != null && volume.storage.addChunkReference(chunkID);
+        }
+    }
+
+    @Override
+    public void chunkAccessed(String chunkID) {
+        Volume volume = findVolume(chunkID);
+        if (volume != null) {
+            volume.storage.chunkAccessed(chunkID);
+        }
+    }
+
+    @Override
+    public List<String> getChunkIDs() {
+        // A chunk being moved may briefly be on two volumes.
+        Set<String> chunkIDs = new LinkedHashSet<>();
+        for (Volume volume : layout.allVolumes()) {
+            chunkIDs.addAll(volume.storage.getChunkIDs());
+        }
+        return new ArrayList<>(chunkIDs);
+    }
+
+    /**
+     * Returns the combined quota of the volumes that are not being drained.
+     */
+    @Override
+    public long getStorageQuota() {
+        long storageQuota = 0;
+        for (Volume volume : layout.active) {
+            storageQuota += volume.storage.getStorageQuota();
+        }
+        return storageQuota;
+    }
+
+    /**
+     * Returns the combined available storage of the volumes that are not being drained.
+     */
+    @Override
+    public long getAvailableStorage() {
+        long availableStorage = 0;
+        for (Volume volume : layout.active) {
+            availableStorage += volume.storage.getAvailableStorage();
+        }
+        return availableStorage;
+    }
+
+    /**
+     * Purges chunks from the volumes, one volume at a time, until the volumes together have the requested amount of
+     * space available.
+     */
+    @Override
+    public boolean purgeStorage(long neededAvailableSpace) {
+        long shortfall = neededAvailableSpace - getAvailableStorage();
+        for (Volume volume : layout.active) {
+            if (shortfall <= 0) {
+                break;
+            }
+            long availableBefore = volume.storage.getAvailableStorage();
+            volume.storage.purgeStorage(Math.min(volume.storage.getStorageQuota(), availableBefore + shortfall));
+            shortfall -= volume.storage.getAvailableStorage() - availableBefore;
+        }
+        return shortfall <= 0;
+    }
+
+    /**
+     * Reserves space on the volume with the most space available.  Chunks added against the reservation are stored on
+     * that volume.
+     */
+    @Override
+    public ReservationID reserveStorageSpace(long spaceToReserve) throws InsufficientSpaceException {
+        Volume roomiest = null;
+        long roomiestAvailable = Long.MIN_VALUE;
+        for (Volume volume : layout.active) {
+            long available = volume.storage.getAvailableStorage();
+            if (available > roomiestAvailable) {
+                roomiest = volume;
+                roomiestAvailable = available;
+            }
+        }
+        return new VolumeReservationID(roomiest, roomiest.storage.reserveStorageSpace(spaceToReserve));
+    }
+
+    @Override
+    public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
+        if (!(reservationID instanceof VolumeReservationID)) {
+            throw new InvalidReservationException("Unrecognized Reservation ID");
+        }
+        VolumeReservationID volumeReservationID = (VolumeReservationID) reservationID;
+        volumeReservationID.volume.storage.releaseSpaceReservation(volumeReservationID.reservationID);
+    }
+
+
+    // -------- Accessor Methods --------
+
+    /**
+     * Adds a volume to the storage.  Volumes can be added before the storage is initialized, or while it is in use, in
+     * which case the chunks that now hash to the new volume are moved to it in the background.
+     *
+     * @param name    A name for the volume that is unique within this storage, such as its directory.  Chunks are
+     *                placed on the volumes by the hashes of their names, so a volume should keep the same name from one
+     *                run to the next.
+     * @param storage The initialized Chunk Storage holding the volume's chunks.
+     *
+     * @throws IllegalArgumentException If the storage already has a volume with the given name.
+     */
+    public void addVolume(String name, ChunkStorage storage) {
+        synchronized (this) {
+            if (getVolume(name) != null) {
+                throw new IllegalArgumentException("There is already a volume named " + name);
+            }
+            List<Volume> active = new ArrayList<>(layout.active);
+            active.add(new Volume(name, storage));
+            layout = new Layout(active, layout.draining);
+        }
+        _log.info("Added chunk storage volume " + name);
+
+        scheduleRebalance();
+    }
+
+    /**
+     * Drains a volume.  No more chunks are added to the volume, and the chunks on it are moved to the other volumes in
+     * the background.  Once it is empty, the volume is removed and shut down.
+     *
+     * @param name The name of the volume to drain.
+     *
+     * @throws IllegalArgumentException If there is no such volume, or it is the only volume not already being drained.
+     */
+    public void drainVolume(String name) {
+        synchronized (this) {
+            Volume volume = getVolume(name);
+            if (volume == null || !layout.active.contains(volume)) {
+                throw new IllegalArgumentException("There is no volume named " + name + " to drain");
+            }
+            if (layout.active.size() == 1) {
+                throw new IllegalArgumentException("The last volume cannot be drained");
+            }
+            List<Volume> active = new ArrayList<>(layout.active);
+            active.remove(volume);
+            List<Volume> draining = new ArrayList<>(layout.draining);
+            draining.add(volume);
+            layout = new Layout(active, draining);
+        }
+        _log.info("Draining chunk storage volume " + name);
+
+        scheduleRebalance();
+    }
+
+    /**
+     * Returns the names of the volumes, including any that are being drained.
+     */
+    public List<String> getVolumeNames() {
+        List<String> names = new ArrayList<>();
+        for (Volume volume : layout.allVolumes()) {
+            names.add(volume.name);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the name of the volume holding a chunk.
+     *
+     * @param chunkID The ID of the chunk.
+     *
+     * @return The name of the volume holding the chunk, or null if no volume has it.
+     */
+    public String getVolumeNameForChunk(String chunkID) {
+        Volume volume = findVolume(chunkID);
+        return (volume != null ? volume.name : null);
+    }
+
+    /**
+     * Returns true while chunks are being moved between volumes, or are waiting to be.
+     */
+    public boolean isRebalancing() {
+        return pendingRebalances.get() > 0;
+    }
+
+    /**
+     * Returns the number of chunks that have been moved from one volume to another.
+     */
+    public long getMovedChunkCount() {
+        return movedChunkCount.get();
+    }
+
+
+    // -------- Private Methods --------
+
+    private Object lockFor(String chunkID) {
+        return chunkLocks[(chunkID.hashCode() & 0x7fffffff) % chunkLocks.length];
+    }
+
+    private Volume getVolume(String name) {
+        for (Volume volume : layout.allVolumes()) {
+            if (volume.name.equals(name)) {
+                return volume;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the volume holding a chunk, looking first at the volumes the chunk would be placed on, in order.
+     */
+    private Volume findVolume(String chunkID) {
+        Layout currentLayout = layout;
+        for (Volume volume : currentLayout.volumesFor(chunkID)) {
+            if (volume.storage.hasChunk(chunkID)) {
+                return volume;
+            }
+        }
+        for (Volume volume : currentLayout.draining) {
+            if (volume.storage.hasChunk(chunkID)) {
+                return volume;
+            }
+        }
+        return null;
+    }
+
+    private Volume getVolumeFor(String chunkID) throws NoSuchChunkException {
+        Volume volume = findVolume(chunkID);
+        if (volume == null) {
+            throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
+        }
+        return volume;
+    }
+
+    /**
+     * Chooses the volume a new chunk is stored on: the first volume on the hash ring with room for it, or the volume it
+     * hashes to if none has room.
+     */
+    private Volume placeChunk(String chunkID, long chunkSize) {
+        return placementsFor(chunkID, chunkSize).get(0);
+    }
+
+    /**
+     * Returns the volumes a new chunk may be stored on, in the order they should be tried: the volumes on the hash ring
+     * with room for it, or just the volume it hashes to if none has room.
+     */
+    private List<Volume> placementsFor(String chunkID, long chunkSize) {
+        List<Volume> volumes = layout.volumesFor(chunkID);
+        List<Volume> placements = new ArrayList<>();
+        for (Volume volume : volumes) {
+            if (volume.storage.getAvailableStorage() >= chunkSize) {
+                placements.add(volume);
+            }
+        }
+        if (placements.isEmpty()) {
+            placements.add(volumes.get(0));
+        }
+        return placements;
+    }
+
+    private void scheduleRebalance() {
+        if (rebalanceExecutor == null) {
+            return;
+        }
+        pendingRebalances.incrementAndGet();
+        rebalanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (RuntimeException e) {
+                    _log.warn("Chunk rebalancing failed", e);
+                } finally {
+                    pendingRebalances.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves each chunk that isn't on the volume it hashes to onto that volume, if it has room, and then removes the
+     * drained volumes that are now empty.
+     */
+    private void rebalance() {
+        for (Volume volume : layout.allVolumes()) {
+            for (String chunkID : volume.storage.getChunkIDs()) {
+                if (stopped) {
+                    return;
+                }
+                Layout currentLayout = layout;
+                if (currentLayout.draining.contains(volume)) {
+                    moveChunk(chunkID, volume, placeChunk(chunkID, 0));
+                } else {
+                    Volume home = currentLayout.volumesFor(chunkID).get(0);
+                    if (home != volume && home.storage.getAvailableStorage() > 0) {
+                        moveChunk(chunkID, volume, home);
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            List<Volume> draining = new ArrayList<>(layout.draining);
+            for (Volume volume : layout.draining) {
+                if (volume.storage.getChunkIDs().isEmpty()) {
+                    draining.remove(volume);
+                    volume.storage.shutdown();
+                    _log.info("Removed drained chunk storage volume " + volume.name);
+                } else {
+                    _log.warn("Chunk storage volume " + volume.name + " could not be fully drained");
+                }
+            }
+            layout = new Layout(layout.active, draining);
+        }
+    }
+
+    /**
+     * Moves a chunk, along with all of its references, from one volume to another.
+     */
+    private void moveChunk(String chunkID, Volume source, Volume target) {
+        synchronized (lockFor(chunkID)) {
+            try {
+                if (ChunkMover.moveChunk(chunkID, source.storage, target.storage) >= 0) {
+                    movedChunkCount.incrementAndGet();
+                }
+            } catch (IOException e) {
+                _log.warn("Unable to move chunk " + chunkID + " from volume " + source.name + " to volume " + target.name, e);
+            }
+        }
+    }
+
+    /**
+     * Hashes a string onto the hash ring, using 64 bit FNV-1a followed by a final mix to spread similar strings apart.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+
+    // -------- Inner Classes --------
+
+    private static class Volume {
+        private final String name;
+        private final ChunkStorage storage;
+
+        Volume(String name, ChunkStorage storage) {
+            this.name = name;
+            this.storage = storage;
+        }
+    }
+
+    /**
+     * The volumes and the hash ring placing chunks on the ones not being drained.
+     */
+    private static class Layout {
+        private final List<Volume> active;
+        private final List<Volume> draining;
+        private final TreeMap<Long, Volume> ring = new TreeMap<>();
+
+        Layout(List<Volume> active, List<Volume> draining) {
+            this.active = Collections.unmodifiableList(new ArrayList<>(active));
+            this.draining = Collections.unmodifiableList(new ArrayList<>(draining));
+            for (Volume volume : active) {
+                for (int i = 0; i < VIRTUAL_NODES_PER_VOLUME; i++) {
+                    ring.put(hash(volume.name + "#" + i), volume);
+                }
+            }
+        }
+
+        List<Volume> allVolumes() {
+            List<Volume> volumes = new ArrayList<>(active);
+            volumes.addAll(draining);
+            return volumes;
+        }
+
+        /**
+         * Returns the volumes not being drained in the order they are met going around the ring from the chunk's hash.
+         * The first is the volume the chunk belongs on.
+         */
+        List<Volume> volumesFor(String chunkID) {
+            List<Volume> volumes = new ArrayList<>(active.size());
+            long chunkHash = hash(chunkID);
+            if (!addVolumes(ring.tailMap(chunkHash, true).values(), volumes)) {
+                addVolumes(ring.headMap(chunkHash, false).values(), volumes);
+            }
+            return volumes;
+        }
+
+        /**
+         * Adds the volumes not already in the list, stopping once it holds every volume.
+         *
+         * @return True if the list holds every volume.
+         */
+        private boolean addVolumes(Collection<Volume> arc, List<Volume> volumes) {
+            for (Volume volume : arc) {
+                if (!volumes.contains(volume)) {
+                    volumes.add(volume);
+                    if (volumes.size() == active.size()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A reservation of space on one of the volumes.
+     */
+    private static class VolumeReservationID implements ReservationID {
+        private final Volume volume;
+        private final ReservationID reservationID;
+
+        VolumeReservationID(Volume volume, ReservationID reservationID) {
+            this.volume = volume;
+            this.reservationID = reservationID;
+        }
+
+        @Override
+        public boolean isValid() {
+            return reservationID.isValid();
+        }
+
+        @Override
+        public long getExpirationTime() {
+            return reservationID.getExpirationTime();
+        }
+
+        @Override
+        public long getReservedSpace() {
+            return reservationID.getReservedSpace();
+        }
+
+        @Override
+        public long getRemainingSpace() {
+            return reservationID.getRemainingSpace();
+        }
+
+        @Override
+        public String toString() {
+            return volume.name + ":" + reservationID;
+        }
+    }
+}
@@ -0,0 +1,1034 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.exceptions.DuplicateChunkException;
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.chunks.exceptions.InvalidReservationException;
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.impl.FileSystemChunkStorage.FSReservationID;
+import io.topiacoin.chunks.intf.ChunkInfoManager;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import io.topiacoin.chunks.intf.EvictionPolicy;
+import io.topiacoin.chunks.intf.ReservationID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A Chunk Storage that appends chunks to large segment files rather than storing each chunk in a file of its own.  This
+ * saves an inode and a directory lookup per chunk, and keeps chunks that are stored together close together on disk.
+ * <p>
+ * Each chunk is stored as a record holding the chunk ID, its reference count, its state and its data.  Removing a
+ * chunk marks its record as removed, and once the chunks still in use take up less than the compaction threshold of a
+ * segment, they are copied to the end of the newest segment in the background and the old segment is deleted.
+ * <p>
+ * The offsets of the chunks are kept in memory, and are rebuilt at startup by reading the record headers of each
+ * segment.  A record is only marked as in use once all of its data has been written, so a record left incomplete by a
+ * crash is cut off the end of its segment when the storage is next started.
+ * <p>
+ * The storage quota counts the data of the chunks in use, as with the FileSystemChunkStorage.  Removed chunks take up
+ * disk space until their segment is compacted.
+ */
+public class PackFileChunkStorage implements ChunkStorage {
+
+    public static final int DEFAULT_INACTIVITY_TIMEOUT = 300000;
+    public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".pack";
+
+    private static final int RECORD_MAGIC = 0x43484e4b;
+
+    private static final byte RECORD_INCOMPLETE = 0;
+    private static final byte RECORD_LIVE = 1;
+    private static final byte RECORD_REMOVED = 2;
+
+    // The layout of a record header, which is followed by the chunk data.
+    private static final int STATE_OFFSET = 4;
+    private static final int REFERENCE_COUNT_OFFSET = 5;
+    private static final int LENGTH_OFFSET = 9;
+    private static final int ID_LENGTH_OFFSET = 17;
+    private static final int ID_OFFSET = 19;
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    // The number of candidates taken from the eviction policy at a time.
+    private static final int EVICTION_BATCH_SIZE = 64;
+
+    private Log _log = LogFactory.getLog(this.getClass());
+
+    private File chunkStorageDirectory;
+
+    private ChunkInfoManager _chunkInfoManager;
+    private EvictionPolicy evictionPolicy = new LRUEvictionPolicy();
+
+    private long storageQuota;
+    private long reservationInactivityTimeout = DEFAULT_INACTIVITY_TIMEOUT;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private ChunkReservations reservations;
+
+    // Where each chunk is stored.  Changes are made while holding the storage's lock.
+    private final Map<String, ChunkLocation> chunkLocations = new ConcurrentHashMap<>();
+    private final AtomicLong storageUsed = new AtomicLong();
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Guards the end of the active segment.  Never acquired before the storage's lock.
+    private final Object appendLock = new Object();
+    private volatile Segment activeSegment;
+
+    // Held for reading while reading from a segment, and for writing while closing one.
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    private ExecutorService compactionExecutor;
+    private final Set<Integer> scheduledCompactions = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    @PostConstruct
+    public void init() {
+        _log.info("Initializing Pack File Chunk Storage");
+
+        if (!chunkStorageDirectory.exists()) {
+            if (!chunkStorageDirectory.mkdirs()) {
+                _log.fatal("Unable to create the Chunk Storage Directory");
+                throw new RuntimeException("Unable to create the chunk storage directory: " + chunkStorageDirectory);
+            }
+        }
+
+        reservations = new ChunkReservations();
+        compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Chunk Segment Compaction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            loadSegments();
+        } catch (IOException e) {
+            _log.fatal("Unable to load the chunk segments", e);
+            throw new RuntimeException("Unable to load the chunk segments from " + chunkStorageDirectory, e);
+        }
+
+        _log.info("Initialized Pack File Chunk Storage");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        _log.info("Shutting Down Pack File Chunk Storage");
+
+        if (compactionExecutor != null) {
+            compactionExecutor.shutdown();
+            try {
+                if (!compactionExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    _log.warn("Timed out waiting for segment compaction to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        segmentLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+
+        _log.info("Shut Down Pack File Chunk Storage");
+    }
+
+    /**
+     * Adds a chunk to the Chunk Storage using the data in the chunkStream.  The chunk is appended to the active
+     * segment.
+     *
+     * @param chunkID     The ID of the chunk whose data is being added.
+     * @param chunkStream An InputStream containing the chunk data.
+     *
+     * @throws DuplicateChunkException If there is already data in Storage with the specified chunkID.
+     */
+    @Override
+    public void addChunk(final String chunkID, final InputStream chunkStream, ReservationID reservationID, boolean purgeable)
+            throws DuplicateChunkException, InvalidReservationException, InsufficientSpaceException, IOException {
+
+        if (reservationID != null && !(reservationID instanceof FSReservationID)) {
+            throw new InvalidReservationException("Unrecognized Reservation ID");
+        }
+
+        if (chunkLocations.containsKey(chunkID)) {
+            throw new DuplicateChunkException("This chunk is already in chunk Storage");
+        }
+
+        long claimedSpace = 0;
+        if (reservationID != null) {
+            claimedSpace = chunkStream.available();
+            reservations.claim(reservationID, claimedSpace);
+        }
+
+        ChunkLocation location = null;
+        try {
+            location = appendRecord(chunkID, chunkStream, 1);
+
+            synchronized (this) {
+                if (chunkLocations.containsKey(chunkID)) {
+                    // Another thread added the same chunk while this one was writing it.
+                    writeState(location, RECORD_REMOVED);
+                    location = null;
+                    throw new DuplicateChunkException("This chunk is already in chunk Storage");
+                }
+                chunkLocations.put(chunkID, location);
+                location.segment.liveBytes.addAndGet(location.length);
+                storageUsed.addAndGet(location.length);
+            }
+        } finally {
+            if (reservationID != null) {
+                if (location != null) {
+                    reservations.commit(reservationID, claimedSpace, location.length);
+                } else {
+                    reservations.rollback(reservationID, claimedSpace);
+                }
+            }
+        }
+        evictionPolicy.chunkAdded(chunkID);
+    }
+
+    /**
+     * Retrieves the chunk data for the chunk with the specified chunkID.
+     *
+     * @param chunkID The ID of the chunk whose data is being retrieved.
+     *
+     * @return An InputStream containing the data for the requested chunkID.
+     *
+     * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
+     */
+    @Override
+    public InputStream getChunkDataStream(final String chunkID) throws NoSuchChunkException {
+        try {
+            return new BufferedInputStream(Channels.newInputStream(getChunkDataChannel(chunkID)), COPY_BUFFER_SIZE);
+        } catch (IOException e) {
+            _log.info("Unable to read the requested chunk", e);
+            throw new NoSuchChunkException("Chunk " + chunkID + " could not be read.");
+        }
+    }
+
+    @Override
+    public byte[] getChunkData(final String chunkID) throws NoSuchChunkException, IOException {
+        segmentLock.readLock().lock();
+        try {
+            ChunkLocation location = getLocation(chunkID);
+            if (location.length > Integer.MAX_VALUE) {
+                throw new IOException("Chunk " + chunkID + " is too large to be read into memory.");
+            }
+
+            ByteBuffer data = ByteBuffer.allocate((int) location.length);
+            readFully(location.segment.channel, data, location.dataOffset);
+            evictionPolicy.chunkAccessed(chunkID);
+            return data.array();
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Maps the chunk's data in its segment file into memory.  The mapping outlives the segment file, so the buffer
+     * remains readable even if the segment is compacted while the buffer is in use.
+     *
+     * @param chunkID The ID of the chunk whose data is being retrieved.
+     *
+     * @return A read-only buffer mapped over the data for the requested chunkID.
+     *
+     * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
+     */
+    @Override
+    public ByteBuffer getChunkDataBuffer(final String chunkID) throws NoSuchChunkException, IOException {
+        segmentLock.readLock().lock();
+        try {
+            ChunkLocation location = getLocation(chunkID);
+            ByteBuffer buffer = location.segment.channel.map(FileChannel.MapMode.READ_ONLY, location.dataOffset, location.length);
+            evictionPolicy.chunkAccessed(chunkID);
+            return buffer;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Opens a channel on the chunk's data.  The channel has a handle of its own on the segment file, so it remains
+     * readable even if the segment is compacted while the channel is open.
+     *
+     * @param chunkID The ID of the chunk whose data is being retrieved.
+     *
+     * @return A channel on the data for the requested chunkID.
+     *
+     * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
+     */
+    @Override
+    public SeekableByteChannel getChunkDataChannel(final String chunkID) throws NoSuchChunkException, IOException {
+        segmentLock.readLock().lock();
+        try {
+            ChunkLocation location = getLocation(chunkID);
+            FileChannel channel = FileChannel.open(location.segment.file.toPath(), StandardOpenOption.READ);
+            evictionPolicy.chunkAccessed(chunkID);
+            return new ChunkDataChannel(channel, location.dataOffset, location.length);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasChunk(final String chunkID) {
+        return chunkLocations.containsKey(chunkID);
+    }
+
+    /**
+     * Removes a reference to the data for the specified chunkID.  The data is only removed from storage once its last
+     * reference has been removed.
+     *
+     * @param chunkID The ID of the chunk whose data is being removed.
+     *
+     * @return True if the reference was removed.  False if no data was stored with the specified chunkID.
+     */
+    @Override
+    public synchronized boolean removeChunk(final String chunkID) {
+        ChunkLocation location = chunkLocations.get(chunkID);
+        if (location == null) {
+            return false;
+        }
+
+        if (location.referenceCount > 1) {
+            return writeReferenceCount(location, location.referenceCount - 1);
+        }
+        return deleteChunk(chunkID, location);
+    }
+
+    /**
+     * Records another reference to a chunk that is already in storage.  Each reference must be removed with
+     * removeChunk() before the chunk's data is removed.
+     *
+     * @param chunkID The ID of the chunk being referenced.
+     *
+     * @return True if the reference was recorded.  False if no data is stored with the specified chunkID.
+     */
+    @Override
+    public synchronized boolean addChunkReference(final String chunkID) {
+        ChunkLocation location = chunkLocations.get(chunkID);
+        if (location == null) {
+            return false;
+        }
+
+        evictionPolicy.chunkAccessed(chunkID);
+        return writeReferenceCount(location, location.referenceCount + 1);
+    }
+
+    @Override
+    public void chunkAccessed(final String chunkID) {
+        if (chunkLocations.containsKey(chunkID)) {
+            evictionPolicy.chunkAccessed(chunkID);
+        }
+    }
+
+    @Override
+    public List<String> getChunkIDs() {
+        return new ArrayList<>(chunkLocations.keySet());
+    }
+
+    /**
+     * Returns the number of references to the specified chunk.
+     *
+     * @param chunkID The ID of the chunk whose references are being counted.
+     *
+     * @return The number of references to the chunk, or 0 if no data is stored with the specified chunkID.
+     */
+    public synchronized int getChunkReferenceCount(final String chunkID) {
+        ChunkLocation location = chunkLocations.get(chunkID);
+        return (location != null ? location.referenceCount : 0);
+    }
+
+    /**
+     * Attempts to remove chunks from the chunk storage in order to make the requested amount of space available.
+     * Chunks are removed in the order chosen by the eviction policy, skipping any the Chunk Info Manager says cannot be
+     * purged.
+     *
+     * @param neededAvailableSpace The amount of space, in bytes, that should be made available.
+     *
+     * @return True if the chunk storage is able to make the requested amount of space available.  False if the chunk
+     * storage NOT able to make the requested amount of space available.
+     */
+    @Override
+    public boolean purgeStorage(long neededAvailableSpace) {
+
+        // The available storage is more than we are asking for, so return true immediately.
+        long availableStorage = this.getAvailableStorage();
+        if (neededAvailableSpace < availableStorage) {
+            return true;
+        }
+
+        // We are being asked for more space than we have quota for, so return false immediately.
+        if (neededAvailableSpace > this.storageQuota) {
+            return false;
+        }
+
+        long spaceToBeFreed = neededAvailableSpace - availableStorage;
+        long targetStorageUsed = storageUsed.get() - spaceToBeFreed;
+
+        // Each chunk is examined at most once, so that chunks that can't be purged don't keep eviction going forever.
+        int remainingCandidates = evictionPolicy.size();
+        while (storageUsed.get() > targetStorageUsed && remainingCandidates > 0) {
+            List<String> candidates = evictionPolicy.getEvictionCandidates(Math.min(EVICTION_BATCH_SIZE, remainingCandidates));
+            if (candidates.isEmpty()) {
+                break;
+            }
+
+            for (String chunkID : candidates) {
+                remainingCandidates--;
+
+                boolean evicted = false;
+                if (_chunkInfoManager == null || _chunkInfoManager.canPurgeChunk(chunkID)) {
+                    synchronized (this) {
+                        ChunkLocation location = chunkLocations.get(chunkID);
+                        evicted = (location != null && deleteChunk(chunkID, location));
+                    }
+                }
+                if (evicted) {
+                    if (storageUsed.get() <= targetStorageUsed) {
+                        break;
+                    }
+                } else {
+                    evictionPolicy.chunkRetained(chunkID);
+                }
+            }
+        }
+
+        return storageUsed.get() <= targetStorageUsed;
+    }
+
+    @Override
+    public ReservationID reserveStorageSpace(long spaceToReserve) throws InsufficientSpaceException {
+        return reservations.reserve(spaceToReserve, this.storageQuota - storageUsed.get(), this.reservationInactivityTimeout);
+    }
+
+    @Override
+    public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
+        reservations.release(reservationID);
+    }
+
+
+    // -------- Accessor Methods --------
+
+    public File getChunkStorageDirectory() {
+        return chunkStorageDirectory;
+    }
+
+    /**
+     * Sets the directory where the chunk segments will be stored.
+     *
+     * @param chunkStorageDirectory The directory where the chunk segments are to be stored.
+     */
+    public void setChunkStorageDirectory(File chunkStorageDirectory) {
+        this.chunkStorageDirectory = chunkStorageDirectory;
+    }
+
+    public void setChunkInfoManager(ChunkInfoManager chunkInfoManager) {
+        _chunkInfoManager = chunkInfoManager;
+    }
+
+    /**
+     * Sets the policy that decides which chunks are removed first when space is needed.  The policy must be set before
+     * the Chunk Storage is initialized.  Defaults to an LRUEvictionPolicy.
+     *
+     * @param evictionPolicy The policy deciding the order in which chunks are evicted.
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Sets the Storage Quota for the Chunk Storage.  This informs the Chunk Storage how much chunk data, in bytes, it
+     * is allowed to store.
+     *
+     * @param storageQuota The amount of storage, in bytes, that the Chunk Storage is allowed to consume.
+     */
+    public void setStorageQuota(long storageQuota) {
+        this.storageQuota = storageQuota;
+    }
+
+    /**
+     * Sets the length of time a reservation can be inactive before it is marked as inactive.
+     *
+     * @param reservationInactivityTimeout The length of time, in milliseconds, before a reservation with no activity is
+     *                                     marked as inactive.
+     */
+    public void setReservationInactivityTimeout(long reservationInactivityTimeout) {
+        this.reservationInactivityTimeout = reservationInactivityTimeout;
+    }
+
+    /**
+     * Sets the size at which the active segment is closed and a new one started.  A chunk larger than this is stored
+     * in a segment of its own.
+     *
+     * @param segmentSize The size, in bytes, of a full segment.
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Sets the fraction of a segment that must be in use for the segment to be left alone.  Once the chunks still in
+     * use take up less than this fraction of a segment, the segment is compacted.
+     *
+     * @param compactionThreshold The fraction, between 0 and 1, of a segment below which it is compacted.
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        if (compactionThreshold < 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("The compaction threshold must be between 0 and 1");
+        }
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public long getStorageQuota() {
+        return this.storageQuota;
+    }
+
+    /**
+     * Returns the amount of unused storage available from the chunk storage.  This amount is the storage quota minus
+     * the total size of the chunks currently stored in it minus the total space remaining in the active reservations.
+     *
+     * @return The number of bytes of unused storage available from the chunk storage.
+     */
+    @Override
+    public long getAvailableStorage() {
+        return this.storageQuota - storageUsed.get() - reservations.getReservedSpace();
+    }
+
+    /**
+     * Returns the amount of storage currently used by the chunks in the Chunk Storage.
+     *
+     * @return The amount of storage, in bytes, currently used by chunk data.
+     */
+    public long getStorageUsed() {
+        return storageUsed.get();
+    }
+
+    /**
+     * Returns the number of segment files the chunks are stored in.
+     *
+     * @return The number of segment files.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+
+    // -------- Package Methods --------
+
+    /**
+     * Removes every chunk and segment from the Chunk Storage, and clears all of the reservations.
+     * <p>
+     * This method is only used for testing purposes.
+     */
+    synchronized void clearStorage() throws IOException {
+        synchronized (appendLock) {
+            segmentLock.writeLock().lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    segment.close();
+                    if (!segment.file.delete()) {
+                        throw new IOException("Unable to delete the segment " + segment.file);
+                    }
+                }
+                segments.clear();
+                chunkLocations.clear();
+                storageUsed.set(0);
+                evictionPolicy.clear();
+                reservations.clear();
+                activeSegment = openSegment(1);
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    // -------- Private Methods --------
+
+    private ChunkLocation getLocation(String chunkID) throws NoSuchChunkException {
+        ChunkLocation location = chunkLocations.get(chunkID);
+        if (location == null) {
+            throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
+        }
+        return location;
+    }
+
+    /**
+     * Marks a chunk's record as removed and forgets the chunk.  The caller must hold the storage's lock.
+     */
+    private boolean deleteChunk(String chunkID, ChunkLocation location) {
+        if (!writeState(location, RECORD_REMOVED)) {
+            return false;
+        }
+
+        chunkLocations.remove(chunkID);
+        location.segment.liveBytes.addAndGet(-location.length);
+        storageUsed.addAndGet(-location.length);
+        evictionPolicy.chunkRemoved(chunkID);
+
+        scheduleCompactionIfNeeded(location.segment);
+        return true;
+    }
+
+    private boolean writeState(ChunkLocation location, byte state) {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        buffer.put(state).flip();
+        try {
+            writeFully(location.segment.channel, buffer, location.recordOffset + STATE_OFFSET);
+            return true;
+        } catch (IOException e) {
+            _log.warn("Unable to update the chunk record in " + location.segment.file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Updates the reference count in a chunk's record.  The caller must hold the storage's lock.
+     */
+    private boolean writeReferenceCount(ChunkLocation location, int referenceCount) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(referenceCount).flip();
+        try {
+            writeFully(location.segment.channel, buffer, location.recordOffset + REFERENCE_COUNT_OFFSET);
+            location.referenceCount = referenceCount;
+            return true;
+        } catch (IOException e) {
+            _log.warn("Unable to update the chunk record in " + location.segment.file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Appends a record for a chunk to the active segment, starting a new segment first if the active one is full.  The
+     * record is only marked as in use once all of the chunk data has been written.
+     */
+    private ChunkLocation appendRecord(String chunkID, InputStream chunkStream, int referenceCount) throws IOException {
+        byte[] id = chunkID.getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xFFFF) {
+            throw new IOException("The chunk ID is too long to be stored");
+        }
+
+        synchronized (appendLock) {
+            Segment segment = activeSegment;
+            if (segment.size > 0 && segment.size >= segmentSize) {
+                segment = openSegment(segment.id + 1);
+                Segment previousSegment = activeSegment;
+                activeSegment = segment;
+                scheduleCompactionIfNeeded(previousSegment);
+            }
+
+            long recordOffset = segment.size;
+            ByteBuffer header = ByteBuffer.allocate(ID_OFFSET + id.length);
+            header.putInt(RECORD_MAGIC).put(RECORD_INCOMPLETE).putInt(referenceCount).putLong(-1).putShort((short) id.length).put(id);
+            header.flip();
+
+            try {
+                writeFully(segment.channel, header, recordOffset);
+
+                long dataOffset = recordOffset + header.capacity();
+                long length = 0;
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = chunkStream.read(buffer)) >= 0) {
+                    writeFully(segment.channel, ByteBuffer.wrap(buffer, 0, bytesRead), dataOffset + length);
+                    length += bytesRead;
+                }
+
+                ByteBuffer commit = ByteBuffer.allocate(ID_LENGTH_OFFSET - STATE_OFFSET);
+                commit.put(RECORD_LIVE).putInt(referenceCount).putLong(length).flip();
+                writeFully(segment.channel, commit, recordOffset + STATE_OFFSET);
+
+                segment.size = dataOffset + length;
+                return new ChunkLocation(segment, recordOffset, dataOffset, length, referenceCount);
+            } catch (IOException e) {
+                // Drop the partial record so that the next one is appended in its place.
+                segment.channel.truncate(recordOffset);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Compacts a segment once the chunks still in use take up less than the compaction threshold of it.  The active
+     * segment is never compacted.
+     */
+    private void scheduleCompactionIfNeeded(final Segment segment) {
+        if (segment == activeSegment || segment.liveBytes.get() > segment.size * compactionThreshold) {
+            return;
+        }
+
+        if (scheduledCompactions.add(segment.id)) {
+            try {
+                compactionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compact(segment);
+                        } catch (Exception e) {
+                            _log.warn("Unable to compact the chunk segment " + segment.file, e);
+                        } finally {
+                            scheduledCompactions.remove(segment.id);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The storage is shutting down.
+                scheduledCompactions.remove(segment.id);
+            }
+        }
+    }
+
+    /**
+     * Copies the chunks still in use in a segment to the end of the active segment, then deletes the segment.  Each
+     * chunk is moved while holding the storage's lock, so the chunks can be used while the segment is compacted.
+     */
+    private void compact(Segment segment) throws IOException {
+        long recordOffset = 0;
+        while (recordOffset < segment.size) {
+            RecordHeader header = readRecordHeader(segment, recordOffset);
+            if (header == null) {
+                break;
+            }
+
+            if (header.state == RECORD_LIVE) {
+                synchronized (this) {
+                    ChunkLocation location = chunkLocations.get(header.chunkID);
+                    if (location != null && location.segment == segment && location.recordOffset == recordOffset) {
+                        ByteBuffer data = ByteBuffer.allocate((int) location.length);
+                        readFully(segment.channel, data, location.dataOffset);
+                        ChunkLocation movedLocation = appendRecord(header.chunkID, new ByteArrayInputStream(data.array()), location.referenceCount);
+
+                        chunkLocations.put(header.chunkID, movedLocation);
+                        movedLocation.segment.liveBytes.addAndGet(movedLocation.length);
+                        segment.liveBytes.addAndGet(-location.length);
+                    }
+                }
+            }
+
+            recordOffset = header.dataOffset + header.length;
+        }
+
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.close();
+            if (!segment.file.delete()) {
+                _log.warn("Unable to delete the compacted chunk segment " + segment.file);
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        _log.debug("Compacted the chunk segment " + segment.file);
+    }
+
+    /**
+     * Opens the existing segments, oldest first, and rebuilds the chunk locations from their records.  Where a chunk
+     * has records in two segments, as happens if the storage stops part way through compacting a segment, the newer
+     * record is kept and the older one is marked as removed.
+     */
+    private void loadSegments() throws IOException {
+        File[] segmentFiles = chunkStorageDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+
+        List<Integer> segmentIDs = new ArrayList<>();
+        if (segmentFiles != null) {
+            for (File segmentFile : segmentFiles) {
+                String name = segmentFile.getName();
+                try {
+                    segmentIDs.add(Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    _log.warn("Ignoring unrecognized file " + segmentFile);
+                }
+            }
+        }
+        Collections.sort(segmentIDs);
+
+        for (int segmentID : segmentIDs) {
+            Segment segment = openSegment(segmentID);
+            loadRecords(segment);
+        }
+
+        if (segments.isEmpty()) {
+            activeSegment = openSegment(1);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+            for (Segment segment : segments.values()) {
+                scheduleCompactionIfNeeded(segment);
+            }
+        }
+    }
+
+    private void loadRecords(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        long recordOffset = 0;
+        while (recordOffset < fileSize) {
+            RecordHeader header = readRecordHeader(segment, recordOffset);
+            if (header == null || header.state == RECORD_INCOMPLETE || header.dataOffset + header.length > fileSize) {
+                _log.warn("Discarding an incomplete chunk record at " + recordOffset + " in " + segment.file);
+                segment.channel.truncate(recordOffset);
+                break;
+            }
+
+            if (header.state == RECORD_LIVE) {
+                ChunkLocation location = new ChunkLocation(segment, recordOffset, header.dataOffset, header.length, header.referenceCount);
+                ChunkLocation previousLocation = chunkLocations.put(header.chunkID, location);
+                if (previousLocation != null) {
+                    writeState(previousLocation, RECORD_REMOVED);
+                    previousLocation.segment.liveBytes.addAndGet(-previousLocation.length);
+                    storageUsed.addAndGet(-previousLocation.length);
+                    evictionPolicy.chunkRemoved(header.chunkID);
+                }
+                segment.liveBytes.addAndGet(header.length);
+                storageUsed.addAndGet(header.length);
+                evictionPolicy.chunkAdded(header.chunkID);
+            }
+
+            recordOffset = header.dataOffset + header.length;
+        }
+        segment.size = recordOffset;
+    }
+
+    /**
+     * Reads the header of the record at the given offset of a segment.
+     *
+     * @return The record header, or null if there isn't a complete record header at the offset.
+     */
+    private RecordHeader readRecordHeader(Segment segment, long recordOffset) throws IOException {
+        ByteBuffer fixedFields = ByteBuffer.allocate(ID_OFFSET);
+        try {
+            readFully(segment.channel, fixedFields, recordOffset);
+            fixedFields.flip();
+            if (fixedFields.getInt() != RECORD_MAGIC) {
+                return null;
+            }
+
+            RecordHeader header = new RecordHeader();
+            header.state = fixedFields.get();
+            header.referenceCount = fixedFields.getInt();
+            header.length = fixedFields.getLong();
+            int idLength = fixedFields.getShort() & 0xFFFF;
+
+            ByteBuffer id = ByteBuffer.allocate(idLength);
+            readFully(segment.channel, id, recordOffset + ID_OFFSET);
+            header.chunkID = new String(id.array(), StandardCharsets.UTF_8);
+            header.dataOffset = recordOffset + ID_OFFSET + idLength;
+
+            // An incomplete record doesn't know its length yet.
+            if (header.length < 0 && header.state != RECORD_INCOMPLETE) {
+                return null;
+            }
+            return header;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private Segment openSegment(int segmentID) throws IOException {
+        File file = new File(chunkStorageDirectory, String.format("%s%08d%s", SEGMENT_FILE_PREFIX, segmentID, SEGMENT_FILE_SUFFIX));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(segmentID, file, channel);
+        segment.size = channel.size();
+        segments.put(segmentID, segment);
+        return segment;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+            position += bytesRead;
+        }
+    }
+
+    // -------- Inner Classes --------
+
+    /**
+     * A segment file, and the amount of chunk data in it that is still in use.
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+
+        // The end of the last complete record.  Only changed while holding the append lock.
+        volatile long size;
+
+        Segment(int id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LogFactory.getLog(PackFileChunkStorage.class).warn("Unable to close the chunk segment " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Where a chunk's record is stored, and the chunk's reference count.
+     */
+    private static class ChunkLocation {
+        final Segment segment;
+        final long recordOffset;
+        final long dataOffset;
+        final long length;
+        int referenceCount;
+
+        ChunkLocation(Segment segment, long recordOffset, long dataOffset, long length, int referenceCount) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.referenceCount = referenceCount;
+        }
+    }
+
+    private static class RecordHeader {
+        String chunkID;
+        byte state;
+        int referenceCount;
+        long dataOffset;
+        long length;
+    }
+
+    /**
+     * A read only channel on the part of a segment file holding a chunk's data.
+     */
+    private static class ChunkDataChannel implements SeekableByteChannel {
+        private final FileChannel channel;
+        private final long start;
+        private final long length;
+        private long position;
+
+        ChunkDataChannel(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            long remaining = length - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int bytesRead;
+            if (dst.remaining() > remaining) {
+                ByteBuffer window = dst.duplicate();
+                window.limit(window.position() + (int) remaining);
+                bytesRead = channel.read(window, start + position);
+                dst.position(window.position());
+            } else {
+                bytesRead = channel.read(dst, start + position);
+            }
+            if (bytesRead > 0) {
+                position += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("The position cannot be negative");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.intf.ChunkInfoManager;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Chunk Info Manager that keeps chunks from being purged while they are pinned.  Chunks are pinned on behalf of a
+ * workspace or a file version, and a chunk can be purged once nothing pins it.  Each owner pins a chunk at most once,
+ * so a chunk's pin count is the number of workspaces and file versions pinning it.
+ * <p>
+ * The pin count of every pinned chunk is kept in a hash map, so canPurgeChunk() is a single lookup however many chunks
+ * are pinned, and doesn't wait for pins being changed.  The pins are kept durable in the same way as the chunk index:
+ * a snapshot file and an append-only journal of the pins and unpins made since the snapshot was written.  Every journal
+ * record is idempotent, so replaying records already part of the snapshot leaves the pins unchanged.  The journal is
+ * flushed and forced to disk once for each pin or unpin call, so pinning many chunks at once costs a single sync.
+ */
+public class PersistentChunkInfoManager implements ChunkInfoManager {
+
+    public static final String PIN_FILE_PREFIX = "chunk-pins";
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 100000;
+
+    private static final String SNAPSHOT_FILE_NAME = PIN_FILE_PREFIX;
+    private static final String JOURNAL_FILE_NAME = PIN_FILE_PREFIX + ".journal";
+
+    private static final int SNAPSHOT_MAGIC = 0x50494e53;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte PIN_RECORD = 1;
+    private static final byte UNPIN_RECORD = 2;
+    private static final byte UNPIN_OWNER_RECORD = 3;
+
+    private static final String WORKSPACE_OWNER_PREFIX = "workspace:";
+    private static final String FILE_VERSION_OWNER_PREFIX = "version:";
+
+    private final Log _log = LogFactory.getLog(this.getClass());
+
+    private File pinDirectory;
+    private File snapshotFile;
+    private File journalFile;
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+    // The chunks pinned by each owner.  Only used while holding the manager's lock.
+    private final Map<String, Set<String>> pinsByOwner = new HashMap<>();
+
+    // The number of owners pinning each pinned chunk.  Changed while holding the manager's lock, but read without it.
+    private final Map<String, Integer> pinCounts = new ConcurrentHashMap<>();
+
+    private DataOutputStream journal;
+    private FileChannel journalChannel;
+    private int journalRecords;
+    private int forcedJournalRecords;
+
+    @PostConstruct
+    public synchronized void init() {
+        _log.info("Initializing Persistent Chunk Info Manager");
+
+        if (!pinDirectory.exists() && !pinDirectory.mkdirs()) {
+            _log.fatal("Unable to create the Chunk Pin Directory");
+            throw new RuntimeException("Unable to create the chunk pin directory: " + pinDirectory);
+        }
+        snapshotFile = new File(pinDirectory, SNAPSHOT_FILE_NAME);
+        journalFile = new File(pinDirectory, JOURNAL_FILE_NAME);
+
+        clear();
+        try {
+            if (snapshotFile.exists()) {
+                readSnapshot();
+            }
+            replayJournal();
+        } catch (IOException e) {
+            _log.error("Unable to load the chunk pins", e);
+            throw new RuntimeException("Unable to load the chunk pins", e);
+        }
+
+        // Fold the journal into a new snapshot now rather than replaying it again on the next start.
+        snapshot();
+
+        _log.info("Initialized Persistent Chunk Info Manager with " + pinCounts.size() + " pinned chunks");
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (journal != null) {
+            snapshot();
+            closeJournal();
+        }
+    }
+
+    /**
+     * Checks whether a chunk can be purged.
+     *
+     * @param chunkID The ID of the chunk being checked.
+     *
+     * @return True if no workspace or file version pins the chunk.
+     */
+    @Override
+    public boolean canPurgeChunk(String chunkID) {
+        return !pinCounts.containsKey(chunkID);
+    }
+
+    /**
+     * Returns the number of workspaces and file versions pinning a chunk.
+     *
+     * @param chunkID The ID of the chunk.
+     *
+     * @return The number of owners pinning the chunk, or 0 if it isn't pinned.
+     */
+    public int getPinCount(String chunkID) {
+        Integer pinCount = pinCounts.get(chunkID);
+        return (pinCount != null ? pinCount : 0);
+    }
+
+    /**
+     * Returns the number of chunks that are pinned.
+     */
+    public int getPinnedChunkCount() {
+        return pinCounts.size();
+    }
+
+    /**
+     * Pins chunks on behalf of a workspace.
+     *
+     * @param workspaceGuid The workspace pinning the chunks.
+     * @param chunkIDs      The IDs of the chunks being pinned.
+     */
+    public void pinChunksForWorkspace(long workspaceGuid, Collection<String> chunkIDs) {
+        pinChunks(WORKSPACE_OWNER_PREFIX + workspaceGuid, chunkIDs);
+    }
+
+    /**
+     * Removes a workspace's pins from chunks.
+     *
+     * @param workspaceGuid The workspace whose pins are being removed.
+     * @param chunkIDs      The IDs of the chunks being unpinned.
+     */
+    public void unpinChunksForWorkspace(long workspaceGuid, Collection<String> chunkIDs) {
+        unpinChunks(WORKSPACE_OWNER_PREFIX + workspaceGuid, chunkIDs);
+    }
+
+    /**
+     * Removes all of a workspace's pins, such as when the workspace is left.
+     *
+     * @param workspaceGuid The workspace whose pins are being removed.
+     */
+    public void unpinWorkspace(long workspaceGuid) {
+        unpinOwner(WORKSPACE_OWNER_PREFIX + workspaceGuid);
+    }
+
+    /**
+     * Pins chunks on behalf of a file version.
+     *
+     * @param fileID    The ID of the file.
+     * @param versionID The ID of the version pinning the chunks.
+     * @param chunkIDs  The IDs of the chunks being pinned.
+     */
+    public void pinChunksForFileVersion(String fileID, String versionID, Collection<String> chunkIDs) {
+        pinChunks(fileVersionOwner(fileID, versionID), chunkIDs);
+    }
+
+    /**
+     * Removes a file version's pins from chunks.
+     *
+     * @param fileID    The ID of the file.
+     * @param versionID The ID of the version whose pins are being removed.
+     * @param chunkIDs  The IDs of the chunks being unpinned.
+     */
+    public void unpinChunksForFileVersion(String fileID, String versionID, Collection<String> chunkIDs) {
+        unpinChunks(fileVersionOwner(fileID, versionID), chunkIDs);
+    }
+
+    /**
+     * Removes all of a file version's pins, such as when the version is removed.
+     *
+     * @param fileID    The ID of the file.
+     * @param versionID The ID of the version whose pins are being removed.
+     */
+    public void unpinFileVersion(String fileID, String versionID) {
+        unpinOwner(fileVersionOwner(fileID, versionID));
+    }
+
+    public File getPinDirectory() {
+        return pinDirectory;
+    }
+
+    public void setPinDirectory(File pinDirectory) {
+        this.pinDirectory = pinDirectory;
+    }
+
+    /**
+     * Sets how many pins and unpins are written to the journal before a new snapshot of the pins is written.
+     *
+     * @param snapshotInterval The number of journal records between snapshots.
+     */
+    public synchronized void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    // -------- Private Methods --------
+
+    private static String fileVersionOwner(String fileID, String versionID) {
+        return FILE_VERSION_OWNER_PREFIX + fileID + "/" + versionID;
+    }
+
+    private synchronized void pinChunks(String owner, Collection<String> chunkIDs) {
+        try {
+            for (String chunkID : chunkIDs) {
+                if (applyPin(owner, chunkID) && journal != null) {
+                    journal.writeByte(PIN_RECORD);
+                    journal.writeUTF(owner);
+                    journal.writeUTF(chunkID);
+                    journalRecords++;
+                }
+            }
+            journaled();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private synchronized void unpinChunks(String owner, Collection<String> chunkIDs) {
+        try {
+            for (String chunkID : chunkIDs) {
+                if (applyUnpin(owner, chunkID) && journal != null) {
+                    journal.writeByte(UNPIN_RECORD);
+                    journal.writeUTF(owner);
+                    journal.writeUTF(chunkID);
+                    journalRecords++;
+                }
+            }
+            journaled();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private synchronized void unpinOwner(String owner) {
+        try {
+            if (applyUnpinOwner(owner) && journal != null) {
+                journal.writeByte(UNPIN_OWNER_RECORD);
+                journal.writeUTF(owner);
+                journalRecords++;
+            }
+            journaled();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    /**
+     * @return True if the owner didn't already pin the chunk.
+     */
+    private boolean applyPin(String owner, String chunkID) {
+        Set<String> pins = pinsByOwner.get(owner);
+        if (pins == null) {
+            pins = new HashSet<>();
+            pinsByOwner.put(owner, pins);
+        }
+        if (!pins.add(chunkID)) {
+            return false;
+        }
+        Integer pinCount = pinCounts.get(chunkID);
+        pinCounts.put(chunkID, (pinCount != null ? pinCount + 1 : 1));
+        return true;
+    }
+
+    /**
+     * @return True if the owner pinned the chunk.
+     */
+    private boolean applyUnpin(String owner, String chunkID) {
+        Set<String> pins = pinsByOwner.get(owner);
+        if (pins == null || !pins.remove(chunkID)) {
+            return false;
+        }
+        if (pins.isEmpty()) {
+            pinsByOwner.remove(owner);
+        }
+        releasePin(chunkID);
+        return true;
+    }
+
+    /**
+     * @return True if the owner pinned any chunks.
+     */
+    private boolean applyUnpinOwner(String owner) {
+        Set<String> pins = pinsByOwner.remove(owner);
+        if (pins == null) {
+            return false;
+        }
+        for (String chunkID : pins) {
+            releasePin(chunkID);
+        }
+        return true;
+    }
+
+    private void releasePin(String chunkID) {
+        Integer pinCount = pinCounts.get(chunkID);
+        if (pinCount == null || pinCount <= 1) {
+            pinCounts.remove(chunkID);
+        } else {
+            pinCounts.put(chunkID, pinCount - 1);
+        }
+    }
+
+    private void clear() {
+        closeJournal();
+        pinsByOwner.clear();
+        pinCounts.clear();
+        journalRecords = 0;
+    }
+
+    private void journaled() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        if (journalRecords >= snapshotInterval) {
+            snapshot();
+        } else if (journalRecords > forcedJournalRecords) {
+            journal.flush();
+            journalChannel.force(false);
+            forcedJournalRecords = journalRecords;
+        }
+    }
+
+    /**
+     * Stops journaling after a failed write.  The pins in memory are still right, and are written out in full by the
+     * next snapshot, which is attempted when the manager is shut down.
+     */
+    private void journalFailed(IOException e) {
+        _log.warn("Unable to write to the chunk pin journal", e);
+        closeJournal();
+    }
+
+    /**
+     * Writes a snapshot of the pins to a temporary file, which then replaces the previous snapshot, and starts a new
+     * journal.  The snapshot is forced to disk before it replaces the previous one, and the rename is forced before the
+     * journal is emptied.
+     */
+    private void snapshot() {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            FileOutputStream tempStream = new FileOutputStream(tempFile);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(tempStream))) {
+                output.writeInt(SNAPSHOT_MAGIC);
+                output.writeInt(SNAPSHOT_VERSION);
+                output.writeInt(pinsByOwner.size());
+                for (Map.Entry<String, Set<String>> ownerPins : pinsByOwner.entrySet()) {
+                    output.writeUTF(ownerPins.getKey());
+                    output.writeInt(ownerPins.getValue().size());
+                    for (String chunkID : ownerPins.getValue()) {
+                        output.writeUTF(chunkID);
+                    }
+                }
+                output.flush();
+                tempStream.getChannel().force(true);
+            }
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(pinDirectory.toPath());
+            openJournal();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unrecognized chunk pin snapshot");
+            }
+            int ownerCount = input.readInt();
+            for (int i = 0; i < ownerCount; i++) {
+                String owner = input.readUTF();
+                int pinCount = input.readInt();
+                for (int j = 0; j < pinCount; j++) {
+                    applyPin(owner, input.readUTF());
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the records in the journal to the pins.  A journal that ends part way through a record, as it may after a
+     * crash, is replayed up to the last complete record, and the rest is cut off.
+     */
+    private void replayJournal() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        long validLength = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+             DataInputStream input = new DataInputStream(counter)) {
+            boolean done = false;
+            while (!done) {
+                int recordType = input.read();
+                if (recordType < 0) {
+                    break;
+                }
+                try {
+                    String owner = input.readUTF();
+                    switch (recordType) {
+                        case PIN_RECORD:
+                            applyPin(owner, input.readUTF());
+                            break;
+                        case UNPIN_RECORD:
+                            applyUnpin(owner, input.readUTF());
+                            break;
+                        case UNPIN_OWNER_RECORD:
+                            applyUnpinOwner(owner);
+                            break;
+                        default:
+                            _log.warn("Ignoring the chunk pin journal from an unrecognized record at " + validLength);
+                            done = true;
+                            continue;
+                    }
+                    validLength = counter.getByteCount();
+                } catch (EOFException e) {
+                    _log.warn("Ignoring an incomplete record at the end of the chunk pin journal");
+                    done = true;
+                }
+            }
+        }
+
+        if (validLength < journalFile.length()) {
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    private void openJournal() throws IOException {
+        closeJournal();
+        FileOutputStream journalStream = new FileOutputStream(journalFile, false);
+        journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+        journalChannel = journalStream.getChannel();
+        journalRecords = 0;
+        forcedJournalRecords = 0;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                _log.warn("Unable to close the chunk pin journal", e);
+            }
+            journal = null;
+            journalChannel = null;
+        }
+    }
+
+    private void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms, such as Windows, can't open or force a directory.  The rename is as durable as the
+            // platform allows.
+            if (Files.isDirectory(directory)) {
+                _log.debug("Unable to sync the directory " + directory, e);
+            } else {
+                throw e;
+            }
+        }
+    }
+}
@@ -1,16 +1,11 @@
 package io.topiacoin.chunks.impl;
 
 import io.topiacoin.chunks.model.MessageID;
-import io.topiacoin.crypto.CryptoUtils;
-import io.topiacoin.crypto.CryptographicException;
-import io.topiacoin.crypto.HashUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
@@ -20,25 +15,37 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ProtocolConnectionState {
 	private static final Log _log = LogFactory.getLog(ProtocolConnectionState.class);
+	private static final int READ_BUFFER_SIZE = 16384;
 	private SocketChannel _channel;
-	private List<ByteBuffer> _writeBuffers = new ArrayList<>();
+	private final Queue<FrameSource> _writeSources = new ConcurrentLinkedQueue<>();
+	private ByteBuffer _currentFrame = null;
+	private final ByteBuffer _readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
 	private ByteBuffer _packetBuffer = null;
-	private List<MessageID> _messageIDs = new ArrayList<>();
-	private long _lastUseTime = System.currentTimeMillis();
-	private byte[] _theirPublicKey;
+	private final List<MessageID> _messageIDs = Collections.synchronizedList(new ArrayList<MessageID>());
+	private volatile long _lastUseTime = System.currentTimeMillis();
+	private volatile byte[] _theirPublicKey;
 	private byte[] _myPublicKey = new byte[0];
-	private SecretKey _messageKey;
+	private volatile SecretKey _messageKey;
+	private volatile int _reactorIndex = 0;
+	private final Map<MessageID, ChunkStreamAssembler> _chunkStreams = new ConcurrentHashMap<>();
+
+	//Work for this connection is handed to a shared pool, but must still run one task at a time, in arrival order.
+	private final Queue<Runnable> _pendingTasks = new ArrayDeque<>();
+	private boolean _taskScheduled = false;
 
 	public ProtocolConnectionState(SocketChannel channel, Selector selector) throws IOException {
 		_channel = channel;
@@ -47,16 +54,20 @@ public class ProtocolConnectionState {
 	}
 
 	public ProtocolConnectionState(SocketAddress address, MessageID messageID, byte[] theirPublicKey) throws IOException, InvalidKeySpecException, InvalidKeyException {
+		this(address, messageID, theirPublicKey, new SessionKeyCache());
+	}
+
+	/**
+	 * Opens a connection to a peer, using the current session with the peer if there is one, so that the message key
+	 * does not have to be agreed again.
+	 */
+	ProtocolConnectionState(SocketAddress address, MessageID messageID, byte[] theirPublicKey, SessionKeyCache sessions) throws IOException, InvalidKeySpecException, InvalidKeyException {
+		SessionKeyCache.Session session = sessions.getOutboundSession(theirPublicKey);
 		openConnection(address);
 		_messageIDs.add(messageID);
 		_theirPublicKey = theirPublicKey;
-		try {
-			KeyPair pair = CryptoUtils.generateECKeyPair();
-			_myPublicKey = pair.getPublic().getEncoded();
-			buildMessageKey(pair);
-		} catch (CryptographicException e) {
-			throw new RuntimeException("Failure", e);
-		}
+		_myPublicKey = session.getMyPublicKey();
+		_messageKey = session.getMessageKey();
 	}
 
 	private void openConnection(SocketAddress address) throws IOException {
@@ -76,15 +87,40 @@ public class ProtocolConnectionState {
 		return _messageKey;
 	}
 
-	public void addWriteBuffer(ByteBuffer data) {
+	public void addWriteBuffer(final ByteBuffer data) {
 		if (data.hasRemaining()) {
-			_writeBuffers.add(data);
-			_lastUseTime = System.currentTimeMillis();
+			addFrameSource(new FrameSource() {
+				private boolean _written = false;
+
+				@Override public boolean isReady() {
+					return true;
+				}
+
+				@Override public ByteBuffer nextFrame() {
+					if (_written) {
+						return null;
+					}
+					_written = true;
+					return data;
+				}
+
+				@Override public void close() {
+				}
+			});
 		}
 	}
 
+	/**
+	 * Queues a source of frames to be written to this connection. Frames are pulled from it only as the socket is able
+	 * to take them.
+	 */
+	void addFrameSource(FrameSource source) {
+		_writeSources.add(source);
+		_lastUseTime = System.currentTimeMillis();
+	}
+
 	public void registerForPendingWrites(Selector selector) throws ClosedChannelException {
-		if (!_writeBuffers.isEmpty()) {
+		if (hasFrameReady()) {
 			_channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
 			_lastUseTime = System.currentTimeMillis();
 		} else {
@@ -92,25 +128,80 @@ public class ProtocolConnectionState {
 		}
 	}
 
+	/**
+	 * Writes as many frames as the socket will take. If a frame cannot be produced or written, the IOException is
+	 * thrown and the connection should be dropped - the peer may already have part of a message, so nothing else can
+	 * be sent on it.
+	 */
 	public void write() throws IOException {
-		while (!_writeBuffers.isEmpty()) {
-			ByteBuffer wb = _writeBuffers.get(0);
-			if (wb.hasRemaining()) {
-				_channel.write(wb);
+		FrameSource source;
+		while ((source = _writeSources.peek()) != null) {
+			if (_currentFrame == null) {
+				if (!source.isReady()) {
+					//The source will wake the reactor once its next frame has been built.
+					break;
+				}
+				_currentFrame = source.nextFrame();
+				if (_currentFrame == null) {
+					_writeSources.poll();
+					source.close();
+					continue;
+				}
+			}
+			_channel.write(_currentFrame);
+			if (_currentFrame.hasRemaining()) {
 				break;
-			} else {
-				_writeBuffers.remove(0);
 			}
+			_currentFrame = null;
+			_lastUseTime = System.currentTimeMillis();
 		}
 	}
 
+	/**
+	 * Returns true if there is something that can be written to the socket right now. A source that is still
+	 * building its next frame doesn't count, so the socket isn't selected for writing until the frame is ready.
+	 */
+	private boolean hasFrameReady() {
+		if (_currentFrame != null) {
+			return true;
+		}
+		FrameSource source = _writeSources.peek();
+		return source != null && source.isReady();
+	}
+
+	/**
+	 * Closes the socket and releases anything still waiting to be written.
+	 */
+	public void close() {
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			//NOP
+		}
+		FrameSource source;
+		while ((source = _writeSources.poll()) != null) {
+			source.close();
+		}
+		_currentFrame = null;
+		_chunkStreams.clear();
+	}
+
+	/**
+	 * Returns the buffer that socket reads for this connection should be made into. Each connection has its own buffer
+	 * so that a partially received frame header is never mixed with data from another connection.
+	 */
+	public ByteBuffer getReadBuffer() {
+		return _readBuffer;
+	}
+
 	public ByteBuffer read(ByteBuffer readBuffer) {
 		//This is basically the way ByteBuffer.put(ByteBuffer) works, but without the ability to throw BufferOverflowExceptions
 		//I don't need a BufferOverflow - if there's more data to be read, the readBuffer will be compacted and the loop will go on
 		int n = Math.min(_packetBuffer.remaining(), readBuffer.remaining());
-		for (int i = 0; i < n; i++) {
-			_packetBuffer.put(readBuffer.get());
-		}
+		ByteBuffer toCopy = readBuffer.duplicate();
+		toCopy.limit(toCopy.position() + n);
+		_packetBuffer.put(toCopy);
+		readBuffer.position(readBuffer.position() + n);
 		if (_packetBuffer.hasRemaining()) {
 			return null;
 		} else {
@@ -128,34 +219,12 @@ public class ProtocolConnectionState {
 		return _packetBuffer != null;
 	}
 
-	public void buildMessageKey(KeyPair myKeyPair) throws InvalidKeyException {
-		try {
-			if (_theirPublicKey == null) {
-				throw new InvalidKeySpecException("Public Key Null");
-			}
-			PublicKey theirPubKey = CryptoUtils.getECPublicKeyFromEncodedBytes(_theirPublicKey);
-			byte[] sharedSecret = CryptoUtils.generateECDHSharedSecret(myKeyPair.getPrivate(), theirPubKey);
-			if (_log.isDebugEnabled()) {
-				_log.debug("My PubKey: " + DatatypeConverter.printHexBinary(myKeyPair.getPublic().getEncoded()));
-				_log.debug("Their PubKey: " + DatatypeConverter.printHexBinary(theirPubKey.getEncoded()));
-				_log.debug("Shared Secret: " + DatatypeConverter.printHexBinary(sharedSecret));
-			}
-			MessageDigest hash = MessageDigest.getInstance("SHA-256");
-			hash.update(sharedSecret);
-			// Simple deterministic ordering
-			List<ByteBuffer> keys = Arrays.asList(ByteBuffer.wrap(myKeyPair.getPublic().getEncoded()), ByteBuffer.wrap(theirPubKey.getEncoded()));
-			Collections.sort(keys);
-			hash.update(keys.get(0));
-			hash.update(keys.get(1));
-			HashUtils.sha256(sharedSecret, keys.get(0).array(), keys.get(1).array());
-			//We must now reduce the size of this keyData to 128 bits (16 bytes) due to U.S. Govt regulations regarding maximum Keylength.
-			byte[] derivedKeyData = Arrays.copyOf(hash.digest(), 16);
-			_messageKey = new SecretKeySpec(derivedKeyData, "AES");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("", e);
-		} catch (CryptographicException | InvalidKeySpecException e) {
-			throw new InvalidKeyException("Failed to build message key", e);
-		}
+	/**
+	 * Sets the message key for a request the peer sent, from the public key it sent with the request and our chunk
+	 * transfer key pair. The key is only agreed and derived if there is no current session for the peer's public key.
+	 */
+	public void buildMessageKey(KeyPair myKeyPair, SessionKeyCache sessions) throws InvalidKeyException {
+		_messageKey = sessions.getInboundKey(myKeyPair, _theirPublicKey);
 	}
 
 	public void requestReceived(MessageID messageID) {
@@ -179,7 +248,7 @@ public class ProtocolConnectionState {
 	}
 
 	public boolean hasWriteBuffers() {
-		return !_writeBuffers.isEmpty();
+		return !_writeSources.isEmpty();
 	}
 
 	public void removeMessageID(MessageID messageID) {
@@ -189,4 +258,84 @@ public class ProtocolConnectionState {
 	public void addMessageID(MessageID messageID) {
 		_messageIDs.add(messageID);
 	}
+
+	/**
+	 * Removes and returns the IDs of all messages still outstanding on this connection.
+	 */
+	List<MessageID> removeMessageIDs() {
+		synchronized (_messageIDs) {
+			List<MessageID> messageIDs = new ArrayList<>(_messageIDs);
+			_messageIDs.clear();
+			return messageIDs;
+		}
+	}
+
+	void startChunkStream(MessageID messageID, ChunkStreamAssembler assembler) {
+		_chunkStreams.put(messageID, assembler);
+	}
+
+	ChunkStreamAssembler getChunkStream(MessageID messageID) {
+		return _chunkStreams.get(messageID);
+	}
+
+	ChunkStreamAssembler removeChunkStream(MessageID messageID) {
+		return _chunkStreams.remove(messageID);
+	}
+
+	public int getReactorIndex() {
+		return _reactorIndex;
+	}
+
+	public void setReactorIndex(int reactorIndex) {
+		_reactorIndex = reactorIndex;
+	}
+
+	/**
+	 * Queues a task to be run on the given executor on behalf of this connection. Tasks queued for the same connection
+	 * run one at a time and in the order they were queued, no matter how many threads the executor has. This keeps the
+	 * requests and responses of a single connection in order while different connections are handled in parallel.
+	 *
+	 * @param task     The work to be done
+	 * @param executor The executor the work should be run on
+	 */
+	public void execute(Runnable task, Executor executor) {
+		synchronized (_pendingTasks) {
+			_pendingTasks.add(task);
+			if (_taskScheduled) {
+				return;
+			}
+			_taskScheduled = true;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override public void run() {
+					runPendingTasks();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			_log.warn("Dropping work for connection, the handler pool has been shut down");
+			synchronized (_pendingTasks) {
+				_pendingTasks.clear();
+				_taskScheduled = false;
+			}
+		}
+	}
+
+	private void runPendingTasks() {
+		while (true) {
+			Runnable task;
+			synchronized (_pendingTasks) {
+				task = _pendingTasks.poll();
+				if (task == null) {
+					_taskScheduled = false;
+					return;
+				}
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				_log.error("Unexpected error handling connection task", e);
+			}
+		}
+	}
 }
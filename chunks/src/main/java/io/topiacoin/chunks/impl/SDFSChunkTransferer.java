@@ -20,10 +20,15 @@ import io.topiacoin.chunks.model.ChunkRetrievalPlan;
 import io.topiacoin.chunks.model.MessageID;
 import io.topiacoin.chunks.model.protocol.ErrorProtocolResponse;
 import io.topiacoin.chunks.model.protocol.FetchChunkProtocolRequest;
+import io.topiacoin.chunks.model.protocol.FetchChunksProtocolRequest;
 import io.topiacoin.chunks.model.protocol.GiveChunkProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunkStreamProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunksProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunksStreamProtocolResponse;
 import io.topiacoin.chunks.model.protocol.HaveChunksProtocolResponse;
 import io.topiacoin.chunks.model.protocol.ProtocolMessage;
 import io.topiacoin.chunks.model.protocol.QueryChunksProtocolRequest;
+import io.topiacoin.chunks.model.protocol.StreamedProtocolResponse;
 import io.topiacoin.model.CurrentUser;
 import io.topiacoin.model.DataModel;
 import io.topiacoin.model.Member;
@@ -39,13 +44,17 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -62,7 +71,18 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 	}
 
 	public SDFSChunkTransferer(KeyPair chunkTransferPair, int defaultPort, int timeoutMs) throws IOException, FailedToStartCommsListenerException {
-		_comms = new TCPProtocolCommsService(defaultPort, chunkTransferPair);
+		this(chunkTransferPair, defaultPort, timeoutMs, TCPProtocolCommsService.DEFAULT_REACTOR_COUNT, TCPProtocolCommsService.DEFAULT_HANDLER_COUNT);
+	}
+
+	/**
+	 * @param chunkTransferPair The key pair used for agreeing message keys with peers
+	 * @param defaultPort       The port to listen on, or 0 to pick any free port
+	 * @param timeoutMs         How long to wait for a response before a request is considered timed out
+	 * @param reactorThreads    The number of threads performing socket I/O
+	 * @param handlerThreads    The number of threads decrypting messages and serving requests
+	 */
+	public SDFSChunkTransferer(KeyPair chunkTransferPair, int defaultPort, int timeoutMs, int reactorThreads, int handlerThreads) throws IOException, FailedToStartCommsListenerException {
+		_comms = new TCPProtocolCommsService(defaultPort, chunkTransferPair, reactorThreads, handlerThreads);
 		_comms.setHandler(new StandardProtocolCommsResponder());
 		_comms.setTimeout(timeoutMs, TimeUnit.MILLISECONDS);
 		_listenPort = _comms.startListener();
@@ -96,7 +116,8 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 		ProtocolCommsResponseHandler handler = new ProtocolCommsResponseHandler() {
 			boolean isExecuting = false;
 
-			@Override public void responseReceived(ProtocolMessage response, MessageID messageID) {
+			//Responses from different peers are delivered on different handler threads, so callbacks are serialized here.
+			@Override public synchronized void responseReceived(ProtocolMessage response, MessageID messageID) {
 				UserNode memNode = memberMessages.remove(messageID);
 				if (response instanceof HaveChunksProtocolResponse) {
 					HaveChunksProtocolResponse responseImpl = (HaveChunksProtocolResponse) response;
@@ -123,13 +144,13 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 				checkForCompletion();
 			}
 
-			@Override public void error(Throwable t, MessageID messageID) {
+			@Override public synchronized void error(Throwable t, MessageID messageID) {
 				memberMessages.remove(messageID);
 				_log.error("Error determining chunk locations", t);
 				checkForCompletion();
 			}
 
-			@Override public void error(String message, boolean shouldReply, MessageID messageID) {
+			@Override public synchronized void error(String message, boolean shouldReply, MessageID messageID) {
 				memberMessages.remove(messageID);
 				_log.warn("Error determining chunk locations: " + message);
 				checkForCompletion();
@@ -152,15 +173,17 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 			}
 		};
 		QueryChunksProtocolRequest request;
-		for (UserNode memberNode : memberNodes) {
-			try {
-				Member m = _model.getMemberInWorkspace(containerID, memberNode.getUserID());
-				request = new QueryChunksProtocolRequest(chunkIDs.toArray(new String[chunkIDs.size()]), me, m);
-				request.sign(me.getPrivateKey());
-				MessageID messageId = _comms.sendMessage(memberNode, request, handler);
-				memberMessages.put(messageId, memberNode);
-			} catch (InvalidKeyException | CommsListenerNotStartedException | InvalidMessageException | IOException | NoSuchMemberException | NoSuchWorkspaceException e) {
-				_log.error("", e);
+		synchronized (handler) {
+			for (UserNode memberNode : memberNodes) {
+				try {
+					Member m = _model.getMemberInWorkspace(containerID, memberNode.getUserID());
+					request = new QueryChunksProtocolRequest(chunkIDs.toArray(new String[chunkIDs.size()]), me, m);
+					request.sign(me.getPrivateKey());
+					MessageID messageId = _comms.sendMessage(memberNode, request, handler);
+					memberMessages.put(messageId, memberNode);
+				} catch (InvalidKeyException | CommsListenerNotStartedException | InvalidMessageException | IOException | NoSuchMemberException | NoSuchWorkspaceException e) {
+					_log.error("", e);
+				}
 			}
 		}
 	}
@@ -201,104 +224,169 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 
 	private void executeStrategy(ChunkRetrievalStrategy strategy, ChunksTransferHandler chunksHandler, Object state, CurrentUser me, long containerID) {
 		final ChunkRetrievalPlan plan = strategy.getPlan();
-		final Map<MessageID, String> chunkRequests = new HashMap<>();
+		final Map<MessageID, List<String>> chunkRequests = new HashMap<>();
 		ChunkRetrievalPlan.PlanTask task;
-		FetchChunkProtocolRequest request;
+		ProtocolMessage request;
 		ProtocolCommsResponseHandler handler = new ProtocolCommsResponseHandler() {
 			private void executeNextTask() {
 				ChunkRetrievalPlan.PlanTask task;
 				while ((task = plan.getNextTask()) != null) {
 					try {
 						Member targetMember = _model.getMemberInWorkspace(containerID, task.source.getUserID());
-						FetchChunkProtocolRequest request = new FetchChunkProtocolRequest(task.chunkID, me, targetMember);
+						ProtocolMessage request = buildFetchRequest(task, me, targetMember);
 						request.sign(me.getPrivateKey());
 						MessageID messageID = _comms.sendMessage(task.source, request, this);
-						chunkRequests.put(messageID, task.chunkID);
+						chunkRequests.put(messageID, task.chunkIDs);
 					} catch (InvalidKeyException | IOException | InvalidMessageException | CommsListenerNotStartedException | NoSuchWorkspaceException | NoSuchMemberException e) {
 						_log.warn("Failed to fetch chunk", e);
-						plan.markChunkAsFailed(task.chunkID);
+						markChunksAsFailed(task.chunkIDs);
 					}
 				}
-				if (plan.isComplete()) {
-					List<String> failedChunks = plan.getFailedChunks();
-					if (failedChunks.isEmpty()) {
-						chunksHandler.fetchedAllChunksSuccessfully(state);
-					} else {
-						for (String chunk : failedChunks) {
-							chunksHandler.failedToFetchChunk(chunk, "Nobody has this chunk", null, state);
-						}
-						chunksHandler.failedToFetchAllChunks(state);
+				notifyIfPlanComplete(plan, chunksHandler, state);
+			}
+
+			private void markChunksAsFailed(List<String> chunkIDs) {
+				if (chunkIDs != null) {
+					for (String chunkID : chunkIDs) {
+						plan.markChunkAsFailed(chunkID);
 					}
 				}
 			}
 
-			@Override public void responseReceived(ProtocolMessage response, MessageID messageID) {
-				String chunkID = chunkRequests.remove(messageID);
-				if (response instanceof GiveChunkProtocolResponse) {
-					GiveChunkProtocolResponse responseImpl = (GiveChunkProtocolResponse) response;
+			private boolean verifyResponse(ProtocolMessage response, String senderID) {
+				try {
+					User sender = _model.getUserByID(senderID);
+					if (response.verify(sender.getPublicKey())) {
+						return true;
+					}
+					_log.warn("Response from " + senderID + " had an invalid signature - ignoring message");
+				} catch (NoSuchUserException e) {
+					_log.warn("Received a chunk from an unknown user - ignoring message", e);
+				} catch (SignatureException e) {
+					_log.warn("Response from " + senderID + " had an malformed signature - ignoring message");
+				} catch (InvalidKeyException e) {
+					_log.error(
+							"Model info for " + senderID + " contains an invalid Public Key, cannot validate signature - ignoring message");
+				}
+				return false;
+			}
+
+			private void storeChunk(String chunkID, byte[] chunkData) {
+				try {
 					try {
-						User sender = _model.getUserByID(responseImpl.getUserID());
-						if (responseImpl.verify(sender.getPublicKey())) {
-							plan.markChunkAsFetched(chunkID);
-							try {
-								_chunkStorage.addChunk(chunkID, new ByteArrayInputStream(responseImpl.getChunkData()), null, true);
-							} catch (DuplicateChunkException e) {
-								//Ok, whatever
+						_chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, true);
+					} catch (DuplicateChunkException e) {
+						//Ok, whatever
+					}
+					plan.markChunkAsFetched(chunkID, chunkData.length);
+					chunksHandler.didFetchChunk(chunkID, strategy, state);
+				} catch (InsufficientSpaceException | IOException | InvalidReservationException e) {
+					_log.error("Failed to store chunk", e);
+					plan.markChunkAsFailed(chunkID);
+				}
+			}
+
+			@Override public synchronized void responseReceived(ProtocolMessage response, MessageID messageID) {
+				List<String> chunkIDs = chunkRequests.remove(messageID);
+				if (chunkIDs == null) {
+					chunkIDs = Collections.emptyList();
+				}
+				if (response instanceof GiveChunkProtocolResponse && chunkIDs.size() == 1) {
+					GiveChunkProtocolResponse responseImpl = (GiveChunkProtocolResponse) response;
+					String chunkID = chunkIDs.get(0);
+					if (!chunkID.equals(responseImpl.getChunkID())) {
+						_log.warn(responseImpl.getUserID() + " sent chunk " + responseImpl.getChunkID() + " when " + chunkID + " was requested - ignoring message");
+						plan.markChunkAsFailed(chunkID);
+					} else if (verifyResponse(responseImpl, responseImpl.getUserID())) {
+						storeChunk(chunkID, responseImpl.getChunkData());
+					} else {
+						markChunksAsFailed(chunkIDs);
+					}
+				} else if (response instanceof GiveChunksProtocolResponse) {
+					GiveChunksProtocolResponse responseImpl = (GiveChunksProtocolResponse) response;
+					if (verifyResponse(responseImpl, responseImpl.getUserID())) {
+						for (String chunkID : chunkIDs) {
+							byte[] chunkData = responseImpl.getChunkData(chunkID);
+							if (chunkData != null) {
+								storeChunk(chunkID, chunkData);
+							} else {
+								_log.debug(responseImpl.getUserID() + " could not provide chunk " + chunkID + " (status " + responseImpl.getChunkStatus(chunkID) + ")");
+								plan.markChunkAsFailed(chunkID);
 							}
-							chunksHandler.didFetchChunk(chunkID, strategy, state);
-						} else {
-							_log.warn("Response from " + responseImpl.getUserID() + " had an invalid signature - ignoring message");
 						}
-					} catch (InsufficientSpaceException | IOException | InvalidReservationException e) {
-						_log.error("Failed to store chunk", e);
-						plan.markChunkAsFailed(chunkID);
-					} catch (NoSuchUserException e) {
-						_log.warn("Received a chunk from an unknown user - ignoring message", e);
-						plan.markChunkAsFailed(chunkID);
-					} catch (SignatureException e) {
-						_log.warn("Response from " + responseImpl.getUserID() + " had an malformed signature - ignoring message");
-						plan.markChunkAsFailed(chunkID);
-					} catch (InvalidKeyException e) {
-						_log.error(
-								"Model info for " + responseImpl.getUserID() + " contains an invalid Public Key, cannot validate signature - ignoring message");
-						plan.markChunkAsFailed(chunkID);
+					} else {
+						markChunksAsFailed(chunkIDs);
 					}
 				} else {
-					plan.markChunkAsFailed(chunkID);
+					markChunksAsFailed(chunkIDs);
 				}
 				executeNextTask();
 			}
 
-			@Override public void error(Throwable t, MessageID messageID) {
+			@Override public synchronized void error(Throwable t, MessageID messageID) {
 				_log.error("Failed to fetch chunk", t);
-				plan.markChunkAsFailed(chunkRequests.remove(messageID));
+				markChunksAsFailed(chunkRequests.remove(messageID));
 				executeNextTask();
 			}
 
-			@Override public void error(String message, boolean shouldReply, MessageID messageID) {
+			@Override public synchronized void error(String message, boolean shouldReply, MessageID messageID) {
 				_log.warn("Failed to fetch chunk: " + message);
-				plan.markChunkAsFailed(chunkRequests.remove(messageID));
+				markChunksAsFailed(chunkRequests.remove(messageID));
 				executeNextTask();
 			}
 		};
-		while ((task = plan.getNextTask()) != null) {
-			try {
-				Member targetMember = _model.getMemberInWorkspace(containerID, task.source.getUserID());
-				request = new FetchChunkProtocolRequest(task.chunkID, me, targetMember);
-				request.sign(me.getPrivateKey());
-				MessageID messageID = _comms.sendMessage(task.source, request, handler);
-				chunkRequests.put(messageID, task.chunkID);
-			} catch (InvalidKeyException | IOException | InvalidMessageException | CommsListenerNotStartedException | NoSuchWorkspaceException | NoSuchMemberException e) {
-				_log.warn("Failed to fetch chunk", e);
-				plan.markChunkAsFailed(task.chunkID);
+		synchronized (handler) {
+			while ((task = plan.getNextTask()) != null) {
+				try {
+					Member targetMember = _model.getMemberInWorkspace(containerID, task.source.getUserID());
+					request = buildFetchRequest(task, me, targetMember);
+					request.sign(me.getPrivateKey());
+					MessageID messageID = _comms.sendMessage(task.source, request, handler);
+					chunkRequests.put(messageID, task.chunkIDs);
+				} catch (InvalidKeyException | IOException | InvalidMessageException | CommsListenerNotStartedException | NoSuchWorkspaceException | NoSuchMemberException e) {
+					_log.warn("Failed to fetch chunk", e);
+					for (String chunkID : task.chunkIDs) {
+						plan.markChunkAsFailed(chunkID);
+					}
+				}
+			}
+			//If every request failed to go out, no response will ever arrive to finish the plan for us.
+			if (chunkRequests.isEmpty()) {
+				notifyIfPlanComplete(plan, chunksHandler, state);
+			}
+		}
+	}
+
+	/**
+	 * Asks for a single chunk with a REQUEST_CHUNK, or for several chunks held by the same source with one
+	 * REQUEST_CHUNKS.
+	 */
+	private ProtocolMessage buildFetchRequest(ChunkRetrievalPlan.PlanTask task, CurrentUser me, Member targetMember) {
+		if (task.chunkIDs.size() == 1) {
+			return new FetchChunkProtocolRequest(task.chunkID, me, targetMember);
+		} else {
+			return new FetchChunksProtocolRequest(task.chunkIDs.toArray(new String[task.chunkIDs.size()]), me, targetMember);
+		}
+	}
+
+	private void notifyIfPlanComplete(ChunkRetrievalPlan plan, ChunksTransferHandler chunksHandler, Object state) {
+		if (plan.isComplete()) {
+			List<String> failedChunks = plan.getFailedChunks();
+			if (failedChunks.isEmpty()) {
+				chunksHandler.fetchedAllChunksSuccessfully(state);
+			} else {
+				for (String chunk : failedChunks) {
+					chunksHandler.failedToFetchChunk(chunk, "Nobody has this chunk", null, state);
+				}
+				chunksHandler.failedToFetchAllChunks(state);
 			}
 		}
 	}
 
 	private class StandardProtocolCommsResponder implements ProtocolCommsHandler {
 		@Override public void requestReceived(ProtocolMessage request, MessageID messageID) {
+			ProtocolMessage response = null;
 			try {
-				ProtocolMessage response;
 				CurrentUser me = _model.getCurrentUser();
 				if (request instanceof FetchChunkProtocolRequest) {
 					FetchChunkProtocolRequest requestImpl = (FetchChunkProtocolRequest) request;
@@ -316,8 +404,8 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 						if (requestorCanHaveChunk(requestImpl.getUserID(), requestImpl.getAuthToken(), requestImpl.getChunkID())) {
 							if (_chunkStorage.hasChunk(requestImpl.getChunkID())) {
 								try {
-									byte[] data = _chunkStorage.getChunkData(requestImpl.getChunkID());
-									response = new GiveChunkProtocolResponse(requestImpl.getChunkID(), data, me.getUserID());
+									SeekableByteChannel data = _chunkStorage.getChunkDataChannel(requestImpl.getChunkID());
+									response = new GiveChunkStreamProtocolResponse(requestImpl.getChunkID(), data, data.size(), me.getUserID());
 								} catch (NoSuchChunkException | IOException e) {
 									_log.error("Unexpected internal issue", e);
 									response = new ErrorProtocolResponse("I don't have that chunk", me.getUserID());
@@ -331,6 +419,44 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 					} else {
 						response = new ErrorProtocolResponse("That's an invalid signature", me.getUserID());
 					}
+				} else if (request instanceof FetchChunksProtocolRequest) {
+					FetchChunksProtocolRequest requestImpl = (FetchChunksProtocolRequest) request;
+					User sender = _model.getUserByID(requestImpl.getUserID());
+					boolean sigIsValid = false;
+					try {
+						sigIsValid = request.verify(sender.getPublicKey());
+					} catch (SignatureException e) {
+						_log.warn("Request from " + requestImpl.getUserID() + " had an malformed signature - ignoring message");
+					} catch (InvalidKeyException e) {
+						_log.error(
+								"Model info for " + requestImpl.getUserID() + " contains an invalid Public Key, cannot validate signature - ignoring message");
+					}
+					if (sigIsValid) {
+						List<String> requestedChunks = Arrays.asList(requestImpl.getChunkIDs());
+						Set<String> allowedChunks = new HashSet<>(chunksRequestorCanHave(requestImpl.getUserID(), requestImpl.getAuthToken(), requestedChunks));
+						if (!allowedChunks.isEmpty()) {
+							GiveChunksStreamProtocolResponse chunksResponse = new GiveChunksStreamProtocolResponse(me.getUserID());
+							response = chunksResponse;
+							for (String chunkID : requestedChunks) {
+								//Chunks the requestor may not have are reported the same way as chunks I don't have
+								if (allowedChunks.contains(chunkID) && _chunkStorage.hasChunk(chunkID)) {
+									try {
+										SeekableByteChannel data = _chunkStorage.getChunkDataChannel(chunkID);
+										chunksResponse.addChunk(chunkID, data, data.size());
+									} catch (NoSuchChunkException | IOException e) {
+										_log.error("Unexpected internal issue", e);
+										chunksResponse.addMissingChunk(chunkID, GiveChunksProtocolResponse.STATUS_ERROR);
+									}
+								} else {
+									chunksResponse.addMissingChunk(chunkID, GiveChunksProtocolResponse.STATUS_NO_SUCH_CHUNK);
+								}
+							}
+						} else {
+							response = new ErrorProtocolResponse("That's not my auth token", me.getUserID());
+						}
+					} else {
+						response = new ErrorProtocolResponse("That's an invalid signature", me.getUserID());
+					}
 				} else if (request instanceof QueryChunksProtocolRequest) {
 					QueryChunksProtocolRequest requestImpl = (QueryChunksProtocolRequest) request;
 					User sender = _model.getUserByID(requestImpl.getUserID());
@@ -369,10 +495,19 @@ public class SDFSChunkTransferer implements ChunkTransferer {
 				_log.warn("Cannot respond to messages if I'm not logged in");
 			} catch (CommsListenerNotStartedException | InvalidMessageException e) {
 				_log.error("Internal Error", e);
+				closeUnsentResponse(response);
 			} catch (InvalidMessageIDException e) {
 				_log.warn("Could not reply to request because I don't have a MessageID for it");
+				closeUnsentResponse(response);
 			} catch (InvalidKeyException e) {
 				_log.error("Could not sign a message with my private key. That's very bad");
+				closeUnsentResponse(response);
+			}
+		}
+
+		private void closeUnsentResponse(ProtocolMessage response) {
+			if (response instanceof StreamedProtocolResponse) {
+				((StreamedProtocolResponse) response).close();
 			}
 		}
 
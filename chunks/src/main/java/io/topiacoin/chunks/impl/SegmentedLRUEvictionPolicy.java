@@ -0,0 +1,112 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.intf.EvictionPolicy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A frequency aware eviction policy.  Newly added chunks start out in a probationary segment, and are promoted to a
+ * protected segment when they are accessed again.  Chunks are evicted from the probationary segment first, so a burst
+ * of chunks that are only used once, such as from a single large upload, can't flush out the chunks that are used
+ * repeatedly.  The protected segment is limited to a fraction of the chunks, and the least recently used chunks that
+ * don't fit are demoted back to the probationary segment.
+ * <p>
+ * Both segments are kept in least recently used order, so every notification and the selection of each candidate take
+ * constant time.
+ */
+public class SegmentedLRUEvictionPolicy implements EvictionPolicy {
+
+    public static final double DEFAULT_PROTECTED_FRACTION = 0.8;
+
+    private final double protectedFraction;
+
+    private final LinkedHashMap<String, Boolean> probationChunks = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> protectedChunks = new LinkedHashMap<>(16, 0.75f, true);
+
+    public SegmentedLRUEvictionPolicy() {
+        this(DEFAULT_PROTECTED_FRACTION);
+    }
+
+    /**
+     * Creates a Segmented LRU Eviction Policy.
+     *
+     * @param protectedFraction The largest fraction of the chunks that may be held in the protected segment.
+     */
+    public SegmentedLRUEvictionPolicy(double protectedFraction) {
+        if (protectedFraction < 0 || protectedFraction > 1) {
+            throw new IllegalArgumentException("The protected fraction must be between 0 and 1");
+        }
+        this.protectedFraction = protectedFraction;
+    }
+
+    @Override
+    public synchronized void chunkAdded(String chunkID) {
+        protectedChunks.remove(chunkID);
+        probationChunks.remove(chunkID);
+        probationChunks.put(chunkID, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void chunkAccessed(String chunkID) {
+        if (protectedChunks.get(chunkID) != null) {
+            return;
+        }
+        if (probationChunks.remove(chunkID) == null) {
+            return;
+        }
+
+        protectedChunks.put(chunkID, Boolean.TRUE);
+
+        // Demote the least recently used protected chunks that no longer fit in the protected segment.
+        long maxProtected = (long) (protectedFraction * size());
+        Iterator<String> iterator = protectedChunks.keySet().iterator();
+        while (protectedChunks.size() > maxProtected && iterator.hasNext()) {
+            String demotedChunkID = iterator.next();
+            iterator.remove();
+            probationChunks.put(demotedChunkID, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public synchronized void chunkRemoved(String chunkID) {
+        if (probationChunks.remove(chunkID) == null) {
+            protectedChunks.remove(chunkID);
+        }
+    }
+
+    @Override
+    public synchronized void chunkRetained(String chunkID) {
+        if (probationChunks.get(chunkID) == null) {
+            protectedChunks.get(chunkID);
+        }
+    }
+
+    @Override
+    public synchronized List<String> getEvictionCandidates(int maxCandidates) {
+        List<String> candidates = new ArrayList<>(Math.min(maxCandidates, size()));
+        addCandidates(probationChunks, candidates, maxCandidates);
+        addCandidates(protectedChunks, candidates, maxCandidates);
+        return candidates;
+    }
+
+    @Override
+    public synchronized int size() {
+        return probationChunks.size() + protectedChunks.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        probationChunks.clear();
+        protectedChunks.clear();
+    }
+
+    private void addCandidates(LinkedHashMap<String, Boolean> segment, List<String> candidates, int maxCandidates) {
+        Iterator<String> iterator = segment.keySet().iterator();
+        while (iterator.hasNext() && candidates.size() < maxCandidates) {
+            candidates.add(iterator.next());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.CryptographicException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the message keys agreed with chunk peers, so that repeat connections to the same peer skip the key pair
+ * generation, ECDH key agreement and key derivation.
+ *
+ * Outbound sessions are keyed by the peer's chunk transfer public key. The first connection to a peer generates a key
+ * pair for the session, and every later connection to that peer reuses the key pair and the message key derived from
+ * it. Inbound sessions are keyed by the public key the peer sent with its request, and hold the message key derived
+ * from it and our own chunk transfer key pair.
+ *
+ * A session expires a fixed time after it was created, whether or not it is still being used. A connection keeps the
+ * key it was opened with, but the next connection to the peer after the session expires starts a new session with a
+ * freshly generated key pair. The least recently used sessions are dropped once the cache is full.
+ */
+class SessionKeyCache {
+	private static final Log _log = LogFactory.getLog(SessionKeyCache.class);
+	static final long DEFAULT_SESSION_LIFETIME = 10 * 60 * 1000;
+	static final int DEFAULT_MAX_SESSIONS = 1024;
+
+	private final long _sessionLifetime;
+	private final Map<ByteBuffer, Session> _outboundSessions;
+	private final Map<ByteBuffer, Session> _inboundSessions;
+
+	SessionKeyCache() {
+		this(DEFAULT_SESSION_LIFETIME, DEFAULT_MAX_SESSIONS);
+	}
+
+	/**
+	 * @param sessionLifetime The number of milliseconds a session may be used for after it was created
+	 * @param maxSessions     The most outbound, and the most inbound, sessions that are kept
+	 */
+	SessionKeyCache(long sessionLifetime, int maxSessions) {
+		_sessionLifetime = sessionLifetime;
+		_outboundSessions = createSessionMap(maxSessions);
+		_inboundSessions = createSessionMap(maxSessions);
+	}
+
+	/**
+	 * Returns the session for connections to the peer with the given chunk transfer public key, starting a new one if
+	 * there isn't a current session with the peer.
+	 *
+	 * @throws InvalidKeyException if the peer's public key cannot be used for key agreement
+	 */
+	Session getOutboundSession(byte[] theirPublicKey) throws InvalidKeyException {
+		if (theirPublicKey == null) {
+			throw new InvalidKeyException("Public Key Null");
+		}
+		ByteBuffer key = ByteBuffer.wrap(theirPublicKey.clone());
+		Session session = getCurrentSession(_outboundSessions, key);
+		if (session == null) {
+			KeyPair myKeyPair;
+			try {
+				myKeyPair = CryptoUtils.generateECKeyPair();
+			} catch (CryptographicException e) {
+				throw new RuntimeException("Failure", e);
+			}
+			session = new Session(myKeyPair, deriveMessageKey(myKeyPair, theirPublicKey), System.currentTimeMillis() + _sessionLifetime);
+			putSession(_outboundSessions, key, session);
+		}
+		return session;
+	}
+
+	/**
+	 * Returns the message key for a request from a peer that sent the given public key, deriving it if there isn't a
+	 * current session for that key.
+	 *
+	 * @param myKeyPair      Our chunk transfer key pair
+	 * @param theirPublicKey The public key the peer sent with its request
+	 * @throws InvalidKeyException if the peer's public key cannot be used for key agreement
+	 */
+	SecretKey getInboundKey(KeyPair myKeyPair, byte[] theirPublicKey) throws InvalidKeyException {
+		if (theirPublicKey == null) {
+			throw new InvalidKeyException("Public Key Null");
+		}
+		ByteBuffer key = ByteBuffer.wrap(theirPublicKey.clone());
+		Session session = getCurrentSession(_inboundSessions, key);
+		if (session == null || session.myKeyPair != myKeyPair) {
+			session = new Session(myKeyPair, deriveMessageKey(myKeyPair, theirPublicKey), System.currentTimeMillis() + _sessionLifetime);
+			putSession(_inboundSessions, key, session);
+		}
+		return session.messageKey;
+	}
+
+	/**
+	 * Agrees a shared secret with the peer and derives the message key from it and both public keys.
+	 */
+	static SecretKey deriveMessageKey(KeyPair myKeyPair, byte[] theirPublicKey) throws InvalidKeyException {
+		try {
+			PublicKey theirPubKey = CryptoUtils.getECPublicKeyFromEncodedBytes(theirPublicKey);
+			byte[] sharedSecret = CryptoUtils.generateECDHSharedSecret(myKeyPair.getPrivate(), theirPubKey);
+			if (_log.isDebugEnabled()) {
+				_log.debug("My PubKey: " + DatatypeConverter.printHexBinary(myKeyPair.getPublic().getEncoded()));
+				_log.debug("Their PubKey: " + DatatypeConverter.printHexBinary(theirPubKey.getEncoded()));
+				_log.debug("Shared Secret: " + DatatypeConverter.printHexBinary(sharedSecret));
+			}
+			MessageDigest hash = MessageDigest.getInstance("SHA-256");
+			hash.update(sharedSecret);
+			// Simple deterministic ordering
+			List<ByteBuffer> keys = Arrays.asList(ByteBuffer.wrap(myKeyPair.getPublic().getEncoded()), ByteBuffer.wrap(theirPubKey.getEncoded()));
+			Collections.sort(keys);
+			hash.update(keys.get(0));
+			hash.update(keys.get(1));
+			//We must now reduce the size of this keyData to 128 bits (16 bytes) due to U.S. Govt regulations regarding maximum Keylength.
+			byte[] derivedKeyData = Arrays.copyOf(hash.digest(), 16);
+			return new SecretKeySpec(derivedKeyData, "AES");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("", e);
+		} catch (CryptographicException e) {
+			throw new InvalidKeyException("Failed to build message key", e);
+		}
+	}
+
+	private Session getCurrentSession(Map<ByteBuffer, Session> sessions, ByteBuffer key) {
+		synchronized (sessions) {
+			Session session = sessions.get(key);
+			if (session != null && session.expiresAt <= System.currentTimeMillis()) {
+				sessions.remove(key);
+				session = null;
+			}
+			return session;
+		}
+	}
+
+	private void putSession(Map<ByteBuffer, Session> sessions, ByteBuffer key, Session session) {
+		synchronized (sessions) {
+			sessions.put(key, session);
+		}
+	}
+
+	private static Map<ByteBuffer, Session> createSessionMap(final int maxSessions) {
+		return new LinkedHashMap<ByteBuffer, Session>(16, 0.75f, true) {
+			@Override protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Session> eldest) {
+				return size() > maxSessions;
+			}
+		};
+	}
+
+	static class Session {
+		private final KeyPair myKeyPair;
+		private final SecretKey messageKey;
+		private final long expiresAt;
+
+		Session(KeyPair myKeyPair, SecretKey messageKey, long expiresAt) {
+			this.myKeyPair = myKeyPair;
+			this.messageKey = messageKey;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * Returns the encoded public key we send to the peer with each request.
+		 */
+		byte[] getMyPublicKey() {
+			return myKeyPair.getPublic().getEncoded();
+		}
+
+		SecretKey getMessageKey() {
+			return messageKey;
+		}
+	}
+}
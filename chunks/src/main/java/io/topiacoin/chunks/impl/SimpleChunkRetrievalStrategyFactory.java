@@ -3,11 +3,42 @@ package io.topiacoin.chunks.impl;
 import io.topiacoin.chunks.impl.retrievalStrategies.SimpleChunkRetrievalStrategy;
 import io.topiacoin.chunks.intf.ChunkRetrievalStrategy;
 import io.topiacoin.chunks.intf.ChunkRetrievalStrategyFactory;
+import io.topiacoin.chunks.model.ChunkRetrievalPlan;
 
 import java.util.List;
 
 public class SimpleChunkRetrievalStrategyFactory implements ChunkRetrievalStrategyFactory {
+	private int _maxRequestsPerSource = ChunkRetrievalPlan.DEFAULT_MAX_REQUESTS_PER_SOURCE;
+	private int _maxChunksPerRequest = ChunkRetrievalPlan.DEFAULT_MAX_CHUNKS_PER_REQUEST;
+	private boolean _adaptiveWindow = true;
+
 	@Override public ChunkRetrievalStrategy createStrategy(List<String> chunkIDs) {
-		return new SimpleChunkRetrievalStrategy(chunkIDs);
+		SimpleChunkRetrievalStrategy strategy = new SimpleChunkRetrievalStrategy(chunkIDs);
+		strategy.getPlan().setMaxRequestsPerSource(_maxRequestsPerSource);
+		strategy.getPlan().setMaxChunksPerRequest(_maxChunksPerRequest);
+		strategy.getPlan().setAdaptiveWindow(_adaptiveWindow);
+		return strategy;
+	}
+
+	/**
+	 * Sets the most chunk requests the plans created by this factory may have in flight to a single source at once.
+	 */
+	public void setMaxRequestsPerSource(int maxRequestsPerSource) {
+		_maxRequestsPerSource = maxRequestsPerSource;
+	}
+
+	/**
+	 * Sets the most chunks the plans created by this factory may ask of a source in a single request.
+	 */
+	public void setMaxChunksPerRequest(int maxChunksPerRequest) {
+		_maxChunksPerRequest = maxChunksPerRequest;
+	}
+
+	/**
+	 * Sets whether the plans created by this factory size each source's window from its measured bandwidth-delay
+	 * product, rather than always allowing the maximum number of requests.
+	 */
+	public void setAdaptiveWindow(boolean adaptiveWindow) {
+		_adaptiveWindow = adaptiveWindow;
 	}
 }
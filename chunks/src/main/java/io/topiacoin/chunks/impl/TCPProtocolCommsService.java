@@ -10,8 +10,11 @@ import io.topiacoin.chunks.intf.ProtocolCommsResponseHandler;
 import io.topiacoin.chunks.intf.ProtocolCommsService;
 import io.topiacoin.chunks.model.MessageID;
 import io.topiacoin.chunks.model.protocol.ErrorProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunkStreamProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunksStreamProtocolResponse;
 import io.topiacoin.chunks.model.protocol.ProtocolMessage;
 import io.topiacoin.chunks.model.protocol.ProtocolMessageFactory;
+import io.topiacoin.chunks.model.protocol.StreamedProtocolResponse;
 import io.topiacoin.crypto.CryptoUtils;
 import io.topiacoin.crypto.CryptographicException;
 import io.topiacoin.model.UserNode;
@@ -33,37 +36,88 @@ import java.nio.channels.SocketChannel;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A ProtocolCommsService that frames messages over TCP using non-blocking sockets.
+ *
+ * Socket I/O is spread over a configurable number of reactor threads, each with its own Selector. The first reactor
+ * also owns the listening socket and hands accepted connections out to the reactors round-robin. Reactors only read
+ * and frame packets - decryption, key agreement and the ProtocolCommsHandler callbacks run on a separate pool of
+ * handler threads. Work for a single connection is always handled in arrival order, so a slow peer or a large chunk
+ * only ties up the handler thread it is running on rather than every connection.
+ *
+ * Message keys are kept in a SessionKeyCache, so reconnecting to a peer, or serving repeat requests from one, does not
+ * agree a new key each time.
+ *
+ * A StreamedProtocolResponse, such as a GiveChunkStreamProtocolResponse or a GiveChunksStreamProtocolResponse, is not
+ * framed as a single message. Its chunk data is read, encrypted and written one segment at a time as the socket is
+ * ready for it, and the receiver reassembles the segments into a GiveChunkProtocolResponse or GiveChunksProtocolResponse
+ * before handing it to the response handler.
+ */
 public class TCPProtocolCommsService implements ProtocolCommsService {
 	private static final Log _log = LogFactory.getLog(TCPProtocolCommsService.class);
 	private static final long _unusedConnectionCloseThresholdMillis = 15000;
+	public static final int DEFAULT_REACTOR_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	public static final int DEFAULT_HANDLER_COUNT = Runtime.getRuntime().availableProcessors();
 	private final KeyPair _chunkTransferKeyPair;
+	private final SessionKeyCache _sessionKeys = new SessionKeyCache();
 	private int _listenerPort;
+	private final int _reactorCount;
+	private final int _handlerCount;
 	Thread _listenerThread;
 	TCPListenerRunnable _listenerRunnable;
-	private Throwable _listenerRunnableThrowable = null;
+	private final List<TCPReactorRunnable> _reactors = new CopyOnWriteArrayList<>();
+	private final List<Thread> _reactorThreads = new ArrayList<>();
+	private final AtomicInteger _nextReactor = new AtomicInteger();
+	private ExecutorService _handlerExecutor;
+	private volatile Throwable _listenerRunnableThrowable = null;
 
-	final Map<MessageID, SocketAddress> _messageAddresses = new HashMap<>();
-	final Map<SocketAddress, ProtocolConnectionState> _connections = new HashMap<>();
-	private final Map<MessageID, ProtocolCommsResponseHandler> _messageSpecificHandlers = new HashMap<>();
-	private final Map<MessageID, Long> _messageSendTimes = new HashMap<>();
+	final Map<MessageID, SocketAddress> _messageAddresses = new ConcurrentHashMap<>();
+	final Map<SocketAddress, ProtocolConnectionState> _connections = new ConcurrentHashMap<>();
+	private final Map<MessageID, ProtocolCommsResponseHandler> _messageSpecificHandlers = new ConcurrentHashMap<>();
+	private final Map<MessageID, Long> _messageSendTimes = new ConcurrentHashMap<>();
 
 	private ProtocolMessageFactory _messageFactory;
 	AtomicInteger _messageIdTracker = new AtomicInteger();
-	private ProtocolCommsHandler _handler = null;
-	private long _timeoutMs = 30000;
+	private volatile ProtocolCommsHandler _handler = null;
+	private volatile long _timeoutMs = 30000;
 
 	TCPProtocolCommsService(int port, KeyPair chunkTransferKeyPair) throws IOException {
+		this(port, chunkTransferKeyPair, DEFAULT_REACTOR_COUNT, DEFAULT_HANDLER_COUNT);
+	}
+
+	/**
+	 * Creates a new TCPProtocolCommsService.
+	 *
+	 * @param port                 The port to listen on, or 0 to pick any free port
+	 * @param chunkTransferKeyPair The key pair used for agreeing message keys with peers
+	 * @param reactorCount         The number of selector threads that perform socket I/O
+	 * @param handlerCount         The number of threads that decrypt messages and run the handlers
+	 *
+	 * @throws IllegalArgumentException if reactorCount or handlerCount are less than 1
+	 */
+	TCPProtocolCommsService(int port, KeyPair chunkTransferKeyPair, int reactorCount, int handlerCount) throws IOException {
+		if (reactorCount < 1 || handlerCount < 1) {
+			throw new IllegalArgumentException("Must have at least one reactor and one handler thread");
+		}
 		_listenerPort = port;
 		_chunkTransferKeyPair = chunkTransferKeyPair;
+		_reactorCount = reactorCount;
+		_handlerCount = handlerCount;
 		_listenerRunnable = new TCPListenerRunnable(port);
 		_messageFactory = new ProtocolMessageFactory();
 	}
@@ -75,34 +129,43 @@ public class TCPProtocolCommsService implements ProtocolCommsService {
 				if (_listenerThread != null && _listenerThread.isAlive()) {
 					InetSocketAddress addr = new InetSocketAddress(targetNode.getHostname(), targetNode.getPort());
 					MessageID messageID = new MessageID(_messageIdTracker.getAndIncrement(), addr);
-					_messageAddresses.put(messageID, addr);
-					if (handler != null) {
-						_messageSpecificHandlers.put(messageID, handler);
-					}
-					synchronized (_messageSendTimes) {
-						_messageSendTimes.put(messageID, System.currentTimeMillis());
-					}
 
 					ProtocolConnectionState state = _connections.get(addr);
 					if (state == null) {
+						ProtocolConnectionState newState;
 						try {
-							state = new ProtocolConnectionState(addr, messageID, targetNode.getPublicKey());
+							newState = new ProtocolConnectionState(addr, messageID, targetNode.getPublicKey(), _sessionKeys);
 						} catch (InvalidKeySpecException e) {
 							throw new InvalidKeyException("Public Key Data was invalid", e);
 						}
+						newState.setReactorIndex(nextReactorIndex());
+						state = _connections.putIfAbsent(addr, newState);
+						if (state == null) {
+							state = newState;
+						} else {
+							//Another thread connected to this address while we were connecting, so we'll use theirs.
+							newState.getSocketChannel().close();
+							state.addMessageID(messageID);
+						}
 					} else {
 						state.addMessageID(messageID);
 					}
-					_connections.put(addr, state);
 
 					ByteBuffer data = null;
 					try {
 						data = encryptAndFrameMessage(message, messageID, state);
 					} catch (UnknownMessageTypeException e) {
+						state.removeMessageID(messageID);
 						throw new InvalidMessageException("Cannot send message", e);
 					}
+					//Only track the message once it is actually going out, so a failed connect doesn't leave a request to time out later.
+					_messageAddresses.put(messageID, addr);
+					if (handler != null) {
+						_messageSpecificHandlers.put(messageID, handler);
+					}
+					_messageSendTimes.put(messageID, System.currentTimeMillis());
 					state.addWriteBuffer(data);
-					_listenerRunnable.wakeup();
+					wakeupReactorFor(state);
 					return messageID;
 				} else {
 					throw new CommsListenerNotStartedException("Listener must be started before sending messages");
@@ -201,13 +264,20 @@ public class TCPProtocolCommsService implements ProtocolCommsService {
 						if (state != null) {
 							try {
 								if (!(message instanceof ErrorProtocolResponse)) {
-									state.buildMessageKey(_chunkTransferKeyPair);
+									state.buildMessageKey(_chunkTransferKeyPair, _sessionKeys);
+								}
+								if (message instanceof StreamedProtocolResponse) {
+									byte startFrameType = _messageFactory.getMessageByteIdentifier(message);
+									ChunkStreamWriter writer = createChunkStreamWriter((StreamedProtocolResponse) message, startFrameType, messageID, state);
+									state.addFrameSource(writer);
+									writer.start();
+								} else {
+									ByteBuffer data = encryptAndFrameMessage(message, messageID, state);
+									state.addWriteBuffer(data);
 								}
-								ByteBuffer data = encryptAndFrameMessage(message, messageID, state);
-								state.addWriteBuffer(data);
 								state.removeMessageID(messageID);
 								_messageAddresses.remove(messageID);
-								_listenerRunnable.wakeup();
+								wakeupReactorFor(state);
 							} catch (InvalidKeyException e) {
 								throw new IllegalStateException("Cannot reply to message " + messageID + " because of crypto errors", e);
 							} catch (UnknownMessageTypeException e) {
@@ -251,10 +321,31 @@ public class TCPProtocolCommsService implements ProtocolCommsService {
 				setListenerRunnableThrowable(e);
 			}
 		};
+		_handlerExecutor = Executors.newFixedThreadPool(_handlerCount, new ThreadFactory() {
+			private final AtomicInteger _threadCount = new AtomicInteger();
+
+			@Override public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ProtocolCommsHandler:" + _listenerPort + "-" + _threadCount.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_reactors.clear();
+		_reactors.add(_listenerRunnable);
+		for (int i = 1; i < _reactorCount; i++) {
+			_reactors.add(new TCPReactorRunnable(i));
+		}
 		_listenerThread = new Thread(_listenerRunnable, "ProtocolComms:" + _listenerPort);
 		_listenerThread.setDaemon(true);
 		_listenerThread.setUncaughtExceptionHandler(h);
 		_listenerThread.start();
+		for (int i = 1; i < _reactorCount; i++) {
+			Thread reactorThread = new Thread(_reactors.get(i), "ProtocolComms:" + _listenerPort + "-" + i);
+			reactorThread.setDaemon(true);
+			reactorThread.setUncaughtExceptionHandler(h);
+			reactorThread.start();
+			_reactorThreads.add(reactorThread);
+		}
 		try {
 			Thread.sleep(100);
 		} catch (InterruptedException e) {
@@ -269,33 +360,39 @@ public class TCPProtocolCommsService implements ProtocolCommsService {
 	}
 
 	public void stop() {
-		if (_listenerRunnable != null) {
+		for (TCPReactorRunnable reactor : _reactors) {
+			reactor.stop();
+		}
+		if (_reactors.isEmpty() && _listenerRunnable != null) {
 			_listenerRunnable.stop();
 		}
+		List<Thread> threads = new ArrayList<>(_reactorThreads);
 		if (_listenerThread != null) {
+			threads.add(0, _listenerThread);
+		}
+		for (Thread thread : threads) {
 			try {
-				_listenerThread.join(3000);
-				if (_listenerThread.isAlive()) {
-					_listenerThread.interrupt();
+				thread.join(3000);
+				if (thread.isAlive()) {
+					thread.interrupt();
 				}
 			} catch (InterruptedException e) {
 				//NOP
 			}
 		}
+		if (_handlerExecutor != null) {
+			_handlerExecutor.shutdown();
+			_handlerExecutor = null;
+		}
 		_listenerThread = null;
+		_reactorThreads.clear();
+		_reactors.clear();
 		_listenerRunnableThrowable = null;
 		_messageAddresses.clear();
 		_messageSpecificHandlers.clear();
-		synchronized (_messageSendTimes) {
-			_messageSendTimes.clear();
-		}
-		for (SocketAddress address : _connections.keySet()) {
-			ProtocolConnectionState state = _connections.get(address);
-			try {
-				state.getSocketChannel().close();
-			} catch (IOException e) {
-				//NOP
-			}
+		_messageSendTimes.clear();
+		for (ProtocolConnectionState state : _connections.values()) {
+			state.close();
 		}
 		_connections.clear();
 	}
@@ -309,15 +406,196 @@ public class TCPProtocolCommsService implements ProtocolCommsService {
 		return state == null ? null : state.getSocketChannel();
 	}
 
-	class TCPListenerRunnable implements Runnable {
-		final InetSocketAddress _hostAddress;
-		Selector _selector;
-		ServerSocketChannel _serverSocket;
-		private boolean isRunning;
-		private int _listenPort = -1;
+	private int nextReactorIndex() {
+		return Math.floorMod(_nextReactor.getAndIncrement(), _reactorCount);
+	}
 
-		TCPListenerRunnable(int port) throws IOException {
-			_hostAddress = new InetSocketAddress("0.0.0.0", port);
+	/**
+	 * Creates a writer for a streamed response whose frames are built on the connection's handler pool, waking the
+	 * connection's reactor as each one becomes ready to be written.
+	 */
+	private ChunkStreamWriter createChunkStreamWriter(StreamedProtocolResponse message, byte startFrameType, MessageID messageID, final ProtocolConnectionState state) {
+		return new ChunkStreamWriter(message, startFrameType, messageID, state.getMessageKey(), new Executor() {
+			@Override public void execute(Runnable task) {
+				dispatch(state, task);
+			}
+		}, new Runnable() {
+			@Override public void run() {
+				wakeupReactorFor(state);
+			}
+		});
+	}
+
+	private void wakeupReactorFor(ProtocolConnectionState state) {
+		int index = state.getReactorIndex();
+		if (index > 0 && index < _reactors.size()) {
+			_reactors.get(index).wakeup();
+		} else {
+			_listenerRunnable.wakeup();
+		}
+	}
+
+	private void dispatch(ProtocolConnectionState connection, Runnable task) {
+		ExecutorService executor = _handlerExecutor;
+		if (executor != null) {
+			if (connection != null) {
+				connection.execute(task, executor);
+			} else {
+				executor.execute(task);
+			}
+		}
+	}
+
+	/**
+	 * Handles a fully received packet. This runs on a handler thread, in the order the packets arrived on the
+	 * connection.
+	 */
+	private void processPacket(ProtocolConnectionState connection, SocketAddress remoteAddress, ByteBuffer packetBuffer) {
+		//Read the full message
+		byte messageType = packetBuffer.get(); //We read off the 'messageType' byte
+		int messageIDInt = packetBuffer.getInt(); //Then the messageID
+		MessageID messageID = new MessageID(messageIDInt, remoteAddress);
+		int transferPubKeyLength = packetBuffer.getInt(); //Then, the length of the publicKey that may or may not be attached
+		//If I'm receiving a first request, I should get it this way
+		byte[] transferPubKey = new byte[transferPubKeyLength];
+		packetBuffer.get(transferPubKey); //They've sent a public key. We need to do a Diffie.
+		try {
+			if (_messageFactory.isChunkStream(messageType)) {
+				processChunkStreamFrame(connection, messageType, messageID, packetBuffer);
+				return;
+			}
+			if (_messageFactory.isRequest(messageType)) {
+				//buildResponseKey
+				connection.setTheirPublicKey(transferPubKey);
+				connection.requestReceived(messageID);
+				_messageAddresses.put(messageID, remoteAddress);
+				if (_chunkTransferKeyPair != null) {
+					connection.buildMessageKey(_chunkTransferKeyPair, _sessionKeys);
+				} else {
+					_log.warn("Got a request, but I have no chunk transfer keypair - sending error response");
+					_handler.error("503: Cannot serve requests", true, messageID);
+					return;
+				}
+			} else {
+				//The messageKey should have already been constructed from when I made the request
+				connection.responseReceived(messageID);
+				_messageAddresses.remove(messageID);
+			}
+			int ivLen = packetBuffer.getInt(); //The IV length
+			byte[] iv = new byte[ivLen];
+			packetBuffer.get(iv); //The IV bytes
+			IvParameterSpec ivSpec = new IvParameterSpec(iv);
+			packetBuffer.getInt(); //Read off the data length int, which we don't need because we've already sorted that out.
+			ProtocolMessage message = decryptAndReconstituteMessage(messageType, packetBuffer, connection.getMessageKey(), ivSpec);
+			if (message.isRequest()) {
+				_handler.requestReceived(message, messageID);
+			} else {
+				responseReceived(message, messageID);
+			}
+		} catch (InvalidKeyException | InvalidMessageException e) {
+			_log.error("Failed to process message " + messageID, e);
+			_handler.error(e);
+		}
+	}
+
+	/**
+	 * Handles one frame of a streamed chunk response. The stream is only treated as a response once its last frame has
+	 * arrived - until then, each data frame counts as activity on the request so a large chunk does not time out while
+	 * it is still arriving.
+	 */
+	private void processChunkStreamFrame(ProtocolConnectionState connection, byte messageType, MessageID messageID, ByteBuffer packetBuffer)
+			throws InvalidMessageException {
+		try {
+			int ivLen = packetBuffer.getInt(); //The IV length, only set on the first frame of the stream
+			byte[] iv = new byte[ivLen];
+			packetBuffer.get(iv);
+			packetBuffer.getInt(); //Read off the data length int, we've already sorted that out.
+			if (messageType == ProtocolMessageFactory.CHUNK_STREAM_START || messageType == ProtocolMessageFactory.CHUNKS_STREAM_START) {
+				byte[] encryptedHeader = new byte[packetBuffer.remaining()];
+				packetBuffer.get(encryptedHeader);
+				byte[] header = CryptoUtils.decryptWithSecretKey(encryptedHeader, connection.getMessageKey(), new IvParameterSpec(iv));
+				StreamedProtocolResponse headerMessage;
+				if (messageType == ProtocolMessageFactory.CHUNK_STREAM_START) {
+					headerMessage = new GiveChunkStreamProtocolResponse();
+				} else {
+					headerMessage = new GiveChunksStreamProtocolResponse();
+				}
+				connection.startChunkStream(messageID, new ChunkStreamAssembler(headerMessage, ByteBuffer.wrap(header), connection.getMessageKey()));
+				_messageSendTimes.replace(messageID, System.currentTimeMillis());
+			} else if (messageType == ProtocolMessageFactory.CHUNK_STREAM_DATA) {
+				ChunkStreamAssembler assembler = connection.getChunkStream(messageID);
+				if (assembler == null) {
+					throw new InvalidMessageException("Received chunk data for unknown stream " + messageID);
+				}
+				assembler.append(packetBuffer);
+				_messageSendTimes.replace(messageID, System.currentTimeMillis());
+			} else {
+				ChunkStreamAssembler assembler = connection.removeChunkStream(messageID);
+				if (assembler == null) {
+					throw new InvalidMessageException("Received end of unknown chunk stream " + messageID);
+				}
+				ProtocolMessage message = assembler.finish(packetBuffer);
+				connection.responseReceived(messageID);
+				_messageAddresses.remove(messageID);
+				responseReceived(message, messageID);
+			}
+		} catch (InvalidMessageException e) {
+			connection.removeChunkStream(messageID);
+			throw e;
+		} catch (CryptographicException e) {
+			connection.removeChunkStream(messageID);
+			throw new InvalidMessageException("Failed to decrypt chunk stream header", e);
+		}
+	}
+
+	/**
+	 * Drops a connection that can no longer be used, and fails the requests that were waiting on it rather than
+	 * leaving them to time out.
+	 */
+	private void connectionFailed(SocketAddress address, ProtocolConnectionState connection) {
+		connection.close();
+		_connections.remove(address, connection);
+		for (final MessageID messageID : connection.removeMessageIDs()) {
+			_messageAddresses.remove(messageID);
+			if (_messageSendTimes.remove(messageID) == null) {
+				//Not a request we sent, or it has already timed out.
+				continue;
+			}
+			final ProtocolCommsResponseHandler handler = _messageSpecificHandlers.remove(messageID);
+			dispatch(connection, new Runnable() {
+				@Override public void run() {
+					if (handler != null) {
+						handler.error("Connection lost", false, messageID);
+					} else {
+						_handler.error("Connection lost", false, messageID);
+					}
+				}
+			});
+		}
+	}
+
+	private void responseReceived(ProtocolMessage message, MessageID messageID) {
+		ProtocolCommsResponseHandler handler = _messageSpecificHandlers.remove(messageID);
+		_messageSendTimes.remove(messageID);
+		if (handler != null) {
+			handler.responseReceived(message, messageID);
+		} else {
+			_handler.responseReceived(message, messageID);
+		}
+	}
+
+	/**
+	 * A reactor owns a Selector and performs the socket reads and writes for the connections assigned to it. Complete
+	 * packets are handed off to the handler pool for processing.
+	 */
+	class TCPReactorRunnable implements Runnable {
+		final int _reactorIndex;
+		volatile Selector _selector;
+		private volatile boolean isRunning;
+		private final Queue<SocketChannel> _adoptedChannels = new ConcurrentLinkedQueue<>();
+
+		TCPReactorRunnable(int reactorIndex) {
+			_reactorIndex = reactorIndex;
 		}
 
 		void wakeup() {
@@ -328,172 +606,79 @@ public class TCPProtocolCommsService implements ProtocolCommsService {
 			}
 		}
 
-		int getListenPort() {
-			return _listenPort;
+		/**
+		 * Hands a newly accepted connection to this reactor. The channel is registered with this reactor's Selector
+		 * on the reactor's own thread.
+		 */
+		void adopt(SocketChannel channel) {
+			_adoptedChannels.add(channel);
+			if (_selector != null) {
+				_selector.wakeup();
+			}
 		}
 
 		@Override public void run() {
 			try {
 				isRunning = true;
 				_selector = Selector.open();
-				_serverSocket = ServerSocketChannel.open();
-				_serverSocket.bind(_hostAddress);
-				_listenPort = ((InetSocketAddress)_serverSocket.getLocalAddress()).getPort();
-				_serverSocket.configureBlocking(false);
-				_serverSocket.register(_selector, _serverSocket.validOps(), null);
-				ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-				List<MessageID> timeouts = new LinkedList<>();
+				openChannels();
 				while (isRunning) {
+					registerAdoptedChannels();
 					if (_selector.select(1000) > 0) {
-						final Iterator<SelectionKey> selectionKeyIterator;
-						synchronized (_selector) {
-							selectionKeyIterator = _selector.selectedKeys().iterator();
-						}
-						Thread.yield();
+						final Iterator<SelectionKey> selectionKeyIterator = _selector.selectedKeys().iterator();
 						while (selectionKeyIterator.hasNext()) {
 							final SelectionKey key = selectionKeyIterator.next();
+							selectionKeyIterator.remove();
 							if (key.isValid()) {
 								if (key.isAcceptable()) {
-									SocketChannel channel = _serverSocket.accept();
-									_connections.put(channel.getRemoteAddress(), new ProtocolConnectionState(channel, _selector));
+									accept();
 								} else if (key.isReadable()) {
+									read((SocketChannel) key.channel());
+								} else if (key.isWritable()) {
 									SocketAddress address = ((SocketChannel) key.channel()).getRemoteAddress();
 									ProtocolConnectionState connection = _connections.get(address);
-									SocketChannel sc = (SocketChannel) key.channel();
-									int bytesRead = -1;
-									if (sc.isConnected()) {
-										bytesRead = sc.read(readBuffer);
-									}
-									if (bytesRead == -1) {
-										//Connection lost
-										sc.close();
-										_connections.remove(address);
-									} else if (bytesRead > 0) {
-										readBuffer.flip();
-										boolean readBufferIsUsable = true;
-										while (readBuffer.hasRemaining() && readBufferIsUsable) {
-											if (!connection.hasPacketBuffer()) {
-												//Determine the size of the message.
-												readBuffer.mark(); //First, we mark the buffer so we can reset it at the end
-												try {
-													readBuffer.get(); //We read off the 'messageType' byte but ignore its value
-													readBuffer.getInt(); //Then the messageID, it's value is also ignored for now
-													int transferPubKeyLength = readBuffer.getInt(); //Then, the length of the publicKey that may or may not be attached - we need this
-													readBuffer.get(new byte[transferPubKeyLength]); //We'll read past the publicKey if it exists - we don't need its value right now.
-													int ivLength = readBuffer.getInt(); //Then, the length of the IV, which is attached unless there is an error.
-													readBuffer.get(new byte[ivLength]); //Read past the IV data - we don't need it right now.
-													int dataLength = readBuffer.getInt(); //Finally, we'll read the data length int - if we've made it this far, we can allocate the buffer.
-													connection.allocatePacketBuffer(
-															1 + Integer.BYTES + Integer.BYTES + transferPubKeyLength + Integer.BYTES + ivLength + Integer.BYTES + dataLength);
-												} catch (BufferUnderflowException ex) {
-													//Ok, we couldn't read off enough data to determine how big to make the packetBuffer, so we'll try again next time.
-													readBufferIsUsable = false;
-												} finally {
-													readBuffer.reset(); //We always reset the buffer.
-												}
-											}
-											if (connection.hasPacketBuffer()) { //If it doesn't have one at this point, there wasn't enough data to determine the correct size for the packet buffer, try again next time.
-												ByteBuffer packetBuffer = connection.read(readBuffer); //Returns a buffer only if it's full
-												if (packetBuffer != null) {
-													packetBuffer.flip();
-													//Read the full message
-													byte messageType = packetBuffer.get(); //We read off the 'messageType' byte
-													int messageIDInt = packetBuffer.getInt(); //Then the messageID
-													MessageID messageID = new MessageID(messageIDInt, sc.getRemoteAddress());
-													int transferPubKeyLength = packetBuffer.getInt(); //Then, the length of the publicKey that may or may not be attached
-													//If I'm receiving a first request, I should get it this way
-													byte[] transferPubKey = new byte[transferPubKeyLength];
-													packetBuffer.get(transferPubKey); //They've sent a public key. We need to do a Diffie.
-													if (_messageFactory.isRequest(messageType)) {
-														//buildResponseKey
-														connection.setTheirPublicKey(transferPubKey);
-														connection.requestReceived(messageID);
-														_messageAddresses.put(messageID, sc.getRemoteAddress());
-														if (_chunkTransferKeyPair != null) {
-															connection.requestReceived(messageID);
-															connection.buildMessageKey(_chunkTransferKeyPair);
-														} else {
-															_log.warn("Got a request, but I have no chunk transfer keypair - sending error response");
-															_handler.error("503: Cannot serve requests", true, messageID);
-															break;
-														}
-													} else {
-														//The messageKey should have already been constructed from when I made the request
-														connection.responseReceived(messageID);
-														_messageAddresses.remove(messageID);
-													}
-													ProtocolMessage message;
-													try {
-														int ivLen = packetBuffer.getInt(); //The IV length
-														byte[] iv = new byte[ivLen];
-														packetBuffer.get(iv); //The IV bytes
-														IvParameterSpec ivSpec = new IvParameterSpec(iv);
-														packetBuffer.getInt(); //Read off the data length int, which we don't need because we've already sorted that out.
-														message = decryptAndReconstituteMessage(messageType, packetBuffer, connection.getMessageKey(), ivSpec);
-													} catch (InvalidMessageException e) {
-														throw new RuntimeException("", e);
-													}
-													if (message.isRequest()) {
-														_handler.requestReceived(message, messageID);
-													} else {
-														ProtocolCommsResponseHandler handler = _messageSpecificHandlers.remove(messageID);
-														_messageSendTimes.remove(messageID);
-														if (handler != null) {
-															handler.responseReceived(message, messageID);
-														} else {
-															_handler.responseReceived(message, messageID);
-														}
-													}
-												}
-											}
+									if (connection != null) {
+										try {
+											connection.write();
+										} catch (IOException e) {
+											_log.error("Failed to write to " + address + ", closing connection", e);
+											connectionFailed(address, connection);
 										}
-										readBuffer.compact();
 									}
-								} else if (key.isWritable()) {
-									SocketAddress address = ((SocketChannel) key.channel()).getRemoteAddress();
-									ProtocolConnectionState connection = _connections.get(address);
-									connection.write();
 								} else {
 									_log.error("Invalid selection key");
 								}
 							}
-							selectionKeyIterator.remove();
-						}
-					}
-					synchronized (_messageSendTimes) {
-						Iterator<MessageID> messageIDIterator = _messageSendTimes.keySet().iterator();
-						while (isRunning && messageIDIterator.hasNext()) {
-							MessageID messageID = messageIDIterator.next();
-							if (System.currentTimeMillis() > _messageSendTimes.get(messageID) + _timeoutMs) {
-								timeouts.add(messageID);
-								ProtocolCommsResponseHandler handler = _messageSpecificHandlers.remove(messageID);
-								messageIDIterator.remove();
-								if (handler != null) {
-									handler.error("Request Timed out", false, messageID);
-								} else {
-									_handler.error("Request Timed out", false, messageID);
-								}
-							}
 						}
 					}
+					afterSelect();
 					//Register All socket channels for write that have things that need to be written
-					Iterator<SocketAddress> addresses = _connections.keySet().iterator();
-					while (isRunning && addresses.hasNext()) {
-						SocketAddress address = addresses.next();
-						ProtocolConnectionState state = _connections.get(address);
-						for (MessageID tMid : timeouts) {
-							state.removeMessageID(tMid);
+					Iterator<Map.Entry<SocketAddress, ProtocolConnectionState>> connections = _connections.entrySet().iterator();
+					while (isRunning && connections.hasNext()) {
+						Map.Entry<SocketAddress, ProtocolConnectionState> entry = connections.next();
+						ProtocolConnectionState state = entry.getValue();
+						if (state.getReactorIndex() != _reactorIndex) {
+							continue;
+						}
+						if (!state.getSocketChannel().isOpen()) {
+							connectionFailed(entry.getKey(), state);
+							continue;
+						}
+						try {
+							state.registerForPendingWrites(_selector);
+						} catch (IOException e) {
+							_log.error("Failed to register " + entry.getKey() + " with the selector, closing connection", e);
+							connectionFailed(entry.getKey(), state);
+							continue;
 						}
-						state.registerForPendingWrites(_selector);
 						if (!state.hasMessageIDs() && !state.hasWriteBuffers()
 								&& state.getLastUsedTime() + _unusedConnectionCloseThresholdMillis < System.currentTimeMillis()) {
 							if (state.getSocketChannel() != null) {
 								state.getSocketChannel().close();
 							}
-							addresses.remove();
+							_connections.remove(entry.getKey(), state);
 						}
 					}
-					timeouts.clear();
 				}
 			} catch (Throwable e) {
 				_log.error("", e);
@@ -507,19 +692,174 @@ public class TCPProtocolCommsService implements ProtocolCommsService {
 						//NOP
 					}
 				}
-				if (_serverSocket != null && _serverSocket.isOpen()) {
-					try {
-						_serverSocket.close();
-					} catch (IOException e) {
-						//NOP
+				closeChannels();
+			}
+		}
+
+		/**
+		 * Called once the Selector is open, before the reactor starts selecting.
+		 */
+		void openChannels() throws IOException {
+		}
+
+		/**
+		 * Called when the reactor shuts down, after the Selector has been closed.
+		 */
+		void closeChannels() {
+		}
+
+		void accept() throws IOException {
+			throw new IllegalStateException("Reactor " + _reactorIndex + " does not accept connections");
+		}
+
+		/**
+		 * Called on every pass through the select loop.
+		 */
+		void afterSelect() {
+		}
+
+		private void registerAdoptedChannels() throws IOException {
+			SocketChannel channel;
+			while ((channel = _adoptedChannels.poll()) != null) {
+				ProtocolConnectionState state = new ProtocolConnectionState(channel, _selector);
+				state.setReactorIndex(_reactorIndex);
+				_connections.put(channel.getRemoteAddress(), state);
+			}
+		}
+
+		private void read(SocketChannel sc) throws IOException {
+			SocketAddress address = sc.getRemoteAddress();
+			final ProtocolConnectionState connection = _connections.get(address);
+			if (connection == null) {
+				sc.close();
+				return;
+			}
+			ByteBuffer readBuffer = connection.getReadBuffer();
+			int bytesRead = -1;
+			if (sc.isConnected()) {
+				bytesRead = sc.read(readBuffer);
+			}
+			if (bytesRead == -1) {
+				//Connection lost
+				connection.close();
+				_connections.remove(address, connection);
+			} else if (bytesRead > 0) {
+				readBuffer.flip();
+				boolean readBufferIsUsable = true;
+				while (readBuffer.hasRemaining() && readBufferIsUsable) {
+					if (!connection.hasPacketBuffer()) {
+						//Determine the size of the message.
+						readBuffer.mark(); //First, we mark the buffer so we can reset it at the end
+						try {
+							readBuffer.get(); //We read off the 'messageType' byte but ignore its value
+							readBuffer.getInt(); //Then the messageID, it's value is also ignored for now
+							int transferPubKeyLength = readBuffer.getInt(); //Then, the length of the publicKey that may or may not be attached - we need this
+							readBuffer.position(readBuffer.position() + transferPubKeyLength); //We'll read past the publicKey if it exists - we don't need its value right now.
+							int ivLength = readBuffer.getInt(); //Then, the length of the IV, which is attached unless there is an error.
+							readBuffer.position(readBuffer.position() + ivLength); //Read past the IV data - we don't need it right now.
+							int dataLength = readBuffer.getInt(); //Finally, we'll read the data length int - if we've made it this far, we can allocate the buffer.
+							connection.allocatePacketBuffer(
+									1 + Integer.BYTES + Integer.BYTES + transferPubKeyLength + Integer.BYTES + ivLength + Integer.BYTES + dataLength);
+						} catch (BufferUnderflowException | IllegalArgumentException ex) {
+							//Ok, we couldn't read off enough data to determine how big to make the packetBuffer, so we'll try again next time.
+							readBufferIsUsable = false;
+						} finally {
+							readBuffer.reset(); //We always reset the buffer.
+						}
+					}
+					if (connection.hasPacketBuffer()) { //If it doesn't have one at this point, there wasn't enough data to determine the correct size for the packet buffer, try again next time.
+						final ByteBuffer packetBuffer = connection.read(readBuffer); //Returns a buffer only if it's full
+						if (packetBuffer != null) {
+							packetBuffer.flip();
+							dispatch(connection, new Runnable() {
+								@Override public void run() {
+									processPacket(connection, address, packetBuffer);
+								}
+							});
+						}
 					}
 				}
+				readBuffer.compact();
 			}
 		}
 
 		void stop() {
 			isRunning = false;
-			wakeup();
+			if (_selector != null) {
+				_selector.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * The first reactor. In addition to its own connections, it owns the listening socket, spreads accepted
+	 * connections over all of the reactors, and times out requests that have not received a response.
+	 */
+	class TCPListenerRunnable extends TCPReactorRunnable {
+		final InetSocketAddress _hostAddress;
+		ServerSocketChannel _serverSocket;
+		private int _listenPort = -1;
+
+		TCPListenerRunnable(int port) throws IOException {
+			super(0);
+			_hostAddress = new InetSocketAddress("0.0.0.0", port);
+		}
+
+		int getListenPort() {
+			return _listenPort;
+		}
+
+		@Override void openChannels() throws IOException {
+			_serverSocket = ServerSocketChannel.open();
+			_serverSocket.bind(_hostAddress);
+			_listenPort = ((InetSocketAddress)_serverSocket.getLocalAddress()).getPort();
+			_serverSocket.configureBlocking(false);
+			_serverSocket.register(_selector, _serverSocket.validOps(), null);
+		}
+
+		@Override void closeChannels() {
+			if (_serverSocket != null && _serverSocket.isOpen()) {
+				try {
+					_serverSocket.close();
+				} catch (IOException e) {
+					//NOP
+				}
+			}
+		}
+
+		@Override void accept() throws IOException {
+			SocketChannel channel = _serverSocket.accept();
+			if (channel != null) {
+				int index = nextReactorIndex();
+				if (index < _reactors.size()) {
+					_reactors.get(index).adopt(channel);
+				} else {
+					adopt(channel);
+				}
+			}
+		}
+
+		@Override void afterSelect() {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<MessageID, Long> entry : _messageSendTimes.entrySet()) {
+				final MessageID messageID = entry.getKey();
+				if (now > entry.getValue() + _timeoutMs && _messageSendTimes.remove(messageID) != null) {
+					final ProtocolCommsResponseHandler handler = _messageSpecificHandlers.remove(messageID);
+					ProtocolConnectionState state = _connections.get(messageID.getAddress());
+					if (state != null) {
+						state.removeMessageID(messageID);
+					}
+					dispatch(state, new Runnable() {
+						@Override public void run() {
+							if (handler != null) {
+								handler.error("Request Timed out", false, messageID);
+							} else {
+								_handler.error("Request Timed out", false, messageID);
+							}
+						}
+					});
+				}
+			}
 		}
 	}
 }
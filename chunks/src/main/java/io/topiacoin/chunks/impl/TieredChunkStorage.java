@@ -0,0 +1,577 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.TokenBucket;
+import io.topiacoin.chunks.exceptions.DuplicateChunkException;
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.chunks.exceptions.InvalidReservationException;
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import io.topiacoin.chunks.intf.ReservationID;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Chunk Storage made of a small, fast tier, such as an SSD, in front of a large capacity tier, such as an array of
+ * hard disks.  New chunks are added to the fast tier while it has room.  Once the fast tier fills past its high
+ * watermark, the chunks read least recently are demoted to the capacity tier until it is back down to its low
+ * watermark.  Chunks on the capacity tier that are read often, as judged by a frequency sketch, are promoted back to
+ * the fast tier while it has room for them.
+ * <p>
+ * Chunks are migrated in the background, at a limited rate so that migration doesn't crowd out the reads and writes it
+ * is meant to speed up.  Reads go to whichever tier holds the chunk.  A chunk is moved along with its references, and
+ * while it is being moved it is read from whichever tier has it.
+ */
+public class TieredChunkStorage implements ChunkStorage {
+
+    public static final long DEFAULT_MIGRATION_RATE = 8L * 1024 * 1024;
+    public static final int DEFAULT_PROMOTION_THRESHOLD = 4;
+    public static final long DEFAULT_MIGRATION_INTERVAL = 1000;
+    public static final double DEFAULT_HIGH_WATERMARK = 0.9;
+    public static final double DEFAULT_LOW_WATERMARK = 0.75;
+
+    // Used to size the frequency sketch from the size of the capacity tier.
+    private static final int TYPICAL_CHUNK_SIZE = 65536;
+    private static final int MAX_SKETCH_SIZE = 1 << 20;
+
+    // The most chunks waiting to be promoted at once.  Chunks read often enough while it is full wait for a later pass.
+    private static final int MAX_PROMOTION_CANDIDATES = 1024;
+
+    // The number of locks that changes to chunks are spread across.
+    private static final int CHUNK_LOCK_STRIPES = 256;
+
+    private Log _log = LogFactory.getLog(this.getClass());
+
+    private final Object[] chunkLocks = new Object[CHUNK_LOCK_STRIPES];
+
+    {
+        for (int i = 0; i < chunkLocks.length; i++) {
+            chunkLocks[i] = new Object();
+        }
+    }
+
+    private ChunkStorage fastTier;
+    private ChunkStorage capacityTier;
+    private long migrationRate = DEFAULT_MIGRATION_RATE;
+    private int promotionThreshold = DEFAULT_PROMOTION_THRESHOLD;
+    private long migrationInterval = DEFAULT_MIGRATION_INTERVAL;
+    private double highWatermark = DEFAULT_HIGH_WATERMARK;
+    private double lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    // The chunks on the fast tier, least recently read first.
+    private final LinkedHashMap<String, Boolean> fastTierChunks = new LinkedHashMap<>(16, 0.75f, true);
+
+    private FrequencySketch readFrequency;
+    private final Set<String> promotionCandidates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private TokenBucket migrationThrottle;
+    private ScheduledExecutorService migrationExecutor;
+    private volatile boolean stopped;
+
+    private final AtomicLong promotedChunkCount = new AtomicLong();
+    private final AtomicLong demotedChunkCount = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (fastTier == null || capacityTier == null) {
+            throw new IllegalStateException("The Tiered Chunk Storage needs a fast tier and a capacity tier");
+        }
+
+        long expectedChunkCount = capacityTier.getStorageQuota() / TYPICAL_CHUNK_SIZE;
+        readFrequency = new FrequencySketch((int) Math.max(1024, Math.min(expectedChunkCount, MAX_SKETCH_SIZE)));
+        migrationThrottle = new TokenBucket(migrationRate, migrationRate);
+        synchronized (fastTierChunks) {
+            for (String chunkID : fastTier.getChunkIDs()) {
+                fastTierChunks.put(chunkID, Boolean.TRUE);
+            }
+        }
+
+        migrationExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Chunk Tier Migration");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        migrationExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    migrate();
+                } catch (RuntimeException e) {
+                    _log.warn("Chunk tier migration failed", e);
+                }
+            }
+        }, migrationInterval, migrationInterval, TimeUnit.MILLISECONDS);
+
+        _log.info("Initialized Tiered Chunk Storage with " + fastTierChunks.size() + " chunks on the fast tier");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        _log.info("Shutting Down Tiered Chunk Storage");
+
+        stopped = true;
+        if (migrationExecutor != null) {
+            migrationExecutor.shutdown();
+            try {
+                if (!migrationExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    _log.warn("Timed out waiting for chunk tier migration to stop");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        fastTier.shutdown();
+        capacityTier.shutdown();
+
+        _log.info("Shut Down Tiered Chunk Storage");
+    }
+
+    /**
+     * Adds a chunk to the fast tier if it has room for it and accepts it, and otherwise to the capacity tier.  A chunk
+     * added against a reservation goes to the tier holding the reservation.
+     *
+     * @throws DuplicateChunkException If there is already data in Storage with the specified chunkID.
+     */
+    @Override
+    public void addChunk(String chunkID, InputStream chunkStream, ReservationID reservationID, boolean purgeable)
+            throws DuplicateChunkException, InvalidReservationException, InsufficientSpaceException, IOException {
+
+        ChunkStorage target = null;
+        if (reservationID != null) {
+            if (!(reservationID instanceof TierReservationID)) {
+                throw new InvalidReservationException("Unrecognized Reservation ID");
+            }
+            target = ((TierReservationID) reservationID).tier;
+            reservationID = ((TierReservationID) reservationID).reservationID;
+        }
+
+        synchronized (lockFor(chunkID)) {
+            if (fastTier.hasChunk(chunkID) || capacityTier.hasChunk(chunkID)) {
+                throw new DuplicateChunkException("This chunk is already in chunk Storage");
+            }
+            if (target != null) {
+                target.addChunk(chunkID, chunkStream, reservationID, purgeable);
+            } else {
+                // The stream's available() is only an estimate of the chunk's size, so read the chunk in to place it
+                // by its real size, and to be able to fall back to the capacity tier if the fast tier turns it down.
+                byte[] chunkData = IOUtils.toByteArray(chunkStream);
+                target = capacityTier;
+                if (fastTier.getAvailableStorage() >= chunkData.length) {
+                    try {
+                        fastTier.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, purgeable);
+                        target = fastTier;
+                    } catch (InsufficientSpaceException e) {
+                        _log.debug("Fast tier turned down chunk " + chunkID + ", adding it to the capacity tier");
+                    }
+                }
+                if (target == capacityTier) {
+                    capacityTier.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, purgeable);
+                }
+            }
+            if (target == fastTier) {
+                synchronized (fastTierChunks) {
+                    fastTierChunks.put(chunkID, Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    @Override
+    public InputStream getChunkDataStream(String chunkID) throws NoSuchChunkException {
+        try {
+            return getTierFor(chunkID).getChunkDataStream(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to the other tier.
+            return getTierFor(chunkID).getChunkDataStream(chunkID);
+        }
+    }
+
+    @Override
+    public byte[] getChunkData(String chunkID) throws NoSuchChunkException, IOException {
+        try {
+            return getTierFor(chunkID).getChunkData(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to the other tier.
+            return getTierFor(chunkID).getChunkData(chunkID);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+        try {
+            return getTierFor(chunkID).getChunkDataChannel(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to the other tier.
+            return getTierFor(chunkID).getChunkDataChannel(chunkID);
+        }
+    }
+
+    @Override
+    public ByteBuffer getChunkDataBuffer(String chunkID) throws NoSuchChunkException, IOException {
+        try {
+            return getTierFor(chunkID).getChunkDataBuffer(chunkID);
+        } catch (NoSuchChunkException e) {
+            // The chunk may have just been moved to the other tier.
+            return getTierFor(chunkID).getChunkDataBuffer(chunkID);
+        }
+    }
+
+    @Override
+    public boolean hasChunk(String chunkID) {
+        return fastTier.hasChunk(chunkID) || capacityTier.hasChunk(chunkID);
+    }
+
+    @Override
+    public boolean removeChunk(String chunkID) {
+        synchronized (lockFor(chunkID)) {
+            if (fastTier.hasChunk(chunkID)) {
+                boolean removed = fastTier.removeChunk(chunkID);
+                if (!fastTier.hasChunk(chunkID)) {
+                    synchronized (fastTierChunks) {
+                        fastTierChunks.remove(chunkID);
+                    }
+                }
+                return removed;
+            }
+            return capacityTier.removeChunk(chunkID);
+        }
+    }
+
+    @Override
+    public boolean addChunkReference(String chunkID) {
+        synchronized (lockFor(chunkID)) {
+            return fastTier.addChunkReference(chunkID) || capacityTier.addChunkReference(chunkID);
+        }
+    }
+
+    @Override
+    public void chunkAccessed(String chunkID) {
+        try {
+            // Counts towards the chunk's promotion, or keeps it from being demoted, just as a read would.
+            getTierFor(chunkID).chunkAccessed(chunkID);
+        } catch (NoSuchChunkException e) {
+            // Nothing to record.
+        }
+    }
+
+    @Override
+    public List<String> getChunkIDs() {
+        // A chunk being moved may briefly be on both tiers.
+        Set<String> chunkIDs = new LinkedHashSet<>(fastTier.getChunkIDs());
+        chunkIDs.addAll(capacityTier.getChunkIDs());
+        return new ArrayList<>(chunkIDs);
+    }
+
+    @Override
+    public long getStorageQuota() {
+        return fastTier.getStorageQuota() + capacityTier.getStorageQuota();
+    }
+
+    @Override
+    public long getAvailableStorage() {
+        return fastTier.getAvailableStorage() + capacityTier.getAvailableStorage();
+    }
+
+    /**
+     * Purges chunks from the capacity tier, where the cold chunks are, and then from the fast tier, until the tiers
+     * together have the requested amount of space available.
+     */
+    @Override
+    public boolean purgeStorage(long neededAvailableSpace) {
+        long shortfall = neededAvailableSpace - getAvailableStorage();
+        for (ChunkStorage tier : new ChunkStorage[]{capacityTier, fastTier}) {
+            if (shortfall <= 0) {
+                break;
+            }
+            long availableBefore = tier.getAvailableStorage();
+            tier.purgeStorage(Math.min(tier.getStorageQuota(), availableBefore + shortfall));
+            shortfall -= tier.getAvailableStorage() - availableBefore;
+        }
+        return shortfall <= 0;
+    }
+
+    /**
+     * Reserves space on the fast tier if it has enough available, and otherwise on the capacity tier.  Chunks added
+     * against the reservation are stored on that tier.
+     */
+    @Override
+    public ReservationID reserveStorageSpace(long spaceToReserve) throws InsufficientSpaceException {
+        ChunkStorage tier = (fastTier.getAvailableStorage() >= spaceToReserve ? fastTier : capacityTier);
+        return new TierReservationID(tier, tier.reserveStorageSpace(spaceToReserve));
+    }
+
+    @Override
+    public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
+        if (!(reservationID instanceof TierReservationID)) {
+            throw new InvalidReservationException("Unrecognized Reservation ID");
+        }
+        TierReservationID tierReservationID = (TierReservationID) reservationID;
+        tierReservationID.tier.releaseSpaceReservation(tierReservationID.reservationID);
+    }
+
+
+    // -------- Accessor Methods --------
+
+    public ChunkStorage getFastTier() {
+        return fastTier;
+    }
+
+    /**
+     * Sets the small, fast Chunk Storage that holds new and frequently read chunks.
+     */
+    public void setFastTier(ChunkStorage fastTier) {
+        this.fastTier = fastTier;
+    }
+
+    public ChunkStorage getCapacityTier() {
+        return capacityTier;
+    }
+
+    /**
+     * Sets the large Chunk Storage that holds the chunks demoted from the fast tier.
+     */
+    public void setCapacityTier(ChunkStorage capacityTier) {
+        this.capacityTier = capacityTier;
+    }
+
+    /**
+     * Sets the most chunk data migrated between the tiers each second.  Must be set before the storage is initialized.
+     *
+     * @param migrationRate The migration rate, in bytes per second.
+     */
+    public void setMigrationRate(long migrationRate) {
+        this.migrationRate = migrationRate;
+    }
+
+    /**
+     * Sets how many times a chunk on the capacity tier must have been read recently before it is promoted.
+     */
+    public void setPromotionThreshold(int promotionThreshold) {
+        this.promotionThreshold = promotionThreshold;
+    }
+
+    /**
+     * Sets how often the tiers are checked for chunks to migrate.  Must be set before the storage is initialized.
+     *
+     * @param migrationInterval The time between checks, in milliseconds.
+     */
+    public void setMigrationInterval(long migrationInterval) {
+        this.migrationInterval = migrationInterval;
+    }
+
+    /**
+     * Sets how full the fast tier may get.  Chunks are demoted once the fraction of the fast tier in use is above the
+     * high watermark, until it is down to the low watermark, and are only promoted while it is below the high watermark.
+     *
+     * @param lowWatermark  The fraction of the fast tier in use that demotion stops at.
+     * @param highWatermark The fraction of the fast tier in use that demotion starts at.
+     *
+     * @throws IllegalArgumentException If the watermarks are not between 0 and 1, or the low is above the high.
+     */
+    public void setWatermarks(double lowWatermark, double highWatermark) {
+        if (lowWatermark < 0 || highWatermark > 1 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("The watermarks must satisfy 0 <= low <= high <= 1");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Returns the number of chunks moved from the capacity tier to the fast tier.
+     */
+    public long getPromotedChunkCount() {
+        return promotedChunkCount.get();
+    }
+
+    /**
+     * Returns the number of chunks moved from the fast tier to the capacity tier.
+     */
+    public long getDemotedChunkCount() {
+        return demotedChunkCount.get();
+    }
+
+
+    // -------- Package Methods --------
+
+    /**
+     * Demotes the least recently read chunks if the fast tier is too full, and then promotes the chunks that have been
+     * read often from the capacity tier.
+     */
+    void migrate() {
+        try {
+            demoteColdChunks();
+            promoteHotChunks();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // -------- Private Methods --------
+
+    private Object lockFor(String chunkID) {
+        return chunkLocks[(chunkID.hashCode() & 0x7fffffff) % chunkLocks.length];
+    }
+
+    private ChunkStorage getTierFor(String chunkID) throws NoSuchChunkException {
+        if (fastTier.hasChunk(chunkID)) {
+            synchronized (fastTierChunks) {
+                fastTierChunks.put(chunkID, Boolean.TRUE);
+            }
+            return fastTier;
+        }
+        if (capacityTier.hasChunk(chunkID)) {
+            readFrequency.increment(chunkID);
+            if (readFrequency.frequency(chunkID) >= promotionThreshold && promotionCandidates.size() < MAX_PROMOTION_CANDIDATES) {
+                promotionCandidates.add(chunkID);
+            }
+            return capacityTier;
+        }
+        throw new NoSuchChunkException("Chunk " + chunkID + " does not exist.");
+    }
+
+    private double getFastTierUsage() {
+        long quota = fastTier.getStorageQuota();
+        return (quota > 0 ? 1.0 - (double) fastTier.getAvailableStorage() / quota : 1.0);
+    }
+
+    private void demoteColdChunks() throws InterruptedException {
+        if (getFastTierUsage() <= highWatermark) {
+            return;
+        }
+
+        while (!stopped && getFastTierUsage() > lowWatermark) {
+            String chunkID;
+            synchronized (fastTierChunks) {
+                Iterator<String> iterator = fastTierChunks.keySet().iterator();
+                if (!iterator.hasNext()) {
+                    return;
+                }
+                chunkID = iterator.next();
+                iterator.remove();
+            }
+
+            long bytesMoved;
+            synchronized (lockFor(chunkID)) {
+                try {
+                    bytesMoved = ChunkMover.moveChunk(chunkID, fastTier, capacityTier);
+                } catch (IOException e) {
+                    _log.warn("Unable to demote chunk " + chunkID + " to the capacity tier", e);
+                    synchronized (fastTierChunks) {
+                        fastTierChunks.put(chunkID, Boolean.TRUE);
+                    }
+                    return;
+                }
+            }
+            if (bytesMoved >= 0) {
+                demotedChunkCount.incrementAndGet();
+                migrationThrottle.acquire(bytesMoved);
+            }
+        }
+    }
+
+    private void promoteHotChunks() throws InterruptedException {
+        List<String> candidates = new ArrayList<>(promotionCandidates);
+        promotionCandidates.removeAll(candidates);
+
+        // The most frequently read chunks are promoted first, in case the fast tier fills up.
+        Collections.sort(candidates, new Comparator<String>() {
+            @Override
+            public int compare(String chunkID1, String chunkID2) {
+                return Integer.compare(readFrequency.frequency(chunkID2), readFrequency.frequency(chunkID1));
+            }
+        });
+
+        for (String chunkID : candidates) {
+            if (stopped || getFastTierUsage() >= highWatermark) {
+                return;
+            }
+
+            long bytesMoved;
+            synchronized (lockFor(chunkID)) {
+                try {
+                    bytesMoved = ChunkMover.moveChunk(chunkID, capacityTier, fastTier);
+                } catch (IOException e) {
+                    _log.warn("Unable to promote chunk " + chunkID + " to the fast tier", e);
+                    continue;
+                }
+                if (bytesMoved >= 0) {
+                    synchronized (fastTierChunks) {
+                        fastTierChunks.put(chunkID, Boolean.TRUE);
+                    }
+                }
+            }
+            if (bytesMoved >= 0) {
+                promotedChunkCount.incrementAndGet();
+                migrationThrottle.acquire(bytesMoved);
+            }
+        }
+    }
+
+
+    // -------- Inner Classes --------
+
+    /**
+     * A reservation of space on one of the tiers.
+     */
+    private static class TierReservationID implements ReservationID {
+        private final ChunkStorage tier;
+        private final ReservationID reservationID;
+
+        TierReservationID(ChunkStorage tier, ReservationID reservationID) {
+            this.tier = tier;
+            this.reservationID = reservationID;
+        }
+
+        @Override
+        public boolean isValid() {
+            return reservationID.isValid();
+        }
+
+        @Override
+        public long getExpirationTime() {
+            return reservationID.getExpirationTime();
+        }
+
+        @Override
+        public long getReservedSpace() {
+            return reservationID.getReservedSpace();
+        }
+
+        @Override
+        public long getRemainingSpace() {
+            return reservationID.getRemainingSpace();
+        }
+
+        @Override
+        public String toString() {
+            return reservationID.toString();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.topiacoin.chunks.intf;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncChunkStorage {
+
+    /**
+     * Checks whether data for each of the specified chunks is available in the storage.
+     *
+     * @param chunkIDs The IDs of the chunks whose existence is being checked.
+     *
+     * @return A future completed with a map from each chunk ID, in the order given, to true if the data for the chunk
+     * is available, or false if it is not.
+     */
+    CompletableFuture<Map<String, Boolean>> hasChunks(final Collection<String> chunkIDs);
+
+    /**
+     * Retrieves the chunk data for each of the specified chunks.  If any of the chunks cannot be read, the future fails
+     * with the exception that stopped it being read, such as a NoSuchChunkException, and the chunks not yet read are
+     * skipped.
+     *
+     * @param chunkIDs The IDs of the chunks whose data is being retrieved.
+     *
+     * @return A future completed with a map from each chunk ID, in the order given, to the chunk's data.
+     */
+    CompletableFuture<Map<String, byte[]>> getChunks(final Collection<String> chunkIDs);
+
+    /**
+     * Retrieves read-only buffers over the chunk data for each of the specified chunks, as returned by the storage's
+     * getChunkDataBuffer().  If any of the chunks cannot be read, the future fails with the exception that stopped it
+     * being read, and the chunks not yet read are skipped.
+     *
+     * @param chunkIDs The IDs of the chunks whose data is being retrieved.
+     *
+     * @return A future completed with a map from each chunk ID, in the order given, to a buffer over the chunk's data.
+     */
+    CompletableFuture<Map<String, ByteBuffer>> getChunkBuffers(final Collection<String> chunkIDs);
+
+    /**
+     * Adds each of the specified chunks to the storage.  If any of the chunks cannot be added, the future fails with
+     * the exception that stopped it being added, such as a DuplicateChunkException, and the chunks not yet added are
+     * skipped.  Chunks that were added before the failure are left in the storage.
+     *
+     * @param chunks    A map from the ID of each chunk being added to the chunk's data.
+     * @param purgeable Flag indicating whether the storage can purge these chunks to make room for other data.
+     *
+     * @return A future completed once every chunk has been added.
+     */
+    CompletableFuture<Void> addChunks(final Map<String, byte[]> chunks, boolean purgeable);
+
+    /**
+     * Stops accepting work and waits for the work already started to finish.  The underlying chunk storage is not shut
+     * down.
+     */
+    void shutdown();
+}
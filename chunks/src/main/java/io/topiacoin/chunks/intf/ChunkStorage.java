@@ -7,6 +7,9 @@ import io.topiacoin.chunks.exceptions.NoSuchChunkException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
 
 public interface ChunkStorage {
 
@@ -49,6 +52,35 @@ public interface ChunkStorage {
     byte[] getChunkData(final String chunkID)
             throws NoSuchChunkException, IOException;
 
+    /**
+     * Opens a channel on the chunk data for the chunk with the specified chunkID.  The channel's size is the length of
+     * the chunk data.  This allows the data to be read in pieces, without holding all of it in memory.  The caller is
+     * responsible for closing the channel.
+     *
+     * @param chunkID The ID of the chunk whose data is being retrieved.
+     *
+     * @return A channel positioned at the start of the data for the requested chunkID.
+     *
+     * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
+     */
+    SeekableByteChannel getChunkDataChannel(final String chunkID)
+            throws NoSuchChunkException, IOException;
+
+    /**
+     * Returns a read-only buffer over the chunk data for the chunk with the specified chunkID.  Storages that keep
+     * chunks in files map the data into memory rather than copying it, so the buffer reads straight from the page
+     * cache.  The buffer stays readable after the chunk is removed, but callers should not hold on to it for longer
+     * than they need it.
+     *
+     * @param chunkID The ID of the chunk whose data is being retrieved.
+     *
+     * @return A buffer whose remaining bytes are the data for the requested chunkID.
+     *
+     * @throws NoSuchChunkException If there is no chunk data with the specified chunkID.
+     */
+    ByteBuffer getChunkDataBuffer(final String chunkID)
+            throws NoSuchChunkException, IOException;
+
     /**
      * Checks whether data for a specific chunk is available in the storage.
      *
@@ -68,6 +100,33 @@ public interface ChunkStorage {
      */
     boolean removeChunk(final String chunkID);
 
+    /**
+     * Records another reference to a chunk that is already in storage, such as when a new file reuses a chunk of an
+     * existing one.  Each reference must be removed with removeChunk() before the chunk's data is removed.
+     *
+     * @param chunkID The ID of the chunk being referenced.
+     *
+     * @return True if the reference was recorded.  False if no data is stored with the specified chunkID.
+     */
+    boolean addChunkReference(final String chunkID);
+
+    /**
+     * Records a read of a chunk whose data was answered from a copy held outside of the storage, such as an in-memory
+     * cache, so that the storage goes on treating the chunk as recently used.  Does nothing if no data is stored with
+     * the specified chunkID.
+     *
+     * @param chunkID The ID of the chunk that was read.
+     */
+    void chunkAccessed(final String chunkID);
+
+    /**
+     * Returns the IDs of the chunks in storage.  The list is a snapshot, so chunks may be added or removed while it is
+     * being used.
+     *
+     * @return A list containing the ID of each chunk in storage.
+     */
+    List<String> getChunkIDs();
+
     /**
      * Returns the total amount of storage available from the chunk storage.  Generally speaking, the chunk storage
      * instance will not be able to store more than this amount of data.
@@ -121,4 +180,10 @@ public interface ChunkStorage {
      * @param reservationID The ID of the reservation that is being released.
      */
     void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException;
+
+    /**
+     * Shuts down the chunk storage, saving any state it needs when it is next started and releasing its resources.  The
+     * chunk storage cannot be used once it has been shut down.
+     */
+    void shutdown();
 }
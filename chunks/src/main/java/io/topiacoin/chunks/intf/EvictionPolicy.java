@@ -0,0 +1,63 @@
+package io.topiacoin.chunks.intf;
+
+import java.util.List;
+
+/**
+ * Decides the order in which chunks are evicted from a chunk storage when it needs to free space.  The chunk storage
+ * notifies the policy as chunks are added, accessed and removed, so the policy always knows which chunks to evict
+ * first without having to examine the whole storage.
+ * <p>
+ * Implementations must be safe to call from multiple threads.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Notifies the policy that a chunk has been added to the storage.
+     *
+     * @param chunkID The ID of the chunk that was added.
+     */
+    void chunkAdded(String chunkID);
+
+    /**
+     * Notifies the policy that a chunk in the storage has been accessed.
+     *
+     * @param chunkID The ID of the chunk that was accessed.
+     */
+    void chunkAccessed(String chunkID);
+
+    /**
+     * Notifies the policy that a chunk has been removed from the storage.
+     *
+     * @param chunkID The ID of the chunk that was removed.
+     */
+    void chunkRemoved(String chunkID);
+
+    /**
+     * Notifies the policy that a chunk was offered for eviction, but could not be evicted.  The policy should move the
+     * chunk out of the way so that it isn't offered again ahead of the chunks that can be evicted.
+     *
+     * @param chunkID The ID of the chunk that was kept.
+     */
+    void chunkRetained(String chunkID);
+
+    /**
+     * Returns the chunks that should be evicted first, in the order they should be evicted.
+     *
+     * @param maxCandidates The maximum number of chunks to return.
+     *
+     * @return The IDs of up to maxCandidates chunks, the first of which should be evicted first.
+     */
+    List<String> getEvictionCandidates(int maxCandidates);
+
+    /**
+     * Returns the number of chunks known to the policy.
+     *
+     * @return The number of chunks known to the policy.
+     */
+    int size();
+
+    /**
+     * Forgets all of the chunks known to the policy.
+     */
+    void clear();
+}
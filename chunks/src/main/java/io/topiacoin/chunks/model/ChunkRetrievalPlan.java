@@ -1,9 +1,9 @@
 package io.topiacoin.chunks.model;
 
 import io.topiacoin.model.UserNode;
-import org.apache.commons.collections4.BidiMap;
-import org.apache.commons.collections4.bidimap.DualTreeBidiMap;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -11,13 +11,40 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Tracks which sources can provide which chunks, and hands out fetch tasks so that several requests can be in flight to
+ * each source at once.  The number of requests a source may have in flight is its window.  By default each source's
+ * window adapts to the bandwidth-delay product measured from its responses: the rate at which it delivers chunk data,
+ * times the shortest round trip seen, divided by the average request size, with some headroom so that the window can
+ * grow until the link is full.  Alternatively every source can be given a fixed window.
+ * <p>
+ * A single request may ask a source for several of the chunks it holds.  Such a request takes up one place in the
+ * source's window, and only leaves it once every chunk in it has been fetched or has failed.
+ */
 public class ChunkRetrievalPlan {
+	public static final int DEFAULT_MAX_REQUESTS_PER_SOURCE = 8;
+	public static final int DEFAULT_MAX_CHUNKS_PER_REQUEST = 16;
+
+	// The window each source starts with, before anything has been measured.
+	private static final int INITIAL_WINDOW = 2;
+
+	// The window is this many times the measured bandwidth-delay product, which leaves room for it to keep growing
+	// until the round trip time starts rising.
+	private static final double WINDOW_GAIN = 2.0;
+
+	// How much of the highest recent delivery rate is kept on each new measurement.
+	private static final double DELIVERY_RATE_DECAY = 0.875;
+
 	private List<String> _plannedChunkIDs;
 	private Set<String> _retrievableChunkIDs = new HashSet<String>();
 	private Set<UserNode> _sources = new HashSet<>();
 	private Map<UserNode, Set<String>> _nodeChunks = new HashMap<>();
-	private BidiMap<String, UserNode> _chunksAndSourcesInUse = new DualTreeBidiMap<>();
+	private Map<UserNode, SourceWindow> _sourceWindows = new HashMap<>();
+	private Map<String, ChunkRequest> _chunksInFlight = new HashMap<>();
 	private Set<String> _fetchedChunks = new HashSet<>();
+	private int _maxRequestsPerSource = DEFAULT_MAX_REQUESTS_PER_SOURCE;
+	private int _maxChunksPerRequest = 1;
+	private boolean _adaptiveWindow = true;
 
 	public ChunkRetrievalPlan(List<String> chunkIDs) {
 		this._plannedChunkIDs = chunkIDs;
@@ -40,52 +67,128 @@ public class ChunkRetrievalPlan {
 		return _retrievableChunkIDs.size() == _plannedChunkIDs.size();
 	}
 
+	/**
+	 * Returns the next chunks to request, from the source with the most room left in its window that has chunks which
+	 * are neither fetched nor already being fetched.  The task holds as many of those chunks as that source has, up to
+	 * the maximum chunks per request.
+	 *
+	 * @return The next chunks to request and the source to request them from, or null if every source's window is full
+	 * or none of the sources with room have anything useful at the moment.
+	 */
 	public PlanTask getNextTask() {
-		PlanTask tr = null;
-		//Remove the set of sources in use from the list of all sources
-		Set<UserNode> unusedNodes = new HashSet<>(_sources);
-		unusedNodes.removeAll(_chunksAndSourcesInUse.values());
-		//If there are any sources that are not currently in use...
-		if(!unusedNodes.isEmpty()) {
-			//Iterate over the set of unused nodes
-			Iterator<UserNode> nodeIterator = unusedNodes.iterator();
-			while(tr == null && nodeIterator.hasNext()) {
-				UserNode unusedNode = nodeIterator.next();
-				//Grab the full chunk list for the node
-				Set<String> nodeChunkSet = _nodeChunks.get(unusedNode);
-				//Remove the set of chunks we've already fetched
-				nodeChunkSet.removeAll(_fetchedChunks);
-				if(nodeChunkSet.isEmpty()) {
-					//This source no longer has anything useful for us. Drop it
-					_sources.remove(unusedNode);
-					_nodeChunks.remove(unusedNode);
-				} else {
-					//...then remove the set of chunks we're already working on
-					nodeChunkSet.removeAll(_chunksAndSourcesInUse.keySet());
-					if(!nodeChunkSet.isEmpty()) {
-						//This node, which is not in use, has at least one chunk we are not currently fetching.
-						String chunk = nodeChunkSet.iterator().next();
-						_chunksAndSourcesInUse.put(chunk, unusedNode);
-						tr = new PlanTask(chunk, unusedNode);
-					} //else this node doesn't presently have anything useful for us
+		return getNextTask(System.nanoTime());
+	}
+
+	PlanTask getNextTask(long now) {
+		UserNode bestSource = null;
+		int bestRoom = 0;
+		Iterator<UserNode> sourceIterator = _sources.iterator();
+		while (sourceIterator.hasNext()) {
+			UserNode source = sourceIterator.next();
+			Set<String> nodeChunkSet = _nodeChunks.get(source);
+			//Remove the chunks we've already fetched
+			nodeChunkSet.removeAll(_fetchedChunks);
+			if (nodeChunkSet.isEmpty()) {
+				//This source no longer has anything useful for us. Drop it
+				sourceIterator.remove();
+				_nodeChunks.remove(source);
+				_sourceWindows.remove(source);
+				continue;
+			}
+			SourceWindow window = getSourceWindow(source);
+			int room = window.depth - window.inFlight;
+			if (room > bestRoom) {
+				//Check that this source has a chunk we are not currently fetching
+				for (String chunkID : nodeChunkSet) {
+					if (!_chunksInFlight.containsKey(chunkID)) {
+						bestSource = source;
+						bestRoom = room;
+						break;
+					}
 				}
 			}
 		}
-		//If all sources are in use, or if none of the unused nodes have anything useful for us at the moment, there is no next task.
-		return tr;
+		//If every window is full, or none of the sources with room have anything useful for us at the moment, there is no next task.
+		if (bestSource == null) {
+			return null;
+		}
+
+		SourceWindow window = getSourceWindow(bestSource);
+		window.inFlight++;
+		List<String> chunkIDs = new ArrayList<>();
+		for (String chunkID : _nodeChunks.get(bestSource)) {
+			if (!_chunksInFlight.containsKey(chunkID)) {
+				chunkIDs.add(chunkID);
+				if (chunkIDs.size() == _maxChunksPerRequest) {
+					break;
+				}
+			}
+		}
+		ChunkRequest request = new ChunkRequest(bestSource, now, window.delivered, chunkIDs.size());
+		for (String chunkID : chunkIDs) {
+			_chunksInFlight.put(chunkID, request);
+		}
+		return new PlanTask(chunkIDs, bestSource);
+	}
+
+	/**
+	 * Marks a requested chunk as fetched.  Once every chunk of the request it was part of is done, its source's window
+	 * is updated from the time the request took.
+	 *
+	 * @param chunkID   The ID of the chunk that was fetched.
+	 * @param chunkSize The size of the chunk's data, in bytes.
+	 */
+	public void markChunkAsFetched(String chunkID, long chunkSize) {
+		markChunkAsFetched(chunkID, chunkSize, System.nanoTime());
 	}
 
-	public void markChunkAsFetched(String chunkID) {
-		UserNode node = _chunksAndSourcesInUse.remove(chunkID);
+	void markChunkAsFetched(String chunkID, long chunkSize, long now) {
+		ChunkRequest request = _chunksInFlight.remove(chunkID);
 		_fetchedChunks.add(chunkID);
-		Set<String> chunks = _nodeChunks.get(node);
-		chunks.remove(chunkID);
+		if (request != null) {
+			Set<String> chunks = _nodeChunks.get(request.source);
+			if (chunks != null) {
+				chunks.remove(chunkID);
+			}
+			request.bytesDelivered += chunkSize;
+			chunkRequestDone(request, now);
+		}
 	}
 
+	/**
+	 * Marks a requested chunk as failed, so that it is requested from another source if one has it.  A failure halves
+	 * the source's window once the request it was part of is done, since it often means that the source is overloaded.
+	 *
+	 * @param chunkID The ID of the chunk that could not be fetched.
+	 */
 	public void markChunkAsFailed(String chunkID) {
-		UserNode node = _chunksAndSourcesInUse.remove(chunkID);
-		Set<String> chunks = _nodeChunks.get(node);
-		chunks.remove(chunkID);
+		ChunkRequest request = _chunksInFlight.remove(chunkID);
+		if (request != null) {
+			Set<String> chunks = _nodeChunks.get(request.source);
+			if (chunks != null) {
+				chunks.remove(chunkID);
+			}
+			request.failed = true;
+			chunkRequestDone(request, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Counts one chunk of a request as done, and once they all are, takes the request out of its source's window.
+	 */
+	private void chunkRequestDone(ChunkRequest request, long now) {
+		request.chunksRemaining--;
+		if (request.chunksRemaining > 0) {
+			return;
+		}
+		SourceWindow window = _sourceWindows.get(request.source);
+		if (window != null) {
+			window.inFlight--;
+			window.delivered(request, request.bytesDelivered, now);
+			if (request.failed) {
+				window.failed();
+			}
+		}
 	}
 
 	public boolean isComplete() {
@@ -106,13 +209,118 @@ public class ChunkRetrievalPlan {
 		return _plannedChunkIDs.size();
 	}
 
+	/**
+	 * Returns the number of requests the specified source may currently have in flight.
+	 */
+	public int getWindow(UserNode source) {
+		return getSourceWindow(source).depth;
+	}
+
+	/**
+	 * Sets the most requests that may be in flight to a single source at once.
+	 */
+	public void setMaxRequestsPerSource(int maxRequestsPerSource) {
+		if (maxRequestsPerSource < 1) {
+			throw new IllegalArgumentException("At least one request per source must be allowed");
+		}
+		this._maxRequestsPerSource = maxRequestsPerSource;
+		for (SourceWindow window : _sourceWindows.values()) {
+			window.depth = (_adaptiveWindow ? Math.min(window.depth, maxRequestsPerSource) : maxRequestsPerSource);
+		}
+	}
+
+	/**
+	 * Sets the most chunks that may be asked of a source in a single request.
+	 */
+	public void setMaxChunksPerRequest(int maxChunksPerRequest) {
+		if (maxChunksPerRequest < 1) {
+			throw new IllegalArgumentException("At least one chunk per request must be allowed");
+		}
+		this._maxChunksPerRequest = maxChunksPerRequest;
+	}
+
+	/**
+	 * Sets whether each source's window adapts to its measured bandwidth-delay product.  If not, every source may have
+	 * the maximum number of requests in flight at once.
+	 */
+	public void setAdaptiveWindow(boolean adaptiveWindow) {
+		this._adaptiveWindow = adaptiveWindow;
+	}
+
+	private SourceWindow getSourceWindow(UserNode source) {
+		SourceWindow window = _sourceWindows.get(source);
+		if (window == null) {
+			window = new SourceWindow(_adaptiveWindow ? Math.min(INITIAL_WINDOW, _maxRequestsPerSource) : _maxRequestsPerSource);
+			_sourceWindows.put(source, window);
+		}
+		return window;
+	}
+
 	public class PlanTask {
+		// The first of the chunks to request
 		public String chunkID;
+		public List<String> chunkIDs;
 		public UserNode source;
 
-		PlanTask(String chunkID, UserNode source) {
-			this.chunkID = chunkID;
+		PlanTask(List<String> chunkIDs, UserNode source) {
+			this.chunkID = chunkIDs.get(0);
+			this.chunkIDs = Collections.unmodifiableList(chunkIDs);
 			this.source = source;
 		}
 	}
+
+	private static class ChunkRequest {
+		final UserNode source;
+		final long sentAt;
+		final long deliveredAtSend;
+		int chunksRemaining;
+		long bytesDelivered;
+		boolean failed;
+
+		ChunkRequest(UserNode source, long sentAt, long deliveredAtSend, int chunkCount) {
+			this.source = source;
+			this.sentAt = sentAt;
+			this.deliveredAtSend = deliveredAtSend;
+			this.chunksRemaining = chunkCount;
+		}
+	}
+
+	private class SourceWindow {
+		int depth;
+		int inFlight;
+		long delivered;
+		long minRoundTrip = Long.MAX_VALUE;
+		double deliveryRate;
+		double averageRequestSize;
+
+		SourceWindow(int depth) {
+			this.depth = depth;
+		}
+
+		/**
+		 * Measures the rate at which the source delivered data while the request was in flight, and sizes the window
+		 * to keep that much data in flight over the shortest round trip seen.
+		 */
+		void delivered(ChunkRequest request, long requestSize, long now) {
+			delivered += requestSize;
+			if (!_adaptiveWindow || requestSize <= 0) {
+				return;
+			}
+
+			long roundTrip = Math.max(1, now - request.sentAt);
+			minRoundTrip = Math.min(minRoundTrip, roundTrip);
+			double rate = (double) (delivered - request.deliveredAtSend) / roundTrip;
+			deliveryRate = Math.max(rate, deliveryRate * DELIVERY_RATE_DECAY);
+			averageRequestSize = (averageRequestSize == 0 ? requestSize : averageRequestSize * 0.875 + requestSize * 0.125);
+
+			double bandwidthDelayProduct = deliveryRate * minRoundTrip / averageRequestSize;
+			depth = (int) Math.max(1, Math.min(_maxRequestsPerSource, Math.ceil(bandwidthDelayProduct * WINDOW_GAIN)));
+		}
+
+		void failed() {
+			if (_adaptiveWindow) {
+				depth = Math.max(1, depth / 2);
+			}
+		}
+	}
 }
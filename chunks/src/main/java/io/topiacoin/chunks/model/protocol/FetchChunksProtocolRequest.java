@@ -0,0 +1,28 @@
+package io.topiacoin.chunks.model.protocol;
+
+import io.topiacoin.model.CurrentUser;
+import io.topiacoin.model.Member;
+
+/**
+ * Requests several chunks from a peer in a single exchange. The peer answers with a GiveChunksProtocolResponse that
+ * carries every chunk it could provide, along with the status of each chunk it could not.
+ */
+public class FetchChunksProtocolRequest extends ChunksProtocolMessage {
+	private static final String MESSAGE_TYPE = "REQUEST_CHUNKS";
+
+	public FetchChunksProtocolRequest(String[] chunkIDs, String userID, String authToken) {
+		super(chunkIDs, userID, authToken, true, MESSAGE_TYPE);
+	}
+
+	public FetchChunksProtocolRequest(String[] chunkIDs, CurrentUser me, Member targetMember) {
+		super(chunkIDs, me.getUserID(), targetMember.getAuthToken(), true, MESSAGE_TYPE);
+	}
+
+	public FetchChunksProtocolRequest() {
+		super(null, null, null, true, MESSAGE_TYPE);
+	}
+
+	public String[] getChunkIDs() {
+		return super.getChunks();
+	}
+}
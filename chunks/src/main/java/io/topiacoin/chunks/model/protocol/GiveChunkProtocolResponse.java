@@ -22,17 +22,23 @@ public class GiveChunkProtocolResponse implements ProtocolMessage {
 		_userID = userID;
 	}
 
+	public GiveChunkProtocolResponse(String chunkId, byte[] data, String userID, byte[] signature) {
+		this(chunkId, data, userID);
+		_signature = signature;
+	}
+
 	public GiveChunkProtocolResponse() {
 		this(null, null, null);
 	}
 
 	@Override public void sign(PrivateKey signingKey) throws InvalidKeyException {
-		ByteBuffer msgBytes = toBytes(false);
 		Signature sig;
 		try {
 			sig = Signature.getInstance("SHA1withECDSA");
 			sig.initSign(signingKey);
-			sig.update(msgBytes);
+			updateSignature(sig, _userID, _chunkId, _chunkdata.length);
+			sig.update(_chunkdata);
+			updateSignatureTrailer(sig);
 			_signature = sig.sign();
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException("Failed to init signature", e);
@@ -45,7 +51,6 @@ public class GiveChunkProtocolResponse implements ProtocolMessage {
 		if(_signature == null) {
 			return false;
 		} else {
-			ByteBuffer messageData = toBytes(false);
 			Signature sig;
 			try {
 				sig = Signature.getInstance("SHA1withECDSA");
@@ -53,11 +58,38 @@ public class GiveChunkProtocolResponse implements ProtocolMessage {
 				throw new RuntimeException("Failed to init signature", e);
 			}
 			sig.initVerify(senderPublicKey);
-			sig.update(messageData);
+			updateSignature(sig, _userID, _chunkId, _chunkdata.length);
+			sig.update(_chunkdata);
+			updateSignatureTrailer(sig);
 			return sig.verify(_signature);
 		}
 	}
 
+	/**
+	 * Feeds the signed fields that precede the chunk data into the signature. The signed form of the message is the
+	 * same as toBytes(), with a signature length of 0 and no signature bytes. It is fed in pieces so that the chunk data
+	 * never has to be copied, and so that a GiveChunkStreamProtocolResponse can sign the data as it is streamed.
+	 */
+	static void updateSignature(Signature sig, String userID, String chunkID, int chunkDataLength) throws SignatureException {
+		byte[] userIDBytes = userID.getBytes(Charset.forName("UTF-8"));
+		byte[] chunkIDBytes = chunkID.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + userIDBytes.length + Integer.BYTES + chunkIDBytes.length + Integer.BYTES);
+		header.putInt(userIDBytes.length);
+		header.put(userIDBytes);
+		header.putInt(chunkIDBytes.length);
+		header.put(chunkIDBytes);
+		header.putInt(chunkDataLength);
+		header.flip();
+		sig.update(header);
+	}
+
+	/**
+	 * Feeds the signed fields that follow the chunk data into the signature.
+	 */
+	static void updateSignatureTrailer(Signature sig) throws SignatureException {
+		sig.update(new byte[Integer.BYTES]); //signature length, always 0 in the signed form
+	}
+
 	@Override public ByteBuffer toBytes() {
 		return toBytes(true);
 	}
@@ -0,0 +1,169 @@
+package io.topiacoin.chunks.model.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * A GIVE_CHUNK response whose chunk data is read from a channel while it is being sent, rather than held in memory.
+ * The receiver reassembles it into a regular GiveChunkProtocolResponse, whose signature it verifies as usual.
+ *
+ * toBytes() and fromBytes() only deal with the header - the userID, chunkID and chunk data length.
+ */
+public class GiveChunkStreamProtocolResponse implements StreamedProtocolResponse {
+	private String _userID;
+	private String _chunkId;
+	private ReadableByteChannel _chunkData;
+	private int _chunkDataLength;
+	private PrivateKey _signingKey = null;
+	private String _messageType = "GIVE_CHUNK_STREAM";
+
+	/**
+	 * Creates a new streaming chunk response. The response takes ownership of the channel, which is closed once the
+	 * data has been sent.
+	 *
+	 * @param chunkId         The ID of the chunk being sent
+	 * @param chunkData       The channel the chunk data will be read from
+	 * @param chunkDataLength The number of bytes of chunk data that will be read from the channel
+	 * @param userID          The ID of the user sending the chunk
+	 */
+	public GiveChunkStreamProtocolResponse(String chunkId, ReadableByteChannel chunkData, long chunkDataLength, String userID) {
+		if (chunkDataLength > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Chunk data is too large to send");
+		}
+		_chunkId = chunkId;
+		_chunkData = chunkData;
+		_chunkDataLength = (int) chunkDataLength;
+		_userID = userID;
+	}
+
+	public GiveChunkStreamProtocolResponse() {
+		this(null, null, 0, null);
+	}
+
+	/**
+	 * The signature covers the chunk data, so it cannot be computed until the data is sent. This just holds on to the
+	 * key - the signature itself is built with startSignature() and finishSignature().
+	 */
+	@Override public void sign(PrivateKey signingKey) throws InvalidKeyException {
+		_signingKey = signingKey;
+	}
+
+	/**
+	 * Streamed responses are never handed to a handler - they are reassembled into a GiveChunkProtocolResponse, which
+	 * should be verified instead.
+	 */
+	@Override public boolean verify(PublicKey senderPublicKey) throws InvalidKeyException, SignatureException {
+		return false;
+	}
+
+	@Override public Signature startSignature() throws InvalidKeyException {
+		if (_signingKey == null) {
+			throw new InvalidKeyException("Message has not been signed");
+		}
+		try {
+			Signature sig = Signature.getInstance("SHA1withECDSA");
+			sig.initSign(_signingKey);
+			GiveChunkProtocolResponse.updateSignature(sig, _userID, _chunkId, _chunkDataLength);
+			return sig;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to init signature", e);
+		} catch (SignatureException e) {
+			throw new RuntimeException("Failed to sign", e);
+		}
+	}
+
+	@Override public byte[] finishSignature(Signature sig) {
+		try {
+			GiveChunkProtocolResponse.updateSignatureTrailer(sig);
+			return sig.sign();
+		} catch (SignatureException e) {
+			throw new RuntimeException("Failed to sign", e);
+		}
+	}
+
+	@Override public ByteBuffer toBytes() {
+		//The header is the
+		// userID length, an int
+		// userID, a UTF-8 String whose bytelength is userID length
+		// chunk ID length, an int
+		// chunk ID, a UTF-8 String whose bytelength is chunk ID length
+		// chunk data length, an int
+		byte[] userIDBytes = _userID.getBytes(Charset.forName("UTF-8"));
+		byte[] chunkIDBytes = _chunkId.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer toReturn = ByteBuffer.allocate(Integer.BYTES + userIDBytes.length + Integer.BYTES + chunkIDBytes.length + Integer.BYTES);
+		toReturn.putInt(userIDBytes.length);
+		toReturn.put(userIDBytes);
+		toReturn.putInt(chunkIDBytes.length);
+		toReturn.put(chunkIDBytes);
+		toReturn.putInt(_chunkDataLength);
+		return toReturn;
+	}
+
+	@Override public void fromBytes(ByteBuffer bytes) {
+		int userIdLength = bytes.getInt();
+		if(userIdLength > 0) {
+			byte[] userIDBytes = new byte[userIdLength];
+			bytes.get(userIDBytes);
+			_userID = new String(userIDBytes, Charset.forName("UTF-8"));
+		}
+		int chunkIDLength = bytes.getInt();
+		byte[] chunkIDBytes = new byte[chunkIDLength];
+		bytes.get(chunkIDBytes);
+		_chunkId = new String(chunkIDBytes, Charset.forName("UTF-8"));
+		_chunkDataLength = bytes.getInt();
+	}
+
+	@Override public boolean isValid() {
+		return _userID != null && _chunkId != null && _chunkId.length() > 0 && _chunkData != null && _chunkData.isOpen() && _chunkDataLength >= 0;
+	}
+
+	@Override public boolean isRequest() {
+		return false;
+	}
+
+	@Override public String getType() {
+		return _messageType;
+	}
+
+	public String getChunkID() {
+		return _chunkId;
+	}
+
+	public String getUserID() {
+		return _userID;
+	}
+
+	@Override public ReadableByteChannel getChunkDataChannel() {
+		return _chunkData;
+	}
+
+	@Override public int getChunkDataLength() {
+		return _chunkDataLength;
+	}
+
+	@Override public boolean hasValidHeader() {
+		return _chunkId != null && _userID != null && _chunkDataLength >= 0;
+	}
+
+	@Override public ProtocolMessage assemble(byte[] chunkData, byte[] signature) {
+		return new GiveChunkProtocolResponse(_chunkId, chunkData, _userID, signature);
+	}
+
+	@Override public void close() {
+		if (_chunkData != null) {
+			try {
+				_chunkData.close();
+			} catch (IOException e) {
+				//NOP
+			}
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package io.topiacoin.chunks.model.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The answer to a FetchChunksProtocolRequest. It carries the data of every requested chunk the sender could provide,
+ * and a status for each one it could not, under a single signature.
+ */
+public class GiveChunksProtocolResponse implements ProtocolMessage {
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_NO_SUCH_CHUNK = 1;
+	public static final byte STATUS_ERROR = 2;
+
+	private String _userID;
+	private List<ChunkEntry> _entries;
+	private Map<String, byte[]> _chunkData;
+	private byte[] _signature = null;
+	private String _messageType = "GIVE_CHUNKS";
+
+	public GiveChunksProtocolResponse(String userID) {
+		this(userID, new ArrayList<ChunkEntry>(), new HashMap<String, byte[]>(), null);
+	}
+
+	public GiveChunksProtocolResponse() {
+		this(null);
+	}
+
+	GiveChunksProtocolResponse(String userID, List<ChunkEntry> entries, Map<String, byte[]> chunkData, byte[] signature) {
+		_userID = userID;
+		_entries = entries;
+		_chunkData = chunkData;
+		_signature = signature;
+	}
+
+	/**
+	 * Adds a chunk the sender was able to provide.
+	 */
+	public void addChunk(String chunkID, byte[] data) {
+		_entries.add(new ChunkEntry(chunkID, STATUS_OK, data.length));
+		_chunkData.put(chunkID, data);
+	}
+
+	/**
+	 * Adds a chunk the sender was not able to provide.
+	 *
+	 * @param status why the chunk could not be provided - STATUS_NO_SUCH_CHUNK or STATUS_ERROR
+	 */
+	public void addMissingChunk(String chunkID, byte status) {
+		_entries.add(new ChunkEntry(chunkID, status, 0));
+	}
+
+	@Override public void sign(PrivateKey signingKey) throws InvalidKeyException {
+		Signature sig;
+		try {
+			sig = Signature.getInstance("SHA1withECDSA");
+			sig.initSign(signingKey);
+			updateSignature(sig);
+			_signature = sig.sign();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to init signature", e);
+		} catch (SignatureException e) {
+			throw new RuntimeException("Failed to sign", e);
+		}
+	}
+
+	@Override public boolean verify(PublicKey senderPublicKey) throws InvalidKeyException, SignatureException {
+		if(_signature == null) {
+			return false;
+		} else {
+			Signature sig;
+			try {
+				sig = Signature.getInstance("SHA1withECDSA");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("Failed to init signature", e);
+			}
+			sig.initVerify(senderPublicKey);
+			updateSignature(sig);
+			return sig.verify(_signature);
+		}
+	}
+
+	/**
+	 * The signed form of the message is the same as toBytes(), with a signature length of 0 and no signature bytes. A
+	 * GiveChunksStreamProtocolResponse feeds the same bytes to its signature as the data is streamed.
+	 */
+	private void updateSignature(Signature sig) throws SignatureException {
+		ByteBuffer header = encodeHeader(_userID, _entries);
+		header.flip();
+		sig.update(header);
+		for (ChunkEntry entry : _entries) {
+			if (entry.status == STATUS_OK) {
+				sig.update(_chunkData.get(entry.chunkID));
+			}
+		}
+		GiveChunkProtocolResponse.updateSignatureTrailer(sig);
+	}
+
+	@Override public ByteBuffer toBytes() {
+		//The message is the header written by encodeHeader(), then the data of each chunk whose status is OK, in the
+		//order of the entries, then the signature length and signature bytes.
+		ByteBuffer header = encodeHeader(_userID, _entries);
+		header.flip();
+		int toAlloc = header.remaining();
+		for (ChunkEntry entry : _entries) {
+			toAlloc += entry.length;
+		}
+		toAlloc += Integer.BYTES; //signature length
+		toAlloc += _signature == null ? 0 : _signature.length; //signature bytes
+
+		ByteBuffer toReturn = ByteBuffer.allocate(toAlloc);
+		toReturn.put(header);
+		for (ChunkEntry entry : _entries) {
+			if (entry.status == STATUS_OK) {
+				toReturn.put(_chunkData.get(entry.chunkID));
+			}
+		}
+		toReturn.putInt(_signature == null ? 0 : _signature.length); //signature length
+		if(_signature != null) {
+			toReturn.put(_signature); //signature bytes
+		}
+		return toReturn;
+	}
+
+	@Override public void fromBytes(ByteBuffer bytes) {
+		_entries = new ArrayList<>();
+		_chunkData = new HashMap<>();
+		_userID = decodeHeader(bytes, _entries);
+		for (ChunkEntry entry : _entries) {
+			if (entry.status == STATUS_OK) {
+				byte[] data = new byte[entry.length];
+				bytes.get(data);
+				_chunkData.put(entry.chunkID, data);
+			}
+		}
+		int signatureLength = bytes.getInt();
+		if(signatureLength > 0) {
+			_signature = new byte[signatureLength];
+			bytes.get(_signature);
+		}
+	}
+
+	@Override public boolean isValid() {
+		return _userID != null && !_entries.isEmpty();
+	}
+
+	@Override public boolean isRequest() {
+		return false;
+	}
+
+	@Override public String getType() {
+		return _messageType;
+	}
+
+	public String getUserID() {
+		return _userID;
+	}
+
+	/**
+	 * Returns the IDs of every chunk in the response, whether or not the sender could provide it.
+	 */
+	public List<String> getChunkIDs() {
+		List<String> chunkIDs = new ArrayList<>();
+		for (ChunkEntry entry : _entries) {
+			chunkIDs.add(entry.chunkID);
+		}
+		return Collections.unmodifiableList(chunkIDs);
+	}
+
+	/**
+	 * Returns the status of a chunk in the response, or -1 if the chunk is not in the response.
+	 */
+	public byte getChunkStatus(String chunkID) {
+		for (ChunkEntry entry : _entries) {
+			if (entry.chunkID.equals(chunkID)) {
+				return entry.status;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the data of a chunk the sender provided, or null if the sender did not provide it.
+	 */
+	public byte[] getChunkData(String chunkID) {
+		return _chunkData.get(chunkID);
+	}
+
+	/**
+	 * Writes the part of the message that precedes the chunk data. It is the
+	 * userID length, an int
+	 * userID, a UTF-8 String whose bytelength is userID length
+	 * entry count, an int
+	 * and for each entry,
+	 * chunk ID length, an int
+	 * chunk ID, a UTF-8 String whose bytelength is chunk ID length
+	 * status, a byte
+	 * chunk data length, an int, which is 0 unless the status is OK
+	 */
+	static ByteBuffer encodeHeader(String userID, List<ChunkEntry> entries) {
+		byte[] userIDBytes = userID.getBytes(Charset.forName("UTF-8"));
+		List<byte[]> chunkIDBytes = new ArrayList<>();
+		int toAlloc = Integer.BYTES + userIDBytes.length + Integer.BYTES;
+		for (ChunkEntry entry : entries) {
+			byte[] idBytes = entry.chunkID.getBytes(Charset.forName("UTF-8"));
+			chunkIDBytes.add(idBytes);
+			toAlloc += Integer.BYTES + idBytes.length + 1 + Integer.BYTES;
+		}
+		ByteBuffer header = ByteBuffer.allocate(toAlloc);
+		header.putInt(userIDBytes.length);
+		header.put(userIDBytes);
+		header.putInt(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			header.putInt(chunkIDBytes.get(i).length);
+			header.put(chunkIDBytes.get(i));
+			header.put(entries.get(i).status);
+			header.putInt(entries.get(i).length);
+		}
+		return header;
+	}
+
+	/**
+	 * Reads the header written by encodeHeader().
+	 *
+	 * @param bytes   the header bytes
+	 * @param entries the list the header's entries are added to
+	 * @return the userID of the sender
+	 */
+	static String decodeHeader(ByteBuffer bytes, List<ChunkEntry> entries) {
+		String userID = null;
+		int userIdLength = bytes.getInt();
+		if(userIdLength > 0) {
+			byte[] userIDBytes = new byte[userIdLength];
+			bytes.get(userIDBytes);
+			userID = new String(userIDBytes, Charset.forName("UTF-8"));
+		}
+		int entryCount = bytes.getInt();
+		if (entryCount < 0 || entryCount > bytes.remaining()) {
+			throw new IllegalArgumentException("Invalid chunk count " + entryCount);
+		}
+		for (int i = 0; i < entryCount; i++) {
+			byte[] chunkIDBytes = new byte[bytes.getInt()];
+			bytes.get(chunkIDBytes);
+			byte status = bytes.get();
+			int length = bytes.getInt();
+			if (length < 0 || (status != STATUS_OK && length != 0)) {
+				throw new IllegalArgumentException("Invalid chunk data length " + length);
+			}
+			entries.add(new ChunkEntry(new String(chunkIDBytes, Charset.forName("UTF-8")), status, length));
+		}
+		return userID;
+	}
+
+	static class ChunkEntry {
+		final String chunkID;
+		final byte status;
+		final int length;
+
+		ChunkEntry(String chunkID, byte status, int length) {
+			this.chunkID = chunkID;
+			this.status = status;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package io.topiacoin.chunks.model.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A GIVE_CHUNKS response whose chunk data is read from one channel per chunk while it is being sent, rather than held
+ * in memory. The chunks are sent back to back, in the order they were added, after a header that lists the status and
+ * length of every chunk. The receiver reassembles it into a regular GiveChunksProtocolResponse, whose signature it
+ * verifies as usual.
+ *
+ * toBytes() and fromBytes() only deal with the header.
+ */
+public class GiveChunksStreamProtocolResponse implements StreamedProtocolResponse {
+	private String _userID;
+	private List<GiveChunksProtocolResponse.ChunkEntry> _entries = new ArrayList<>();
+	private List<ReadableByteChannel> _channels = new ArrayList<>();
+	private SequenceChannel _chunkData = null;
+	private long _chunkDataLength = 0;
+	private PrivateKey _signingKey = null;
+	private String _messageType = "GIVE_CHUNKS_STREAM";
+
+	public GiveChunksStreamProtocolResponse(String userID) {
+		_userID = userID;
+	}
+
+	public GiveChunksStreamProtocolResponse() {
+		this(null);
+	}
+
+	/**
+	 * Adds a chunk the sender is able to provide. The response takes ownership of the channel, which is closed once
+	 * the chunk's data has been sent.
+	 *
+	 * @param chunkID         The ID of the chunk
+	 * @param chunkData       The channel the chunk data will be read from
+	 * @param chunkDataLength The number of bytes of chunk data that will be read from the channel
+	 */
+	public void addChunk(String chunkID, ReadableByteChannel chunkData, long chunkDataLength) {
+		if (_chunkDataLength + chunkDataLength > Integer.MAX_VALUE) {
+			try {
+				chunkData.close();
+			} catch (IOException e) {
+				//NOP
+			}
+			throw new IllegalArgumentException("Chunk data is too large to send");
+		}
+		_entries.add(new GiveChunksProtocolResponse.ChunkEntry(chunkID, GiveChunksProtocolResponse.STATUS_OK, (int) chunkDataLength));
+		_channels.add(chunkData);
+		_chunkDataLength += chunkDataLength;
+	}
+
+	/**
+	 * Adds a chunk the sender is not able to provide.
+	 *
+	 * @param status why the chunk could not be provided - GiveChunksProtocolResponse.STATUS_NO_SUCH_CHUNK or STATUS_ERROR
+	 */
+	public void addMissingChunk(String chunkID, byte status) {
+		_entries.add(new GiveChunksProtocolResponse.ChunkEntry(chunkID, status, 0));
+	}
+
+	/**
+	 * The signature covers the chunk data, so it cannot be computed until the data is sent. This just holds on to the
+	 * key - the signature itself is built with startSignature() and finishSignature().
+	 */
+	@Override public void sign(PrivateKey signingKey) throws InvalidKeyException {
+		_signingKey = signingKey;
+	}
+
+	/**
+	 * Streamed responses are never handed to a handler - they are reassembled into a GiveChunksProtocolResponse, which
+	 * should be verified instead.
+	 */
+	@Override public boolean verify(PublicKey senderPublicKey) throws InvalidKeyException, SignatureException {
+		return false;
+	}
+
+	@Override public Signature startSignature() throws InvalidKeyException {
+		if (_signingKey == null) {
+			throw new InvalidKeyException("Message has not been signed");
+		}
+		try {
+			Signature sig = Signature.getInstance("SHA1withECDSA");
+			sig.initSign(_signingKey);
+			ByteBuffer header = GiveChunksProtocolResponse.encodeHeader(_userID, _entries);
+			header.flip();
+			sig.update(header);
+			return sig;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to init signature", e);
+		} catch (SignatureException e) {
+			throw new RuntimeException("Failed to sign", e);
+		}
+	}
+
+	@Override public byte[] finishSignature(Signature sig) {
+		try {
+			GiveChunkProtocolResponse.updateSignatureTrailer(sig);
+			return sig.sign();
+		} catch (SignatureException e) {
+			throw new RuntimeException("Failed to sign", e);
+		}
+	}
+
+	@Override public ByteBuffer toBytes() {
+		return GiveChunksProtocolResponse.encodeHeader(_userID, _entries);
+	}
+
+	@Override public void fromBytes(ByteBuffer bytes) {
+		_entries = new ArrayList<>();
+		_userID = GiveChunksProtocolResponse.decodeHeader(bytes, _entries);
+		_chunkDataLength = 0;
+		for (GiveChunksProtocolResponse.ChunkEntry entry : _entries) {
+			_chunkDataLength += entry.length;
+		}
+	}
+
+	@Override public boolean isValid() {
+		return _userID != null && !_entries.isEmpty() && _channels.size() == countChunksProvided();
+	}
+
+	@Override public boolean isRequest() {
+		return false;
+	}
+
+	@Override public String getType() {
+		return _messageType;
+	}
+
+	public String getUserID() {
+		return _userID;
+	}
+
+	/**
+	 * Returns a channel that reads the data of each chunk the sender provides in turn. Each chunk's channel is closed
+	 * as soon as its data has been read.
+	 */
+	@Override public ReadableByteChannel getChunkDataChannel() {
+		if (_chunkData == null) {
+			_chunkData = new SequenceChannel();
+		}
+		return _chunkData;
+	}
+
+	@Override public int getChunkDataLength() {
+		return (int) _chunkDataLength;
+	}
+
+	/**
+	 * A header may describe a response in which none of the chunks could be provided, so it is valid with no chunk
+	 * data at all.
+	 */
+	@Override public boolean hasValidHeader() {
+		return _userID != null && !_entries.isEmpty() && _chunkDataLength <= Integer.MAX_VALUE;
+	}
+
+	@Override public ProtocolMessage assemble(byte[] chunkData, byte[] signature) {
+		Map<String, byte[]> chunks = new HashMap<>();
+		int offset = 0;
+		for (GiveChunksProtocolResponse.ChunkEntry entry : _entries) {
+			if (entry.status == GiveChunksProtocolResponse.STATUS_OK) {
+				byte[] data = new byte[entry.length];
+				System.arraycopy(chunkData, offset, data, 0, entry.length);
+				offset += entry.length;
+				chunks.put(entry.chunkID, data);
+			}
+		}
+		return new GiveChunksProtocolResponse(_userID, _entries, chunks, signature);
+	}
+
+	@Override public void close() {
+		for (ReadableByteChannel channel : _channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				//NOP
+			}
+		}
+	}
+
+	private int countChunksProvided() {
+		int count = 0;
+		for (GiveChunksProtocolResponse.ChunkEntry entry : _entries) {
+			if (entry.status == GiveChunksProtocolResponse.STATUS_OK) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Reads exactly the declared length from each chunk's channel, one after the other.
+	 */
+	private class SequenceChannel implements ReadableByteChannel {
+		private int _current = 0;
+		private int _currentRemaining = -1;
+		private boolean _open = true;
+
+		@Override public int read(ByteBuffer dst) throws IOException {
+			while (_current < _channels.size()) {
+				if (_currentRemaining < 0) {
+					_currentRemaining = lengthOf(_current);
+				}
+				if (_currentRemaining == 0) {
+					_channels.get(_current).close();
+					_current++;
+					_currentRemaining = -1;
+					continue;
+				}
+				ByteBuffer limited = dst.duplicate();
+				limited.limit(limited.position() + Math.min(limited.remaining(), _currentRemaining));
+				int read = _channels.get(_current).read(limited);
+				if (read < 0) {
+					return -1;
+				}
+				dst.position(limited.position());
+				_currentRemaining -= read;
+				return read;
+			}
+			return -1;
+		}
+
+		@Override public boolean isOpen() {
+			return _open;
+		}
+
+		@Override public void close() {
+			_open = false;
+		}
+
+		private int lengthOf(int channelIndex) {
+			int index = 0;
+			for (GiveChunksProtocolResponse.ChunkEntry entry : _entries) {
+				if (entry.status == GiveChunksProtocolResponse.STATUS_OK) {
+					if (index == channelIndex) {
+						return entry.length;
+					}
+					index++;
+				}
+			}
+			return 0;
+		}
+	}
+}
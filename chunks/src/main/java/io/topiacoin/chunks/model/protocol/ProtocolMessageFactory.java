@@ -10,6 +10,13 @@ import java.util.Map;
 
 public class ProtocolMessageFactory {
 
+	//A streamed chunk response is sent as a start frame, any number of data frames, and an end frame
+	public static final byte CHUNK_STREAM_START = 0x05;
+	public static final byte CHUNK_STREAM_DATA = 0x06;
+	public static final byte CHUNK_STREAM_END = 0x07;
+	//A streamed multi-chunk response starts with its own start frame, and then uses the same data and end frames
+	public static final byte CHUNKS_STREAM_START = 0x0C;
+
 	private final Map<String, Byte> _messageTypes = new HashMap<>();
 	private List<Byte> _requestMessageTypes = new ArrayList<>();
 	private List<Byte> _errorMessageTypes = new ArrayList<>();
@@ -25,6 +32,15 @@ public class ProtocolMessageFactory {
 		_requestMessageTypes.add(b);
 		b = 0x04;
 		_messageTypes.put("GIVE_CHUNK", b);
+		b = CHUNK_STREAM_START;
+		_messageTypes.put("GIVE_CHUNK_STREAM", b);
+		b = 0x0A;
+		_messageTypes.put("REQUEST_CHUNKS", b);
+		_requestMessageTypes.add(b);
+		b = 0x0B;
+		_messageTypes.put("GIVE_CHUNKS", b);
+		b = CHUNKS_STREAM_START;
+		_messageTypes.put("GIVE_CHUNKS_STREAM", b);
 		b = 0x09;
 		_messageTypes.put("ERROR", b);
 		_errorMessageTypes.add(b);
@@ -40,6 +56,10 @@ public class ProtocolMessageFactory {
 			toReturn = new FetchChunkProtocolRequest();
 		} else if (messageType == 0x04) {
 			toReturn = new GiveChunkProtocolResponse();
+		} else if (messageType == 0x0A) {
+			toReturn = new FetchChunksProtocolRequest();
+		} else if (messageType == 0x0B) {
+			toReturn = new GiveChunksProtocolResponse();
 		} else if (messageType == 0x09) {
 			toReturn = new ErrorProtocolResponse();
 		} else {
@@ -64,4 +84,8 @@ public class ProtocolMessageFactory {
 	public boolean isError(byte messageType) {
 		return _errorMessageTypes.contains(messageType);
 	}
+
+	public boolean isChunkStream(byte messageType) {
+		return messageType == CHUNK_STREAM_START || messageType == CHUNKS_STREAM_START || messageType == CHUNK_STREAM_DATA || messageType == CHUNK_STREAM_END;
+	}
 }
@@ -0,0 +1,62 @@
+package io.topiacoin.chunks.model.protocol;
+
+import java.nio.channels.ReadableByteChannel;
+import java.security.InvalidKeyException;
+import java.security.Signature;
+
+/**
+ * A response whose chunk data is read from a channel while it is being sent, rather than held in memory. The
+ * ProtocolCommsService sends it as a header, a series of bounded data segments, and the signature, which is computed
+ * as the data goes out. The receiver decodes the header into an empty instance of the same class, collects the data,
+ * and then calls assemble() to build the regular response that is handed to the response handler.
+ *
+ * toBytes() and fromBytes() only deal with the header.
+ */
+public interface StreamedProtocolResponse extends ProtocolMessage {
+
+	/**
+	 * Returns the channel the chunk data will be read from.
+	 */
+	public ReadableByteChannel getChunkDataChannel();
+
+	/**
+	 * Returns the number of bytes of chunk data that follow the header.
+	 */
+	public int getChunkDataLength();
+
+	/**
+	 * Returns a Signature that has been initialized with the signing key and fed the header. The caller must feed it
+	 * the chunk data and then call finishSignature().
+	 *
+	 * @return a Signature ready to be updated with the chunk data
+	 * @throws InvalidKeyException if the message has not been signed, or the signing key cannot be used
+	 */
+	public Signature startSignature() throws InvalidKeyException;
+
+	/**
+	 * Completes a Signature started by startSignature() once all of the chunk data has been fed to it.
+	 *
+	 * @param sig the Signature returned by startSignature()
+	 * @return the signature bytes
+	 */
+	public byte[] finishSignature(Signature sig);
+
+	/**
+	 * Returns true if a header decoded with fromBytes() describes a stream that can be received.
+	 */
+	public boolean hasValidHeader();
+
+	/**
+	 * Builds the response the stream stands for from the received chunk data and signature.
+	 *
+	 * @param chunkData the chunk data that followed the header
+	 * @param signature the signature that ended the stream
+	 * @return the response to hand to the response handler
+	 */
+	public ProtocolMessage assemble(byte[] chunkData, byte[] signature);
+
+	/**
+	 * Closes the chunk data channel. Used once the data has been sent, or when the response will not be sent after all.
+	 */
+	public void close();
+}
@@ -0,0 +1,157 @@
+package io.topiacoin.chunks;
+
+import io.topiacoin.core.Configuration;
+import io.topiacoin.core.impl.DefaultConfiguration;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.HashUtils;
+import io.topiacoin.model.CurrentUser;
+import io.topiacoin.model.DataModel;
+import io.topiacoin.model.FileChunk;
+import io.topiacoin.model.FileVersion;
+import io.topiacoin.model.Member;
+import io.topiacoin.model.User;
+import io.topiacoin.model.Workspace;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkScrubberTest {
+
+	@Test
+	public void corruptChunksAreQuarantinedAndFetchedAgainTest() throws Exception {
+		File chunkStorageLocA = new File("./target/scrubbed-chunks1");
+		File chunkStorageLocB = new File("./target/scrubbed-chunks2");
+		File quarantineLoc = new File("./target/scrubbed-chunks-quarantine");
+		ChunkManager managerA = null;
+		ChunkManager managerB = null;
+		try {
+			Configuration configA = new DefaultConfiguration();
+			configA.setConfigurationOption("chunkStorageLoc", chunkStorageLocA.getAbsolutePath());
+			configA.setConfigurationOption("chunkStorageQuota", "1000");
+			configA.setConfigurationOption("chunkListenerPort", "7781");
+			configA.setConfigurationOption("chunkQuarantineLoc", quarantineLoc.getAbsolutePath());
+			configA.setConfigurationOption("chunkScrubStartDelayMs", "3600000");
+			Configuration configB = new DefaultConfiguration();
+			configB.setConfigurationOption("chunkStorageLoc", chunkStorageLocB.getAbsolutePath());
+			configB.setConfigurationOption("chunkStorageQuota", "1000");
+			configB.setConfigurationOption("chunkListenerPort", "7782");
+			configB.setConfigurationOption("chunkScrubBytesPerSecond", "0");
+
+			KeyPair userAKeyPair = CryptoUtils.generateECKeyPair();
+			KeyPair userBKeyPair = CryptoUtils.generateECKeyPair();
+			CurrentUser currentUserA = new CurrentUser("userA", "userA@email.com", userAKeyPair.getPublic(), userAKeyPair.getPrivate());
+			CurrentUser currentUserB = new CurrentUser("userB", "userB@email.com", userBKeyPair.getPublic(), userBKeyPair.getPrivate());
+			Member memberA = new Member();
+			Member memberB = new Member();
+			memberA.setUserID(currentUserA.getUserID());
+			memberB.setUserID(currentUserB.getUserID());
+			memberA.setAuthToken("userAAuthToken");
+			memberB.setAuthToken("userBAuthToken");
+			List<Member> members = new ArrayList<Member>();
+			members.add(memberA);
+			members.add(memberB);
+			Workspace workspace = new Workspace();
+			workspace.setMembers(members);
+			workspace.setGuid(12345L);
+
+			byte[] fooData = "FOODATA".getBytes();
+			byte[] barData = "BARDATA".getBytes();
+			FileChunk fooChunk = new FileChunk();
+			fooChunk.setChunkID("foo");
+			fooChunk.setCipherTextHash(HashUtils.sha256String(fooData));
+			FileChunk barChunk = new FileChunk();
+			barChunk.setChunkID("bar");
+			barChunk.setCipherTextHash(HashUtils.sha256String(barData));
+			FileVersion v = new FileVersion();
+			v.setVersionID("VersionFoo");
+			io.topiacoin.model.File f = new io.topiacoin.model.File();
+			f.setEntryID("FileFoo");
+
+			DataModel modelA = new TestDataModel(configA);
+			DataModel modelB = new TestDataModel(configB);
+			for (DataModel model : Arrays.asList(modelA, modelB)) {
+				model.addUser(new User(currentUserA));
+				model.addUser(new User(currentUserB));
+				model.addWorkspace(workspace);
+				model.addMemberToWorkspace(12345L, memberA);
+				model.addMemberToWorkspace(12345L, memberB);
+				model.addFileToWorkspace(12345L, f);
+				model.addFileVersion("FileFoo", v);
+				model.addChunkForFile("FileFoo", "VersionFoo", fooChunk);
+				model.addChunkForFile("FileFoo", "VersionFoo", barChunk);
+			}
+			modelA.setCurrentUser(currentUserA);
+			modelB.setCurrentUser(currentUserB);
+
+			managerA = new ChunkManager(configA, modelA);
+			managerB = new ChunkManager(configB, modelB);
+			modelA.addUserNode(managerB.getMyUserNode());
+			modelB.addUserNode(managerA.getMyUserNode());
+
+			// A's copy of foo, which two files share, has been corrupted.  B's copy is intact.
+			managerA.addChunk("foo", "FOODAT4".getBytes());
+			assertTrue(managerA.addChunkReference("foo"));
+			managerA.addChunk("bar", barData);
+			managerB.addChunk("foo", fooData);
+
+			ChunkScrubber scrubber = managerA.getChunkScrubber();
+			scrubber.scrubChunks();
+
+			assertEquals(2, scrubber.getScrubbedChunkCount());
+			assertEquals(1, scrubber.getCorruptChunkCount());
+			assertTrue(new File(quarantineLoc, "foo").exists());
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (scrubber.getRefetchedChunkCount() < 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(1, scrubber.getRefetchedChunkCount());
+			assertTrue(scrubber.getQuarantinedChunkIDs().isEmpty());
+			assertFalse(new File(quarantineLoc, "foo").exists());
+			assertArrayEquals(fooData, managerA.getChunkData("foo"));
+			assertArrayEquals(barData, managerA.getChunkData("bar"));
+
+			// Both references to foo were restored
+			assertTrue(managerA.removeChunk("foo"));
+			assertTrue(managerA.hasChunk("foo"));
+			assertTrue(managerA.removeChunk("foo"));
+			assertFalse(managerA.hasChunk("foo"));
+		} finally {
+			if (managerA != null) {
+				managerA.stop();
+			}
+			if (managerB != null) {
+				managerB.stop();
+			}
+			FileUtils.deleteDirectory(chunkStorageLocA);
+			FileUtils.deleteDirectory(chunkStorageLocB);
+			FileUtils.deleteDirectory(quarantineLoc);
+		}
+	}
+
+	@Test
+	public void tokenBucketHoldsWorkToItsRateTest() throws Exception {
+		TokenBucket bucket = new TokenBucket(10000, 1000);
+
+		// The bucket starts full, so the first thousand tokens are taken straight away
+		long start = System.nanoTime();
+		bucket.acquire(1000);
+		assertTrue(System.nanoTime() - start < 50000000L);
+
+		// The next two thousand have to be added to the bucket first, which takes 200ms
+		bucket.acquire(1500);
+		bucket.acquire(500);
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue("Took " + elapsedMillis + "ms", elapsedMillis >= 190);
+	}
+}
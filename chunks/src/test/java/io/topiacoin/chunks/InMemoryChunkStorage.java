@@ -11,7 +11,13 @@ import org.apache.commons.io.IOUtils;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class InMemoryChunkStorage implements ChunkStorage {
@@ -42,6 +48,22 @@ public class InMemoryChunkStorage implements ChunkStorage {
 		}
 	}
 
+	@Override public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+		if(chunkdata.containsKey(chunkID)) {
+			return new ByteArrayChannel(chunkdata.get(chunkID));
+		} else {
+			throw new NoSuchChunkException("");
+		}
+	}
+
+	@Override public ByteBuffer getChunkDataBuffer(String chunkID) throws NoSuchChunkException, IOException {
+		if(chunkdata.containsKey(chunkID)) {
+			return ByteBuffer.wrap(chunkdata.get(chunkID)).asReadOnlyBuffer();
+		} else {
+			throw new NoSuchChunkException("");
+		}
+	}
+
 	@Override public boolean hasChunk(String chunkID) {
 		return chunkdata.containsKey(chunkID);
 	}
@@ -50,6 +72,17 @@ public class InMemoryChunkStorage implements ChunkStorage {
 		return chunkdata.remove(chunkID) != null;
 	}
 
+	@Override public boolean addChunkReference(String chunkID) {
+		return chunkdata.containsKey(chunkID);
+	}
+
+	@Override public void chunkAccessed(String chunkID) {
+	}
+
+	@Override public List<String> getChunkIDs() {
+		return new ArrayList<>(chunkdata.keySet());
+	}
+
 	@Override public long getStorageQuota() {
 		return 999999999;
 	}
@@ -69,4 +102,60 @@ public class InMemoryChunkStorage implements ChunkStorage {
 	@Override public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
 
 	}
+
+	@Override public void shutdown() {
+
+	}
+
+	private static class ByteArrayChannel implements SeekableByteChannel {
+		private final byte[] _data;
+		private int _position = 0;
+		private boolean _open = true;
+
+		ByteArrayChannel(byte[] data) {
+			_data = data;
+		}
+
+		@Override public int read(ByteBuffer dst) throws IOException {
+			if(!_open) {
+				throw new ClosedChannelException();
+			}
+			if(_position >= _data.length) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), _data.length - _position);
+			dst.put(_data, _position, n);
+			_position += n;
+			return n;
+		}
+
+		@Override public int write(ByteBuffer src) throws IOException {
+			throw new NonWritableChannelException();
+		}
+
+		@Override public long position() throws IOException {
+			return _position;
+		}
+
+		@Override public SeekableByteChannel position(long newPosition) throws IOException {
+			_position = (int) Math.min(newPosition, _data.length);
+			return this;
+		}
+
+		@Override public long size() throws IOException {
+			return _data.length;
+		}
+
+		@Override public SeekableByteChannel truncate(long size) throws IOException {
+			throw new NonWritableChannelException();
+		}
+
+		@Override public boolean isOpen() {
+			return _open;
+		}
+
+		@Override public void close() throws IOException {
+			_open = false;
+		}
+	}
 }
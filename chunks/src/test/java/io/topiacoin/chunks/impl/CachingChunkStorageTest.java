@@ -0,0 +1,239 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.InMemoryChunkStorage;
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import io.topiacoin.chunks.intf.AbstractChunkStorageTest;
+import io.topiacoin.chunks.intf.ChunkInfoManager;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+public class CachingChunkStorageTest extends AbstractChunkStorageTest {
+
+    private static File _chunkDir;
+
+    @BeforeClass
+    public static void setupClass() throws Exception {
+        _chunkDir = new File("./target/cached-chunks");
+        FileUtils.deleteDirectory(_chunkDir);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        FileUtils.deleteDirectory(_chunkDir);
+    }
+
+    @Override
+    protected ChunkStorage getChunkStorage(long quota, long inactivityTimeout, ChunkInfoManager chunkInfoManager) {
+
+        FileSystemChunkStorage fileSystemChunkStorage = new FileSystemChunkStorage();
+        fileSystemChunkStorage.setChunkStorageDirectory(_chunkDir);
+        fileSystemChunkStorage.setStorageQuota(quota);
+        fileSystemChunkStorage.setReservationInactivityTimeout(inactivityTimeout);
+        fileSystemChunkStorage.setChunkInfoManager(chunkInfoManager);
+        fileSystemChunkStorage.init();
+
+        CachingChunkStorage chunkStorage = new CachingChunkStorage();
+        chunkStorage.setChunkStorage(fileSystemChunkStorage);
+        chunkStorage.setCacheSize(1024 * 1024);
+        chunkStorage.init();
+
+        return chunkStorage;
+    }
+
+    @Override
+    protected void emptyChunkStorage(ChunkStorage chunkStorage) {
+        CachingChunkStorage cachingChunkStorage = (CachingChunkStorage) chunkStorage;
+        FileSystemChunkStorage fileSystemChunkStorage = (FileSystemChunkStorage) cachingChunkStorage.getChunkStorage();
+        try {
+            FileUtils.cleanDirectory(_chunkDir);
+        } catch (IOException e) {
+            fail("Unable to empty the chunk storage: " + e);
+        }
+        fileSystemChunkStorage.clearReservations();
+        fileSystemChunkStorage.clearReferenceCounts();
+        fileSystemChunkStorage.updateUsedStorage();
+        cachingChunkStorage.clearCache();
+    }
+
+    @Test
+    public void testRepeatedReadsAreServedFromTheCache() throws Exception {
+        InMemoryChunkStorage backingStorage = new InMemoryChunkStorage();
+        CachingChunkStorage chunkStorage = new CachingChunkStorage();
+        chunkStorage.setChunkStorage(backingStorage);
+        chunkStorage.setCacheSize(65536);
+        chunkStorage.setOffHeap(true);
+        chunkStorage.init();
+
+        byte[] chunkData = new byte[1024];
+        new Random().nextBytes(chunkData);
+        chunkStorage.addChunk("chunk", new ByteArrayInputStream(chunkData), null, false);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(Arrays.equals(chunkData, chunkStorage.getChunkData("chunk")));
+        }
+        SeekableByteChannel channel = chunkStorage.getChunkDataChannel("chunk");
+        assertEquals(chunkData.length, channel.size());
+
+        assertEquals(1, chunkStorage.getMissCount());
+        assertEquals(4, chunkStorage.getHitCount());
+        assertEquals(0.8, chunkStorage.getHitRatio(), 0.001);
+        assertEquals(4 * chunkData.length, chunkStorage.getBytesSaved());
+        assertEquals(chunkData.length, chunkStorage.getCachedBytes());
+
+        // Only the chunks admitted to the cache are copied off-heap
+        assertTrue(chunkStorage.getChunkDataBuffer("chunk").isDirect());
+        byte[] largeChunkData = new byte[16384];
+        chunkStorage.addChunk("large-chunk", new ByteArrayInputStream(largeChunkData), null, false);
+        assertFalse(chunkStorage.getChunkDataBuffer("large-chunk").isDirect());
+        assertEquals(1, chunkStorage.getRejectedCount());
+        assertTrue(chunkStorage.removeChunk("large-chunk"));
+
+        // Removing the chunk drops it from the cache
+        assertTrue(chunkStorage.removeChunk("chunk"));
+        assertEquals(0, chunkStorage.getCachedBytes());
+        try {
+            chunkStorage.getChunkData("chunk");
+            fail("Expected a NoSuchChunkException");
+        } catch (NoSuchChunkException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testScanDoesNotPushOutPopularChunks() throws Exception {
+        InMemoryChunkStorage backingStorage = new InMemoryChunkStorage();
+        CachingChunkStorage chunkStorage = new CachingChunkStorage();
+        chunkStorage.setChunkStorage(backingStorage);
+        chunkStorage.setCacheSize(8 * 1024);
+        chunkStorage.init();
+
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            byte[] chunkData = new byte[1024];
+            random.nextBytes(chunkData);
+            chunkStorage.addChunk("chunk-" + i, new ByteArrayInputStream(chunkData), null, false);
+        }
+
+        // Read eight chunks repeatedly, filling the cache with them
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < 8; i++) {
+                chunkStorage.getChunkData("chunk-" + i);
+            }
+        }
+        assertEquals(8, chunkStorage.getCachedChunkCount());
+
+        // Reading every other chunk once doesn't push them out
+        for (int i = 8; i < 100; i++) {
+            chunkStorage.getChunkData("chunk-" + i);
+        }
+        long hitCount = chunkStorage.getHitCount();
+        for (int i = 0; i < 8; i++) {
+            chunkStorage.getChunkData("chunk-" + i);
+        }
+        assertEquals(hitCount + 8, chunkStorage.getHitCount());
+        assertEquals(92, chunkStorage.getRejectedCount());
+    }
+
+    @Test
+    public void testCacheHitsKeepChunksFromBeingPurged() throws Exception {
+        CachingChunkStorage chunkStorage = (CachingChunkStorage) getChunkStorage(4096, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[] chunkData = new byte[2048];
+        new Random().nextBytes(chunkData);
+        chunkStorage.addChunk("popular-chunk", new ByteArrayInputStream(chunkData), null, true);
+        chunkStorage.addChunk("unpopular-chunk", new ByteArrayInputStream(chunkData), null, true);
+
+        chunkStorage.getChunkData("popular-chunk");
+        chunkStorage.getChunkData("unpopular-chunk");
+        long hitCount = chunkStorage.getHitCount();
+        chunkStorage.getChunkData("popular-chunk");
+        assertEquals(hitCount + 1, chunkStorage.getHitCount());
+
+        // The read answered from the cache still counts as a use of the chunk in the underlying storage
+        assertTrue(chunkStorage.purgeStorage(1024));
+        assertTrue(chunkStorage.hasChunk("popular-chunk"));
+        assertFalse(chunkStorage.hasChunk("unpopular-chunk"));
+
+        chunkStorage.shutdown();
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneRead() throws Exception {
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch releaseRead = new CountDownLatch(1);
+        final AtomicInteger readCount = new AtomicInteger();
+        InMemoryChunkStorage backingStorage = new InMemoryChunkStorage() {
+            @Override
+            public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+                readCount.incrementAndGet();
+                readStarted.countDown();
+                try {
+                    releaseRead.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.getChunkDataChannel(chunkID);
+            }
+        };
+        final CachingChunkStorage chunkStorage = new CachingChunkStorage();
+        chunkStorage.setChunkStorage(backingStorage);
+        chunkStorage.setCacheSize(65536);
+        chunkStorage.init();
+
+        byte[] chunkData = new byte[4096];
+        new Random().nextBytes(chunkData);
+        chunkStorage.addChunk("chunk", new ByteArrayInputStream(chunkData), null, false);
+
+        int readerCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(readerCount);
+        try {
+            List<Future<byte[]>> reads = new ArrayList<>();
+            for (int i = 0; i < readerCount; i++) {
+                reads.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return chunkStorage.getChunkData("chunk");
+                    }
+                }));
+            }
+
+            assertTrue(readStarted.await(5, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (chunkStorage.getSharedReadCount() + chunkStorage.getHitCount() < readerCount - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            releaseRead.countDown();
+
+            for (Future<byte[]> read : reads) {
+                assertTrue(Arrays.equals(chunkData, read.get(5, TimeUnit.SECONDS)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, readCount.get());
+        assertEquals(1, chunkStorage.getMissCount());
+    }
+}
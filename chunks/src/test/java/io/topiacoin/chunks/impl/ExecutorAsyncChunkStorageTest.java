@@ -0,0 +1,183 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.InMemoryChunkStorage;
+import io.topiacoin.chunks.exceptions.NoSuchChunkException;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class ExecutorAsyncChunkStorageTest {
+
+    private File _chunkDir;
+    private FileSystemChunkStorage _chunkStorage;
+    private ExecutorAsyncChunkStorage _asyncChunkStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        _chunkDir = new File("./target/async-chunks");
+        FileUtils.deleteDirectory(_chunkDir);
+
+        _chunkStorage = new FileSystemChunkStorage();
+        _chunkStorage.setChunkStorageDirectory(_chunkDir);
+        _chunkStorage.setStorageQuota(1024 * 1024);
+        _chunkStorage.setChunkInfoManager(new InMemoryChunkInfoManager());
+        _chunkStorage.init();
+        _asyncChunkStorage = new ExecutorAsyncChunkStorage(_chunkStorage, 4, 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _asyncChunkStorage.shutdown();
+        _chunkStorage.shutdown();
+        FileUtils.deleteDirectory(_chunkDir);
+    }
+
+    @Test
+    public void testBatchResultsAreInRequestOrder() throws Exception {
+        Map<String, byte[]> chunks = new LinkedHashMap<>();
+        Random random = new Random();
+        for (int i = 0; i < 32; i++) {
+            byte[] chunkData = new byte[1024];
+            random.nextBytes(chunkData);
+            chunks.put("chunk-" + i, chunkData);
+        }
+
+        _asyncChunkStorage.addChunks(chunks, false).get(10, TimeUnit.SECONDS);
+
+        List<String> chunkIDs = new ArrayList<>(chunks.keySet());
+        chunkIDs.add("missing-chunk");
+        Map<String, Boolean> hasChunks = _asyncChunkStorage.hasChunks(chunkIDs).get(10, TimeUnit.SECONDS);
+        assertEquals(chunkIDs, new ArrayList<>(hasChunks.keySet()));
+        assertFalse(hasChunks.get("missing-chunk"));
+        assertEquals(32, _chunkStorage.getChunkIDs().size());
+
+        Map<String, byte[]> chunkData = _asyncChunkStorage.getChunks(chunks.keySet()).get(10, TimeUnit.SECONDS);
+        assertEquals(new ArrayList<>(chunks.keySet()), new ArrayList<>(chunkData.keySet()));
+        for (String chunkID : chunks.keySet()) {
+            assertTrue(Arrays.equals(chunks.get(chunkID), chunkData.get(chunkID)));
+        }
+    }
+
+    @Test
+    public void testGetChunksFailsOnAMissingChunk() throws Exception {
+        _chunkStorage.addChunk("chunk-0", new ByteArrayInputStream(new byte[16]), null, false);
+
+        try {
+            _asyncChunkStorage.getChunks(Arrays.asList("chunk-0", "missing-chunk")).get(10, TimeUnit.SECONDS);
+            fail("Expected the batch to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoSuchChunkException);
+        }
+    }
+
+    @Test
+    public void testCancelledBatchSkipsUnstartedChunks() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> readChunks = new ArrayList<>();
+        InMemoryChunkStorage blockingStorage = new InMemoryChunkStorage() {
+            @Override
+            public byte[] getChunkData(String chunkID) throws NoSuchChunkException, IOException {
+                synchronized (readChunks) {
+                    readChunks.add(chunkID);
+                }
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getChunkData(chunkID);
+            }
+        };
+        List<String> chunkIDs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            blockingStorage.addChunk("chunk-" + i, new ByteArrayInputStream(new byte[16]), null, false);
+            chunkIDs.add("chunk-" + i);
+        }
+
+        // A single I/O thread, so the first chunk holds up the rest of the batch
+        ExecutorAsyncChunkStorage asyncChunkStorage = new ExecutorAsyncChunkStorage(blockingStorage, 1, 8);
+        try {
+            CompletableFuture<Map<String, byte[]>> batch = asyncChunkStorage.getChunks(chunkIDs);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertTrue(batch.cancel(false));
+            release.countDown();
+        } finally {
+            asyncChunkStorage.shutdown();
+        }
+
+        assertEquals(Arrays.asList("chunk-0"), readChunks);
+    }
+
+    @Test
+    public void testBatchSubmittedDuringShutdownFails() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorAsyncChunkStorage[] asyncChunkStorage = new ExecutorAsyncChunkStorage[1];
+        InMemoryChunkStorage blockingStorage = new InMemoryChunkStorage() {
+            @Override
+            public boolean hasChunk(String chunkID) {
+                if (chunkID.equals("blocking-chunk")) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (chunkID.equals("caller-runs-chunk")) {
+                    // The queue was full, so the submitting thread runs this chunk.  Shut the pool down before the
+                    // next chunk of the batch is submitted.
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            asyncChunkStorage[0].shutdown();
+                        }
+                    }).start();
+                    while (!asyncChunkStorage[0].hasChunks(Collections.<String>emptyList()).isCompletedExceptionally()) {
+                        Thread.yield();
+                    }
+                }
+                return super.hasChunk(chunkID);
+            }
+        };
+
+        // A single I/O thread and a single queue slot, held by the blocking chunk and the queued chunk
+        asyncChunkStorage[0] = new ExecutorAsyncChunkStorage(blockingStorage, 1, 1);
+        try {
+            asyncChunkStorage[0].hasChunks(Arrays.asList("blocking-chunk"));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            CompletableFuture<Map<String, Boolean>> batch = asyncChunkStorage[0].hasChunks(Arrays.asList("queued-chunk", "caller-runs-chunk", "rejected-chunk"));
+            release.countDown();
+            try {
+                batch.get(10, TimeUnit.SECONDS);
+                fail("Expected the batch to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        } finally {
+            release.countDown();
+            asyncChunkStorage[0].shutdown();
+        }
+    }
+}
@@ -1,12 +1,32 @@
 package io.topiacoin.chunks.impl;
 
+import io.topiacoin.chunks.exceptions.DuplicateChunkException;
 import io.topiacoin.chunks.intf.AbstractChunkStorageTest;
 import io.topiacoin.chunks.intf.ChunkInfoManager;
 import io.topiacoin.chunks.intf.ChunkStorage;
+import io.topiacoin.chunks.intf.ReservationID;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.*;
 
 public class FileSystemChunkStorageTest extends AbstractChunkStorageTest {
 
@@ -47,9 +67,438 @@ public class FileSystemChunkStorageTest extends AbstractChunkStorageTest {
     protected void emptyChunkStorage(ChunkStorage chunkStorage) {
         cleanDir(_chunkDir);
         ((FileSystemChunkStorage)chunkStorage).clearReservations() ;
+        ((FileSystemChunkStorage)chunkStorage).clearReferenceCounts() ;
         ((FileSystemChunkStorage)chunkStorage).updateUsedStorage();
     }
 
+    @Test
+    public void testChunkReferences() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[] chunkData = new byte[1024];
+        new Random().nextBytes(chunkData);
+        String chunkID = sha256(chunkData);
+
+        assertFalse(chunkStorage.addChunkReference(chunkID));
+        assertEquals(0, chunkStorage.getChunkReferenceCount(chunkID));
+
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, false);
+        assertEquals(1, chunkStorage.getChunkReferenceCount(chunkID));
+
+        assertTrue(chunkStorage.addChunkReference(chunkID));
+        assertTrue(chunkStorage.addChunkReference(chunkID));
+        assertEquals(3, chunkStorage.getChunkReferenceCount(chunkID));
+
+        // The data is kept until the last reference is removed
+        assertTrue(chunkStorage.removeChunk(chunkID));
+        assertTrue(chunkStorage.removeChunk(chunkID));
+        assertTrue(chunkStorage.hasChunk(chunkID));
+        assertEquals(1, chunkStorage.getChunkReferenceCount(chunkID));
+        assertEquals(chunkData.length, chunkStorage.getStorageUsed());
+
+        assertTrue(chunkStorage.removeChunk(chunkID));
+        assertFalse(chunkStorage.hasChunk(chunkID));
+        assertFalse(chunkStorage.removeChunk(chunkID));
+        assertEquals(0, chunkStorage.getStorageUsed());
+    }
+
+    @Test
+    public void testChunkReferencesArePersisted() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[] chunkData = new byte[1024];
+        new Random().nextBytes(chunkData);
+        String chunkID = sha256(chunkData);
+
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, false);
+        chunkStorage.addChunkReference(chunkID);
+
+        // The reference counts are neither counted as used storage, nor lost when the storage is restarted
+        FileSystemChunkStorage restartedStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        assertEquals(2, restartedStorage.getChunkReferenceCount(chunkID));
+        assertEquals(chunkData.length, restartedStorage.getStorageUsed());
+
+        restartedStorage.removeChunk(chunkID);
+        restartedStorage.removeChunk(chunkID);
+        assertFalse(restartedStorage.hasChunk(chunkID));
+    }
+
+    @Test
+    public void testChunkIndexIsRestoredFromTheJournal() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[][] chunkData = new byte[3][1024];
+        String[] chunkIDs = new String[chunkData.length];
+        Random random = new Random();
+        for (int i = 0; i < chunkData.length; i++) {
+            random.nextBytes(chunkData[i]);
+            chunkIDs[i] = sha256(chunkData[i]);
+            chunkStorage.addChunk(chunkIDs[i], new ByteArrayInputStream(chunkData[i]), null, false);
+        }
+        chunkStorage.addChunkReference(chunkIDs[1]);
+        chunkStorage.removeChunk(chunkIDs[2]);
+
+        // The storage isn't shut down, so the restarted storage has to replay the changes from the journal
+        FileSystemChunkStorage restartedStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        assertTrue(restartedStorage.hasChunk(chunkIDs[0]));
+        assertTrue(restartedStorage.hasChunk(chunkIDs[1]));
+        assertFalse(restartedStorage.hasChunk(chunkIDs[2]));
+        assertEquals(1, restartedStorage.getChunkReferenceCount(chunkIDs[0]));
+        assertEquals(2, restartedStorage.getChunkReferenceCount(chunkIDs[1]));
+        assertEquals(2048, restartedStorage.getStorageUsed());
+    }
+
+    @Test
+    public void testChunkIndexIsRebuiltWhenMissing() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[] chunkData = new byte[1024];
+        new Random().nextBytes(chunkData);
+        String chunkID = sha256(chunkData);
+
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, false);
+        chunkStorage.shutdown();
+
+        File[] indexFiles = _chunkDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(ChunkIndex.INDEX_FILE_PREFIX);
+            }
+        });
+        assertTrue(indexFiles.length > 0);
+        for (File indexFile : indexFiles) {
+            assertTrue(indexFile.delete());
+        }
+
+        FileSystemChunkStorage restartedStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        assertTrue(restartedStorage.hasChunk(chunkID));
+        assertEquals(1, restartedStorage.getChunkReferenceCount(chunkID));
+        assertEquals(chunkData.length, restartedStorage.getStorageUsed());
+    }
+
+    @Test
+    public void testChunkIndexIgnoresIncompleteJournalRecords() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[][] chunkData = new byte[2][1024];
+        String[] chunkIDs = new String[chunkData.length];
+        Random random = new Random();
+        for (int i = 0; i < chunkData.length; i++) {
+            random.nextBytes(chunkData[i]);
+            chunkIDs[i] = sha256(chunkData[i]);
+        }
+        chunkStorage.addChunk(chunkIDs[0], new ByteArrayInputStream(chunkData[0]), null, false);
+
+        // Leave a partly written record at the end of the journal, as a crash might
+        try (FileOutputStream journal = new FileOutputStream(new File(_chunkDir, ChunkIndex.INDEX_FILE_PREFIX + ".journal"), true)) {
+            journal.write(new byte[]{1, 0, 64, 'a', 'b'});
+        }
+
+        FileSystemChunkStorage restartedStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        assertTrue(restartedStorage.hasChunk(chunkIDs[0]));
+        assertEquals(chunkData[0].length, restartedStorage.getStorageUsed());
+
+        // Changes made after the incomplete record must survive the next restart
+        restartedStorage.addChunk(chunkIDs[1], new ByteArrayInputStream(chunkData[1]), null, false);
+
+        FileSystemChunkStorage secondRestartedStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        assertTrue(secondRestartedStorage.hasChunk(chunkIDs[0]));
+        assertTrue(secondRestartedStorage.hasChunk(chunkIDs[1]));
+        assertEquals(2048, secondRestartedStorage.getStorageUsed());
+    }
+
+    @Test
+    public void testChunkIndexSnapshotsCompactTheJournal() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+        chunkStorage.setIndexSnapshotInterval(4);
+
+        Random random = new Random();
+        String[] chunkIDs = new String[10];
+        for (int i = 0; i < chunkIDs.length; i++) {
+            byte[] chunkData = new byte[100];
+            random.nextBytes(chunkData);
+            chunkIDs[i] = sha256(chunkData);
+            chunkStorage.addChunk(chunkIDs[i], new ByteArrayInputStream(chunkData), null, false);
+        }
+
+        // Only the changes since the last snapshot are left in the journal
+        File journalFile = new File(_chunkDir, ChunkIndex.INDEX_FILE_PREFIX + ".journal");
+        assertTrue(journalFile.length() < 4 * 100);
+
+        FileSystemChunkStorage restartedStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        for (String chunkID : chunkIDs) {
+            assertTrue(restartedStorage.hasChunk(chunkID));
+        }
+        assertEquals(1000, restartedStorage.getStorageUsed());
+    }
+
+    @Test
+    public void testChunksAreEvictedInTheBackgroundAboveTheHighWatermark() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(10000, 10000, null);
+        emptyChunkStorage(chunkStorage);
+        chunkStorage.setEvictionWatermarks(0.5, 0.8);
+
+        Random random = new Random();
+        String[] chunkIDs = new String[9];
+        for (int i = 0; i < chunkIDs.length; i++) {
+            byte[] chunkData = new byte[1000];
+            random.nextBytes(chunkData);
+            chunkIDs[i] = sha256(chunkData);
+            chunkStorage.addChunk(chunkIDs[i], new ByteArrayInputStream(chunkData), null, false);
+
+            // Reading the first chunk keeps it from being evicted
+            chunkStorage.getChunkData(chunkIDs[0]);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((chunkStorage.getStorageUsed() > 5000 || chunkStorage.getEvictedChunkCount() < 4) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(5000, chunkStorage.getStorageUsed());
+        assertEquals(4, chunkStorage.getEvictedChunkCount());
+        assertTrue(chunkStorage.hasChunk(chunkIDs[0]));
+        for (int i = 1; i <= 4; i++) {
+            assertFalse(chunkStorage.hasChunk(chunkIDs[i]));
+        }
+        for (int i = 5; i < chunkIDs.length; i++) {
+            assertTrue(chunkStorage.hasChunk(chunkIDs[i]));
+        }
+    }
+
+    @Test
+    public void testConcurrentAdditionsKeepTheAccountingExact() throws Exception {
+        final long quota = 64 * 1024 * 1024;
+        final FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(quota, 60000, null);
+        emptyChunkStorage(chunkStorage);
+
+        final int threadCount = 16;
+        final int chunksPerThread = 100;
+        final long reservedSpace = threadCount * chunksPerThread * 1000;
+        final ReservationID sharedReservation = chunkStorage.reserveStorageSpace(reservedSpace);
+
+        final byte[] sharedChunkData = new byte[1000];
+        new Random().nextBytes(sharedChunkData);
+        final String sharedChunkID = sha256(sharedChunkData);
+
+        final AtomicLong storedBytes = new AtomicLong();
+        final AtomicLong reservedBytesUsed = new AtomicLong();
+        final AtomicInteger sharedChunkAdds = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            workers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(thread);
+                    start.await();
+
+                    for (int i = 0; i < chunksPerThread; i++) {
+                        byte[] chunkData = new byte[500 + random.nextInt(500)];
+                        random.nextBytes(chunkData);
+                        String chunkID = sha256(chunkData);
+
+                        // Half of the chunks are added against the shared reservation
+                        boolean reserved = (i % 2 == 0);
+                        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), reserved ? sharedReservation : null, false);
+                        if (reserved) {
+                            reservedBytesUsed.addAndGet(chunkData.length);
+                        }
+
+                        // Every fifth chunk is removed again
+                        if (i % 5 == 0) {
+                            assertTrue(chunkStorage.removeChunk(chunkID));
+                        } else {
+                            storedBytes.addAndGet(chunkData.length);
+                        }
+
+                        // Every thread races to add the same chunk, and takes out a reservation of its own
+                        if (i == chunksPerThread / 2) {
+                            try {
+                                chunkStorage.addChunk(sharedChunkID, new ByteArrayInputStream(sharedChunkData), null, false);
+                                sharedChunkAdds.incrementAndGet();
+                            } catch (DuplicateChunkException e) {
+                                // Expected for all but one of the threads
+                            }
+                            chunkStorage.releaseSpaceReservation(chunkStorage.reserveStorageSpace(4096));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+        try {
+            for (Future<?> worker : workers) {
+                worker.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, sharedChunkAdds.get());
+        storedBytes.addAndGet(sharedChunkData.length);
+
+        assertEquals(storedBytes.get(), chunkStorage.getStorageUsed());
+        assertEquals(reservedSpace - reservedBytesUsed.get(), sharedReservation.getRemainingSpace());
+        assertEquals(quota - storedBytes.get() - sharedReservation.getRemainingSpace(), chunkStorage.getAvailableStorage());
+
+        // The index written to disk agrees with the one in memory
+        FileSystemChunkStorage restartedStorage = (FileSystemChunkStorage) getChunkStorage(quota, 60000, null);
+        assertEquals(storedBytes.get(), restartedStorage.getStorageUsed());
+    }
+
+    @Test
+    public void testGroupCommitBatchesConcurrentAdditions() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(1024 * 1024, 10000, null);
+        emptyChunkStorage(chunkStorage);
+        chunkStorage.shutdown();
+
+        final FileSystemChunkStorage groupStorage = new FileSystemChunkStorage();
+        groupStorage.setChunkStorageDirectory(_chunkDir);
+        groupStorage.setStorageQuota(1024 * 1024);
+        groupStorage.setSyncPolicy(FileSystemChunkStorage.SyncPolicy.GROUP);
+        groupStorage.setGroupCommitWindow(5000);
+        groupStorage.init();
+
+        final int threadCount = 8;
+        final int chunksPerThread = 25;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<List<byte[]>>> additions = new ArrayList<>();
+        try {
+            for (int t = 0; t < threadCount; t++) {
+                final int thread = t;
+                additions.add(executor.submit(new Callable<List<byte[]>>() {
+                    @Override
+                    public List<byte[]> call() throws Exception {
+                        start.await();
+                        Random random = new Random(thread);
+                        List<byte[]> added = new ArrayList<>();
+                        for (int i = 0; i < chunksPerThread; i++) {
+                            byte[] chunkData = new byte[512];
+                            random.nextBytes(chunkData);
+                            groupStorage.addChunk("chunk-" + thread + "-" + i, new ByteArrayInputStream(chunkData), null, false);
+                            added.add(chunkData);
+                        }
+                        return added;
+                    }
+                }));
+            }
+            start.countDown();
+
+            for (int t = 0; t < threadCount; t++) {
+                List<byte[]> added = additions.get(t).get(30, TimeUnit.SECONDS);
+                for (int i = 0; i < chunksPerThread; i++) {
+                    assertTrue(Arrays.equals(added.get(i), groupStorage.getChunkData("chunk-" + t + "-" + i)));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threadCount * chunksPerThread * 512, groupStorage.getStorageUsed());
+        assertTrue(groupStorage.getGroupCommitCount() < threadCount * chunksPerThread);
+        assertEquals(0, new File(_chunkDir, ".incoming").list().length);
+        groupStorage.shutdown();
+    }
+
+    @Test
+    public void testGroupWritesRacingShutdownAreCommitted() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(1024 * 1024, 10000, null);
+        emptyChunkStorage(chunkStorage);
+        chunkStorage.shutdown();
+
+        final File targetDir = new File(_chunkDir, "race");
+        final int threadCount = 8;
+        final int chunksPerThread = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (int round = 0; round < 10; round++) {
+                final ChunkFileWriter writer = new ChunkFileWriter(new File(_chunkDir, ".incoming"), FileSystemChunkStorage.SyncPolicy.GROUP, 1000);
+                writer.start();
+
+                final int thisRound = round;
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<Void>> writes = new ArrayList<>();
+                for (int t = 0; t < threadCount; t++) {
+                    final int thread = t;
+                    writes.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            start.await();
+                            for (int i = 0; i < chunksPerThread; i++) {
+                                File target = new File(targetDir, "chunk-" + thisRound + "-" + thread + "-" + i);
+                                writer.write(new ByteArrayInputStream(new byte[128]), target);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                start.countDown();
+                writer.shutdown();
+
+                // Every write completes, whether it was committed by the committer, by shutdown, or by the writer.
+                for (Future<Void> write : writes) {
+                    write.get(30, TimeUnit.SECONDS);
+                }
+                for (int t = 0; t < threadCount; t++) {
+                    for (int i = 0; i < chunksPerThread; i++) {
+                        assertTrue(new File(targetDir, "chunk-" + round + "-" + t + "-" + i).isFile());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, new File(_chunkDir, ".incoming").list().length);
+    }
+
+    @Test
+    public void testPartlyWrittenChunksAreDiscarded() throws Exception {
+        FileSystemChunkStorage chunkStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[] chunkData = new byte[1024];
+        new Random().nextBytes(chunkData);
+        String chunkID = sha256(chunkData);
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, false);
+        chunkStorage.shutdown();
+
+        // Leave a chunk part way through being written, and lose the index so that the chunks are scanned
+        File incomingDir = new File(_chunkDir, ".incoming");
+        incomingDir.mkdirs();
+        File partialChunk = new File(incomingDir, "partial-chunk-1");
+        try (FileOutputStream outputStream = new FileOutputStream(partialChunk)) {
+            outputStream.write(new byte[512]);
+        }
+        File[] indexFiles = _chunkDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(ChunkIndex.INDEX_FILE_PREFIX);
+            }
+        });
+        for (File indexFile : indexFiles) {
+            assertTrue(indexFile.delete());
+        }
+
+        FileSystemChunkStorage restartedStorage = (FileSystemChunkStorage) getChunkStorage(65536, 10000, null);
+        assertFalse(partialChunk.exists());
+        assertFalse(restartedStorage.hasChunk("partial-chunk-1"));
+        assertTrue(restartedStorage.hasChunk(chunkID));
+        assertEquals(chunkData.length, restartedStorage.getStorageUsed());
+    }
+
     private static void cleanDir(File dir) {
         if ( dir == null || !dir.exists() ) {
             return;
@@ -0,0 +1,51 @@
+package io.topiacoin.chunks.impl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static junit.framework.TestCase.*;
+
+public class LRUEvictionPolicyTest {
+
+    @Test
+    public void testLeastRecentlyUsedChunksAreEvictedFirst() {
+        LRUEvictionPolicy policy = new LRUEvictionPolicy();
+        policy.chunkAdded("a");
+        policy.chunkAdded("b");
+        policy.chunkAdded("c");
+        policy.chunkAdded("d");
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), policy.getEvictionCandidates(10));
+
+        policy.chunkAccessed("a");
+        policy.chunkAccessed("c");
+
+        assertEquals(Arrays.asList("b", "d", "a", "c"), policy.getEvictionCandidates(10));
+        assertEquals(Arrays.asList("b", "d"), policy.getEvictionCandidates(2));
+    }
+
+    @Test
+    public void testRemovedAndRetainedChunks() {
+        LRUEvictionPolicy policy = new LRUEvictionPolicy();
+        policy.chunkAdded("a");
+        policy.chunkAdded("b");
+        policy.chunkAdded("c");
+
+        policy.chunkRemoved("b");
+        policy.chunkRetained("a");
+
+        assertEquals(2, policy.size());
+        assertEquals(Arrays.asList("c", "a"), policy.getEvictionCandidates(10));
+
+        // Notifications about unknown chunks are ignored
+        policy.chunkAccessed("x");
+        policy.chunkRemoved("x");
+        assertEquals(2, policy.size());
+
+        policy.clear();
+        assertEquals(0, policy.size());
+        assertEquals(Collections.<String>emptyList(), policy.getEvictionCandidates(10));
+    }
+}
@@ -0,0 +1,230 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.intf.ReservationID;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.*;
+
+public class MultiVolumeChunkStorageTest {
+
+    private static final int CHUNK_COUNT = 200;
+
+    private File _volumeRoot;
+    private MultiVolumeChunkStorage _chunkStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        _volumeRoot = new File("./target/volume-chunks");
+        FileUtils.deleteDirectory(_volumeRoot);
+        _chunkStorage = new MultiVolumeChunkStorage();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _chunkStorage.shutdown();
+        FileUtils.deleteDirectory(_volumeRoot);
+    }
+
+    @Test
+    public void testChunksAreSpreadAcrossVolumes() throws Exception {
+        FileSystemChunkStorage volume1 = createVolume("volume1", 1024 * 1024);
+        FileSystemChunkStorage volume2 = createVolume("volume2", 1024 * 1024);
+        _chunkStorage.addVolume("volume1", volume1);
+        _chunkStorage.addVolume("volume2", volume2);
+        _chunkStorage.init();
+
+        List<byte[]> chunks = addChunks(CHUNK_COUNT);
+
+        assertEquals(2 * 1024 * 1024, _chunkStorage.getStorageQuota());
+        assertEquals(2 * 1024 * 1024 - CHUNK_COUNT * 1024, _chunkStorage.getAvailableStorage());
+        assertEquals(CHUNK_COUNT, _chunkStorage.getChunkIDs().size());
+
+        // Each volume holds a fair share of the chunks, and only the space they use counts against its quota
+        int volume1Chunks = volume1.getChunkIDs().size();
+        int volume2Chunks = volume2.getChunkIDs().size();
+        assertEquals(CHUNK_COUNT, volume1Chunks + volume2Chunks);
+        assertTrue("Volume 1 has " + volume1Chunks + " chunks", volume1Chunks > CHUNK_COUNT / 4);
+        assertTrue("Volume 2 has " + volume2Chunks + " chunks", volume2Chunks > CHUNK_COUNT / 4);
+        assertEquals(1024 * 1024 - volume1Chunks * 1024, volume1.getAvailableStorage());
+
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            assertTrue(_chunkStorage.hasChunk("chunk-" + i));
+            assertTrue(Arrays.equals(chunks.get(i), _chunkStorage.getChunkData("chunk-" + i)));
+        }
+    }
+
+    @Test
+    public void testFullVolumeSpillsToTheNextVolume() throws Exception {
+        FileSystemChunkStorage volume1 = createVolume("volume1", 4096);
+        FileSystemChunkStorage volume2 = createVolume("volume2", 1024 * 1024);
+        _chunkStorage.addVolume("volume1", volume1);
+        _chunkStorage.addVolume("volume2", volume2);
+        _chunkStorage.init();
+
+        addChunks(CHUNK_COUNT);
+
+        assertTrue(volume1.getChunkIDs().size() <= 4);
+        assertEquals(CHUNK_COUNT, _chunkStorage.getChunkIDs().size());
+    }
+
+    @Test
+    public void testChunksArePlacedByTheirSizeRatherThanTheStreams() throws Exception {
+        FileSystemChunkStorage volume1 = createVolume("volume1", 4096);
+        FileSystemChunkStorage volume2 = createVolume("volume2", 1024 * 1024);
+        _chunkStorage.addVolume("volume1", volume1);
+        _chunkStorage.addVolume("volume2", volume2);
+        _chunkStorage.init();
+
+        Random random = new Random();
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            byte[] chunkData = new byte[1024];
+            random.nextBytes(chunkData);
+            _chunkStorage.addChunk("chunk-" + i, unsizedStream(chunkData), null, true);
+            assertTrue(Arrays.equals(chunkData, _chunkStorage.getChunkData("chunk-" + i)));
+        }
+
+        assertTrue(volume1.getChunkIDs().size() <= 4);
+        assertEquals(CHUNK_COUNT, _chunkStorage.getChunkIDs().size());
+    }
+
+    @Test
+    public void testReservationsAreTakenFromOneVolume() throws Exception {
+        FileSystemChunkStorage volume1 = createVolume("volume1", 8192);
+        FileSystemChunkStorage volume2 = createVolume("volume2", 65536);
+        _chunkStorage.addVolume("volume1", volume1);
+        _chunkStorage.addVolume("volume2", volume2);
+        _chunkStorage.init();
+
+        ReservationID reservationID = _chunkStorage.reserveStorageSpace(4096);
+        assertEquals(65536 - 4096, volume2.getAvailableStorage());
+        assertEquals(8192, volume1.getAvailableStorage());
+
+        Random random = new Random();
+        for (int i = 0; i < 4; i++) {
+            byte[] chunkData = new byte[1024];
+            random.nextBytes(chunkData);
+            _chunkStorage.addChunk("reserved-" + i, new ByteArrayInputStream(chunkData), reservationID, true);
+            assertEquals("volume2", _chunkStorage.getVolumeNameForChunk("reserved-" + i));
+        }
+        assertEquals(0, reservationID.getRemainingSpace());
+
+        _chunkStorage.releaseSpaceReservation(reservationID);
+        assertFalse(reservationID.isValid());
+        assertEquals(65536 - 4096, volume2.getAvailableStorage());
+    }
+
+    @Test
+    public void testAddingVolumeMovesChunksToIt() throws Exception {
+        FileSystemChunkStorage volume1 = createVolume("volume1", 1024 * 1024);
+        _chunkStorage.addVolume("volume1", volume1);
+        _chunkStorage.init();
+
+        List<byte[]> chunks = addChunks(CHUNK_COUNT);
+        assertTrue(_chunkStorage.addChunkReference("chunk-0"));
+        assertTrue(_chunkStorage.addChunkReference("chunk-1"));
+
+        FileSystemChunkStorage volume2 = createVolume("volume2", 1024 * 1024);
+        _chunkStorage.addVolume("volume2", volume2);
+        waitForRebalancing();
+
+        int movedChunks = volume2.getChunkIDs().size();
+        assertTrue("Moved " + movedChunks + " chunks", movedChunks > CHUNK_COUNT / 4);
+        assertEquals(movedChunks, _chunkStorage.getMovedChunkCount());
+        assertEquals(CHUNK_COUNT, volume1.getChunkIDs().size() + movedChunks);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            assertTrue(Arrays.equals(chunks.get(i), _chunkStorage.getChunkData("chunk-" + i)));
+        }
+
+        // The extra references moved with the chunks
+        for (String chunkID : new String[]{"chunk-0", "chunk-1"}) {
+            assertTrue(_chunkStorage.removeChunk(chunkID));
+            assertTrue(_chunkStorage.hasChunk(chunkID));
+            assertTrue(_chunkStorage.removeChunk(chunkID));
+            assertFalse(_chunkStorage.hasChunk(chunkID));
+        }
+    }
+
+    @Test
+    public void testDrainedVolumeIsEmptiedAndRemoved() throws Exception {
+        FileSystemChunkStorage volume1 = createVolume("volume1", 1024 * 1024);
+        FileSystemChunkStorage volume2 = createVolume("volume2", 1024 * 1024);
+        _chunkStorage.addVolume("volume1", volume1);
+        _chunkStorage.addVolume("volume2", volume2);
+        _chunkStorage.init();
+
+        List<byte[]> chunks = addChunks(CHUNK_COUNT);
+
+        _chunkStorage.drainVolume("volume1");
+        assertEquals(1024 * 1024, _chunkStorage.getStorageQuota());
+        waitForRebalancing();
+
+        assertEquals(1, _chunkStorage.getVolumeNames().size());
+        assertEquals("volume2", _chunkStorage.getVolumeNames().get(0));
+        assertEquals(CHUNK_COUNT, volume2.getChunkIDs().size());
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            assertTrue(Arrays.equals(chunks.get(i), _chunkStorage.getChunkData("chunk-" + i)));
+        }
+
+        try {
+            _chunkStorage.drainVolume("volume2");
+            fail("Expected IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // NOOP - Expected Exception
+        }
+    }
+
+    // -------- Private Methods --------
+
+    private FileSystemChunkStorage createVolume(String name, long quota) {
+        FileSystemChunkStorage volume = new FileSystemChunkStorage();
+        volume.setChunkStorageDirectory(new File(_volumeRoot, name));
+        volume.setStorageQuota(quota);
+        volume.setChunkInfoManager(new InMemoryChunkInfoManager());
+        volume.init();
+        return volume;
+    }
+
+    private List<byte[]> addChunks(int count) throws Exception {
+        List<byte[]> chunks = new ArrayList<>();
+        Random random = new Random();
+        for (int i = 0; i < count; i++) {
+            byte[] chunkData = new byte[1024];
+            random.nextBytes(chunkData);
+            chunks.add(chunkData);
+            _chunkStorage.addChunk("chunk-" + i, new ByteArrayInputStream(chunkData), null, true);
+        }
+        return chunks;
+    }
+
+    private void waitForRebalancing() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_chunkStorage.isRebalancing() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("Rebalancing did not finish", _chunkStorage.isRebalancing());
+    }
+
+    /**
+     * Wraps chunk data in a stream that, like a socket's, doesn't report how much data it holds.
+     */
+    private static InputStream unsizedStream(byte[] chunkData) {
+        return new FilterInputStream(new ByteArrayInputStream(chunkData)) {
+            @Override
+            public int available() {
+                return 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,207 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.chunks.intf.AbstractChunkStorageTest;
+import io.topiacoin.chunks.intf.ChunkInfoManager;
+import io.topiacoin.chunks.intf.ChunkStorage;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.*;
+
+public class PackFileChunkStorageTest extends AbstractChunkStorageTest {
+
+    private static File _chunkDir;
+
+    @BeforeClass
+    public static void setupClass() {
+        _chunkDir = new File("./target/packed-chunks");
+
+        // Delete everything in the directory
+        cleanDir(_chunkDir);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        cleanDir(_chunkDir);
+        _chunkDir.delete();
+    }
+
+    @Override
+    protected ChunkStorage getChunkStorage(long quota, long inactivityTimeout, ChunkInfoManager chunkInfoManager) {
+
+        PackFileChunkStorage chunkStorage = new PackFileChunkStorage();
+        chunkStorage.setChunkStorageDirectory(_chunkDir);
+        chunkStorage.setStorageQuota(quota);
+        chunkStorage.setReservationInactivityTimeout(inactivityTimeout);
+        chunkStorage.setChunkInfoManager(chunkInfoManager);
+
+        chunkStorage.init();
+
+        return chunkStorage;
+    }
+
+    @Override
+    protected void emptyChunkStorage(ChunkStorage chunkStorage) {
+        try {
+            ((PackFileChunkStorage) chunkStorage).clearStorage();
+        } catch (Exception e) {
+            fail("Unable to empty the chunk storage: " + e);
+        }
+    }
+
+    @Test
+    public void testChunkReferencesArePersisted() throws Exception {
+        PackFileChunkStorage chunkStorage = (PackFileChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        byte[] chunkData = new byte[1024];
+        new Random().nextBytes(chunkData);
+        String chunkID = sha256(chunkData);
+
+        assertFalse(chunkStorage.addChunkReference(chunkID));
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, false);
+        assertTrue(chunkStorage.addChunkReference(chunkID));
+        assertTrue(chunkStorage.addChunkReference(chunkID));
+        assertTrue(chunkStorage.removeChunk(chunkID));
+        chunkStorage.shutdown();
+
+        PackFileChunkStorage restartedStorage = (PackFileChunkStorage) getChunkStorage(65536, 10000, null);
+        assertEquals(2, restartedStorage.getChunkReferenceCount(chunkID));
+        assertEquals(chunkData.length, restartedStorage.getStorageUsed());
+        assertTrue(Arrays.equals(chunkData, restartedStorage.getChunkData(chunkID)));
+
+        // The data is kept until the last reference is removed
+        assertTrue(restartedStorage.removeChunk(chunkID));
+        assertTrue(restartedStorage.hasChunk(chunkID));
+        assertTrue(restartedStorage.removeChunk(chunkID));
+        assertFalse(restartedStorage.hasChunk(chunkID));
+        assertEquals(0, restartedStorage.getStorageUsed());
+        restartedStorage.shutdown();
+    }
+
+    @Test
+    public void testIncompleteRecordsAreDiscarded() throws Exception {
+        PackFileChunkStorage chunkStorage = (PackFileChunkStorage) getChunkStorage(65536, 10000, null);
+        emptyChunkStorage(chunkStorage);
+
+        Random random = new Random();
+        byte[][] chunkData = new byte[2][1024];
+        String[] chunkIDs = new String[chunkData.length];
+        for (int i = 0; i < chunkData.length; i++) {
+            random.nextBytes(chunkData[i]);
+            chunkIDs[i] = sha256(chunkData[i]);
+        }
+        chunkStorage.addChunk(chunkIDs[0], new ByteArrayInputStream(chunkData[0]), null, false);
+        chunkStorage.shutdown();
+
+        // Leave a partly written record at the end of the segment, as a crash might
+        File[] segmentFiles = getSegmentFiles();
+        assertEquals(1, segmentFiles.length);
+        long segmentLength = segmentFiles[0].length();
+        try (FileOutputStream segment = new FileOutputStream(segmentFiles[0], true)) {
+            segment.write(new byte[]{0x43, 0x48, 0x4e, 0x4b, 0, 0, 0, 0, 1, -1, -1});
+        }
+
+        PackFileChunkStorage restartedStorage = (PackFileChunkStorage) getChunkStorage(65536, 10000, null);
+        assertEquals(segmentLength, segmentFiles[0].length());
+        assertTrue(Arrays.equals(chunkData[0], restartedStorage.getChunkData(chunkIDs[0])));
+
+        // Chunks added after the incomplete record must survive the next restart
+        restartedStorage.addChunk(chunkIDs[1], new ByteArrayInputStream(chunkData[1]), null, false);
+        restartedStorage.shutdown();
+
+        PackFileChunkStorage secondRestartedStorage = (PackFileChunkStorage) getChunkStorage(65536, 10000, null);
+        assertTrue(Arrays.equals(chunkData[0], secondRestartedStorage.getChunkData(chunkIDs[0])));
+        assertTrue(Arrays.equals(chunkData[1], secondRestartedStorage.getChunkData(chunkIDs[1])));
+        assertEquals(2048, secondRestartedStorage.getStorageUsed());
+        secondRestartedStorage.shutdown();
+    }
+
+    @Test
+    public void testMostlyEmptySegmentsAreCompacted() throws Exception {
+        PackFileChunkStorage chunkStorage = (PackFileChunkStorage) getChunkStorage(1000000, 10000, null);
+        emptyChunkStorage(chunkStorage);
+        chunkStorage.setSegmentSize(10000);
+
+        Random random = new Random();
+        byte[][] chunkData = new byte[40][1000];
+        String[] chunkIDs = new String[chunkData.length];
+        for (int i = 0; i < chunkData.length; i++) {
+            random.nextBytes(chunkData[i]);
+            chunkIDs[i] = sha256(chunkData[i]);
+            chunkStorage.addChunk(chunkIDs[i], new ByteArrayInputStream(chunkData[i]), null, false);
+        }
+        int segmentCount = chunkStorage.getSegmentCount();
+        assertTrue(segmentCount >= 4);
+
+        // Keep one chunk in four, and hold one of the kept chunks open while its segment is compacted
+        InputStream openStream = chunkStorage.getChunkDataStream(chunkIDs[0]);
+        for (int i = 0; i < chunkIDs.length; i++) {
+            if (i % 4 != 0) {
+                assertTrue(chunkStorage.removeChunk(chunkIDs[i]));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getSegmentFiles().length >= segmentCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        chunkStorage.shutdown();
+        assertTrue(getSegmentFiles().length < segmentCount);
+
+        byte[] openData = new byte[chunkData[0].length];
+        int offset = 0;
+        int bytesRead;
+        while (offset < openData.length && (bytesRead = openStream.read(openData, offset, openData.length - offset)) > 0) {
+            offset += bytesRead;
+        }
+        openStream.close();
+        assertTrue(Arrays.equals(chunkData[0], openData));
+
+        PackFileChunkStorage restartedStorage = (PackFileChunkStorage) getChunkStorage(1000000, 10000, null);
+        for (int i = 0; i < chunkIDs.length; i++) {
+            if (i % 4 == 0) {
+                assertTrue(Arrays.equals(chunkData[i], restartedStorage.getChunkData(chunkIDs[i])));
+            } else {
+                assertFalse(restartedStorage.hasChunk(chunkIDs[i]));
+            }
+        }
+        assertEquals(10000, restartedStorage.getStorageUsed());
+        restartedStorage.shutdown();
+    }
+
+    private static File[] getSegmentFiles() {
+        return _chunkDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".pack");
+            }
+        });
+    }
+
+    private static void cleanDir(File dir) {
+        if ( dir == null || !dir.exists() ) {
+            return;
+        }
+
+        File[] children = dir.listFiles();
+
+        for (File child : children) {
+            if (child.isFile()) {
+                child.delete();
+            } else {
+                cleanDir(child);
+                child.delete();
+            }
+        }
+    }
+}
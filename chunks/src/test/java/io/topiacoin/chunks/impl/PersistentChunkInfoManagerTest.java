@@ -0,0 +1,142 @@
+package io.topiacoin.chunks.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.TestCase.*;
+
+public class PersistentChunkInfoManagerTest {
+
+    private File _pinDir;
+
+    @Before
+    public void setUp() throws Exception {
+        _pinDir = new File("./target/chunk-pins");
+        FileUtils.deleteDirectory(_pinDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(_pinDir);
+    }
+
+    @Test
+    public void testPinsAreCountedPerOwner() throws Exception {
+        PersistentChunkInfoManager infoManager = createInfoManager();
+        try {
+            infoManager.pinChunksForWorkspace(1234L, Arrays.asList("foo", "bar"));
+            infoManager.pinChunksForFileVersion("file1", "v1", Arrays.asList("foo", "baz"));
+
+            // Pinning again for the same owner doesn't add another pin
+            infoManager.pinChunksForWorkspace(1234L, Arrays.asList("foo"));
+
+            assertEquals(2, infoManager.getPinCount("foo"));
+            assertEquals(1, infoManager.getPinCount("bar"));
+            assertEquals(1, infoManager.getPinCount("baz"));
+            assertEquals(3, infoManager.getPinnedChunkCount());
+            assertTrue(infoManager.canPurgeChunk("qux"));
+
+            infoManager.unpinWorkspace(1234L);
+            assertFalse(infoManager.canPurgeChunk("foo"));
+            assertTrue(infoManager.canPurgeChunk("bar"));
+            assertEquals(1, infoManager.getPinCount("foo"));
+
+            // Unpinning a chunk the owner never pinned changes nothing
+            infoManager.unpinChunksForFileVersion("file1", "v2", Arrays.asList("foo"));
+            assertFalse(infoManager.canPurgeChunk("foo"));
+
+            infoManager.unpinChunksForFileVersion("file1", "v1", Arrays.asList("foo"));
+            assertTrue(infoManager.canPurgeChunk("foo"));
+            assertFalse(infoManager.canPurgeChunk("baz"));
+
+            infoManager.unpinFileVersion("file1", "v1");
+            assertEquals(0, infoManager.getPinnedChunkCount());
+        } finally {
+            infoManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testPinsSurviveRestart() throws Exception {
+        List<String> chunkIDs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            chunkIDs.add("chunk-" + i);
+        }
+
+        // A small snapshot interval leaves pins in both the snapshot and the journal
+        PersistentChunkInfoManager infoManager = createInfoManager();
+        infoManager.setSnapshotInterval(100);
+        infoManager.pinChunksForWorkspace(1234L, chunkIDs);
+        infoManager.pinChunksForFileVersion("file1", "v1", chunkIDs.subList(0, 10));
+        infoManager.unpinChunksForWorkspace(1234L, chunkIDs.subList(0, 20));
+        infoManager.pinChunksForFileVersion("file2", "v1", Arrays.asList("chunk-999"));
+
+        // Reload the pins without shutting down, as after a crash
+        PersistentChunkInfoManager reloaded = createInfoManager();
+        try {
+            assertEquals(990, reloaded.getPinnedChunkCount());
+            assertEquals(1, reloaded.getPinCount("chunk-0"));
+            assertEquals(0, reloaded.getPinCount("chunk-15"));
+            assertTrue(reloaded.canPurgeChunk("chunk-15"));
+            assertEquals(2, reloaded.getPinCount("chunk-999"));
+        } finally {
+            reloaded.shutdown();
+            infoManager.shutdown();
+        }
+
+        reloaded = createInfoManager();
+        try {
+            assertEquals(990, reloaded.getPinnedChunkCount());
+            assertEquals(2, reloaded.getPinCount("chunk-999"));
+        } finally {
+            reloaded.shutdown();
+        }
+    }
+
+    @Test
+    public void testIncompleteJournalRecordIsDiscarded() throws Exception {
+        PersistentChunkInfoManager infoManager = createInfoManager();
+        infoManager.pinChunksForWorkspace(1234L, Arrays.asList("foo"));
+        infoManager.pinChunksForWorkspace(1234L, Arrays.asList("bar"));
+
+        // Cut the last record short, as if the process died while writing it
+        File journalFile = new File(_pinDir, PersistentChunkInfoManager.PIN_FILE_PREFIX + ".journal");
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            journal.setLength(journal.length() - 2);
+        }
+
+        PersistentChunkInfoManager reloaded = createInfoManager();
+        try {
+            assertFalse(reloaded.canPurgeChunk("foo"));
+            assertTrue(reloaded.canPurgeChunk("bar"));
+
+            // The pins still journal properly after the torn record
+            reloaded.pinChunksForWorkspace(1234L, Arrays.asList("baz"));
+        } finally {
+            reloaded.shutdown();
+        }
+
+        reloaded = createInfoManager();
+        try {
+            assertFalse(reloaded.canPurgeChunk("foo"));
+            assertFalse(reloaded.canPurgeChunk("baz"));
+        } finally {
+            reloaded.shutdown();
+        }
+    }
+
+    private PersistentChunkInfoManager createInfoManager() {
+        PersistentChunkInfoManager infoManager = new PersistentChunkInfoManager();
+        infoManager.setPinDirectory(_pinDir);
+        infoManager.init();
+        return infoManager;
+    }
+}
@@ -0,0 +1,63 @@
+package io.topiacoin.chunks.impl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.TestCase.*;
+
+public class SegmentedLRUEvictionPolicyTest {
+
+    @Test
+    public void testChunksUsedOnceAreEvictedBeforeChunksUsedAgain() {
+        SegmentedLRUEvictionPolicy policy = new SegmentedLRUEvictionPolicy(0.5);
+        policy.chunkAdded("a");
+        policy.chunkAdded("b");
+        policy.chunkAccessed("a");
+
+        // A burst of new chunks doesn't push out the chunk that was used again
+        policy.chunkAdded("c");
+        policy.chunkAdded("d");
+
+        assertEquals(Arrays.asList("b", "c", "d", "a"), policy.getEvictionCandidates(10));
+    }
+
+    @Test
+    public void testProtectedChunksAreDemotedWhenTheSegmentIsFull() {
+        SegmentedLRUEvictionPolicy policy = new SegmentedLRUEvictionPolicy(0.5);
+        policy.chunkAdded("a");
+        policy.chunkAdded("b");
+        policy.chunkAdded("c");
+        policy.chunkAdded("d");
+
+        policy.chunkAccessed("a");
+        policy.chunkAccessed("b");
+
+        // Only two of the four chunks fit in the protected segment, so protecting c demotes a
+        policy.chunkAccessed("c");
+
+        assertEquals(Arrays.asList("d", "a", "b", "c"), policy.getEvictionCandidates(10));
+    }
+
+    @Test
+    public void testRemovedAndRetainedChunks() {
+        SegmentedLRUEvictionPolicy policy = new SegmentedLRUEvictionPolicy();
+        policy.chunkAdded("a");
+        policy.chunkAdded("b");
+        policy.chunkAdded("c");
+        policy.chunkAccessed("c");
+
+        policy.chunkRetained("a");
+        assertEquals(Arrays.asList("b", "a", "c"), policy.getEvictionCandidates(10));
+
+        policy.chunkRemoved("c");
+        policy.chunkRemoved("b");
+        assertEquals(1, policy.size());
+        assertEquals(Arrays.asList("a"), policy.getEvictionCandidates(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidProtectedFraction() {
+        new SegmentedLRUEvictionPolicy(1.5);
+    }
+}
@@ -0,0 +1,65 @@
+package io.topiacoin.chunks.impl;
+
+import io.topiacoin.crypto.CryptoUtils;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import static junit.framework.TestCase.*;
+
+public class SessionKeyCacheTest {
+
+    @Test
+    public void testRepeatConnectionsReuseTheSession() throws Exception {
+        KeyPair serverKeyPair = CryptoUtils.generateECKeyPair();
+        SessionKeyCache clientSessions = new SessionKeyCache();
+        SessionKeyCache serverSessions = new SessionKeyCache();
+
+        SessionKeyCache.Session session = clientSessions.getOutboundSession(serverKeyPair.getPublic().getEncoded());
+        SessionKeyCache.Session repeatSession = clientSessions.getOutboundSession(serverKeyPair.getPublic().getEncoded());
+        assertSame(session, repeatSession);
+
+        // Both ends derive the same key, and the server reuses it for later requests
+        assertTrue(Arrays.equals(session.getMessageKey().getEncoded(),
+                serverSessions.getInboundKey(serverKeyPair, session.getMyPublicKey()).getEncoded()));
+        assertSame(serverSessions.getInboundKey(serverKeyPair, session.getMyPublicKey()),
+                serverSessions.getInboundKey(serverKeyPair, session.getMyPublicKey()));
+    }
+
+    @Test
+    public void testExpiredSessionsAreRotated() throws Exception {
+        KeyPair serverKeyPair = CryptoUtils.generateECKeyPair();
+        SessionKeyCache clientSessions = new SessionKeyCache(50, SessionKeyCache.DEFAULT_MAX_SESSIONS);
+
+        SessionKeyCache.Session session = clientSessions.getOutboundSession(serverKeyPair.getPublic().getEncoded());
+        Thread.sleep(100);
+        SessionKeyCache.Session nextSession = clientSessions.getOutboundSession(serverKeyPair.getPublic().getEncoded());
+
+        assertNotSame(session, nextSession);
+        assertFalse(Arrays.equals(session.getMyPublicKey(), nextSession.getMyPublicKey()));
+        assertFalse(Arrays.equals(session.getMessageKey().getEncoded(), nextSession.getMessageKey().getEncoded()));
+    }
+
+    @Test
+    public void testOnlyTheMostRecentlyUsedSessionsAreKept() throws Exception {
+        KeyPair server1KeyPair = CryptoUtils.generateECKeyPair();
+        KeyPair server2KeyPair = CryptoUtils.generateECKeyPair();
+        KeyPair server3KeyPair = CryptoUtils.generateECKeyPair();
+        SessionKeyCache clientSessions = new SessionKeyCache(SessionKeyCache.DEFAULT_SESSION_LIFETIME, 2);
+
+        SessionKeyCache.Session session1 = clientSessions.getOutboundSession(server1KeyPair.getPublic().getEncoded());
+        SessionKeyCache.Session session2 = clientSessions.getOutboundSession(server2KeyPair.getPublic().getEncoded());
+        assertSame(session1, clientSessions.getOutboundSession(server1KeyPair.getPublic().getEncoded()));
+        clientSessions.getOutboundSession(server3KeyPair.getPublic().getEncoded());
+
+        assertSame(session1, clientSessions.getOutboundSession(server1KeyPair.getPublic().getEncoded()));
+        assertNotSame(session2, clientSessions.getOutboundSession(server2KeyPair.getPublic().getEncoded()));
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void testMissingPeerKeyIsRejected() throws Exception {
+        new SessionKeyCache().getOutboundSession(null);
+    }
+}
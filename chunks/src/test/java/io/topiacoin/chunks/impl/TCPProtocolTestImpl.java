@@ -1,12 +1,21 @@
 package io.topiacoin.chunks.impl;
 
+import io.topiacoin.chunks.exceptions.CommsListenerNotStartedException;
 import io.topiacoin.chunks.exceptions.FailedToStartCommsListenerException;
 import io.topiacoin.chunks.exceptions.InvalidMessageException;
+import io.topiacoin.chunks.exceptions.InvalidMessageIDException;
 import io.topiacoin.chunks.exceptions.UnknownMessageTypeException;
 import io.topiacoin.chunks.intf.AbstractProtocolTest;
+import io.topiacoin.chunks.intf.ProtocolCommsHandler;
+import io.topiacoin.chunks.intf.ProtocolCommsResponseHandler;
 import io.topiacoin.chunks.intf.ProtocolCommsService;
 import io.topiacoin.chunks.model.MessageID;
+import io.topiacoin.chunks.model.protocol.HaveChunksProtocolResponse;
 import io.topiacoin.chunks.model.protocol.ProtocolMessage;
+import io.topiacoin.chunks.model.protocol.QueryChunksProtocolRequest;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.model.UserNode;
+import org.junit.Test;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -17,6 +26,14 @@ import java.security.KeyPair;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class TCPProtocolTestImpl extends AbstractProtocolTest {
 
@@ -90,4 +107,104 @@ public class TCPProtocolTestImpl extends AbstractProtocolTest {
 		}
 		return messageIDs.toArray(new MessageID[0]);
 	}
+
+	@Test
+	public void testFailedFrameSourceOnlyDropsItsConnection() throws Exception {
+		final KeyPair userBChunkTransferKeyPair = CryptoUtils.generateECKeyPair();
+		//A single reactor, so the failing connection is on the listener's own thread.
+		final TCPProtocolCommsService userAservice = new TCPProtocolCommsService(7777, null, 1, 1);
+		final TCPProtocolCommsService userBservice = new TCPProtocolCommsService(7778, userBChunkTransferKeyPair, 1, 1);
+		try {
+			final String[] testChunks = new String[] { "foo", "bar", "baz" };
+			final CountDownLatch firstRequestReceived = new CountDownLatch(1);
+			final AtomicBoolean replyToRequests = new AtomicBoolean(false);
+			UserNode userBNode = new UserNode("userB", "127.0.0.1", 7778, userBChunkTransferKeyPair.getPublic().getEncoded());
+
+			userAservice.setHandler(new NoOpHandler());
+			userBservice.setHandler(new NoOpHandler() {
+				@Override public void requestReceived(ProtocolMessage request, MessageID messageID) {
+					firstRequestReceived.countDown();
+					if (replyToRequests.get()) {
+						try {
+							userBservice.reply(new HaveChunksProtocolResponse(testChunks, "userB"), messageID);
+						} catch (CommsListenerNotStartedException | InvalidMessageException | InvalidMessageIDException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+			userAservice.startListener();
+			userBservice.startListener();
+
+			final CountDownLatch errorReceived = new CountDownLatch(1);
+			final AtomicReference<String> errorMessage = new AtomicReference<>();
+			MessageID firstMessageID = userAservice.sendMessage(userBNode, new QueryChunksProtocolRequest(testChunks, "userA", "authToken"), new ResponseHandler() {
+				@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+					errorMessage.set(message);
+					errorReceived.countDown();
+				}
+			});
+			assertTrue("Request never received", firstRequestReceived.await(10, TimeUnit.SECONDS));
+
+			ProtocolConnectionState state = userAservice._connections.get(firstMessageID.getAddress());
+			state.addFrameSource(new FrameSource() {
+				@Override public boolean isReady() {
+					return true;
+				}
+
+				@Override public ByteBuffer nextFrame() throws IOException {
+					throw new IOException("Failed to read the chunk");
+				}
+
+				@Override public void close() {
+				}
+			});
+			userAservice._listenerRunnable.wakeup();
+
+			//The outstanding request fails straight away, rather than waiting to time out.
+			assertTrue("Outstanding request was never failed", errorReceived.await(5, TimeUnit.SECONDS));
+			assertEquals("Connection lost", errorMessage.get());
+			assertFalse("Failed connection was not removed", state.getSocketChannel().isOpen());
+			assertFalse("Failed connection was not removed", userAservice._connections.containsValue(state));
+			assertTrue("Listener died", userAservice._listenerThread.isAlive());
+
+			//Other requests still go through.
+			replyToRequests.set(true);
+			final CountDownLatch responseReceived = new CountDownLatch(1);
+			userAservice.sendMessage(userBNode, new QueryChunksProtocolRequest(testChunks, "userA", "authToken"), new ResponseHandler() {
+				@Override public void responseReceived(ProtocolMessage response, MessageID messageID) {
+					responseReceived.countDown();
+				}
+			});
+			assertTrue("Response never received", responseReceived.await(10, TimeUnit.SECONDS));
+		} finally {
+			userAservice.stop();
+			userBservice.stop();
+		}
+	}
+
+	private static class NoOpHandler implements ProtocolCommsHandler {
+		@Override public void requestReceived(ProtocolMessage request, MessageID messageID) {
+		}
+
+		@Override public void responseReceived(ProtocolMessage response, MessageID messageID) {
+		}
+
+		@Override public void error(Throwable t) {
+		}
+
+		@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+		}
+	}
+
+	private static class ResponseHandler implements ProtocolCommsResponseHandler {
+		@Override public void responseReceived(ProtocolMessage response, MessageID messageID) {
+		}
+
+		@Override public void error(Throwable t, MessageID messageID) {
+		}
+
+		@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+		}
+	}
 }
@@ -0,0 +1,159 @@
+package io.topiacoin.chunks.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.*;
+
+public class TieredChunkStorageTest {
+
+    private File _tierRoot;
+    private FileSystemChunkStorage _fastTier;
+    private FileSystemChunkStorage _capacityTier;
+    private TieredChunkStorage _chunkStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        _tierRoot = new File("./target/tiered-chunks");
+        FileUtils.deleteDirectory(_tierRoot);
+
+        _fastTier = createTier("fast", 16384);
+        _capacityTier = createTier("capacity", 1024 * 1024);
+        _chunkStorage = new TieredChunkStorage();
+        _chunkStorage.setFastTier(_fastTier);
+        _chunkStorage.setCapacityTier(_capacityTier);
+        _chunkStorage.setWatermarks(0.25, 0.5);
+        _chunkStorage.setPromotionThreshold(3);
+
+        // Migration is run by the tests rather than in the background.
+        _chunkStorage.setMigrationInterval(3600000);
+        _chunkStorage.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _chunkStorage.shutdown();
+        FileUtils.deleteDirectory(_tierRoot);
+    }
+
+    @Test
+    public void testNewChunksGoToTheFastTierWhileItHasRoom() throws Exception {
+        List<byte[]> chunks = addChunks(20);
+
+        assertEquals(16, _fastTier.getChunkIDs().size());
+        assertEquals(4, _capacityTier.getChunkIDs().size());
+        assertEquals(16384 + 1024 * 1024, _chunkStorage.getStorageQuota());
+        assertEquals(1024 * 1024 - 4096, _chunkStorage.getAvailableStorage());
+        assertEquals(20, _chunkStorage.getChunkIDs().size());
+
+        for (int i = 0; i < chunks.size(); i++) {
+            assertTrue(Arrays.equals(chunks.get(i), _chunkStorage.getChunkData("chunk-" + i)));
+        }
+    }
+
+    @Test
+    public void testChunksArePlacedByTheirSizeRatherThanTheStreams() throws Exception {
+        Random random = new Random();
+        for (int i = 0; i < 20; i++) {
+            byte[] chunkData = new byte[1024];
+            random.nextBytes(chunkData);
+            _chunkStorage.addChunk("chunk-" + i, unsizedStream(chunkData), null, true);
+            assertTrue(Arrays.equals(chunkData, _chunkStorage.getChunkData("chunk-" + i)));
+        }
+
+        assertEquals(16, _fastTier.getChunkIDs().size());
+        assertEquals(4, _capacityTier.getChunkIDs().size());
+    }
+
+    @Test
+    public void testLeastRecentlyReadChunksAreDemoted() throws Exception {
+        List<byte[]> chunks = addChunks(12);
+        assertTrue(_chunkStorage.addChunkReference("chunk-0"));
+
+        // Read the last four chunks so that they are the most recently read
+        for (int i = 8; i < 12; i++) {
+            _chunkStorage.getChunkData("chunk-" + i);
+        }
+
+        _chunkStorage.migrate();
+
+        assertEquals(8, _chunkStorage.getDemotedChunkCount());
+        assertEquals(4, _fastTier.getChunkIDs().size());
+        for (int i = 8; i < 12; i++) {
+            assertTrue(_fastTier.hasChunk("chunk-" + i));
+        }
+        for (int i = 0; i < chunks.size(); i++) {
+            assertTrue(Arrays.equals(chunks.get(i), _chunkStorage.getChunkData("chunk-" + i)));
+        }
+
+        // The demoted chunk kept its extra reference
+        assertEquals(2, _capacityTier.getChunkReferenceCount("chunk-0"));
+    }
+
+    @Test
+    public void testFrequentlyReadChunksArePromoted() throws Exception {
+        addChunks(12);
+        _chunkStorage.migrate();
+        assertFalse(_fastTier.hasChunk("chunk-0"));
+        assertFalse(_fastTier.hasChunk("chunk-1"));
+
+        // Chunk 0 is read often enough to be promoted, and chunk 1 isn't
+        for (int i = 0; i < 3; i++) {
+            _chunkStorage.getChunkData("chunk-0");
+        }
+        _chunkStorage.getChunkData("chunk-1");
+
+        _chunkStorage.migrate();
+
+        assertEquals(1, _chunkStorage.getPromotedChunkCount());
+        assertTrue(_fastTier.hasChunk("chunk-0"));
+        assertFalse(_capacityTier.hasChunk("chunk-0"));
+        assertTrue(_capacityTier.hasChunk("chunk-1"));
+    }
+
+    // -------- Private Methods --------
+
+    private FileSystemChunkStorage createTier(String name, long quota) {
+        FileSystemChunkStorage tier = new FileSystemChunkStorage();
+        tier.setChunkStorageDirectory(new File(_tierRoot, name));
+        tier.setStorageQuota(quota);
+        tier.setChunkInfoManager(new InMemoryChunkInfoManager());
+        tier.init();
+        return tier;
+    }
+
+    private List<byte[]> addChunks(int count) throws Exception {
+        List<byte[]> chunks = new ArrayList<>();
+        Random random = new Random();
+        for (int i = 0; i < count; i++) {
+            byte[] chunkData = new byte[1024];
+            random.nextBytes(chunkData);
+            chunks.add(chunkData);
+            _chunkStorage.addChunk("chunk-" + i, new ByteArrayInputStream(chunkData), null, true);
+        }
+        return chunks;
+    }
+
+    /**
+     * Wraps chunk data in a stream that, like a socket's, doesn't report how much data it holds.
+     */
+    private static InputStream unsizedStream(byte[] chunkData) {
+        return new FilterInputStream(new ByteArrayInputStream(chunkData)) {
+            @Override
+            public int available() {
+                return 0;
+            }
+        };
+    }
+}
@@ -11,6 +11,8 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Random;
@@ -104,6 +106,79 @@ public abstract class AbstractChunkStorageTest {
     }
 
 
+    @Test
+    public void testGettingChunkDataChannel() throws Exception {
+        InMemoryChunkInfoManager chunkInfoManager = new InMemoryChunkInfoManager();
+        ChunkStorage chunkStorage = getChunkStorage(65536, 10000, chunkInfoManager);
+        emptyChunkStorage(chunkStorage);
+
+        // Create the Test data
+        byte[] chunkData = new byte[10000];
+        Random random = new Random();
+        random.nextBytes(chunkData);
+        String chunkID = sha256(chunkData);
+
+        // Try to open the non-existent chunk and verify it fails.
+        try {
+            chunkStorage.getChunkDataChannel(chunkID);
+            fail("Expected Chunk to not be found");
+        } catch (NoSuchChunkException e) {
+            // NOOP - Expected Exception
+        }
+
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, true);
+
+        // Read the chunk back a piece at a time and verify that the right data is returned
+        SeekableByteChannel channel = chunkStorage.getChunkDataChannel(chunkID);
+        try {
+            assertEquals(chunkData.length, channel.size());
+            ByteBuffer fetchedData = ByteBuffer.allocate(chunkData.length);
+            ByteBuffer piece = ByteBuffer.allocate(4096);
+            while (channel.read(piece) >= 0) {
+                piece.flip();
+                fetchedData.put(piece);
+                piece.clear();
+            }
+            assertFalse(fetchedData.hasRemaining());
+            assertTrue(Arrays.equals(chunkData, fetchedData.array()));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testGettingChunkDataBuffer() throws Exception {
+        InMemoryChunkInfoManager chunkInfoManager = new InMemoryChunkInfoManager();
+        ChunkStorage chunkStorage = getChunkStorage(65536, 10000, chunkInfoManager);
+        emptyChunkStorage(chunkStorage);
+
+        // Create the Test data
+        byte[] chunkData = new byte[10000];
+        Random random = new Random();
+        random.nextBytes(chunkData);
+        String chunkID = sha256(chunkData);
+
+        // Try to get the non-existent chunk and verify it fails.
+        try {
+            chunkStorage.getChunkDataBuffer(chunkID);
+            fail("Expected Chunk to not be found");
+        } catch (NoSuchChunkException e) {
+            // NOOP - Expected Exception
+        }
+
+        chunkStorage.addChunk(chunkID, new ByteArrayInputStream(chunkData), null, true);
+
+        // Verify that the buffer holds the chunk data and can't be written to
+        ByteBuffer buffer = chunkStorage.getChunkDataBuffer(chunkID);
+        assertTrue(buffer.isReadOnly());
+        assertEquals(ByteBuffer.wrap(chunkData), buffer);
+
+        // Verify that the buffer is still readable once the chunk has been removed
+        assertTrue(chunkStorage.removeChunk(chunkID));
+        assertFalse(chunkStorage.hasChunk(chunkID));
+        assertEquals(ByteBuffer.wrap(chunkData), buffer);
+    }
+
     @Test
     public void testAddingGettingAndRemovingMultipleChunk() throws Exception {
         InMemoryChunkInfoManager chunkInfoManager = new InMemoryChunkInfoManager();
@@ -695,7 +770,7 @@ public abstract class AbstractChunkStorageTest {
 
     // -------- Private Methods --------
 
-    private String sha256(byte[] data) throws Exception {
+    protected String sha256(byte[] data) throws Exception {
         MessageDigest sha = MessageDigest.getInstance("SHA-256");
         byte[] hash = sha.digest(data);
 
@@ -25,6 +25,8 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -926,6 +928,14 @@ public abstract class AbstractChunkTransfererTest {
 					throw new NoSuchChunkException("This is by design for the unit test");
 				}
 
+				@Override public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+					throw new NoSuchChunkException("This is by design for the unit test");
+				}
+
+				@Override public ByteBuffer getChunkDataBuffer(String chunkID) throws NoSuchChunkException, IOException {
+					throw new NoSuchChunkException("This is by design for the unit test");
+				}
+
 				@Override public boolean hasChunk(String chunkID) {
 					return true;
 				}
@@ -934,6 +944,17 @@ public abstract class AbstractChunkTransfererTest {
 					return true;
 				}
 
+				@Override public boolean addChunkReference(String chunkID) {
+					return true;
+				}
+
+				@Override public void chunkAccessed(String chunkID) {
+				}
+
+				@Override public List<String> getChunkIDs() {
+					return new ArrayList<>();
+				}
+
 				@Override public long getStorageQuota() {
 					return 999999999;
 				}
@@ -953,6 +974,10 @@ public abstract class AbstractChunkTransfererTest {
 				@Override public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
 
 				}
+
+				@Override public void shutdown() {
+
+				}
 			};
 			for (String chunkID : testChunks.keySet()) {
 				transfererBChunkStorage.addChunk(chunkID, new ByteArrayInputStream(testChunks.get(chunkID)), null, true);
@@ -1093,6 +1118,14 @@ public abstract class AbstractChunkTransfererTest {
 					throw new NoSuchChunkException("wut?");
 				}
 
+				@Override public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+					throw new NoSuchChunkException("wut?");
+				}
+
+				@Override public ByteBuffer getChunkDataBuffer(String chunkID) throws NoSuchChunkException, IOException {
+					throw new NoSuchChunkException("wut?");
+				}
+
 				@Override public boolean hasChunk(String chunkID) {
 					return false;
 				}
@@ -1101,6 +1134,17 @@ public abstract class AbstractChunkTransfererTest {
 					return true;
 				}
 
+				@Override public boolean addChunkReference(String chunkID) {
+					return true;
+				}
+
+				@Override public void chunkAccessed(String chunkID) {
+				}
+
+				@Override public List<String> getChunkIDs() {
+					return new ArrayList<>();
+				}
+
 				@Override public long getStorageQuota() {
 					return 999999999;
 				}
@@ -1120,6 +1164,10 @@ public abstract class AbstractChunkTransfererTest {
 				@Override public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
 
 				}
+
+				@Override public void shutdown() {
+
+				}
 			};
 			for (String chunkID : testChunks.keySet()) {
 				transfererBChunkStorage.addChunk(chunkID, new ByteArrayInputStream(testChunks.get(chunkID)), null, true);
@@ -1259,6 +1307,14 @@ public abstract class AbstractChunkTransfererTest {
 					throw new NoSuchChunkException("wut?");
 				}
 
+				@Override public SeekableByteChannel getChunkDataChannel(String chunkID) throws NoSuchChunkException, IOException {
+					throw new NoSuchChunkException("wut?");
+				}
+
+				@Override public ByteBuffer getChunkDataBuffer(String chunkID) throws NoSuchChunkException, IOException {
+					throw new NoSuchChunkException("wut?");
+				}
+
 				@Override public boolean hasChunk(String chunkID) {
 					 return chunksImKeenOnLyingAbout.add(chunkID);
 				}
@@ -1267,6 +1323,17 @@ public abstract class AbstractChunkTransfererTest {
 					return true;
 				}
 
+				@Override public boolean addChunkReference(String chunkID) {
+					return true;
+				}
+
+				@Override public void chunkAccessed(String chunkID) {
+				}
+
+				@Override public List<String> getChunkIDs() {
+					return new ArrayList<>();
+				}
+
 				@Override public long getStorageQuota() {
 					return 999999999;
 				}
@@ -1286,6 +1353,10 @@ public abstract class AbstractChunkTransfererTest {
 				@Override public void releaseSpaceReservation(ReservationID reservationID) throws InvalidReservationException {
 
 				}
+
+				@Override public void shutdown() {
+
+				}
 			};
 			for (String chunkID : testChunks.keySet()) {
 				transfererBChunkStorage.addChunk(chunkID, new ByteArrayInputStream(testChunks.get(chunkID)), null, true);
@@ -8,7 +8,11 @@ import io.topiacoin.chunks.exceptions.UnknownMessageTypeException;
 import io.topiacoin.chunks.model.MessageID;
 import io.topiacoin.chunks.model.protocol.ErrorProtocolResponse;
 import io.topiacoin.chunks.model.protocol.FetchChunkProtocolRequest;
+import io.topiacoin.chunks.model.protocol.FetchChunksProtocolRequest;
 import io.topiacoin.chunks.model.protocol.GiveChunkProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunkStreamProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunksProtocolResponse;
+import io.topiacoin.chunks.model.protocol.GiveChunksStreamProtocolResponse;
 import io.topiacoin.chunks.model.protocol.HaveChunksProtocolResponse;
 import io.topiacoin.chunks.model.protocol.ProtocolMessage;
 import io.topiacoin.chunks.model.protocol.ProtocolMessageFactory;
@@ -19,11 +23,13 @@ import io.topiacoin.model.UserNode;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.SocketChannel;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
@@ -33,7 +39,9 @@ import java.security.PublicKey;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
@@ -700,6 +708,299 @@ public abstract class AbstractProtocolTest {
 		}
 	}
 
+	@Test
+	public void testRetrieveStreamedChunkRequestResponse() throws Exception {
+		byte[] chunkData = new byte[300001];
+		new Random().nextBytes(chunkData);
+		retrieveStreamedChunk(chunkData);
+	}
+
+	@Test
+	public void testRetrieveEmptyStreamedChunkRequestResponse() throws Exception {
+		retrieveStreamedChunk(new byte[0]);
+	}
+
+	private void retrieveStreamedChunk(final byte[] chunkData) throws Exception {
+		final CountDownLatch lock = new CountDownLatch(1);
+		final KeyPair userBSigningKeyPair = CryptoUtils.generateECKeyPair();
+		final KeyPair userBChunkTransferKeyPair = CryptoUtils.generateECKeyPair();
+		String userBAuthToken = "Streaming is just sending it slower with extra steps";
+		UserNode userBNode = new UserNode("userB", "127.0.0.1", 7778, userBChunkTransferKeyPair.getPublic().getEncoded());
+
+		final ProtocolCommsService userAservice = getProtocolCommsService(7777, null);
+		final ProtocolCommsService userBservice = getProtocolCommsService(7778, userBChunkTransferKeyPair);
+		try {
+			final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+			ProtocolCommsHandler handlerA = new ProtocolCommsHandler() {
+				@Override public void requestReceived(ProtocolMessage request, MessageID i) {
+				}
+
+				@Override public void responseReceived(ProtocolMessage response, MessageID mid) {
+					try {
+						if (!(response instanceof GiveChunkProtocolResponse)) {
+							failures.add("Message wrong type: " + response.getType());
+						} else {
+							GiveChunkProtocolResponse message = (GiveChunkProtocolResponse) response;
+							if (!"foo".equals(message.getChunkID()) || !"userB".equals(message.getUserID())) {
+								failures.add("Header wrong");
+							}
+							if (!Arrays.equals(chunkData, message.getChunkData())) {
+								failures.add("chunkdata wrong");
+							}
+							if (!message.verify(userBSigningKeyPair.getPublic())) {
+								failures.add("signature wrong");
+							}
+						}
+					} catch (InvalidKeyException | SignatureException e) {
+						failures.add(e.toString());
+					}
+					lock.countDown();
+				}
+
+				@Override
+				public void error(Throwable t) {
+					failures.add(t.toString());
+					lock.countDown();
+				}
+
+				@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+					failures.add(message);
+					lock.countDown();
+				}
+			};
+			userAservice.setHandler(handlerA);
+			ProtocolCommsHandler handlerB = new ProtocolCommsHandler() {
+				@Override public void requestReceived(ProtocolMessage request, MessageID messageID) {
+					FetchChunkProtocolRequest message = (FetchChunkProtocolRequest) request;
+					ProtocolMessage resp = new GiveChunkStreamProtocolResponse(
+							message.getChunkID(), Channels.newChannel(new ByteArrayInputStream(chunkData)), chunkData.length, "userB");
+					try {
+						resp.sign(userBSigningKeyPair.getPrivate());
+						userBservice.reply(resp, messageID);
+					} catch (CommsListenerNotStartedException | InvalidMessageException | InvalidMessageIDException | InvalidKeyException e) {
+						e.printStackTrace();
+						fail("Couldn't reply");
+					}
+				}
+
+				@Override public void responseReceived(ProtocolMessage response, MessageID mid) {
+					//nop
+				}
+
+				@Override
+				public void error(Throwable t) {
+				}
+
+				@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+				}
+			};
+			userBservice.setHandler(handlerB);
+			userAservice.startListener();
+			userBservice.startListener();
+
+			ProtocolMessage testMessage = new FetchChunkProtocolRequest("foo", "userA", userBAuthToken);
+			userAservice.sendMessage(userBNode, testMessage, null);
+			assertTrue("Message never received", lock.await(10, TimeUnit.SECONDS));
+			assertTrue(failures.toString(), failures.isEmpty());
+		} finally {
+			userAservice.stop();
+			userBservice.stop();
+		}
+	}
+
+	@Test
+	public void testRetrieveStreamedChunkBatchRequestResponse() throws Exception {
+		final byte[] chunkData1 = new byte[150001];
+		final byte[] chunkData2 = new byte[17];
+		new Random().nextBytes(chunkData1);
+		new Random().nextBytes(chunkData2);
+		final CountDownLatch lock = new CountDownLatch(1);
+		final KeyPair userBSigningKeyPair = CryptoUtils.generateECKeyPair();
+		final KeyPair userBChunkTransferKeyPair = CryptoUtils.generateECKeyPair();
+		String userBAuthToken = "Why ask three times when you can ask once";
+		UserNode userBNode = new UserNode("userB", "127.0.0.1", 7778, userBChunkTransferKeyPair.getPublic().getEncoded());
+
+		final ProtocolCommsService userAservice = getProtocolCommsService(7777, null);
+		final ProtocolCommsService userBservice = getProtocolCommsService(7778, userBChunkTransferKeyPair);
+		try {
+			final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+			ProtocolCommsHandler handlerA = new ProtocolCommsHandler() {
+				@Override public void requestReceived(ProtocolMessage request, MessageID i) {
+				}
+
+				@Override public void responseReceived(ProtocolMessage response, MessageID mid) {
+					try {
+						if (!(response instanceof GiveChunksProtocolResponse)) {
+							failures.add("Message wrong type: " + response.getType());
+						} else {
+							GiveChunksProtocolResponse message = (GiveChunksProtocolResponse) response;
+							if (!Arrays.asList("foo", "missing", "bar").equals(message.getChunkIDs()) || !"userB".equals(message.getUserID())) {
+								failures.add("Header wrong");
+							}
+							if (!Arrays.equals(chunkData1, message.getChunkData("foo")) || !Arrays.equals(chunkData2, message.getChunkData("bar"))) {
+								failures.add("chunkdata wrong");
+							}
+							if (message.getChunkData("missing") != null || message.getChunkStatus("missing") != GiveChunksProtocolResponse.STATUS_NO_SUCH_CHUNK) {
+								failures.add("missing chunk wrong");
+							}
+							if (!message.verify(userBSigningKeyPair.getPublic())) {
+								failures.add("signature wrong");
+							}
+						}
+					} catch (InvalidKeyException | SignatureException e) {
+						failures.add(e.toString());
+					}
+					lock.countDown();
+				}
+
+				@Override
+				public void error(Throwable t) {
+					failures.add(t.toString());
+					lock.countDown();
+				}
+
+				@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+					failures.add(message);
+					lock.countDown();
+				}
+			};
+			userAservice.setHandler(handlerA);
+			ProtocolCommsHandler handlerB = new ProtocolCommsHandler() {
+				@Override public void requestReceived(ProtocolMessage request, MessageID messageID) {
+					FetchChunksProtocolRequest message = (FetchChunksProtocolRequest) request;
+					GiveChunksStreamProtocolResponse resp = new GiveChunksStreamProtocolResponse("userB");
+					for (String chunkID : message.getChunkIDs()) {
+						if (chunkID.equals("foo")) {
+							resp.addChunk(chunkID, Channels.newChannel(new ByteArrayInputStream(chunkData1)), chunkData1.length);
+						} else if (chunkID.equals("bar")) {
+							resp.addChunk(chunkID, Channels.newChannel(new ByteArrayInputStream(chunkData2)), chunkData2.length);
+						} else {
+							resp.addMissingChunk(chunkID, GiveChunksProtocolResponse.STATUS_NO_SUCH_CHUNK);
+						}
+					}
+					try {
+						resp.sign(userBSigningKeyPair.getPrivate());
+						userBservice.reply(resp, messageID);
+					} catch (CommsListenerNotStartedException | InvalidMessageException | InvalidMessageIDException | InvalidKeyException e) {
+						e.printStackTrace();
+						fail("Couldn't reply");
+					}
+				}
+
+				@Override public void responseReceived(ProtocolMessage response, MessageID mid) {
+					//nop
+				}
+
+				@Override
+				public void error(Throwable t) {
+				}
+
+				@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+				}
+			};
+			userBservice.setHandler(handlerB);
+			userAservice.startListener();
+			userBservice.startListener();
+
+			ProtocolMessage testMessage = new FetchChunksProtocolRequest(new String[] { "foo", "missing", "bar" }, "userA", userBAuthToken);
+			userAservice.sendMessage(userBNode, testMessage, null);
+			assertTrue("Message never received", lock.await(10, TimeUnit.SECONDS));
+			assertTrue(failures.toString(), failures.isEmpty());
+		} finally {
+			userAservice.stop();
+			userBservice.stop();
+		}
+	}
+
+	@Test
+	public void testManyClientsRetrieveChunksConcurrently() throws Exception {
+		final int clientCount = 4;
+		final int chunksPerClient = 8;
+		final Map<String, byte[]> testChunks = new HashMap<>();
+		Random r = new Random();
+		for (int i = 0; i < chunksPerClient; i++) {
+			byte[] data = new byte[r.nextInt(131072) + 1];
+			r.nextBytes(data);
+			testChunks.put("chunk" + i, data);
+		}
+
+		final CountDownLatch lock = new CountDownLatch(clientCount * chunksPerClient);
+		final Map<String, Integer> failures = new java.util.concurrent.ConcurrentHashMap<>();
+
+		final KeyPair userBChunkTransferKeyPair = CryptoUtils.generateECKeyPair();
+		String userBAuthToken = "If this test doesn't pass within 15 minutes, I'm legally allowed to leave";
+		UserNode userBNode = new UserNode("userB", "127.0.0.1", 7778, userBChunkTransferKeyPair.getPublic().getEncoded());
+
+		final ProtocolCommsService userBservice = getProtocolCommsService(7778, userBChunkTransferKeyPair);
+		final ProtocolCommsService[] clients = new ProtocolCommsService[clientCount];
+		try {
+			userBservice.setHandler(new ProtocolCommsHandler() {
+				@Override public void requestReceived(ProtocolMessage request, MessageID messageID) {
+					FetchChunkProtocolRequest message = (FetchChunkProtocolRequest) request;
+					ProtocolMessage resp = new GiveChunkProtocolResponse(message.getChunkID(), testChunks.get(message.getChunkID()), "userB");
+					try {
+						userBservice.reply(resp, messageID);
+					} catch (CommsListenerNotStartedException | InvalidMessageException | InvalidMessageIDException e) {
+						failures.put("reply " + messageID, 1);
+					}
+				}
+
+				@Override public void responseReceived(ProtocolMessage response, MessageID mid) {
+				}
+
+				@Override public void error(Throwable t) {
+					failures.put("B " + t, 1);
+				}
+
+				@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+					failures.put("B " + message, 1);
+				}
+			});
+			userBservice.startListener();
+
+			for (int i = 0; i < clientCount; i++) {
+				final String userID = "user" + i;
+				clients[i] = getProtocolCommsService(7779 + i, null);
+				clients[i].setHandler(new ProtocolCommsHandler() {
+					@Override public void requestReceived(ProtocolMessage request, MessageID messageID) {
+					}
+
+					@Override public void responseReceived(ProtocolMessage response, MessageID mid) {
+						GiveChunkProtocolResponse message = (GiveChunkProtocolResponse) response;
+						if (!Arrays.equals(testChunks.get(message.getChunkID()), message.getChunkData())) {
+							failures.put(userID + " " + message.getChunkID(), 1);
+						}
+						lock.countDown();
+					}
+
+					@Override public void error(Throwable t) {
+						failures.put(userID + " " + t, 1);
+					}
+
+					@Override public void error(String message, boolean shouldReply, MessageID messageId) {
+						failures.put(userID + " " + message, 1);
+					}
+				});
+				clients[i].startListener();
+			}
+
+			for (ProtocolCommsService client : clients) {
+				for (String chunkID : testChunks.keySet()) {
+					client.sendMessage(userBNode, new FetchChunkProtocolRequest(chunkID, "userA", userBAuthToken), null);
+				}
+			}
+			assertTrue("Not all chunks were received", lock.await(20, TimeUnit.SECONDS));
+			assertTrue("Unexpected failures: " + failures.keySet(), failures.isEmpty());
+		} finally {
+			for (ProtocolCommsService client : clients) {
+				if (client != null) {
+					client.stop();
+				}
+			}
+			userBservice.stop();
+		}
+	}
+
 	//Here are the negative tests - I'm just gonna run through and do as many as I can think of. This'll be fun
 
 	@Test
@@ -0,0 +1,181 @@
+package io.topiacoin.chunks.model;
+
+import io.topiacoin.model.UserNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class ChunkRetrievalPlanTest {
+
+	private static final long CHUNK_SIZE = 65536;
+
+	@Test
+	public void testFixedWindowKeepsSeveralRequestsInFlightPerSource() throws Exception {
+		UserNode source1 = new UserNode("user-1", "127.0.0.1", 1001, new byte[0]);
+		UserNode source2 = new UserNode("user-2", "127.0.0.1", 1002, new byte[0]);
+		ChunkRetrievalPlan plan = createPlan(20, source1, source2);
+		plan.setMaxRequestsPerSource(3);
+		plan.setAdaptiveWindow(false);
+
+		List<ChunkRetrievalPlan.PlanTask> tasks = new ArrayList<>();
+		ChunkRetrievalPlan.PlanTask task;
+		while ((task = plan.getNextTask()) != null) {
+			tasks.add(task);
+		}
+
+		assertEquals(6, tasks.size());
+		int source1Tasks = 0;
+		for (ChunkRetrievalPlan.PlanTask plannedTask : tasks) {
+			if (plannedTask.source.equals(source1)) {
+				source1Tasks++;
+			}
+		}
+		assertEquals(3, source1Tasks);
+
+		// A response makes room for one more request to the same source
+		plan.markChunkAsFetched(tasks.get(0).chunkID, CHUNK_SIZE);
+		task = plan.getNextTask();
+		assertNotNull(task);
+		assertEquals(tasks.get(0).source, task.source);
+		assertNull(plan.getNextTask());
+	}
+
+	@Test
+	public void testWindowGrowsOnAnUncongestedLink() throws Exception {
+		UserNode source = new UserNode("user-1", "127.0.0.1", 1001, new byte[0]);
+		ChunkRetrievalPlan plan = createPlan(200, source);
+		plan.setMaxRequestsPerSource(16);
+
+		// Every request takes 50ms, however many are in flight
+		int largestWindow = simulate(plan, source, TimeUnit.MILLISECONDS.toNanos(50), 0);
+
+		assertTrue(plan.isComplete());
+		assertEquals(200, plan.getChunksFetched());
+		assertEquals(16, largestWindow);
+	}
+
+	@Test
+	public void testWindowSettlesNearTheBandwidthDelayProduct() throws Exception {
+		UserNode source = new UserNode("user-1", "127.0.0.1", 1001, new byte[0]);
+		ChunkRetrievalPlan plan = createPlan(200, source);
+		plan.setMaxRequestsPerSource(64);
+
+		// A 20ms round trip, and a source that takes 5ms to send each chunk, so 5 chunks fill the link
+		int largestWindow = simulate(plan, source, TimeUnit.MILLISECONDS.toNanos(20), TimeUnit.MILLISECONDS.toNanos(5));
+
+		assertTrue(plan.isComplete());
+		assertTrue("Largest window was " + largestWindow, largestWindow >= 5 && largestWindow <= 12);
+	}
+
+	@Test
+	public void testFailureHalvesTheWindowAndRetriesElsewhere() throws Exception {
+		UserNode source1 = new UserNode("user-1", "127.0.0.1", 1001, new byte[0]);
+		UserNode source2 = new UserNode("user-2", "127.0.0.1", 1002, new byte[0]);
+		ChunkRetrievalPlan plan = createPlan(4, source1, source2);
+		plan.setMaxRequestsPerSource(4);
+		plan.setAdaptiveWindow(false);
+
+		ChunkRetrievalPlan.PlanTask task = plan.getNextTask();
+		plan.setAdaptiveWindow(true);
+		plan.markChunkAsFailed(task.chunkID);
+		assertEquals(2, plan.getWindow(task.source));
+
+		// The failed chunk is still fetched from the other source
+		List<String> fetchedChunks = new ArrayList<>();
+		while ((task = plan.getNextTask()) != null) {
+			plan.markChunkAsFetched(task.chunkID, CHUNK_SIZE);
+			fetchedChunks.add(task.chunkID);
+		}
+		assertEquals(4, fetchedChunks.size());
+		assertTrue(plan.isComplete());
+		assertTrue(plan.getFailedChunks().isEmpty());
+	}
+
+	@Test
+	public void testBatchedRequestHoldsOnePlaceInTheWindow() throws Exception {
+		UserNode source = new UserNode("user-1", "127.0.0.1", 1001, new byte[0]);
+		ChunkRetrievalPlan plan = createPlan(10, source);
+		plan.setMaxRequestsPerSource(1);
+		plan.setMaxChunksPerRequest(4);
+		plan.setAdaptiveWindow(false);
+
+		ChunkRetrievalPlan.PlanTask task = plan.getNextTask();
+		assertEquals(4, task.chunkIDs.size());
+		assertEquals(task.chunkIDs.get(0), task.chunkID);
+		assertNull(plan.getNextTask());
+
+		// The request stays in the window until every chunk in it is done, whether fetched or failed
+		plan.markChunkAsFetched(task.chunkIDs.get(0), CHUNK_SIZE);
+		plan.markChunkAsFetched(task.chunkIDs.get(1), CHUNK_SIZE);
+		plan.markChunkAsFailed(task.chunkIDs.get(2));
+		assertNull(plan.getNextTask());
+		plan.markChunkAsFetched(task.chunkIDs.get(3), CHUNK_SIZE);
+
+		// Only the 6 chunks that haven't been tried are left, and the failed one has no other source
+		List<String> remainingChunks = new ArrayList<>();
+		while ((task = plan.getNextTask()) != null) {
+			remainingChunks.addAll(task.chunkIDs);
+			for (String chunkID : task.chunkIDs) {
+				plan.markChunkAsFetched(chunkID, CHUNK_SIZE);
+			}
+		}
+		assertEquals(6, remainingChunks.size());
+		assertTrue(plan.isComplete());
+		assertEquals(9, plan.getChunksFetched());
+	}
+
+	// -------- Private Methods --------
+
+	private ChunkRetrievalPlan createPlan(int chunkCount, UserNode... sources) {
+		List<String> chunkIDs = new ArrayList<>();
+		for (int i = 0; i < chunkCount; i++) {
+			chunkIDs.add("chunk-" + i);
+		}
+		ChunkRetrievalPlan plan = new ChunkRetrievalPlan(chunkIDs);
+		for (UserNode source : sources) {
+			for (String chunkID : chunkIDs) {
+				plan.addChunk(chunkID, source);
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Runs the plan against a single simulated source, which answers each request after the round trip time, plus any
+	 * time spent waiting for it to finish sending the chunks requested before it.  Returns the largest window the
+	 * source was given.
+	 */
+	private int simulate(ChunkRetrievalPlan plan, UserNode source, long roundTripNanos, long sendNanos) {
+		PriorityQueue<long[]> responses = new PriorityQueue<>(11, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] response1, long[] response2) {
+				return Long.compare(response1[0], response2[0]);
+			}
+		});
+		int largestWindow = 0;
+		List<String> chunkIDs = new ArrayList<>();
+		long now = 0;
+		long sourceFreeAt = 0;
+		while (!plan.isComplete()) {
+			ChunkRetrievalPlan.PlanTask task;
+			while ((task = plan.getNextTask(now)) != null) {
+				long sentAt = Math.max(now + roundTripNanos / 2, sourceFreeAt) + sendNanos;
+				sourceFreeAt = sentAt;
+				responses.add(new long[]{sentAt + roundTripNanos / 2, chunkIDs.size()});
+				chunkIDs.add(task.chunkID);
+			}
+			long[] response = responses.poll();
+			assertNotNull("Nothing in flight, but the plan isn't complete", response);
+			now = response[0];
+			plan.markChunkAsFetched(chunkIDs.get((int) response[1]), CHUNK_SIZE, now);
+			largestWindow = Math.max(largestWindow, plan.getWindow(source));
+		}
+		return largestWindow;
+	}
+}
@@ -250,7 +250,15 @@ public class DataModel {
     }
 
     public FileChunk getFileChunkWithClearHash(String clearChunkHash) {
-        return null ;
+        return _provider.getFileChunkWithClearHash(clearChunkHash);
+    }
+
+    public FileChunk getFileChunk(String chunkID) {
+        return _provider.getFileChunk(chunkID);
+    }
+
+    public Long getContainerIDForChunk(String chunkID) {
+        return _provider.getContainerIDForChunk(chunkID);
     }
 
     public void addChunkForFile(String fileID, String versionID, FileChunk chunk)
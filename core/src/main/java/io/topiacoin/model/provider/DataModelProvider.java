@@ -163,6 +163,21 @@ public interface DataModelProvider {
     List<FileChunk> getChunksForFileVersion(String fileID, String versionID)
             throws NoSuchFileException, NoSuchFileVersionException;
 
+    /**
+     * Returns a chunk from any file version whose clear text has the specified hash, or null if there is no such chunk.
+     */
+    FileChunk getFileChunkWithClearHash(String clearChunkHash);
+
+    /**
+     * Returns the chunk with the specified ID from any file version, or null if no file has such a chunk.
+     */
+    FileChunk getFileChunk(String chunkID);
+
+    /**
+     * Returns the ID of the workspace holding a file with the specified chunk, or null if no file has such a chunk.
+     */
+    Long getContainerIDForChunk(String chunkID);
+
     void addChunkForFile(String fileID, String versionID, FileChunk chunk)
             throws NoSuchFileException, NoSuchFileVersionException, FileChunkAlreadyExistsException;
 
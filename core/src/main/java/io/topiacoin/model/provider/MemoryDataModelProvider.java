@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,6 +50,8 @@ public class MemoryDataModelProvider implements DataModelProvider {
 	private Map<String, List<FileVersion>> _fileVersionsMap;
 	private Map<String, List<FileVersionReceipt>> _fileVersionsReceiptMap;
 	private Map<String, List<FileChunk>> _fileChunkMap;
+	private Map<String, Map<String, ChunkReference>> _clearHashChunkMap;
+	private Map<String, Map<String, ChunkReference>> _chunkIDChunkMap;
 	private Map<String, List<FileTag>> _fileVersionsTagMap;
 	private Map<String, List<UserNode>> _userIDtoUserNodeMap;
 
@@ -65,6 +68,8 @@ public class MemoryDataModelProvider implements DataModelProvider {
 		_fileVersionsMap = new HashMap<String, List<FileVersion>>();
 		_fileVersionsReceiptMap = new HashMap<String, List<FileVersionReceipt>>();
 		_fileChunkMap = new HashMap<String, List<FileChunk>>();
+		_clearHashChunkMap = new HashMap<String, Map<String, ChunkReference>>();
+		_chunkIDChunkMap = new HashMap<String, Map<String, ChunkReference>>();
 		_fileVersionsTagMap = new HashMap<String, List<FileTag>>();
 		_userIDtoUserNodeMap = new HashMap<>();
 
@@ -615,7 +620,7 @@ public class MemoryDataModelProvider implements DataModelProvider {
 			if (curVersion.getVersionID().equals(versionID)) {
 				iterator.remove();
 				String versionKey = createVersionKey(fileID, versionID);
-				_fileChunkMap.remove(versionKey);
+				unindexChunks(versionKey, _fileChunkMap.remove(versionKey));
 				_fileVersionsReceiptMap.remove(versionKey);
 				_fileVersionsTagMap.remove(versionKey);
 				versionRemoved = true;
@@ -645,7 +650,7 @@ public class MemoryDataModelProvider implements DataModelProvider {
 			if (curVersion.getVersionID().equals(fileVersion.getVersionID())) {
 				iterator.remove();
 				String versionKey = createVersionKey(fileID, fileVersion.getVersionID());
-				_fileChunkMap.remove(versionKey);
+				unindexChunks(versionKey, _fileChunkMap.remove(versionKey));
 				_fileVersionsReceiptMap.remove(versionKey);
 				_fileVersionsTagMap.remove(versionKey);
 				versionRemoved = true;
@@ -804,6 +809,30 @@ public class MemoryDataModelProvider implements DataModelProvider {
 		return retChunks;
 	}
 
+	public FileChunk getFileChunkWithClearHash(String clearChunkHash) {
+		ChunkReference reference = findChunkReference(_clearHashChunkMap, clearChunkHash);
+		return (reference != null ? new FileChunk(reference.chunk) : null);
+	}
+
+	public FileChunk getFileChunk(String chunkID) {
+		ChunkReference reference = findChunkReference(_chunkIDChunkMap, chunkID);
+		return (reference != null ? new FileChunk(reference.chunk) : null);
+	}
+
+	public Long getContainerIDForChunk(String chunkID) {
+		ChunkReference reference = findChunkReference(_chunkIDChunkMap, chunkID);
+		if (reference != null) {
+			for (Map.Entry<Long, List<File>> workspaceFiles : _workspaceFileMap.entrySet()) {
+				for (File file : workspaceFiles.getValue()) {
+					if (file.getEntryID().equals(reference.fileID)) {
+						return workspaceFiles.getKey();
+					}
+				}
+			}
+		}
+		return null;
+	}
+
 	public void addChunkForFile(String fileID, String versionID, FileChunk chunk)
 			throws NoSuchFileException, NoSuchFileVersionException, FileChunkAlreadyExistsException {
 
@@ -835,7 +864,9 @@ public class MemoryDataModelProvider implements DataModelProvider {
 			throw new FileChunkAlreadyExistsException("The specified file chunk already exists");
 		}
 
-		chunks.add(new FileChunk(chunk));
+		FileChunk chunkToSave = new FileChunk(chunk);
+		chunks.add(chunkToSave);
+		indexChunk(fileID, versionKey, chunkToSave);
 	}
 
 	public void updateChunkForFile(String fileID, String versionID, FileChunk chunk)
@@ -861,7 +892,10 @@ public class MemoryDataModelProvider implements DataModelProvider {
 			FileChunk curChunk = iterator.next();
 			if (curChunk.getChunkID().equals(chunk.getChunkID())) {
 				iterator.remove();
-				chunks.add(new FileChunk(chunk));
+				unindexChunk(versionKey, curChunk);
+				FileChunk chunkToSave = new FileChunk(chunk);
+				chunks.add(chunkToSave);
+				indexChunk(fileID, versionKey, chunkToSave);
 				chunkUpdated = true;
 				break;
 			}
@@ -895,6 +929,7 @@ public class MemoryDataModelProvider implements DataModelProvider {
 			FileChunk curChunk = iterator.next();
 			if (curChunk.getChunkID().equals(chunk.getChunkID())) {
 				iterator.remove();
+				unindexChunk(versionKey, curChunk);
 				chunkRemoved = true;
 				break;
 			}
@@ -1187,4 +1222,75 @@ public class MemoryDataModelProvider implements DataModelProvider {
 	private String createVersionKey(String fileID, String versionID) {
 		return fileID + ":" + versionID;
 	}
+
+	private void indexChunk(String fileID, String versionKey, FileChunk chunk) {
+		ChunkReference reference = new ChunkReference(fileID, chunk);
+		addChunkReference(_chunkIDChunkMap, chunk.getChunkID(), versionKey + ":" + chunk.getChunkID(), reference);
+		if (chunk.getClearTextHash() != null) {
+			addChunkReference(_clearHashChunkMap, chunk.getClearTextHash(), versionKey + ":" + chunk.getChunkID(), reference);
+		}
+	}
+
+	private void unindexChunk(String versionKey, FileChunk chunk) {
+		removeChunkReference(_chunkIDChunkMap, chunk.getChunkID(), versionKey + ":" + chunk.getChunkID());
+		if (chunk.getClearTextHash() != null) {
+			removeChunkReference(_clearHashChunkMap, chunk.getClearTextHash(), versionKey + ":" + chunk.getChunkID());
+		}
+	}
+
+	private void addChunkReference(Map<String, Map<String, ChunkReference>> index, String key, String referenceKey, ChunkReference reference) {
+		Map<String, ChunkReference> references = index.get(key);
+		if (references == null) {
+			references = new LinkedHashMap<String, ChunkReference>();
+			index.put(key, references);
+		}
+		references.put(referenceKey, reference);
+	}
+
+	private void removeChunkReference(Map<String, Map<String, ChunkReference>> index, String key, String referenceKey) {
+		Map<String, ChunkReference> references = index.get(key);
+		if (references != null) {
+			references.remove(referenceKey);
+			if (references.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	private ChunkReference findChunkReference(Map<String, Map<String, ChunkReference>> index, String key) {
+		Map<String, ChunkReference> references = index.get(key);
+		if (references == null) {
+			return null;
+		}
+
+		// Removing a file leaves its versions behind, so skip over any chunk whose file is gone.
+		Iterator<ChunkReference> iterator = references.values().iterator();
+		while (iterator.hasNext()) {
+			ChunkReference reference = iterator.next();
+			if (_masterFileMap.containsKey(reference.fileID)) {
+				return reference;
+			}
+			iterator.remove();
+		}
+		index.remove(key);
+		return null;
+	}
+
+	private void unindexChunks(String versionKey, List<FileChunk> chunks) {
+		if (chunks != null) {
+			for (FileChunk chunk : chunks) {
+				unindexChunk(versionKey, chunk);
+			}
+		}
+	}
+
+	private static class ChunkReference {
+		private final String fileID;
+		private final FileChunk chunk;
+
+		ChunkReference(String fileID, FileChunk chunk) {
+			this.fileID = fileID;
+			this.chunk = chunk;
+		}
+	}
 }
@@ -0,0 +1,319 @@
+package io.topiacoin.model.provider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of long-lived connections to a SQLite database.
+ *
+ * Each connection is opened once, switched to WAL journal mode, and keeps a cache of the PreparedStatements that have
+ * been prepared on it, keyed by their SQL. In WAL mode readers never block behind a writer, and writers wait on each
+ * other for up to the busy timeout instead of failing immediately.
+ *
+ * The Connections handed out are lightweight handles onto a pooled connection. Closing a handle returns the connection
+ * to the pool, and closing a PreparedStatement obtained from a handle returns the statement to the connection's cache.
+ * This lets callers keep using try-with-resources as though every connection and statement were new. A thread that
+ * asks for a connection while it already holds one is given another handle onto the same connection, so nested calls
+ * never wait on the pool.
+ */
+class SQLiteConnectionPool {
+	private static final long ACQUIRE_TIMEOUT_MS = 30000;
+
+	private final String _dbPath;
+	private final int _maxConnections;
+	private final int _statementCacheSize;
+	private final int _cacheSizeKB;
+	private final int _busyTimeoutMs;
+	private final BlockingQueue<PooledConnection> _idleConnections = new LinkedBlockingQueue<>();
+	private final ThreadLocal<PooledConnection> _leasedConnection = new ThreadLocal<>();
+	private final List<PooledConnection> _allConnections = new ArrayList<>();
+	private volatile boolean _closed = false;
+
+	/**
+	 * @param dbPath             The JDBC URL of the database
+	 * @param maxConnections     The most connections that will be open at once
+	 * @param statementCacheSize The most PreparedStatements each connection will keep open
+	 * @param cacheSizeKB        The size of each connection's page cache, in KB
+	 * @param busyTimeoutMs      How long a writer waits for another writer to finish before failing
+	 */
+	SQLiteConnectionPool(String dbPath, int maxConnections, int statementCacheSize, int cacheSizeKB, int busyTimeoutMs) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("The pool must allow at least one connection");
+		}
+		_dbPath = dbPath;
+		_maxConnections = maxConnections;
+		_statementCacheSize = statementCacheSize;
+		_cacheSizeKB = cacheSizeKB;
+		_busyTimeoutMs = busyTimeoutMs;
+	}
+
+	/**
+	 * Returns a handle onto a pooled connection, waiting for one to become free if the pool is exhausted. The handle
+	 * must be closed when the caller is done with it.
+	 */
+	Connection getConnection() throws SQLException {
+		PooledConnection pooled = _leasedConnection.get();
+		if (pooled == null) {
+			pooled = acquire();
+			_leasedConnection.set(pooled);
+		}
+		pooled._holdCount++;
+		return pooled.newHandle();
+	}
+
+	/**
+	 * Closes all of the idle connections, and any leased connections as they are returned.
+	 */
+	void close() {
+		_closed = true;
+		PooledConnection pooled;
+		while ((pooled = _idleConnections.poll()) != null) {
+			pooled.closeQuietly();
+		}
+	}
+
+	private PooledConnection acquire() throws SQLException {
+		if (_closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		PooledConnection pooled = _idleConnections.poll();
+		if (pooled == null) {
+			synchronized (_allConnections) {
+				if (_allConnections.size() < _maxConnections) {
+					pooled = new PooledConnection(open());
+					_allConnections.add(pooled);
+					return pooled;
+				}
+			}
+			try {
+				pooled = _idleConnections.poll(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a database connection", e);
+			}
+			if (pooled == null) {
+				throw new SQLException("Timed out waiting for a database connection");
+			}
+		}
+		return pooled;
+	}
+
+	private void release(PooledConnection pooled) {
+		if (--pooled._holdCount > 0) {
+			return;
+		}
+		_leasedConnection.remove();
+		try {
+			if (!pooled._connection.getAutoCommit()) {
+				// Don't let an abandoned transaction leak into the next lease
+				pooled._connection.rollback();
+				pooled._connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			discard(pooled);
+			return;
+		}
+		if (_closed) {
+			pooled.closeQuietly();
+		} else {
+			_idleConnections.offer(pooled);
+		}
+	}
+
+	private void discard(PooledConnection pooled) {
+		pooled.closeQuietly();
+		synchronized (_allConnections) {
+			_allConnections.remove(pooled);
+		}
+	}
+
+	private Connection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(_dbPath);
+		try (Statement stmt = conn.createStatement()) {
+			stmt.execute("PRAGMA journal_mode=WAL");
+			// In WAL mode, NORMAL only syncs at checkpoints. A power loss can lose the last transactions, but can't corrupt the database.
+			stmt.execute("PRAGMA synchronous=NORMAL");
+			stmt.execute("PRAGMA cache_size=-" + _cacheSizeKB);
+			stmt.execute("PRAGMA busy_timeout=" + _busyTimeoutMs);
+		} catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
+		return conn;
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * A physical connection, along with its statement cache. Only the thread holding the lease touches it.
+	 */
+	private class PooledConnection {
+		private final Connection _connection;
+		private final Map<String, CachedStatement> _statementCache;
+		private int _holdCount = 0;
+
+		PooledConnection(Connection connection) {
+			_connection = connection;
+			_statementCache = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+				@Override protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+					if (size() > _statementCacheSize && !eldest.getValue()._inUse) {
+						eldest.getValue().closeQuietly();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		Connection newHandle() {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new ConnectionHandle(this));
+		}
+
+		PreparedStatement prepare(String sql, Connection handle) throws SQLException {
+			CachedStatement cached = _statementCache.get(sql);
+			if (cached != null && cached._inUse) {
+				// The same SQL is already in use further up the stack, so this one can't come from the cache.
+				return _connection.prepareStatement(sql);
+			}
+			if (cached == null) {
+				cached = new CachedStatement(_connection.prepareStatement(sql));
+				_statementCache.put(sql, cached);
+			}
+			cached._inUse = true;
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, new StatementHandle(cached, handle));
+		}
+
+		void closeQuietly() {
+			for (Iterator<CachedStatement> iterator = _statementCache.values().iterator(); iterator.hasNext(); ) {
+				iterator.next().closeQuietly();
+				iterator.remove();
+			}
+			try {
+				_connection.close();
+			} catch (SQLException e) {
+				//NOP
+			}
+		}
+	}
+
+	private static class CachedStatement {
+		private final PreparedStatement _statement;
+		private boolean _inUse = false;
+
+		CachedStatement(PreparedStatement statement) {
+			_statement = statement;
+		}
+
+		void closeQuietly() {
+			try {
+				_statement.close();
+			} catch (SQLException e) {
+				//NOP
+			}
+		}
+	}
+
+	private class ConnectionHandle implements InvocationHandler {
+		private final PooledConnection _pooled;
+		private boolean _closed = false;
+
+		ConnectionHandle(PooledConnection pooled) {
+			_pooled = pooled;
+		}
+
+		@Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (method.getDeclaringClass() == Object.class) {
+				if (name.equals("equals")) {
+					return proxy == args[0];
+				} else if (name.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				return "Pooled " + _pooled._connection;
+			} else if (name.equals("close")) {
+				if (!_closed) {
+					_closed = true;
+					release(_pooled);
+				}
+				return null;
+			} else if (name.equals("isClosed")) {
+				return _closed;
+			} else if (_closed) {
+				throw new SQLException("Connection is closed");
+			} else if (name.equals("prepareStatement") && args.length == 1) {
+				return _pooled.prepare((String) args[0], (Connection) proxy);
+			}
+			return SQLiteConnectionPool.invoke(_pooled._connection, method, args);
+		}
+	}
+
+	private static class StatementHandle implements InvocationHandler {
+		private final CachedStatement _cached;
+		private final Connection _connectionHandle;
+		private ResultSet _resultSet = null;
+		private boolean _closed = false;
+
+		StatementHandle(CachedStatement cached, Connection connectionHandle) {
+			_cached = cached;
+			_connectionHandle = connectionHandle;
+		}
+
+		@Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (method.getDeclaringClass() == Object.class) {
+				if (name.equals("equals")) {
+					return proxy == args[0];
+				} else if (name.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				return "Cached " + _cached._statement;
+			} else if (name.equals("close")) {
+				if (!_closed) {
+					_closed = true;
+					try {
+						if (_resultSet != null) {
+							_resultSet.close();
+						}
+						_cached._statement.clearParameters();
+					} finally {
+						_cached._inUse = false;
+					}
+				}
+				return null;
+			} else if (name.equals("isClosed")) {
+				return _closed;
+			} else if (_closed) {
+				throw new SQLException("Statement is closed");
+			} else if (name.equals("getConnection")) {
+				return _connectionHandle;
+			}
+			Object result = SQLiteConnectionPool.invoke(_cached._statement, method, args);
+			if (result instanceof ResultSet) {
+				_resultSet = (ResultSet) result;
+			}
+			return result;
+		}
+	}
+}
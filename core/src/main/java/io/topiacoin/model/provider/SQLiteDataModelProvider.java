@@ -38,7 +38,6 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.FileNotFoundException;
 import java.security.PublicKey;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -49,6 +48,7 @@ import java.util.List;
 
 public class SQLiteDataModelProvider implements DataModelProvider {
 	private String _dbPath;
+	private SQLiteConnectionPool _connectionPool;
 	private static final String CREATE_WORKSPACES_TABLE = "CREATE TABLE IF NOT EXISTS Workspaces ("
 			+ "guid INTEGER NON NULL PRIMARY KEY, "
 			+ "name TEXT, "
@@ -133,12 +133,19 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	private static final String CREATE_VERSION_CHUNKS_TABLE = "CREATE TABLE IF NOT EXISTS VersionChunks ("
 			+ "entryID TEXT NON NULL, "
 			+ "versionID TEXT, "
-			+ "chunkID TEXT)";
+			+ "chunkID TEXT, "
+			+ "chunkIndex INTEGER)";
+
+	// A chunk can be shared by several file versions, each of which records where the chunk sits in that version.
+	private static final String CREATE_VERSION_CHUNKS_INDEX = "CREATE INDEX IF NOT EXISTS VersionChunksByVersion ON VersionChunks (entryID, versionID)";
+	private static final String CREATE_VERSION_CHUNKS_CHUNK_INDEX = "CREATE INDEX IF NOT EXISTS VersionChunksByChunk ON VersionChunks (chunkID)";
+	private static final String CREATE_FILE_CHUNKS_CLEAR_HASH_INDEX = "CREATE INDEX IF NOT EXISTS FileChunksByClearTextHash ON FileChunks (clearTextHash)";
 
 	private static final String FETCH_WORKSPACE_SQL = "SELECT * FROM Workspaces WHERE guid = ?";
 	private static final String FETCH_FILE_SQL = "SELECT * FROM Files WHERE entryID = ?";
 	private static final String FETCH_FILEVERSION_SQL = "SELECT * FROM FileVersions WHERE entryID = ? AND versionID = ?";
 	private static final String FETCH_FILECHUNK_SQL = "SELECT * FROM FileChunks WHERE chunkID = ?";
+	private static final String FETCH_VERSIONCHUNK_SQL = "SELECT * FROM VersionChunks WHERE entryID = ? AND versionID = ? AND chunkID = ?";
 	private static final String FETCH_MESSAGE_SQL = "SELECT * FROM Messages WHERE messageID = ?";
 
 	private CurrentUser _currentUser = null;
@@ -154,7 +161,12 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 		}
 		_dbPath = "jdbc:sqlite:" + dbFile.getAbsolutePath().replaceAll("\\\\", "/");
 		System.out.println("SQLite db at " + _dbPath);
-		try (Connection conn = DriverManager.getConnection(_dbPath); Statement stmt = conn.createStatement()) {
+		_connectionPool = new SQLiteConnectionPool(_dbPath,
+				config.getConfigurationOption("model.sqllite.poolSize", 4),
+				config.getConfigurationOption("model.sqllite.statementCacheSize", 64),
+				config.getConfigurationOption("model.sqllite.cacheSizeKB", 8192),
+				config.getConfigurationOption("model.sqllite.busyTimeoutMs", 5000));
+		try (Connection conn = _connectionPool.getConnection(); Statement stmt = conn.createStatement()) {
 			conn.setAutoCommit(false);
 			stmt.execute(CREATE_WORKSPACES_TABLE);
 			stmt.execute(CREATE_FILES_TABLE);
@@ -167,6 +179,10 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 			stmt.execute(CREATE_MESSAGES_TABLE);
 			stmt.execute(CREATE_USERS_TABLE);
 			stmt.execute(CREATE_VERSION_CHUNKS_TABLE);
+			addColumnIfMissing(conn, "VersionChunks", "chunkIndex", "INTEGER");
+			stmt.execute(CREATE_VERSION_CHUNKS_INDEX);
+			stmt.execute(CREATE_VERSION_CHUNKS_CHUNK_INDEX);
+			stmt.execute(CREATE_FILE_CHUNKS_CLEAR_HASH_INDEX);
 			conn.commit();
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -174,10 +190,11 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public void close() {
+		_connectionPool.close();
 	}
 
 	@Override public List<Workspace> getWorkspaces() {
-		try (Connection conn = DriverManager.getConnection(_dbPath); Statement stmt = conn.createStatement()) {
+		try (Connection conn = _connectionPool.getConnection(); Statement stmt = conn.createStatement()) {
 			List<Workspace> tr = new ArrayList<>();
 			try (ResultSet results = stmt.executeQuery("SELECT * FROM Workspaces")) {
 				while (results.next()) {
@@ -196,7 +213,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<Workspace> getWorkspacesWithStatus(int workspaceStatus) {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Workspaces WHERE status = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Workspaces WHERE status = ?")) {
 			List<Workspace> tr = new ArrayList<>();
 			stmt.setInt(1, workspaceStatus);
 			try (ResultSet results = stmt.executeQuery()) {
@@ -216,7 +233,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public Workspace getWorkspace(long workspaceID) throws NoSuchWorkspaceException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(FETCH_WORKSPACE_SQL)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(FETCH_WORKSPACE_SQL)) {
 			stmt.setLong(1, workspaceID);
 			try (ResultSet results = stmt.executeQuery()) {
 				if (results.next()) {
@@ -237,7 +254,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 			throw new WorkspaceAlreadyExistsException();
 		} catch (NoSuchWorkspaceException e) {
 			String sql = "INSERT INTO Workspaces (name, description, status, lastModified, workspaceKey, guid) VALUES (?,?,?,?,?,?)";
-			try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 				stmt.setString(1, workspace.getName());
 				stmt.setString(2, workspace.getDescription());
 				stmt.setInt(3, workspace.getStatus());
@@ -257,7 +274,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void updateWorkspace(Workspace workspace) throws NoSuchWorkspaceException {
 		String sql = "UPDATE Workspaces SET name = ?, description = ?, status = ?, lastModified = ?, workspaceKey = ? WHERE guid = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			workspaceExists(conn, workspace.getGuid());
 			stmt.setString(1, workspace.getName());
 			stmt.setString(2, workspace.getDescription());
@@ -276,7 +293,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public void removeWorkspace(long workspaceID) throws NoSuchWorkspaceException {
-		try (Connection conn = DriverManager.getConnection(_dbPath);
+		try (Connection conn = _connectionPool.getConnection();
 				PreparedStatement stmt = conn.prepareStatement("DELETE FROM Workspaces WHERE guid = ?");
 				PreparedStatement stmt2 = conn.prepareStatement("DELETE FROM Members WHERE parentWorkspace = ?");
 				PreparedStatement wksstmt = conn.prepareStatement(FETCH_WORKSPACE_SQL)) {
@@ -297,7 +314,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public List<Member> getMembersInWorkspace(long workspaceID) throws NoSuchWorkspaceException {
 		String sql2 = "SELECT * FROM Members WHERE parentWorkspace = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql2)) {
 			workspaceExists(conn, workspaceID);
 			List<Member> tr = new ArrayList<>();
 			stmt.setLong(1, workspaceID);
@@ -314,7 +331,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public Member getMemberInWorkspace(long workspaceID, String userID) throws NoSuchWorkspaceException, NoSuchMemberException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Members WHERE userID = ? AND parentWorkspace = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Members WHERE userID = ? AND parentWorkspace = ?")) {
 			workspaceExists(conn, workspaceID);
 			stmt.setString(1, userID);
 			stmt.setLong(2, workspaceID);
@@ -336,7 +353,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 			throw new MemberAlreadyExistsException();
 		} catch (NoSuchMemberException e) {
 			String sql = "INSERT INTO Members (status, inviteDate, inviterID, authToken, lockOwner, parentWorkspace, userID) VALUES (?,?,?,?,?,?,?)";
-			try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 				stmt.setInt(1, member.getStatus());
 				stmt.setLong(2, member.getInviteDate());
 				stmt.setString(3, member.getInviterID());
@@ -354,7 +371,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void updateMemberInWorkspace(long workspaceID, Member member) throws NoSuchWorkspaceException, NoSuchMemberException {
 		getMemberInWorkspace(workspaceID, member.getUserID());
 		String sql = "UPDATE Members SET status = ?, inviteDate = ?, inviterID = ?, authToken = ?, lockOwner = ?, parentWorkspace = ? WHERE userID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			stmt.setInt(1, member.getStatus());
 			stmt.setLong(2, member.getInviteDate());
 			stmt.setString(3, member.getInviterID());
@@ -371,7 +388,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void removeMemberFromWorkspace(long workspaceID, Member member) throws NoSuchWorkspaceException, NoSuchMemberException {
 		getMemberInWorkspace(workspaceID, member.getUserID());
 		String sql = "DELETE FROM Members WHERE parentWorkspace = ? AND userID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			stmt.setLong(1, workspaceID);
 			stmt.setString(2, member.getUserID());
 			stmt.execute();
@@ -381,7 +398,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<Message> getMessagesInWorkspace(long workspaceID) throws NoSuchWorkspaceException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Messages WHERE workspaceGuid = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Messages WHERE workspaceGuid = ?")) {
 			workspaceExists(conn, workspaceID);
 			List<Message> tr = new ArrayList<>();
 			stmt.setLong(1, workspaceID);
@@ -398,7 +415,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public Message getMessage(String messageID) throws NoSuchMessageException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Messages WHERE messageID = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Messages WHERE messageID = ?")) {
 			stmt.setString(1, messageID);
 			try (ResultSet results = stmt.executeQuery()) {
 				if (results.next()) {
@@ -414,7 +431,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void addMessageToWorkspace(long workspaceID, Message message) throws NoSuchWorkspaceException, MessageAlreadyExistsException {
 		String sql = "INSERT INTO Messages (authorID, workspaceGuid, seq, timestamp, text, mimeType, digitalSignature, messageID) VALUES (?,?,?,?,?,?,?,?)";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			workspaceExists(conn, workspaceID);
 			try {
 				messageExists(conn, message.getMessageID());
@@ -437,7 +454,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void updateMessageInWorkspace(long workspaceID, Message message) throws NoSuchWorkspaceException, NoSuchMessageException {
 		String sql = "UPDATE Messages SET authorID = ?, workspaceGuid = ?, seq = ?, timestamp = ?, text = ?, mimeType = ?, digitalSignature = ? WHERE messageID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			workspaceExists(conn, workspaceID);
 			messageExists(conn, message.getMessageID());
 			stmt.setString(1, message.getAuthorID());
@@ -456,7 +473,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void removeMessageFromWorkspace(long workspaceID, Message message) throws NoSuchWorkspaceException, NoSuchMessageException {
 		String sql = "DELETE FROM Messages WHERE messageID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			workspaceExists(conn, workspaceID);
 			messageExists(conn, message.getMessageID());
 			stmt.setString(1, message.getMessageID());
@@ -467,7 +484,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<File> getFilesInWorkspace(long workspaceID) throws NoSuchWorkspaceException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Files WHERE containerID = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Files WHERE containerID = ?")) {
 			workspaceExists(conn, workspaceID);
 			List<File> tr = new ArrayList<>();
 			stmt.setLong(1, workspaceID);
@@ -491,7 +508,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 		if(parentID == null) {
 			parentID = "";
 		}
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Files WHERE containerID = ? AND parentID = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Files WHERE containerID = ? AND parentID = ?")) {
 			workspaceExists(conn, workspaceID);
 			List<File> tr = new ArrayList<>();
 			stmt.setLong(1, workspaceID);
@@ -513,7 +530,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public File getFile(String fileID) throws NoSuchFileException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(FETCH_FILE_SQL)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(FETCH_FILE_SQL)) {
 			stmt.setString(1, fileID);
 			try (ResultSet results = stmt.executeQuery()) {
 				if (results.next()) {
@@ -536,7 +553,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 			throw new FileAlreadyExistsException();
 		} catch (NoSuchFileException e) {
 			String sql = "INSERT INTO Files (containerID, name, mimeType, parentID, status, isFolder, lockOwner, entryID) VALUES (?,?,?,?,?,?,?,?)";
-			try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 				workspaceExists(conn, workspaceID);
 				stmt.setLong(1, file.getContainerID());
 				stmt.setString(2, file.getName());
@@ -555,7 +572,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void updateFileInWorkspace(long workspaceID, File file) throws NoSuchWorkspaceException, NoSuchFileException {
 		String sql = "UPDATE Files SET containerID = ?, name = ?, mimeType = ?, parentID = ?, status = ?, isFolder = ?, lockOwner = ? WHERE entryID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			workspaceExists(conn, workspaceID);
 			fileExists(conn, file.getEntryID());
 			stmt.setLong(1, file.getContainerID());
@@ -574,7 +591,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void removeFileFromWorkspace(long workspaceID, String fileID) throws NoSuchWorkspaceException, NoSuchFileException {
 		String sql = "DELETE FROM Files WHERE entryID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			workspaceExists(conn, workspaceID);
 			fileExists(conn, fileID);
 			stmt.setString(1, fileID);
@@ -598,7 +615,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<FileVersion> getFileVersionsForFile(String fileID) throws NoSuchFileException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM FileVersions WHERE entryID = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM FileVersions WHERE entryID = ?")) {
 			fileExists(conn, fileID);
 			List<FileVersion> tr = new ArrayList<>();
 			stmt.setString(1, fileID);
@@ -619,7 +636,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public FileVersion getFileVersion(String fileID, String versionID) throws NoSuchFileException, NoSuchFileVersionException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(FETCH_FILEVERSION_SQL)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(FETCH_FILEVERSION_SQL)) {
 			fileExists(conn, fileID);
 			stmt.setString(1, fileID);
 			stmt.setString(2, versionID);
@@ -641,7 +658,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 			throw new FileVersionAlreadyExistsException();
 		} catch (NoSuchFileVersionException e) {
 			String sql = "INSERT INTO FileVersions (entryID, ownerID, size, date, uploadDate, fileHash, status, lockOwner, versionID) VALUES (?,?,?,?,?,?,?,?,?)";
-			try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 				fileExists(conn, fileID);
 				stmt.setString(1, fileVersion.getEntryID());
 				stmt.setString(2, fileVersion.getOwnerID());
@@ -662,7 +679,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void updateFileVersion(String fileID, FileVersion fileVersion) throws NoSuchFileException, NoSuchFileVersionException {
 		getFileVersion(fileID, fileVersion.getVersionID());
 		String sql = "UPDATE FileVersions SET entryID = ?, ownerID = ?, size = ?, date = ?, uploadDate = ?, fileHash = ?, status = ?, lockOwner = ? WHERE versionID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			fileExists(conn, fileID);
 			stmt.setString(1, fileVersion.getEntryID());
 			stmt.setString(2, fileVersion.getOwnerID());
@@ -681,7 +698,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void removeFileVersion(String fileID, String versionID) throws NoSuchFileException, NoSuchFileVersionException {
 		String sql = "DELETE FROM FileVersions WHERE entryID = ? AND versionID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			stmt.setString(1, fileID);
@@ -697,7 +714,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<FileVersionReceipt> getFileVersionReceipts(String fileID, String versionID) throws NoSuchFileException, NoSuchFileVersionException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM FileVersionReceipts WHERE entryID = ? AND versionID = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM FileVersionReceipts WHERE entryID = ? AND versionID = ?")) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			List<FileVersionReceipt> tr = new ArrayList<>();
@@ -717,7 +734,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void addFileVersionReceipt(String fileID, String versionID, FileVersionReceipt receipt) throws NoSuchFileException, NoSuchFileVersionException {
 		String sql = "INSERT INTO FileVersionReceipts (entryID, recipientID, date, versionID) VALUES (?,?,?,?)";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			stmt.setString(1, receipt.getEntryID());
@@ -733,7 +750,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void updateFileVersionReceipt(String fileID, String versionID, FileVersionReceipt receipt) throws NoSuchFileException, NoSuchFileVersionException, NoSuchFileVersionReceiptException {
 		String sql = "SELECT * FROM FileVersionReceipts WHERE entryID = ? AND versionID = ?";
 		String sql2 = "UPDATE FileVersionReceipts SET recipientID = ?, date = ? WHERE entryID = ? AND versionID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			stmt.setString(1, receipt.getEntryID());
@@ -756,7 +773,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void removeFileVersionReceipt(String fileID, String versionID, FileVersionReceipt receipt) throws NoSuchFileException, NoSuchFileVersionException, NoSuchFileVersionReceiptException {
 		String sql = "SELECT * FROM FileVersionReceipts WHERE entryID = ? AND versionID = ?";
 		String sql2 = "DELETE FROM FileVersionReceipts WHERE entryID = ? AND versionID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			stmt.setString(1, receipt.getEntryID());
@@ -775,8 +792,9 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<FileChunk> getChunksForFileVersion(String fileID, String versionID) throws NoSuchFileException, NoSuchFileVersionException {
-		String sql = "SELECT * FROM FileChunks WHERE chunkID in (SELECT chunkID FROM VersionChunks WHERE entryID = ? AND versionID = ?)";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		String sql = "SELECT FileChunks.chunkID, COALESCE(VersionChunks.chunkIndex, FileChunks.chunkIndex) AS chunkIndex, cipherTextSize, clearTextSize, chunkKey, initializationVector, cipherTextHash, clearTextHash, compressionAlgorithm "
+				+ "FROM VersionChunks JOIN FileChunks ON FileChunks.chunkID = VersionChunks.chunkID WHERE VersionChunks.entryID = ? AND VersionChunks.versionID = ? ORDER BY chunkIndex";
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			List<FileChunk> tr = new ArrayList<>();
@@ -794,35 +812,90 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 		return null;
 	}
 
+	@Override public FileChunk getFileChunkWithClearHash(String clearChunkHash) {
+		// Only reuse a chunk that still belongs to a file.
+		String sql = "SELECT * FROM FileChunks WHERE clearTextHash = ? AND EXISTS "
+				+ "(SELECT 1 FROM VersionChunks JOIN Files ON Files.entryID = VersionChunks.entryID WHERE VersionChunks.chunkID = FileChunks.chunkID) LIMIT 1";
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setString(1, clearChunkHash);
+			try (ResultSet results = stmt.executeQuery()) {
+				if (results.next()) {
+					return rowToFileChunk(results);
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	@Override public FileChunk getFileChunk(String chunkID) {
+		// Only report a chunk that still belongs to a file.
+		String sql = "SELECT * FROM FileChunks WHERE chunkID = ? AND EXISTS "
+				+ "(SELECT 1 FROM VersionChunks JOIN Files ON Files.entryID = VersionChunks.entryID WHERE VersionChunks.chunkID = FileChunks.chunkID)";
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setString(1, chunkID);
+			try (ResultSet results = stmt.executeQuery()) {
+				if (results.next()) {
+					return rowToFileChunk(results);
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	@Override public Long getContainerIDForChunk(String chunkID) {
+		String sql = "SELECT Files.containerID FROM VersionChunks JOIN Files ON Files.entryID = VersionChunks.entryID WHERE VersionChunks.chunkID = ? LIMIT 1";
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setString(1, chunkID);
+			try (ResultSet results = stmt.executeQuery()) {
+				if (results.next()) {
+					return results.getLong("containerID");
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
 	@Override public void addChunkForFile(String fileID, String versionID, FileChunk chunk) throws NoSuchFileException, NoSuchFileVersionException, FileChunkAlreadyExistsException {
-		String sql = "INSERT INTO VersionChunks (entryID, versionID, chunkID) VALUES (?,?,?)";
+		String sql = "INSERT INTO VersionChunks (entryID, versionID, chunkID, chunkIndex) VALUES (?,?,?,?)";
 		String sql2 = "INSERT INTO FileChunks (chunkIndex, cipherTextSize, clearTextSize, chunkKey, initializationVector, cipherTextHash, clearTextHash, compressionAlgorithm, chunkID) VALUES (?,?,?,?,?,?,?,?,?)";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			try {
-				fileChunkExists(conn, chunk.getChunkID());
+				versionChunkExists(conn, fileID, versionID, chunk.getChunkID());
 				throw new FileChunkAlreadyExistsException();
 			} catch (NoSuchFileChunkException e) {
 				stmt.setString(1, fileID);
 				stmt.setString(2, versionID);
 				stmt.setString(3, chunk.getChunkID());
+				stmt.setLong(4, chunk.getIndex());
 				stmt.execute();
 
-				stmt2.setLong(1, chunk.getIndex());
-				stmt2.setLong(2, chunk.getCipherTextSize());
-				stmt2.setLong(3, chunk.getClearTextSize());
-				if(chunk.getChunkKey() == null) {
-					stmt2.setNull(4, Types.BLOB);
-				} else {
-					stmt2.setBytes(4, chunk.getChunkKey().getEncoded());
+				// A chunk reused from another version is already stored
+				try {
+					fileChunkExists(conn, chunk.getChunkID());
+				} catch (NoSuchFileChunkException e2) {
+					stmt2.setLong(1, chunk.getIndex());
+					stmt2.setLong(2, chunk.getCipherTextSize());
+					stmt2.setLong(3, chunk.getClearTextSize());
+					if(chunk.getChunkKey() == null) {
+						stmt2.setNull(4, Types.BLOB);
+					} else {
+						stmt2.setBytes(4, chunk.getChunkKey().getEncoded());
+					}
+					stmt2.setBytes(5, chunk.getInitializationVector());
+					stmt2.setString(6, chunk.getCipherTextHash());
+					stmt2.setString(7, chunk.getClearTextHash());
+					stmt2.setString(8, chunk.getCompressionAlgorithm());
+					stmt2.setString(9, chunk.getChunkID());
+					stmt2.execute();
 				}
-				stmt2.setBytes(5, chunk.getInitializationVector());
-				stmt2.setString(6, chunk.getCipherTextHash());
-				stmt2.setString(7, chunk.getClearTextHash());
-				stmt2.setString(8, chunk.getCompressionAlgorithm());
-				stmt2.setString(9, chunk.getChunkID());
-				stmt2.execute();
 			}
 		} catch (SQLException ex) {
 			ex.printStackTrace();
@@ -831,10 +904,11 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void updateChunkForFile(String fileID, String versionID, FileChunk chunk) throws NoSuchFileException, NoSuchFileVersionException, NoSuchFileChunkException {
 		String sql = "UPDATE FileChunks SET chunkIndex = ?, cipherTextSize = ?, clearTextSize = ?, chunkKey = ?, initializationVector = ?, cipherTextHash = ?, clearTextHash = ?, compressionAlgorithm = ? WHERE chunkID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		String sql2 = "UPDATE VersionChunks SET chunkIndex = ? WHERE entryID = ? AND versionID = ? AND chunkID = ?";
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
-			fileChunkExists(conn, chunk.getChunkID());
+			versionChunkExists(conn, fileID, versionID, chunk.getChunkID());
 			stmt.setLong(1, chunk.getIndex());
 			stmt.setLong(2, chunk.getCipherTextSize());
 			stmt.setLong(3, chunk.getClearTextSize());
@@ -849,24 +923,32 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 			stmt.setString(8, chunk.getCompressionAlgorithm());
 			stmt.setString(9, chunk.getChunkID());
 			stmt.execute();
+
+			stmt2.setLong(1, chunk.getIndex());
+			stmt2.setString(2, fileID);
+			stmt2.setString(3, versionID);
+			stmt2.setString(4, chunk.getChunkID());
+			stmt2.execute();
 		} catch (SQLException ex) {
 			ex.printStackTrace();
 		}
 	}
 
 	@Override public void removeChunkForFile(String fileID, String versionID, FileChunk chunk) throws NoSuchFileException, NoSuchFileVersionException, NoSuchFileChunkException {
-		String sql = "DELETE FROM FileChunks WHERE chunkID = ?";
-		String sql2 = "DELETE FROM VersionChunks WHERE entryID = ? AND versionID = ? AND chunkID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		String sql = "DELETE FROM VersionChunks WHERE entryID = ? AND versionID = ? AND chunkID = ?";
+		String sql2 = "DELETE FROM FileChunks WHERE chunkID = ? AND NOT EXISTS (SELECT 1 FROM VersionChunks WHERE chunkID = ?)";
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
-			fileChunkExists(conn, chunk.getChunkID());
-			stmt.setString(1, chunk.getChunkID());
+			versionChunkExists(conn, fileID, versionID, chunk.getChunkID());
+			stmt.setString(1, fileID);
+			stmt.setString(2, versionID);
+			stmt.setString(3, chunk.getChunkID());
 			stmt.execute();
 
-			stmt2.setString(1, fileID);
-			stmt2.setString(2, versionID);
-			stmt2.setString(3, chunk.getChunkID());
+			// The chunk itself is only removed once no other version uses it
+			stmt2.setString(1, chunk.getChunkID());
+			stmt2.setString(2, chunk.getChunkID());
 			stmt2.execute();
 		} catch (SQLException ex) {
 			ex.printStackTrace();
@@ -874,7 +956,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<FileTag> getTagsForFileVersion(String fileID, String versionID) throws NoSuchFileException, NoSuchFileVersionException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM FileTags WHERE versionID = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM FileTags WHERE versionID = ?")) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			List<FileTag> tr = new ArrayList<>();
@@ -894,7 +976,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void addTagForFile(String fileID, String versionID, FileTag tag) throws NoSuchFileException, NoSuchFileVersionException, FileTagAlreadyExistsException {
 		String sql = "SELECT * FROM FileTags WHERE scope = ? AND value = ? AND versionID = ?";
 		String sql2 = "INSERT INTO FileTags (scope, value, versionID) VALUES (?,?,?)";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			stmt.setString(1, tag.getScope());
@@ -917,7 +999,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void removeTagForFile(String fileID, String versionID, FileTag tag) throws NoSuchFileException, NoSuchFileVersionException, NoSuchFileTagException {
 		String sql = "SELECT * FROM FileTags WHERE scope = ? AND value = ? AND versionID = ?";
 		String sql2 = "DELETE FROM FileTags WHERE scope = ? AND value = ? AND versionID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			fileExists(conn, fileID);
 			fileVersionExists(conn, fileID, versionID);
 			stmt.setString(1, tag.getScope());
@@ -938,7 +1020,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<User> getUsers() {
-		try (Connection conn = DriverManager.getConnection(_dbPath); Statement stmt = conn.createStatement()) {
+		try (Connection conn = _connectionPool.getConnection(); Statement stmt = conn.createStatement()) {
 			List<User> tr = new ArrayList<>();
 			try (ResultSet results = stmt.executeQuery("SELECT * FROM Users")) {
 				while (results.next()) {
@@ -965,7 +1047,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	private User getUser(String identifier, String column) throws NoSuchUserException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Users WHERE "+column+" = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Users WHERE "+column+" = ?")) {
 			stmt.setString(1, identifier);
 			try (ResultSet results = stmt.executeQuery()) {
 				if (results.next()) {
@@ -987,7 +1069,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 		}
 		String sql = "SELECT * FROM Users WHERE userID = ?";
 		String sql2 = "INSERT INTO Users (email, publicKey, userID) VALUES (?,?,?)";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			stmt.setString(1, user.getUserID());
 			try (ResultSet results = stmt.executeQuery()) {
 				if (results.next()) {
@@ -1006,7 +1088,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void updateUser(User user) throws NoSuchUserException {
 		String sql = "SELECT * FROM Users WHERE userID = ?";
 		String sql2 = "UPDATE Users SET email = ?, publicKey = ? WHERE userID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			stmt.setString(1, user.getUserID());
 			try (ResultSet results = stmt.executeQuery()) {
 				if (!results.next()) {
@@ -1029,7 +1111,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	@Override public void removeUser(String userID) throws NoSuchUserException {
 		String sql = "SELECT * FROM Users WHERE userID = ?";
 		String sql2 = "DELETE FROM Users WHERE userID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql); PreparedStatement stmt2 = conn.prepareStatement(sql2)) {
 			stmt.setString(1, userID);
 			try (ResultSet results = stmt.executeQuery()) {
 				if (!results.next()) {
@@ -1060,7 +1142,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void addUserNode(UserNode memberNode) {
 		String sql = "INSERT INTO UserNodes (hostname, port, publicKey, userID) VALUES (?,?,?,?)";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			stmt.setString(1, memberNode.getHostname());
 			stmt.setInt(2, memberNode.getPort());
 			stmt.setBytes(3, memberNode.getPublicKey());
@@ -1073,7 +1155,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 
 	@Override public void removeUserNode(String userID, UserNode memberNode) {
 		String sql = "DELETE FROM UserNodes WHERE hostname = ? AND port = ? AND publicKey = ? ANd userID = ?";
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement(sql)) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
 			stmt.setString(1, memberNode.getHostname());
 			stmt.setInt(2, memberNode.getPort());
 			stmt.setBytes(3, memberNode.getPublicKey());
@@ -1085,7 +1167,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public List<UserNode> getUserNodesForUserID(String userID) {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM UserNodes WHERE userID = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT * FROM UserNodes WHERE userID = ?")) {
 			List<UserNode> tr = new ArrayList<>();
 			stmt.setString(1, userID);
 			try (ResultSet results = stmt.executeQuery()) {
@@ -1101,7 +1183,7 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 	}
 
 	@Override public Workspace getWorkspaceByMyAuthToken(String authToken) throws BadAuthTokenException {
-		try (Connection conn = DriverManager.getConnection(_dbPath); PreparedStatement stmt = conn.prepareStatement("SELECT parentWorkspace FROM Members WHERE userID = ? AND authToken = ?")) {
+		try (Connection conn = _connectionPool.getConnection(); PreparedStatement stmt = conn.prepareStatement("SELECT parentWorkspace FROM Members WHERE userID = ? AND authToken = ?")) {
 			stmt.setString(1, _currentUser.getUserID());
 			stmt.setString(2, authToken);
 			try (ResultSet results = stmt.executeQuery()) {
@@ -1214,6 +1296,32 @@ public class SQLiteDataModelProvider implements DataModelProvider {
 		}
 	}
 
+	private void versionChunkExists(Connection conn, String fileID, String versionID, String chunkID) throws NoSuchFileChunkException, SQLException {
+		try (PreparedStatement stmt = conn.prepareStatement(FETCH_VERSIONCHUNK_SQL)) {
+			stmt.setString(1, fileID);
+			stmt.setString(2, versionID);
+			stmt.setString(3, chunkID);
+			try (ResultSet results = stmt.executeQuery()) {
+				if (!results.next()) {
+					throw new NoSuchFileChunkException();
+				}
+			}
+		}
+	}
+
+	private void addColumnIfMissing(Connection conn, String table, String column, String type) throws SQLException {
+		try (Statement stmt = conn.createStatement()) {
+			try (ResultSet results = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+				while (results.next()) {
+					if (column.equalsIgnoreCase(results.getString("name"))) {
+						return;
+					}
+				}
+			}
+			stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+		}
+	}
+
 	private void fileChunkExists(Connection conn, String chunkID) throws NoSuchFileChunkException, SQLException {
 		try (PreparedStatement stmt = conn.prepareStatement(FETCH_FILECHUNK_SQL)) {
 			stmt.setString(1, chunkID);
@@ -181,6 +181,178 @@ public abstract class DataModelFileChunkTest {
         assertNotEquals(fetchedChunk, fileChunks.get(0));
     }
 
+    @Test
+    public void testGetFileChunkWithClearHash() throws Exception {
+        long workspaceID = new Random().nextLong();
+        String fileID = UUID.randomUUID().toString();
+        String chunkID = UUID.randomUUID().toString();
+        String versionID = UUID.randomUUID().toString();
+        String clearHash = UUID.randomUUID().toString();
+
+        Workspace workspace = new Workspace();
+        workspace.setGuid(workspaceID);
+        workspace.setName("Sample Workspace");
+
+        File file = new File();
+        file.setEntryID(fileID);
+        file.setName("Foo");
+        file.setContainerID(workspaceID);
+
+        FileVersion fileVersion = new FileVersion();
+        fileVersion.setVersionID(versionID);
+        fileVersion.setEntryID(fileID);
+
+        FileChunk fileChunk = new FileChunk();
+        fileChunk.setChunkID(chunkID);
+        fileChunk.setIndex(0);
+        fileChunk.setClearTextHash(clearHash);
+        fileChunk.setCompressionAlgorithm("GZIP");
+
+        DataModel dataModel = initDataModel();
+
+        dataModel.addWorkspace(workspace);
+        dataModel.addFileToWorkspace(workspaceID, file);
+        dataModel.addFileVersion(fileID, fileVersion);
+
+        assertNull(dataModel.getFileChunkWithClearHash(clearHash));
+
+        dataModel.addChunkForFile(fileID, versionID, fileChunk);
+
+        FileChunk foundChunk = dataModel.getFileChunkWithClearHash(clearHash);
+        assertEquals(fileChunk, foundChunk);
+        assertNotSame(fileChunk, foundChunk);
+        assertNull(dataModel.getFileChunkWithClearHash(UUID.randomUUID().toString()));
+
+        dataModel.removeChunkForFile(fileID, versionID, fileChunk);
+
+        assertNull(dataModel.getFileChunkWithClearHash(clearHash));
+    }
+
+    @Test
+    public void testGetFileChunkByID() throws Exception {
+        long workspaceID = new Random().nextLong();
+        String fileID = UUID.randomUUID().toString();
+        String chunkID = UUID.randomUUID().toString();
+        String versionID = UUID.randomUUID().toString();
+        String cipherHash = UUID.randomUUID().toString();
+
+        Workspace workspace = new Workspace();
+        workspace.setGuid(workspaceID);
+        workspace.setName("Sample Workspace");
+
+        File file = new File();
+        file.setEntryID(fileID);
+        file.setName("Foo");
+        file.setContainerID(workspaceID);
+
+        FileVersion fileVersion = new FileVersion();
+        fileVersion.setVersionID(versionID);
+        fileVersion.setEntryID(fileID);
+
+        FileChunk fileChunk = new FileChunk();
+        fileChunk.setChunkID(chunkID);
+        fileChunk.setIndex(0);
+        fileChunk.setCipherTextHash(cipherHash);
+        fileChunk.setCompressionAlgorithm("GZIP");
+
+        DataModel dataModel = initDataModel();
+
+        dataModel.addWorkspace(workspace);
+        dataModel.addFileToWorkspace(workspaceID, file);
+        dataModel.addFileVersion(fileID, fileVersion);
+
+        assertNull(dataModel.getFileChunk(chunkID));
+        assertNull(dataModel.getContainerIDForChunk(chunkID));
+
+        dataModel.addChunkForFile(fileID, versionID, fileChunk);
+
+        FileChunk foundChunk = dataModel.getFileChunk(chunkID);
+        assertEquals(fileChunk, foundChunk);
+        assertEquals(cipherHash, foundChunk.getCipherTextHash());
+        assertEquals(Long.valueOf(workspaceID), dataModel.getContainerIDForChunk(chunkID));
+        assertNull(dataModel.getFileChunk(UUID.randomUUID().toString()));
+
+        dataModel.removeChunkForFile(fileID, versionID, fileChunk);
+
+        assertNull(dataModel.getFileChunk(chunkID));
+        assertNull(dataModel.getContainerIDForChunk(chunkID));
+    }
+
+    @Test
+    public void testFileChunkSharedBetweenFiles() throws Exception {
+        long workspaceID = new Random().nextLong();
+        String fileID = UUID.randomUUID().toString();
+        String fileID2 = UUID.randomUUID().toString();
+        String chunkID = UUID.randomUUID().toString();
+        String versionID = UUID.randomUUID().toString();
+        String versionID2 = UUID.randomUUID().toString();
+        String clearHash = UUID.randomUUID().toString();
+
+        Workspace workspace = new Workspace();
+        workspace.setGuid(workspaceID);
+        workspace.setName("Sample Workspace");
+
+        File file = new File();
+        file.setEntryID(fileID);
+        file.setName("Foo");
+        file.setContainerID(workspaceID);
+
+        File file2 = new File();
+        file2.setEntryID(fileID2);
+        file2.setName("Bar");
+        file2.setContainerID(workspaceID);
+
+        FileVersion fileVersion = new FileVersion();
+        fileVersion.setVersionID(versionID);
+        fileVersion.setEntryID(fileID);
+
+        FileVersion fileVersion2 = new FileVersion();
+        fileVersion2.setVersionID(versionID2);
+        fileVersion2.setEntryID(fileID2);
+
+        FileChunk fileChunk = new FileChunk();
+        fileChunk.setChunkID(chunkID);
+        fileChunk.setIndex(0);
+        fileChunk.setClearTextHash(clearHash);
+
+        DataModel dataModel = initDataModel();
+
+        dataModel.addWorkspace(workspace);
+        dataModel.addFileToWorkspace(workspaceID, file);
+        dataModel.addFileVersion(fileID, fileVersion);
+        dataModel.addFileToWorkspace(workspaceID, file2);
+        dataModel.addFileVersion(fileID2, fileVersion2);
+
+        // The same chunk sits at a different position in the second file
+        FileChunk sharedChunk = new FileChunk(fileChunk);
+        sharedChunk.setIndex(3);
+        dataModel.addChunkForFile(fileID, versionID, fileChunk);
+        dataModel.addChunkForFile(fileID2, versionID2, sharedChunk);
+
+        List<FileChunk> fileChunks;
+
+        fileChunks = dataModel.getChunksForFileVersion(fileID, versionID);
+        assertEquals(1, fileChunks.size());
+        assertEquals(fileChunk, fileChunks.get(0));
+
+        fileChunks = dataModel.getChunksForFileVersion(fileID2, versionID2);
+        assertEquals(1, fileChunks.size());
+        assertEquals(sharedChunk, fileChunks.get(0));
+
+        // Removing the chunk from one file leaves it in the other
+        dataModel.removeChunkForFile(fileID, versionID, fileChunk);
+
+        assertEquals(0, dataModel.getChunksForFileVersion(fileID, versionID).size());
+        fileChunks = dataModel.getChunksForFileVersion(fileID2, versionID2);
+        assertEquals(1, fileChunks.size());
+        assertEquals(sharedChunk, fileChunks.get(0));
+        assertNotNull(dataModel.getFileChunkWithClearHash(clearHash));
+
+        dataModel.removeChunkForFile(fileID2, versionID2, sharedChunk);
+
+        assertNull(dataModel.getFileChunkWithClearHash(clearHash));
+    }
+
     @Test(expected = NoSuchFileException.class)
     public void testGetFileChunksForNonExistentFile() throws Exception {
         long workspaceID = new Random().nextLong();
@@ -0,0 +1,169 @@
+package io.topiacoin.model.provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SQLiteConnectionPoolTest {
+
+	private static final String DB_LOC = "target/testdbs/sqlite-connectionpooltest";
+
+	private SQLiteConnectionPool _pool;
+
+	@Before
+	public void setUp() throws Exception {
+		deleteDB();
+		File dbFile = new File(DB_LOC);
+		dbFile.getParentFile().mkdirs();
+		_pool = new SQLiteConnectionPool("jdbc:sqlite:" + dbFile.getAbsolutePath(), 2, 8, 1024, 1000);
+		try (Connection conn = _pool.getConnection(); Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE TABLE IF NOT EXISTS Things (id INTEGER PRIMARY KEY, name TEXT)");
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_pool.close();
+		deleteDB();
+	}
+
+	@Test
+	public void testConnectionsUseWAL() throws Exception {
+		try (Connection conn = _pool.getConnection(); Statement stmt = conn.createStatement(); ResultSet results = stmt.executeQuery("PRAGMA journal_mode")) {
+			assertTrue(results.next());
+			assertEquals("wal", results.getString(1).toLowerCase());
+		}
+	}
+
+	@Test
+	public void testPreparedStatementsAreReused() throws Exception {
+		String sql = "SELECT name FROM Things WHERE id = ?";
+		PreparedStatement first;
+		PreparedStatement second;
+		try (Connection conn = _pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			stmt.setInt(1, 1);
+			stmt.executeQuery().close();
+			first = stmt.unwrap(PreparedStatement.class);
+		}
+		try (Connection conn = _pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+			second = stmt.unwrap(PreparedStatement.class);
+		}
+		assertSame(first, second);
+		assertFalse(second.isClosed());
+	}
+
+	@Test
+	public void testSameSQLInUseIsNotShared() throws Exception {
+		String sql = "SELECT name FROM Things WHERE id = ?";
+		try (Connection conn = _pool.getConnection();
+				PreparedStatement stmt = conn.prepareStatement(sql);
+				PreparedStatement stmt2 = conn.prepareStatement(sql)) {
+			assertNotSame(stmt.unwrap(PreparedStatement.class), stmt2.unwrap(PreparedStatement.class));
+		}
+	}
+
+	@Test
+	public void testClosedHandlesCannotBeUsed() throws Exception {
+		Connection conn = _pool.getConnection();
+		PreparedStatement stmt = conn.prepareStatement("SELECT * FROM Things");
+		stmt.close();
+		conn.close();
+
+		assertTrue(conn.isClosed());
+		assertTrue(stmt.isClosed());
+		try {
+			conn.createStatement();
+			fail("Expected an SQLException");
+		} catch (java.sql.SQLException e) {
+			//NOP - Expected Exception
+		}
+		try {
+			stmt.executeQuery();
+			fail("Expected an SQLException");
+		} catch (java.sql.SQLException e) {
+			//NOP - Expected Exception
+		}
+	}
+
+	@Test
+	public void testNestedConnectionsOnOneThreadDoNotExhaustPool() throws Exception {
+		try (Connection conn1 = _pool.getConnection();
+				Connection conn2 = _pool.getConnection();
+				Connection conn3 = _pool.getConnection();
+				Statement stmt = conn3.createStatement()) {
+			// Every handle on this thread shares the one lease, so they all see the same uncommitted transaction.
+			conn1.setAutoCommit(false);
+			assertFalse(conn2.getAutoCommit());
+			stmt.execute("INSERT INTO Things (id, name) VALUES (1, 'one')");
+			try (Statement query = conn2.createStatement(); ResultSet results = query.executeQuery("SELECT COUNT(*) FROM Things")) {
+				assertTrue(results.next());
+				assertEquals(1, results.getInt(1));
+			}
+			conn1.commit();
+		}
+	}
+
+	@Test
+	public void testReadersDoNotBlockBehindWriter() throws Exception {
+		try (Connection conn = _pool.getConnection(); Statement stmt = conn.createStatement()) {
+			stmt.execute("INSERT INTO Things (id, name) VALUES (1, 'one')");
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (Connection writer = _pool.getConnection(); Statement stmt = writer.createStatement()) {
+			writer.setAutoCommit(false);
+			stmt.execute("UPDATE Things SET name = 'uno' WHERE id = 1");
+
+			// With the write transaction still open, another connection should read the last committed value.
+			Future<String> read = executor.submit(() -> {
+				try (Connection reader = _pool.getConnection(); PreparedStatement query = reader.prepareStatement("SELECT name FROM Things WHERE id = ?")) {
+					query.setInt(1, 1);
+					try (ResultSet results = query.executeQuery()) {
+						results.next();
+						return results.getString(1);
+					}
+				}
+			});
+			assertEquals("one", read.get(5, TimeUnit.SECONDS));
+
+			writer.commit();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testAbandonedTransactionIsRolledBack() throws Exception {
+		try (Connection conn = _pool.getConnection(); Statement stmt = conn.createStatement()) {
+			conn.setAutoCommit(false);
+			stmt.execute("INSERT INTO Things (id, name) VALUES (1, 'one')");
+		}
+
+		try (Connection conn = _pool.getConnection(); Statement stmt = conn.createStatement(); ResultSet results = stmt.executeQuery("SELECT COUNT(*) FROM Things")) {
+			assertTrue(conn.getAutoCommit());
+			assertTrue(results.next());
+			assertEquals(0, results.getInt(1));
+		}
+	}
+
+	private void deleteDB() {
+		for (String suffix : new String[]{"", "-wal", "-shm"}) {
+			File f = new File(DB_LOC + suffix);
+			if (f.exists()) {
+				f.delete();
+			}
+		}
+	}
+}
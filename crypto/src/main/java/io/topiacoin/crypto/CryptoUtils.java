@@ -17,6 +17,7 @@ import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.FilterOutputStream;
@@ -24,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.InvalidParameterException;
@@ -418,6 +420,44 @@ public class CryptoUtils {
         encryptWithSecretKey(inStream, outStream, secretKey, null);
     }
 
+    /**
+     * Returns a Cipher initialized for the specified secret key and initialization vector specification, using the
+     * same transformation as the other secret key methods.  This allows data to be encrypted or decrypted
+     * incrementally via <code>Cipher.update()</code>, with the result matching that of encrypting or decrypting all of
+     * the data in a single call.
+     *
+     * @param opmode          Either <code>Cipher.ENCRYPT_MODE</code> or <code>Cipher.DECRYPT_MODE</code>
+     * @param secretKey       The key to use when encrypting or decrypting the data.
+     * @param ivParameterSpec The initialization vector to use, or null to use ECB mode.
+     *
+     * @return an initialized Cipher
+     *
+     * @throws CryptographicException If the Cipher cannot be created or initialized.
+     */
+    public static Cipher getSecretKeyCipher(int opmode, SecretKey secretKey, IvParameterSpec ivParameterSpec) throws CryptographicException {
+        try {
+            String algorithm = secretKey.getAlgorithm();
+            Cipher cipher;
+            if (ivParameterSpec != null) {
+                algorithm = secretKey.getAlgorithm() + "/CBC/PKCS5Padding";
+                cipher = Cipher.getInstance(algorithm);
+                cipher.init(opmode, secretKey, ivParameterSpec);
+            } else {
+                cipher = Cipher.getInstance(algorithm);
+                cipher.init(opmode, secretKey);
+            }
+            return cipher;
+        } catch (NoSuchPaddingException e) {
+            throw new CryptographicException("Failed to initialize secret key cipher", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CryptographicException("Failed to initialize secret key cipher", e);
+        } catch (InvalidKeyException e) {
+            throw new CryptographicException("Failed to initialize secret key cipher", e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new CryptographicException("Failed to initialize secret key cipher", e);
+        }
+    }
+
 
     // -------- Secret Key Data Decryption Methods --------
 
@@ -520,6 +560,45 @@ public class CryptoUtils {
         }
     }
 
+    /**
+     * Decrypts the remaining data in the specified buffer using the specified secret key and initialization vector
+     * specification and writes it to the provided OutputStream.  The data is decrypted a piece at a time straight
+     * from the buffer, so a memory-mapped buffer is never copied onto the heap as a whole.  The buffer's position is
+     * left unchanged, and the OutputStream will remain open after this operation completes.
+     *
+     * @param encryptedData   The buffer holding the data to be decrypted
+     * @param outStream       The data stream to which the decrypted data is to be written
+     * @param secretKey       The encryption key to use when decrypting the data.
+     * @param ivParameterSpec The initialization vector to use when decrypting the data.
+     *
+     * @throws CryptographicException If there is an error while attempting to decrypt the data.
+     */
+    public static void decryptWithSecretKey(ByteBuffer encryptedData, OutputStream outStream, SecretKey secretKey, IvParameterSpec ivParameterSpec) throws CryptographicException {
+        Cipher cipher = getSecretKeyCipher(Cipher.DECRYPT_MODE, secretKey, ivParameterSpec);
+        try {
+            ByteBuffer input = encryptedData.duplicate();
+            ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(8192) + cipher.getBlockSize());
+            while (input.hasRemaining()) {
+                ByteBuffer piece = input.duplicate();
+                piece.limit(Math.min(input.limit(), input.position() + 8192));
+                cipher.update(piece, output);
+                input.position(piece.position());
+                outStream.write(output.array(), 0, output.position());
+                output.clear();
+            }
+            cipher.doFinal(input, output);
+            outStream.write(output.array(), 0, output.position());
+        } catch (ShortBufferException e) {
+            throw new CryptographicException("Failed to decrypt with secret key", e);
+        } catch (BadPaddingException e) {
+            throw new CryptographicException("Failed to decrypt with secret key", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new CryptographicException("Failed to decrypt with secret key", e);
+        } catch (IOException e) {
+            throw new CryptographicException("Failed to decrypt with secret key", e);
+        }
+    }
+
     /**
      * Decrypts the data in the specified InputStream using the specified secret key and initialization vector
      * specification and writes it to the provided OutputStream.
@@ -146,6 +146,26 @@ public class HashUtils {
         return "SHA-256:" + Base64.encodeBase64String(sha256(input));
     }
 
+    /**
+     * Returns the Base64-encoded String containing the SHA-256 Hash of a range of the input bytes prefixed with the
+     * algorithm identifier.
+     *
+     * @param input  The byte array containing the content to be hashed.
+     * @param offset The offset of the first byte to be hashed.
+     * @param length The number of bytes to be hashed.
+     *
+     * @return A String containing the hash of the specified bytes.
+     */
+    public static String sha256String(byte[] input, int offset, int length) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(input, offset, length);
+            return "SHA-256:" + Base64.encodeBase64String(sha256.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to Find the SHA-256 Algorithm", e);
+        }
+    }
+
     /**
      * Returns the Base64-encoded String containing the SHA-256 Hash of the input bytes prefixed with the algorithm
      * identifier. The hash is calculated over the bytes that make up the string.
@@ -8,12 +8,12 @@ import io.topiacoin.crypto.impl.RSAMessageSigningProvider;
 import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.PublicKey;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MessageSigner {
 
-    private static Map<String, MessageSigningProvider> _signingProviderCache = new HashMap<>();
+    private static Map<String, MessageSigningProvider> _signingProviderCache = new ConcurrentHashMap<>();
 
     public static byte[] sign(byte[] bufferToSign, KeyPair keyPair) throws CryptographicException {
         MessageSigningProvider messageSigner = getMessageSigningProviderForPublicKey(keyPair.getPublic());
@@ -4,12 +4,14 @@ import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Test;
 
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PublicKey;
@@ -317,6 +319,40 @@ public class CryptoUtilsTest {
         assertArrayEquals(inputData, decryptedDataFromBytes);
     }
 
+    @Test
+    public void testIncrementalSecretKeyCipherMatchesSingleCall() throws Exception {
+        SecretKey key = CryptoUtils.generateAESKey();
+        IvParameterSpec ivParameterSpec = CryptoUtils.generateIV("AES");
+
+        byte[] inputData = new byte[100000];
+        new Random().nextBytes(inputData);
+
+        Cipher encrypt = CryptoUtils.getSecretKeyCipher(Cipher.ENCRYPT_MODE, key, ivParameterSpec);
+        ByteArrayOutputStream cipherBaos = new ByteArrayOutputStream();
+        for (int offset = 0; offset < inputData.length; offset += 7001) {
+            byte[] part = encrypt.update(inputData, offset, Math.min(7001, inputData.length - offset));
+            if (part != null) {
+                cipherBaos.write(part);
+            }
+        }
+        cipherBaos.write(encrypt.doFinal());
+
+        byte[] encryptedData = cipherBaos.toByteArray();
+        assertArrayEquals(CryptoUtils.encryptWithSecretKey(inputData, key, ivParameterSpec), encryptedData);
+
+        Cipher decrypt = CryptoUtils.getSecretKeyCipher(Cipher.DECRYPT_MODE, key, ivParameterSpec);
+        ByteArrayOutputStream clearBaos = new ByteArrayOutputStream();
+        for (int offset = 0; offset < encryptedData.length; offset += 4099) {
+            byte[] part = decrypt.update(encryptedData, offset, Math.min(4099, encryptedData.length - offset));
+            if (part != null) {
+                clearBaos.write(part);
+            }
+        }
+        clearBaos.write(decrypt.doFinal());
+
+        assertArrayEquals(inputData, clearBaos.toByteArray());
+    }
+
     @Test
     public void testEncryptAndDecryptStringWithSecretKey() throws Exception {
         byte[] keyBytes = new byte[16]; // Key is all 0's.
@@ -507,4 +543,27 @@ public class CryptoUtilsTest {
         assertTrue(decData.length <= encData.length);
         assertArrayEquals(inData, decData);
     }
+
+    @Test
+    public void testDecryptBufferWithIV() throws Exception {
+        SecretKey secretKey = CryptoUtils.generateAESKey();
+        IvParameterSpec ivParameterSpec = CryptoUtils.generateIV("AES");
+
+        // Large enough to be decrypted in several pieces
+        byte[] inData = new byte[100000];
+        Random random = new Random();
+        random.nextBytes(inData);
+
+        byte[] encData = CryptoUtils.encryptWithSecretKey(inData, secretKey, ivParameterSpec);
+
+        ByteBuffer encBuffer = ByteBuffer.allocateDirect(encData.length);
+        encBuffer.put(encData);
+        encBuffer.flip();
+        ByteArrayOutputStream decBaos = new ByteArrayOutputStream();
+
+        CryptoUtils.decryptWithSecretKey(encBuffer.asReadOnlyBuffer(), decBaos, secretKey, ivParameterSpec);
+
+        assertArrayEquals(inData, decBaos.toByteArray());
+        assertEquals(0, encBuffer.position());
+    }
 }
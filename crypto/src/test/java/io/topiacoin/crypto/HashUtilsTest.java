@@ -55,6 +55,9 @@ public class HashUtilsTest {
         byte[] stringHashBytes = HashUtils.sha256(inputString) ;
         String bytesHashString = HashUtils.sha256String(inputBytes) ;
         String stringHashString = HashUtils.sha256String(inputString) ;
+        byte[] paddedInputBytes = new byte[inputBytes.length + 8];
+        System.arraycopy(inputBytes, 0, paddedInputBytes, 3, inputBytes.length);
+        String rangeHashString = HashUtils.sha256String(paddedInputBytes, 3, inputBytes.length);
         String bytesHashHexString = HashUtils.sha256HexString(inputBytes) ;
         String stringHashHexString = HashUtils.sha256HexString(inputString) ;
 
@@ -63,6 +66,7 @@ public class HashUtilsTest {
         assertArrayEquals(expectedHash, stringHashBytes);
         assertEquals ( expectedHashString, bytesHashString) ;
         assertEquals(expectedHashString, stringHashString);
+        assertEquals(expectedHashString, rangeHashString);
         assertEquals ( expectedHashHexString, bytesHashHexString) ;
         assertEquals(expectedHashHexString, stringHashHexString);
     }
@@ -7,7 +7,7 @@ import io.topiacoin.dht.action.PeriodicRefreshAction;
 import io.topiacoin.dht.action.RemoveValueAction;
 import io.topiacoin.dht.action.StoreValueAction;
 import io.topiacoin.dht.config.DHTConfiguration;
-import io.topiacoin.dht.content.InMemoryExpiringValueStorage;
+import io.topiacoin.dht.content.LogStructuredValueStorage;
 import io.topiacoin.dht.intf.FetchContentCallback;
 import io.topiacoin.dht.intf.ValueStorage;
 import io.topiacoin.dht.messages.MessageFactory;
@@ -73,7 +73,7 @@ public class DHT {
 
         int entryExpirationTime = configuration.getEntryExpirationTime();
 
-        ValueStorage valueStorage = new InMemoryExpiringValueStorage();
+        ValueStorage valueStorage = new LogStructuredValueStorage();
 
         Semaphore refreshSemaphore = new Semaphore(1);
 
@@ -111,7 +111,7 @@ public class DHT {
 
         NodeID nodeID;
         RoutingTable routingTable;
-        ValueStorage valueStorage;
+        ValueStorage valueStorage = _dhtComponents.getValueStorage();
 
         long bytesToBeRead = routingTableStateFile.length();
 
@@ -126,6 +126,15 @@ public class DHT {
         routingTable = new RoutingTable(routingTableBuffer, _dhtComponents);
         routingTableChannel.close();
 
+        // Reload the stored values, so that they don't all have to be republished to this node
+        if (hashTableStateFile.exists()) {
+            try {
+                valueStorage.load(hashTableStateFile);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unable to Load Hash Table State", e);
+            }
+        }
+
         this.nodeID = nodeID;
         this._node = new Node(this.nodeID, this._node.getAddress(), this._node.getPort());
         _dhtComponents.setRoutingTable(routingTable);
@@ -156,6 +165,9 @@ public class DHT {
             routingTableChannel.write(routingTableBuffer);
             routingTableChannel.close();
 
+            // Save the stored values
+            valueStorage.save(hashTableStateFile);
+
         } catch (FileNotFoundException e) {
             throw new RuntimeException("Unable to Save State", e);
         } catch (IOException e) {
@@ -220,6 +232,7 @@ public class DHT {
                 _log.warn("Unable to Save DHT State", e);
             }
         }
+        _dhtComponents.getValueStorage().shutdown();
         isRunning = false;
     }
 
@@ -20,6 +20,8 @@ public class DHTConfiguration {
     public static final String BOOTSTRAP_NODE_ID = "dht.bootstrap.id";
     public static final String BOOTSTRAP_NODE_HOSTNAME = "dht.bootstrap.host";
     public static final String BOOTSTRAP_NODE_PORT = "dht.bootstrap.port";
+    public static final String WORKER_THREADS = "dht.worker.threads";
+    public static final String RECEIVE_BUFFERS = "dht.receive.buffers";
 
     private static final long defaultRestoreInterval = 60 * 1000;
     private static final long defaultResponseTimeout = 2000;
@@ -34,6 +36,8 @@ public class DHTConfiguration {
     private static final String defaultBootstrapNodeID = "idunno";
     private static final String defaultBootstrapHostname = "localhost";
     private static final String defaultBootstrapPort = "11111";
+    private static final int defaultWorkerThreads = Runtime.getRuntime().availableProcessors();
+    private static final int defaultReceiveBuffers = 64;
 
     private Configuration _coreConfiguration ;
 
@@ -144,4 +148,20 @@ public class DHTConfiguration {
     public void setBootstrapNodePort(int bootstrapNodePort) {
         _coreConfiguration.setConfigurationOption(BOOTSTRAP_NODE_PORT, Integer.toString(bootstrapNodePort));
     }
+
+    public int getWorkerThreads() {
+        return _coreConfiguration.getConfigurationOption(WORKER_THREADS, defaultWorkerThreads);
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        _coreConfiguration.setConfigurationOption(WORKER_THREADS, Integer.toString(workerThreads));
+    }
+
+    public int getReceiveBuffers() {
+        return _coreConfiguration.getConfigurationOption(RECEIVE_BUFFERS, defaultReceiveBuffers);
+    }
+
+    public void setReceiveBuffers(int receiveBuffers) {
+        _coreConfiguration.setConfigurationOption(RECEIVE_BUFFERS, Integer.toString(receiveBuffers));
+    }
 }
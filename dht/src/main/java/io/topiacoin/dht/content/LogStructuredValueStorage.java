@@ -0,0 +1,421 @@
+package io.topiacoin.dht.content;
+
+import io.topiacoin.dht.intf.ValueStorage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * A Value Storage that keeps its values in memory, and records every change in an append-only log on disk so that the
+ * values survive a restart.
+ * <p>
+ * Until a log has been attached by calling load() or save(), the storage works purely in memory. Once attached, every
+ * set, refresh and remove is appended to the log as it happens. Each record carries its own length and CRC, so if the
+ * process dies part way through writing a record, the partial record is detected and truncated away the next time the
+ * log is loaded.
+ * <p>
+ * Expired values are never written back out. Once the log holds more superseded, removed and expired records than
+ * live values, it is compacted by writing the live values to a new log and atomically replacing the old one.
+ */
+public class LogStructuredValueStorage implements ValueStorage {
+
+    private static final Log _log = LogFactory.getLog(LogStructuredValueStorage.class);
+
+    private static final int LOG_MAGIC = 0x44485456; // "DHTV"
+    private static final int LOG_VERSION = 1;
+    private static final int LOG_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final byte OP_SET = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 1024;
+
+    private Map<String, Map<String, Long>> _valueMap;
+    private File _logFile;
+    private FileChannel _logChannel;
+    private int _liveValueCount;
+    private int _logRecordCount;
+
+    public LogStructuredValueStorage() {
+    }
+
+    @Override
+    public synchronized void initialize() {
+        _valueMap = new HashMap<String, Map<String, Long>>();
+        _liveValueCount = 0;
+    }
+
+    /**
+     * Closes the log. The values remain available in memory, but further changes are no longer recorded.
+     */
+    @Override
+    public synchronized void shutdown() {
+        closeLog();
+    }
+
+    @Override
+    public synchronized void setValue(String key, String value, long timeout) {
+        if (key == null || key.isEmpty()) {
+            throw new NullPointerException("Key not specified");
+        }
+        if (value == null) {
+            throw new NullPointerException("Value not specified");
+        }
+
+        long expirationTime = timeout;
+        putValue(key, value, expirationTime);
+        appendRecord(OP_SET, key, value, expirationTime);
+    }
+
+    /**
+     * Adds the value if it isn't already stored. If it is, its expiration time is only ever extended, as a refresh can
+     * arrive after the value was set again with a later expiration time.
+     */
+    @Override
+    public synchronized void refreshValue(String key, String value, long timeout) {
+        if (key == null || key.isEmpty()) {
+            throw new NullPointerException("Key not specified");
+        }
+
+        long currentExpirationTime = getExpirationTime(key, value);
+        if (timeout > currentExpirationTime) {
+            setValue(key, value, timeout);
+        }
+    }
+
+    @Override
+    public synchronized Collection<String> getValues(String key) {
+        Map<String, Long> values = _valueMap.get(key);
+        if (values == null) {
+            return Collections.emptySet();
+        }
+
+        purgeExpiredValues(key, values, System.currentTimeMillis());
+        return new TreeSet<String>(values.keySet());
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) {
+        Map<String, Long> values = _valueMap.get(key);
+        if (values != null) {
+            purgeExpiredValues(key, values, System.currentTimeMillis());
+        }
+        return _valueMap.containsKey(key);
+    }
+
+    @Override
+    public synchronized void removeValue(String key, String value) {
+        Map<String, Long> values = _valueMap.get(key);
+        if (values != null && values.remove(value) != null) {
+            _liveValueCount--;
+            if (values.isEmpty()) {
+                _valueMap.remove(key);
+            }
+            appendRecord(OP_REMOVE, key, value, 0);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Collection<String>> getValueMap() {
+        Map<String, Collection<String>> retValueMap = new HashMap<String, Collection<String>>();
+
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Map<String, Long>>> iterator = _valueMap.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Map<String, Long>> entry = iterator.next();
+            Map<String, Long> values = entry.getValue();
+            _liveValueCount -= removeExpired(values, now);
+            if (values.isEmpty()) {
+                iterator.remove();
+            } else {
+                retValueMap.put(entry.getKey(), new TreeSet<String>(values.keySet()));
+            }
+        }
+
+        return retValueMap;
+    }
+
+    @Override
+    public synchronized long getExpirationTime(String key, String value) {
+        Map<String, Long> values = _valueMap.get(key);
+        if (values != null) {
+            purgeExpiredValues(key, values, System.currentTimeMillis());
+            Long expirationTime = values.get(value);
+            if (expirationTime != null) {
+                return expirationTime;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a compacted log of the current values to the specified file, replacing it atomically, and records all
+     * further changes in that file.
+     */
+    @Override
+    public synchronized void save(File file) throws IOException {
+        closeLog();
+        writeCompactedLog(file);
+        openLog(file);
+    }
+
+    /**
+     * Replaces the current values with those recorded in the specified log, then records all further changes in that
+     * log. A partial record at the end of the log, left behind by a crash, is discarded.
+     */
+    @Override
+    public synchronized void load(File file) throws IOException {
+        Map<String, Map<String, Long>> valueMap = new HashMap<String, Map<String, Long>>();
+        long validLength = LOG_HEADER_SIZE;
+        int recordCount = 0;
+        long now = System.currentTimeMillis();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            try {
+                if (in.readInt() != LOG_MAGIC || in.readInt() != LOG_VERSION) {
+                    throw new IOException("Not a DHT value log: " + file);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Not a DHT value log: " + file, e);
+            }
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                applyRecord(valueMap, ByteBuffer.wrap(record), now);
+                validLength += RECORD_HEADER_SIZE + record.length;
+                recordCount++;
+            }
+        }
+
+        if (validLength < file.length()) {
+            _log.warn("Discarding " + (file.length() - validLength) + " bytes of incomplete records from " + file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+
+        closeLog();
+        _valueMap = valueMap;
+        _liveValueCount = 0;
+        for (Map<String, Long> values : valueMap.values()) {
+            _liveValueCount += values.size();
+        }
+        openLog(file);
+        _logRecordCount = recordCount;
+        compactIfNeeded();
+    }
+
+    // -------- Private Methods --------
+
+    private void putValue(String key, String value, long expirationTime) {
+        Map<String, Long> values = _valueMap.get(key);
+        if (values == null) {
+            values = new HashMap<String, Long>();
+            _valueMap.put(key, values);
+        }
+        if (values.put(value, expirationTime) == null) {
+            _liveValueCount++;
+        }
+    }
+
+    private void purgeExpiredValues(String key, Map<String, Long> values, long now) {
+        _liveValueCount -= removeExpired(values, now);
+        if (values.isEmpty()) {
+            _valueMap.remove(key);
+        }
+    }
+
+    private static int removeExpired(Map<String, Long> values, long now) {
+        int removed = 0;
+        for (Iterator<Long> iterator = values.values().iterator(); iterator.hasNext(); ) {
+            if (now >= iterator.next()) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static void applyRecord(Map<String, Map<String, Long>> valueMap, ByteBuffer record, long now) {
+        byte op = record.get();
+        String key = readString(record);
+        String value = readString(record);
+        if (op == OP_SET) {
+            long expirationTime = record.getLong();
+            Map<String, Long> values = valueMap.get(key);
+            if (now < expirationTime) {
+                if (values == null) {
+                    values = new HashMap<String, Long>();
+                    valueMap.put(key, values);
+                }
+                values.put(value, expirationTime);
+            } else if (values != null) {
+                values.remove(value);
+                if (values.isEmpty()) {
+                    valueMap.remove(key);
+                }
+            }
+        } else if (op == OP_REMOVE) {
+            Map<String, Long> values = valueMap.get(key);
+            if (values != null) {
+                values.remove(value);
+                if (values.isEmpty()) {
+                    valueMap.remove(key);
+                }
+            }
+        }
+    }
+
+    private void appendRecord(byte op, String key, String value, long expirationTime) {
+        if (_logChannel == null) {
+            return;
+        }
+        try {
+            writeRecord(_logChannel, op, key, value, expirationTime);
+            _logRecordCount++;
+            compactIfNeeded();
+        } catch (IOException e) {
+            // Keep serving from memory.  The values will be republished by the other nodes, and save() will write out a fresh log.
+            _log.warn("Failed to write to the DHT value log " + _logFile + ". Changes will no longer be recorded.", e);
+            closeLog();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (_logChannel != null
+                && _logRecordCount > MIN_RECORDS_BEFORE_COMPACTION
+                && _logRecordCount > 2 * _liveValueCount) {
+            File logFile = _logFile;
+            closeLog();
+            writeCompactedLog(logFile);
+            openLog(logFile);
+        }
+    }
+
+    private void writeCompactedLog(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(file.getPath() + ".compact");
+        int recordCount = 0;
+        long now = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(channel);
+            for (Iterator<Map.Entry<String, Map<String, Long>>> iterator = _valueMap.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Map<String, Long>> entry = iterator.next();
+                _liveValueCount -= removeExpired(entry.getValue(), now);
+                if (entry.getValue().isEmpty()) {
+                    iterator.remove();
+                    continue;
+                }
+                for (Map.Entry<String, Long> value : entry.getValue().entrySet()) {
+                    writeRecord(channel, OP_SET, entry.getKey(), value.getKey(), value.getValue());
+                    recordCount++;
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _logRecordCount = recordCount;
+    }
+
+    private void openLog(File file) throws IOException {
+        _logChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        _logFile = file;
+    }
+
+    private void closeLog() {
+        if (_logChannel != null) {
+            try {
+                _logChannel.force(true);
+                _logChannel.close();
+            } catch (IOException e) {
+                _log.warn("Failed to close the DHT value log " + _logFile, e);
+            }
+            _logChannel = null;
+            _logFile = null;
+        }
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        header.putInt(LOG_MAGIC);
+        header.putInt(LOG_VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static void writeRecord(FileChannel channel, byte op, String key, String value, long expirationTime) throws IOException {
+        // Each record is
+        //  payload length, an int
+        //  CRC32 of the payload, an int
+        //  payload - the op, the key and value as length-prefixed UTF-8, and for a set, the expiration time
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + Integer.BYTES + keyBytes.length + Integer.BYTES + valueBytes.length + (op == OP_SET ? Long.BYTES : 0);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadLength);
+        record.putInt(payloadLength);
+        record.putInt(0);
+        record.put(op);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        record.putInt(valueBytes.length);
+        record.put(valueBytes);
+        if (op == OP_SET) {
+            record.putLong(expirationTime);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, payloadLength);
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
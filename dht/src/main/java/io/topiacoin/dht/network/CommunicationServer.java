@@ -3,6 +3,7 @@ package io.topiacoin.dht.network;
 import io.topiacoin.crypto.CryptographicException;
 import io.topiacoin.crypto.MessageSigner;
 import io.topiacoin.dht.DHTComponents;
+import io.topiacoin.dht.config.DHTConfiguration;
 import io.topiacoin.dht.intf.Message;
 import io.topiacoin.dht.intf.ResponseHandler;
 import io.topiacoin.dht.messages.MessageFactory;
@@ -10,157 +11,389 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends and receives the DHT's messages over UDP.
+ *
+ * The channel is non-blocking. A single listener thread waits on a Selector until packets arrive, then reads every
+ * pending packet off the channel into buffers taken from a fixed pool. Each packet is decoded and its signature checked
+ * on a bounded set of worker threads, so the expensive part of receiving runs in parallel. The decoded messages are
+ * then passed to their handlers one at a time, by a single dispatcher thread, in the order the packets arrived. The
+ * handlers and the value storage rely on that ordering - a fetch must not overtake an earlier store or remove - so
+ * only decoding and verification are ever parallel.
+ *
+ * A packet holds on to its receive buffer until its handler has run. When every receive buffer is in use the server is
+ * falling behind, so incoming packets are dropped rather than queued, leaving the senders to retry as they would for
+ * any other lost packet.
+ */
 public class CommunicationServer {
 
     private final Log _log = LogFactory.getLog(this.getClass());
 
     private static final int BUFFER_SIZE = 64 * 1024; // 64KB UDP Buffer
+    private static final int PUBLIC_KEY_CACHE_SIZE = 1024;
+    private static final int SEND_ATTEMPTS = 10;
+    private static final long SEND_RETRY_DELAY = 100 * 1000; // 100 microseconds
 
-    private transient boolean isRunning = false;
-    private final DatagramSocket socket;
+    private transient volatile boolean isRunning = false;
+    private final DatagramChannel channel;
+    private final Selector selector;
     private transient Thread listenerThread;
+    private transient Thread dispatcherThread;
+    private transient ThreadPoolExecutor workers;
+    private transient BlockingQueue<ByteBuffer> receiveBuffers;
+    private transient BlockingQueue<PendingPacket> pendingPackets;
     private transient Timer timer;
     private transient Map<Integer, ResponseHandler> handlers;
     private transient Map<Integer, TimerTask> tasks;
+    private transient Map<ByteBuffer, PublicKey> publicKeyCache;
     private transient Random random;
     private transient Node node;
     private transient KeyPair keyPair;
 
+    private final AtomicLong receivedPacketCount = new AtomicLong();
+    private final AtomicLong droppedPacketCount = new AtomicLong();
+
+    private final ThreadLocal<ByteBuffer> messageBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+    private final ThreadLocal<ByteBuffer> packetBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
     private DHTComponents _dhtComponents;
 
     public CommunicationServer(int udpPort, KeyPair keyPair, Node node) throws SocketException {
 
-        this.socket = new DatagramSocket(udpPort);
+        this.channel = openChannel(udpPort);
+        this.selector = openSelector(this.channel, udpPort);
         this.keyPair = keyPair;
         this.node = node ;
 
-        this.handlers = new HashMap<Integer, ResponseHandler>();
-        this.tasks = new HashMap<Integer, TimerTask>();
+        this.handlers = new ConcurrentHashMap<Integer, ResponseHandler>();
+        this.tasks = new ConcurrentHashMap<Integer, TimerTask>();
+        this.publicKeyCache = new LinkedHashMap<ByteBuffer, PublicKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PublicKey> eldest) {
+                return size() > PUBLIC_KEY_CACHE_SIZE;
+            }
+        };
         this.random = new Random();
         this.timer = new Timer("CS-" + udpPort + " Handler Purge Timer");
     }
 
     public void start() {
+        DHTConfiguration configuration = _dhtComponents.getConfiguration();
+        int workerThreads = Math.max(1, configuration.getWorkerThreads());
+        int bufferCount = Math.max(1, configuration.getReceiveBuffers());
+        int port = getPort();
+
+        // Every pending packet holds one of the receive buffers, so the queues never need to be larger than the pool.
+        this.receiveBuffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            this.receiveBuffers.add(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        this.pendingPackets = new ArrayBlockingQueue<PendingPacket>(bufferCount);
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(bufferCount),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "CS-" + port + " Worker " + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
         listenerThread = new Thread(new Runnable() {
             public void run() {
                 listen();
             }
-        });
+        }, "CS-" + port + " Listener");
+        dispatcherThread = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "CS-" + port + " Dispatcher");
+        dispatcherThread.setDaemon(true);
         this.isRunning = true;
+        dispatcherThread.start();
         listenerThread.start();
     }
 
     public void shutdown() {
         this.isRunning = false;
-        this.socket.close();
+        this.selector.wakeup();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // NOOP - We are shutting down anyway
+        }
         this.timer.cancel();
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+        }
+        if (this.dispatcherThread != null) {
+            this.dispatcherThread.interrupt();
+        }
     }
 
     public int getPort() {
-        return this.socket.getLocalPort();
+        return this.channel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of packets that have been read off of the network.
+     */
+    public long getReceivedPacketCount() {
+        return this.receivedPacketCount.get();
+    }
+
+    /**
+     * Returns the number of received packets that were dropped because the server could not keep up with them.
+     */
+    public long getDroppedPacketCount() {
+        return this.droppedPacketCount.get();
     }
 
     private void listen() {
         NodeIDGenerator nodeIDGenerator = new NodeIDGenerator(_dhtComponents.getConfiguration());
-        while (this.isRunning) {
+        ByteBuffer discardBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        try {
+            while (this.isRunning) {
+                try {
+                    this.selector.select();
+                    this.selector.selectedKeys().clear();
+                    receivePackets(nodeIDGenerator, discardBuffer);
+                } catch (ClosedChannelException | ClosedSelectorException e) {
+                    // The server has been shutdown.
+                    break;
+                } catch (IOException e) {
+                    // Failed to read the data.  Move along
+                }
+            }
+        } finally {
             try {
-                MessageSigner messageSigner = _dhtComponents.getMessageSigner();
-                MessageFactory messageFactory = _dhtComponents.getMessageFactory();
-
-                byte[] buffer = new byte[BUFFER_SIZE];
-
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                this.socket.receive(packet);
-
-                // Decode the received data
-                ByteBuffer packetBuffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
-                packetBuffer.order(ByteOrder.BIG_ENDIAN); // Network Byte Order
-                int sigLength = packetBuffer.getInt();
-                byte[] signature = new byte[sigLength];
-                packetBuffer.get(signature) ;
-                int pubKeyLength = packetBuffer.getInt();
-                byte[] pubKey = new byte[pubKeyLength];
-                packetBuffer.get(pubKey);
-
-                // Reconstruct the Public Key from the Buffer
-                KeyFactory keyFactory = KeyFactory.getInstance("EC");
-                PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(pubKey)) ;
-
-                int messageLength = packetBuffer.getInt();
-
-                packetBuffer.mark();
-                if ( messageSigner.verify(packetBuffer, publicKey, signature) ) {
-                    packetBuffer.reset();
-
-                    byte[] nodeIDBytes = new byte[20] ;
-                    byte[] validationBytes = new byte[20] ;
-                    packetBuffer.get(nodeIDBytes);
-                    packetBuffer.get(validationBytes);
-
-                    NodeID originNodeID = new NodeID(nodeIDBytes, validationBytes) ;
-                    if ( !nodeIDGenerator.validateNodeID(originNodeID)) {
-                        _log.warn ( "Ignoring a message with an Invalid Node ID: " + originNodeID);
-                        continue;
-                    }
-                    Node originNode = new Node(originNodeID, packet.getAddress(), packet.getPort()) ;
-
-                    int msgID = packetBuffer.getInt();
-                    byte msgType = packetBuffer.get();
-
-                    Message message = messageFactory.createMessage(msgType, packetBuffer);
-
-                    _log.debug ( "Received Message: " + originNode.getPort() + "->" + this.socket.getLocalPort() + " -- " + Integer.toString(msgID, 16) + " -- " + message) ;
-
-                    // Find the Response Handler
-                    ResponseHandler responseHandler = null;
-                    if (this.handlers.containsKey(msgID)) {
-                        synchronized (this) {
-                            responseHandler = this.handlers.remove(msgID);
-                            TimerTask timerTask = this.tasks.remove(msgID);
-                            if (timerTask != null) {
-                                timerTask.cancel();
-                            }
-                        }
-                    } else {
-                        responseHandler = messageFactory.createReceiver(msgType);
-                    }
+                this.selector.close();
+            } catch (IOException e) {
+                // NOOP - We are shutting down anyway
+            }
+        }
+    }
 
-                    if (responseHandler != null) {
-                        responseHandler.receive(originNode, message, msgID);
-                    }
-                } else {
-                    System.err.println("Signature Verification Failed!");
+    /**
+     * Reads every packet that is waiting on the channel, queueing each one for the dispatcher in the order it arrived
+     * and handing it to a worker to be decoded.
+     */
+    private void receivePackets(NodeIDGenerator nodeIDGenerator, ByteBuffer discardBuffer) throws IOException {
+        while (this.isRunning) {
+            ByteBuffer buffer = this.receiveBuffers.poll();
+            if (buffer == null) {
+                // Every buffer is waiting to be processed, so read the packet and throw it away.
+                discardBuffer.clear();
+                if (this.channel.receive(discardBuffer) == null) {
+                    return;
                 }
+                this.receivedPacketCount.incrementAndGet();
+                this.droppedPacketCount.incrementAndGet();
+                continue;
+            }
 
+            buffer.clear();
+            InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) this.channel.receive(buffer);
             } catch (IOException e) {
-                // Failed to read the data.  Move along
-            } catch (CryptographicException e) {
-                // Failed to verify the data.  Move along
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            } catch (InvalidKeySpecException e) {
-                e.printStackTrace();
+                this.receiveBuffers.offer(buffer);
+                throw e;
+            }
+            if (source == null) {
+                // No more packets are waiting.
+                this.receiveBuffers.offer(buffer);
+                return;
+            }
+            this.receivedPacketCount.incrementAndGet();
+            buffer.flip();
+
+            PendingPacket packet = new PendingPacket(buffer, source, nodeIDGenerator);
+            this.pendingPackets.add(packet);
+            try {
+                this.workers.execute(packet);
+            } catch (RejectedExecutionException e) {
+                // The dispatcher drops the packet and releases its buffer when it reaches it.
+                packet.cancel(false);
             }
         }
     }
 
+    /**
+     * Passes the received messages to their handlers, one at a time, in the order their packets arrived.
+     */
+    private void dispatch() {
+        while (this.isRunning) {
+            PendingPacket packet;
+            try {
+                packet = this.pendingPackets.take();
+            } catch (InterruptedException e) {
+                // The server has been shutdown.
+                break;
+            }
+            try {
+                ReceivedMessage received = packet.get();
+                if (received != null) {
+                    handleMessage(received);
+                }
+            } catch (CancellationException e) {
+                this.droppedPacketCount.incrementAndGet();
+            } catch (InterruptedException e) {
+                // The server has been shutdown.
+                break;
+            } catch (ExecutionException e) {
+                _log.warn ( "Failed to process a received message", e.getCause()) ;
+            } catch (RuntimeException e) {
+                _log.warn ( "Failed to process a received message", e) ;
+            } finally {
+                this.receiveBuffers.offer(packet.buffer);
+            }
+        }
+    }
+
+    private void handleMessage(ReceivedMessage received) {
+        MessageFactory messageFactory = _dhtComponents.getMessageFactory();
+
+        // Find the Response Handler
+        ResponseHandler responseHandler = this.handlers.remove(received.msgID);
+        if (responseHandler != null) {
+            TimerTask timerTask = this.tasks.remove(received.msgID);
+            if (timerTask != null) {
+                timerTask.cancel();
+            }
+        } else {
+            responseHandler = messageFactory.createReceiver(received.msgType);
+        }
+
+        if (responseHandler != null) {
+            responseHandler.receive(received.origin, received.message, received.msgID);
+        }
+    }
+
+    /**
+     * Decodes the packet and verifies its signature.
+     *
+     * @return The received message, or null if the packet is invalid and should be ignored
+     */
+    private ReceivedMessage decodePacket(ByteBuffer packetBuffer, InetSocketAddress source, NodeIDGenerator nodeIDGenerator) {
+        try {
+            MessageSigner messageSigner = _dhtComponents.getMessageSigner();
+            MessageFactory messageFactory = _dhtComponents.getMessageFactory();
+
+            // Decode the received data
+            packetBuffer.order(ByteOrder.BIG_ENDIAN); // Network Byte Order
+            int sigLength = packetBuffer.getInt();
+            byte[] signature = new byte[sigLength];
+            packetBuffer.get(signature) ;
+            int pubKeyLength = packetBuffer.getInt();
+            byte[] pubKey = new byte[pubKeyLength];
+            packetBuffer.get(pubKey);
+
+            PublicKey publicKey = getPublicKey(pubKey);
+
+            int messageLength = packetBuffer.getInt();
+
+            packetBuffer.mark();
+            if ( messageSigner.verify(packetBuffer, publicKey, signature) ) {
+                packetBuffer.reset();
+
+                byte[] nodeIDBytes = new byte[20] ;
+                byte[] validationBytes = new byte[20] ;
+                packetBuffer.get(nodeIDBytes);
+                packetBuffer.get(validationBytes);
+
+                NodeID originNodeID = new NodeID(nodeIDBytes, validationBytes) ;
+                if ( !nodeIDGenerator.validateNodeID(originNodeID)) {
+                    _log.warn ( "Ignoring a message with an Invalid Node ID: " + originNodeID);
+                    return null;
+                }
+                Node originNode = new Node(originNodeID, source.getAddress(), source.getPort()) ;
+
+                int msgID = packetBuffer.getInt();
+                byte msgType = packetBuffer.get();
+
+                Message message = messageFactory.createMessage(msgType, packetBuffer);
+
+                _log.debug ( "Received Message: " + originNode.getPort() + "->" + getPort() + " -- " + Integer.toString(msgID, 16) + " -- " + message) ;
+
+                return new ReceivedMessage(originNode, msgID, msgType, message);
+            } else {
+                System.err.println("Signature Verification Failed!");
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // The packet was truncated or malformed.  Move along
+        } catch (CryptographicException e) {
+            // Failed to verify the data.  Move along
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (InvalidKeySpecException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            _log.warn ( "Failed to process a received message", e) ;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Public Key encoded in the given bytes. Peers send their key with every message, so decoded keys are
+     * cached rather than being reconstructed for each packet.
+     */
+    private PublicKey getPublicKey(byte[] encodedKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        ByteBuffer cacheKey = ByteBuffer.wrap(encodedKey);
+        PublicKey publicKey;
+        synchronized (this.publicKeyCache) {
+            publicKey = this.publicKeyCache.get(cacheKey);
+        }
+        if (publicKey == null) {
+            // Reconstruct the Public Key from the Buffer
+            KeyFactory keyFactory = KeyFactory.getInstance("EC");
+            publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(encodedKey)) ;
+            synchronized (this.publicKeyCache) {
+                this.publicKeyCache.put(cacheKey, publicKey);
+            }
+        }
+        return publicKey;
+    }
+
     public int sendMessage(Node recipient, Message message, ResponseHandler responseHandler) {
         if (!this.isRunning) {
             throw new IllegalStateException("The Communication Server is not running");
@@ -169,19 +402,23 @@ public class CommunicationServer {
         // Find a message ID for the message we are about to send.
         // Make sure we don't collide with an existing message ID.
         int msgID = 0;
-        while (msgID == 0 || this.handlers.containsKey(msgID)) {
-            msgID = random.nextInt();
-        }
-
         if (responseHandler != null) {
+            while (msgID == 0 || this.handlers.putIfAbsent(msgID, responseHandler) != null) {
+                msgID = random.nextInt();
+            }
+
             try {
-                // Save the Response Handler and schedule the timeout task
-                handlers.put(msgID, responseHandler);
+                // Schedule the timeout task
                 TimerTask timerTask = new TimeoutTask(msgID, responseHandler);
-                this.timer.schedule(timerTask, this._dhtComponents.getConfiguration().getResponseTimeout());
                 this.tasks.put(msgID, timerTask);
+                this.timer.schedule(timerTask, this._dhtComponents.getConfiguration().getResponseTimeout());
             } catch (IllegalStateException e) {
                 // The timer must have been cancelled.  Ignore and proceed.
+                this.tasks.remove(msgID);
+            }
+        } else {
+            while (msgID == 0 || this.handlers.containsKey(msgID)) {
+                msgID = random.nextInt();
             }
         }
 
@@ -202,10 +439,11 @@ public class CommunicationServer {
 
         MessageSigner messageSigner = _dhtComponents.getMessageSigner();
 
-        _log.debug ( "Sending Message:  " + this.socket.getLocalPort() + "->" + recipient.getPort() + " -- " + Integer.toString(msgID, 16) + " -- " + message) ;
+        _log.debug ( "Sending Message:  " + getPort() + "->" + recipient.getPort() + " -- " + Integer.toString(msgID, 16) + " -- " + message) ;
 
         // Encode the message for sending
-        ByteBuffer messageBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer messageBuffer = this.messageBuffers.get();
+        messageBuffer.clear();
         messageBuffer.order(ByteOrder.BIG_ENDIAN); // Network Byte Order
         messageBuffer.put(this.node.getNodeID().getNodeID());
         messageBuffer.put(this.node.getNodeID().getValidation());
@@ -214,9 +452,6 @@ public class CommunicationServer {
         message.encodeMessage(messageBuffer);
         messageBuffer.flip();
 
-//        System.out.println ( "message buffer.length with Signature: " + messageBuffer.limit() ) ;
-//        System.out.println ("message buffer: " + Arrays.toString(messageBuffer.array())) ;
-
         // Sign the Message and append the signature
         byte[] signature = new byte[0];
         try {
@@ -228,7 +463,8 @@ public class CommunicationServer {
 
         byte[] publicKey = this.keyPair.getPublic().getEncoded();
 
-        ByteBuffer packetBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer packetBuffer = this.packetBuffers.get();
+        packetBuffer.clear();
         packetBuffer.order(ByteOrder.BIG_ENDIAN); // Network Byte Order
         packetBuffer.putInt(signature.length);
         packetBuffer.put(signature);
@@ -238,35 +474,93 @@ public class CommunicationServer {
         packetBuffer.put(messageBuffer);
         packetBuffer.flip();
 
-//        System.out.println ( "signature length: " + signature.length);
-//        System.out.println("Signature: " + Hex.encodeHexString(signature));
-//        System.out.println ( "packet buffer.length with Signature: " + packetBuffer.limit() ) ;
-//
-//        System.out.println ("packet buffer: " + Arrays.toString(packetBuffer.array())) ;
-
-
-        // Build the Datagram Packet
-        DatagramPacket packet = new DatagramPacket(packetBuffer.array(), 0, packetBuffer.limit()) ;
-        packet.setSocketAddress(recipient.getSocketAddress());
-
         try {
-            this.socket.send(packet);
+            // The channel is non-blocking, so a full send buffer makes send() return without sending rather than wait.
+            int attempts = 1;
+            while (this.channel.send(packetBuffer, recipient.getSocketAddress()) == 0 && attempts < SEND_ATTEMPTS) {
+                LockSupport.parkNanos(SEND_RETRY_DELAY);
+                attempts++;
+            }
         } catch (IOException e) {
             // Failed to send the packet
 
         }
     }
 
-    private void unregister(int msgID) {
-        this.handlers.remove(msgID);
-        this.tasks.remove(msgID);
+    private static DatagramChannel openChannel(int udpPort) throws SocketException {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(udpPort));
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                    // NOOP
+                }
+            }
+            if (e instanceof SocketException) {
+                throw (SocketException) e;
+            }
+            SocketException socketException = new SocketException("Unable to open UDP port " + udpPort);
+            socketException.initCause(e);
+            throw socketException;
+        }
+    }
 
+    private static Selector openSelector(DatagramChannel channel, int udpPort) throws SocketException {
+        try {
+            Selector selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            return selector;
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException e1) {
+                // NOOP
+            }
+            SocketException socketException = new SocketException("Unable to listen on UDP port " + udpPort);
+            socketException.initCause(e);
+            throw socketException;
+        }
     }
 
     public void setDHTComponents(DHTComponents dhtComponents) {
         _dhtComponents = dhtComponents;
     }
 
+    /**
+     * A received packet waiting to be passed to its handler. The packet is decoded by one of the workers, and holds on
+     * to its receive buffer until the dispatcher has handled it.
+     */
+    private class PendingPacket extends FutureTask<ReceivedMessage> {
+
+        private final ByteBuffer buffer;
+
+        public PendingPacket(ByteBuffer buffer, InetSocketAddress source, NodeIDGenerator nodeIDGenerator) {
+            super(() -> decodePacket(buffer, source, nodeIDGenerator));
+            this.buffer = buffer;
+        }
+    }
+
+    private static class ReceivedMessage {
+
+        private final Node origin;
+        private final int msgID;
+        private final byte msgType;
+        private final Message message;
+
+        public ReceivedMessage(Node origin, int msgID, byte msgType, Message message) {
+            this.origin = origin;
+            this.msgID = msgID;
+            this.msgType = msgType;
+            this.message = message;
+        }
+    }
+
     private class TimeoutTask extends TimerTask {
 
         private final int msgID;
@@ -285,10 +579,12 @@ public class CommunicationServer {
                 return;
             }
 
-            // Find the responseHandler for the
+            // Only time out the handler if the response hasn't been received in the meantime
             try {
-                unregister(msgID);
-                responseHandler.timeout(msgID);
+                tasks.remove(msgID, this);
+                if (handlers.remove(msgID, responseHandler)) {
+                    responseHandler.timeout(msgID);
+                }
             } catch (Exception e) {
                 // NOOP
             }
@@ -36,7 +36,7 @@ public class RouteBucket {
         return distance;
     }
 
-    public void insert(Node node) {
+    public synchronized void insert(Node node) {
         NodeInfo newNodeInfo = new NodeInfo(node);
 
         if (containsNode(node)) {
@@ -84,7 +84,7 @@ public class RouteBucket {
         }
     }
 
-    public NodeInfo getNodeInfo(Node node) {
+    public synchronized NodeInfo getNodeInfo(Node node) {
         for (NodeInfo nodeInfo : this.nodes) {
             if (nodeInfo.getNode().equals(node)) {
                 return nodeInfo;
@@ -93,27 +93,27 @@ public class RouteBucket {
         return null;
     }
 
-    public boolean containsNode(Node node) {
+    public synchronized boolean containsNode(Node node) {
         return this.nodes.contains(new NodeInfo(node));
     }
 
-    public void remove(Node node) {
+    public synchronized void remove(Node node) {
         this.nodes.remove(new NodeInfo(node));
     }
 
-    public int numNodes() {
+    public synchronized int numNodes() {
         return this.nodes.size();
     }
 
-    public List<NodeInfo> getNodeInfos() {
+    public synchronized List<NodeInfo> getNodeInfos() {
         return new ArrayList<NodeInfo>(this.nodes);
     }
 
-    public List<NodeInfo> getReplacementCache() {
+    public synchronized List<NodeInfo> getReplacementCache() {
         return new ArrayList<NodeInfo>(this.replacementCache);
     }
 
-    public void encode(ByteBuffer buffer) {
+    public synchronized void encode(ByteBuffer buffer) {
         buffer.putInt(distance);
         buffer.putInt(nodes.size());
         for (NodeInfo nodeInfo : nodes) {
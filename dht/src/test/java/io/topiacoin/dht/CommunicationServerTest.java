@@ -17,6 +17,11 @@ import org.junit.Test;
 
 import java.net.InetAddress;
 import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.*;
 
@@ -189,4 +194,151 @@ public class CommunicationServerTest {
             Thread.sleep(500);
         }
     }
+
+    @Test
+    public void testPacketsAreDroppedWhenServerIsOverloaded() throws Exception {
+
+        MessageFactory messageFactory1 = new MessageFactory();
+
+        KeyPair keyPair1 = CryptoUtils.generateECKeyPair();
+        MessageSigner messageSigner1 = new MessageSigner();
+
+        DHTConfiguration configuration1 = new DHTTestConfiguration();
+        configuration1.setEntryExpirationTime(10000);
+        configuration1.setWorkerThreads(1);
+        configuration1.setReceiveBuffers(1);
+
+        ValueStorage valueStorage1 = new InMemoryExpiringValueStorage() ;
+
+        NodeIDGenerator nodeIDGenerator = new NodeIDGenerator(configuration1);
+        NodeID thisNodeID = nodeIDGenerator.generateNodeID();
+        Node node1 = new Node(thisNodeID, "localhost", 12347);
+
+        CommunicationServer communicationServer1 = new CommunicationServer(12347, keyPair1, node1);
+
+        DHTComponents dhtComponents1 = new DHTComponents();
+        dhtComponents1.setMessageFactory(messageFactory1);
+        dhtComponents1.setMessageSigner(messageSigner1);
+        dhtComponents1.setConfiguration(configuration1);
+        dhtComponents1.setValueStorage(valueStorage1);
+        dhtComponents1.setCommunicationServer(communicationServer1);
+
+        communicationServer1.setDHTComponents(dhtComponents1);
+        messageFactory1.setDhtComponents(dhtComponents1);
+
+        messageFactory1.initialize();
+        valueStorage1.initialize();
+
+        final CountDownLatch firstReceived = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        try {
+            communicationServer1.start();
+
+            Node recipient = new Node(thisNodeID, InetAddress.getLocalHost(), 12347);
+
+            // The first message ties up the dispatcher and the only receive buffer until it is released.
+            StoreValueRequest message = new StoreValueRequest();
+            message.setKey("key");
+            message.setValue("value");
+            communicationServer1.sendMessage(recipient, message, new ResponseHandler() {
+                public void receive(Node origin, Message msg, int msgID) {
+                    firstReceived.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // NOOP
+                    }
+                }
+
+                public void timeout(int msgID) {
+                }
+            });
+            assertTrue(firstReceived.await(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 10; i++) {
+                communicationServer1.sendMessage(recipient, message, null);
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (communicationServer1.getReceivedPacketCount() < 11 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(11, communicationServer1.getReceivedPacketCount());
+            assertEquals(10, communicationServer1.getDroppedPacketCount());
+        } finally {
+            release.countDown();
+            communicationServer1.shutdown();
+            Thread.sleep ( 500 ) ;
+        }
+    }
+
+    @Test
+    public void testMessagesAreHandledInTheOrderTheyArrive() throws Exception {
+
+        MessageFactory messageFactory1 = new MessageFactory();
+
+        KeyPair keyPair1 = CryptoUtils.generateECKeyPair();
+        MessageSigner messageSigner1 = new MessageSigner();
+
+        DHTConfiguration configuration1 = new DHTTestConfiguration();
+        configuration1.setEntryExpirationTime(10000);
+        configuration1.setWorkerThreads(4);
+
+        ValueStorage valueStorage1 = new InMemoryExpiringValueStorage() ;
+
+        NodeIDGenerator nodeIDGenerator = new NodeIDGenerator(configuration1);
+        NodeID thisNodeID = nodeIDGenerator.generateNodeID();
+        Node node1 = new Node(thisNodeID, "localhost", 12348);
+
+        CommunicationServer communicationServer1 = new CommunicationServer(12348, keyPair1, node1);
+
+        DHTComponents dhtComponents1 = new DHTComponents();
+        dhtComponents1.setMessageFactory(messageFactory1);
+        dhtComponents1.setMessageSigner(messageSigner1);
+        dhtComponents1.setConfiguration(configuration1);
+        dhtComponents1.setValueStorage(valueStorage1);
+        dhtComponents1.setCommunicationServer(communicationServer1);
+
+        communicationServer1.setDHTComponents(dhtComponents1);
+        messageFactory1.setDhtComponents(dhtComponents1);
+
+        messageFactory1.initialize();
+        valueStorage1.initialize();
+
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch allReceived = new CountDownLatch(20);
+
+        try {
+            communicationServer1.start();
+
+            Node recipient = new Node(thisNodeID, InetAddress.getLocalHost(), 12348);
+            StoreValueRequest message = new StoreValueRequest();
+            message.setKey("key");
+            message.setValue("value");
+
+            // The packets are decoded in parallel, but must still reach their handlers in the order they were sent.
+            for (int i = 0; i < 20; i++) {
+                final int index = i;
+                communicationServer1.sendMessage(recipient, message, new ResponseHandler() {
+                    public void receive(Node origin, Message msg, int msgID) {
+                        handled.add(index);
+                        allReceived.countDown();
+                    }
+
+                    public void timeout(int msgID) {
+                    }
+                });
+            }
+
+            assertTrue(allReceived.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, (int) handled.get(i));
+            }
+        } finally {
+            communicationServer1.shutdown();
+            Thread.sleep ( 500 ) ;
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package io.topiacoin.dht.content;
+
+import io.topiacoin.dht.intf.ValueStorage;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+
+import static junit.framework.TestCase.*;
+
+public class LogStructuredValueStorageTest extends AbstractValueStorageTest {
+
+    @Override
+    protected ValueStorage getValueStorage() {
+
+        LogStructuredValueStorage valueStorage = new LogStructuredValueStorage();
+
+        valueStorage.initialize();
+
+        return valueStorage;
+    }
+
+    @Test
+    public void testChangesAfterSaveAreRecovered() throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+
+        File tempFile = File.createTempFile("dht", null);
+        try {
+            ValueStorage valueStorage = getValueStorage();
+            valueStorage.setValue("Firefly", "Malcolm", timeout);
+            valueStorage.save(tempFile);
+
+            // These changes are only recorded in the log
+            valueStorage.setValue("Firefly", "Wash", timeout);
+            valueStorage.setValue("Firefly", "Zoe", timeout);
+            valueStorage.removeValue("Firefly", "Malcolm");
+
+            // Load the log without shutting down the original, as though the process had died
+            ValueStorage loadedStorage = getValueStorage();
+            loadedStorage.load(tempFile);
+
+            Collection<String> values = loadedStorage.getValues("Firefly");
+            assertEquals(2, values.size());
+            assertTrue(values.contains("Wash"));
+            assertTrue(values.contains("Zoe"));
+            assertEquals(timeout, loadedStorage.getExpirationTime("Firefly", "Zoe"));
+
+            valueStorage.shutdown();
+            loadedStorage.shutdown();
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testIncompleteRecordIsDiscarded() throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+
+        File tempFile = File.createTempFile("dht", null);
+        try {
+            ValueStorage valueStorage = getValueStorage();
+            valueStorage.save(tempFile);
+            valueStorage.setValue("Firefly", "Malcolm", timeout);
+            long goodLength = tempFile.length();
+            valueStorage.setValue("Firefly", "Wash", timeout);
+            valueStorage.shutdown();
+
+            // Chop the last record in half, as though the process died while writing it
+            try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+                raf.setLength(goodLength + (tempFile.length() - goodLength) / 2);
+            }
+
+            ValueStorage loadedStorage = getValueStorage();
+            loadedStorage.load(tempFile);
+
+            Collection<String> values = loadedStorage.getValues("Firefly");
+            assertEquals(1, values.size());
+            assertTrue(values.contains("Malcolm"));
+            assertEquals(goodLength, tempFile.length());
+
+            // New records are appended after the last good record
+            loadedStorage.setValue("Firefly", "Zoe", timeout);
+            loadedStorage.shutdown();
+
+            ValueStorage reloadedStorage = getValueStorage();
+            reloadedStorage.load(tempFile);
+            values = reloadedStorage.getValues("Firefly");
+            assertEquals(2, values.size());
+            assertTrue(values.contains("Zoe"));
+            reloadedStorage.shutdown();
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testExpiredValuesAreNotLoaded() throws Exception {
+        File tempFile = File.createTempFile("dht", null);
+        try {
+            ValueStorage valueStorage = getValueStorage();
+            valueStorage.save(tempFile);
+            valueStorage.setValue("Go", "Fight", System.currentTimeMillis() + 100);
+            valueStorage.setValue("Go", "Win", System.currentTimeMillis() + 10000);
+            valueStorage.shutdown();
+
+            Thread.sleep(150);
+
+            ValueStorage loadedStorage = getValueStorage();
+            loadedStorage.load(tempFile);
+
+            Collection<String> values = loadedStorage.getValues("Go");
+            assertEquals(1, values.size());
+            assertTrue(values.contains("Win"));
+            loadedStorage.shutdown();
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testLogIsCompacted() throws Exception {
+        long timeout = System.currentTimeMillis() + 10000;
+
+        File tempFile = File.createTempFile("dht", null);
+        try {
+            ValueStorage valueStorage = getValueStorage();
+            valueStorage.save(tempFile);
+            valueStorage.setValue("Firefly", "Serenity", timeout);
+            long singleValueLength = tempFile.length();
+
+            // Keep replacing the same value, which should trigger compaction
+            for (int i = 0; i < 5000; i++) {
+                valueStorage.setValue("Firefly", "Serenity", timeout);
+            }
+            valueStorage.shutdown();
+
+            assertTrue(tempFile.length() < singleValueLength * 3000);
+
+            ValueStorage loadedStorage = getValueStorage();
+            loadedStorage.load(tempFile);
+            Collection<String> values = loadedStorage.getValues("Firefly");
+            assertEquals(1, values.size());
+            assertTrue(values.contains("Serenity"));
+            loadedStorage.shutdown();
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    @Test
+    public void testLoadingInvalidFileFails() throws Exception {
+        File tempFile = File.createTempFile("dht", null);
+        try {
+            ValueStorage valueStorage = getValueStorage();
+            try {
+                valueStorage.load(tempFile);
+                fail("Expected an IOException");
+            } catch (java.io.IOException e) {
+                // NOOP - Expected Exception
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
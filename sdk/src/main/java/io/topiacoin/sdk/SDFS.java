@@ -35,7 +35,6 @@ import io.topiacoin.core.callbacks.UpdateWorkspaceDescriptionCallback;
 import io.topiacoin.core.exceptions.NotLoggedInException;
 import io.topiacoin.crypto.CryptoUtils;
 import io.topiacoin.crypto.CryptographicException;
-import io.topiacoin.crypto.HashUtils;
 import io.topiacoin.dht.SDFSDHTAccessor;
 import io.topiacoin.model.CurrentUser;
 import io.topiacoin.model.DHTWorkspaceEntry;
@@ -55,6 +54,7 @@ import io.topiacoin.model.exceptions.NoSuchMemberException;
 import io.topiacoin.model.exceptions.NoSuchUserException;
 import io.topiacoin.model.exceptions.NoSuchWorkspaceException;
 import io.topiacoin.workspace.blockchain.BlockchainUsersAPI;
+import io.topiacoin.sdk.impl.ChunkEncoder;
 import io.topiacoin.sdk.impl.DHTEventsAPI;
 import io.topiacoin.workspace.blockchain.BlockchainWorkspacesAPI;
 import org.apache.commons.codec.binary.Base64;
@@ -64,22 +64,21 @@ import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.zip.GZIPOutputStream;
 
 public class SDFS {
 
@@ -94,6 +93,7 @@ public class SDFS {
     private ChunkManager _chunkManager;
 
     private ExecutorService _taskExecutor;
+    private ChunkEncoder _chunkEncoder;
 
     SDFS() {
         _configuration = null;
@@ -110,6 +110,28 @@ public class SDFS {
 
     }
 
+    /**
+     * Stops the threads used to add and save files, once the files already being added or saved are done.  The SDFS
+     * cannot add or save files once it has been shut down.
+     */
+    public void shutdown() {
+        _taskExecutor.shutdown();
+        try {
+            if (!_taskExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                _log.warn("Timed out waiting for file tasks to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (_chunkEncoder != null) {
+                _chunkEncoder.shutdown();
+                _chunkEncoder = null;
+            }
+        }
+    }
+
 
     // -------- Event API --------
 
@@ -398,7 +420,6 @@ public class SDFS {
                 try {
                     String fileGUID = UUID.randomUUID().toString();
                     String fileVersionGUID = UUID.randomUUID().toString();
-                    List<FileChunk> fileChunks = new ArrayList<>();
 
                     // Create File object with the basic metadata.
                     File newFile = new File();
@@ -419,93 +440,11 @@ public class SDFS {
 
                     // Chunk and Encrypt the Data, collecting all the necessary metadata along the way.
                     int chunkSize = _configuration.getConfigurationOption("chunk.size", 524288);
-                    long chunkIndex = 0;
-                    long bytesRemaining = fileToBeAdded.length();
-                    SecretKey chunkKey;
-                    IvParameterSpec iv;
-                    byte[] clearChunk = new byte[chunkSize];
-                    byte[] cipherChunk = null;
-                    byte[] fileHash = null;
-                    MessageDigest sha256File = MessageDigest.getInstance("SHA-256");
-                    FileInputStream fileInputStream = new FileInputStream(fileToBeAdded);
-                    int bytesRead = 0;
-                    try {
-                        while (bytesRemaining > 0 && bytesRead >= 0) {
-                            // Generate a new Chunk ID
-                            String chunkID = HashUtils.sha256String(UUID.randomUUID().toString() + System.currentTimeMillis());
-
-                            chunkKey = CryptoUtils.generateAESKey();
-                            iv = CryptoUtils.generateIV(chunkKey.getAlgorithm());
-
-                            // Read in on chunk's worth of data from the source file
-                            bytesRead = fileInputStream.read(clearChunk);
-                            if (bytesRead > 0) {
-                                FileChunk fileChunk;
-
-                                // Update the file Hash digest with the current chunk.
-                                sha256File.update(clearChunk, 0, bytesRead);
-
-                                int clearSize = bytesRead;
-                                String clearHashStr = HashUtils.sha256String(clearChunk);
-
-                                // Check to see if a chunk with this clear hash already exists.
-                                FileChunk existingFileChunk = _dataModel.getFileChunkWithClearHash(clearHashStr);
-                                if ( existingFileChunk != null ) {
-                                    // There is an existing chunk we can reuse.  Copy it, then update the
-                                    // chunk index of the copy to match where the chunk fits into this file.
-                                    fileChunk = new FileChunk(existingFileChunk);
-                                    fileChunk.setIndex(chunkIndex);
-                                } else {
-                                    // There is not an existing chunk.  Compress and encrypt the chunk data,
-                                    // then create a new FileChunk object to contain the info about this chunk.
-
-                                    // Compress the clearChunk
-                                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                    GZIPOutputStream gzos = new GZIPOutputStream(baos);
-                                    gzos.write(clearChunk, 0, bytesRead);
-                                    gzos.close();
-                                    byte[] compressedChunk = baos.toByteArray();
-
-                                    // Encrypt the chunk
-                                    cipherChunk = CryptoUtils.encryptWithSecretKey(compressedChunk, chunkKey, iv);
-                                    bytesRemaining -= bytesRead;
-
-                                    // Calculate sizes and hashes of the clear and cipher chunks.
-                                    int cipherSize = cipherChunk.length;
-                                    String cipherHashStr = HashUtils.sha256String(cipherChunk);
-
-                                    // Create the File Chunk Model object
-                                    fileChunk = new FileChunk();
-                                    fileChunk.setIndex(chunkIndex);
-                                    fileChunk.setChunkID(chunkID);
-                                    fileChunk.setClearTextSize(clearSize);
-                                    fileChunk.setCipherTextSize(cipherSize);
-                                    fileChunk.setClearTextHash(clearHashStr);
-                                    fileChunk.setCipherTextHash(cipherHashStr);
-                                    fileChunk.setCompressionAlgorithm("GZIP");
-                                    fileChunk.setChunkKey(chunkKey);
-                                    fileChunk.setInitializationVector(iv.getIV());
-                                }
-
-                                // Save the encrypted chunk in the chunk manager
-                                _chunkManager.addChunk(chunkID, cipherChunk);
-
-                                // Add the File Chunk to the Collection
-                                fileChunks.add(fileChunk);
-
-                                // Increment the Chunk Index Counter
-                                chunkIndex++;
-                            }
-
-                        }
-
-                        fileHash = sha256File.digest();
-                    } finally {
-                        fileInputStream.close();
-                    }
+                    ChunkEncoder.EncodedFile encodedFile = getChunkEncoder().encode(fileToBeAdded, chunkSize);
+                    List<FileChunk> fileChunks = encodedFile.getFileChunks();
 
                     // Set the calculated Information
-                    String fileHashStr = sha256File.getAlgorithm() + ":" + Base64.encodeBase64String(fileHash); // TODO - Try to figure out how to do this using Hash Utils
+                    String fileHashStr = encodedFile.getHashAlgorithm() + ":" + Base64.encodeBase64String(encodedFile.getFileHash()); // TODO - Try to figure out how to do this using Hash Utils
                     fileVersion.setFileHash(fileHashStr);
                     fileVersion.setOwnerID(currentUser.getUserID());
                     fileVersion.setFileChunks(fileChunks);
@@ -861,10 +800,9 @@ public class SDFS {
             List<FileChunk> fileChunks = _dataModel.getChunksForFileVersion(fileGUID, fileVersionGUID);
 
             // Verify that the chunk Manager has all of the necessary chunks
-            for (FileChunk fileChunk : fileChunks) {
-                if (!_chunkManager.hasChunk(fileChunk.getChunkID())) {
-                    throw new NoSuchChunkException("Missing chunk required to save file");
-                }
+            List<String> chunkIDs = fileChunks.stream().map(FileChunk::getChunkID).collect(Collectors.toList());
+            if (awaitChunks(_chunkManager.hasChunks(chunkIDs)).containsValue(Boolean.FALSE)) {
+                throw new NoSuchChunkException("Missing chunk required to save file");
             }
 
             // Create the File object for the decrypted file,
@@ -1033,31 +971,73 @@ public class SDFS {
 
     // -------- Private Methods --------
 
+    /**
+     * Returns the Chunk Encoder used to add files, creating it the first time it is needed so that its pools are sized
+     * from the configuration in effect at that time.
+     */
+    private synchronized ChunkEncoder getChunkEncoder() {
+        if (_chunkEncoder == null) {
+            _chunkEncoder = new ChunkEncoder(_configuration, _dataModel, _chunkManager);
+        }
+        return _chunkEncoder;
+    }
+
     /**
      * <i>Note: This method is invoked asynchronously.</i>
      */
     private void decryptAndSaveFileVersion(List<FileChunk> fileChunks, java.io.File targetFile) throws NoSuchChunkException, CryptographicException, IOException {
         FileOutputStream targetStream = new FileOutputStream(targetFile);
+        CompletableFuture<Map<String, ByteBuffer>> nextChunk = null;
 
         try {
-            // Iterate over the chunks copying the decrypted chunk data to the output file.
+            // Iterate over the chunks copying the decrypted chunk data to the output file, mapping each chunk in the
+            // background while the one before it is decrypted.
             // -- This code assumes that the file chunks are returned in the proper order from the data model.
-            for (FileChunk fileChunk : fileChunks) {
+            if (!fileChunks.isEmpty()) {
+                nextChunk = _chunkManager.getChunkBuffers(Collections.singletonList(fileChunks.get(0).getChunkID()));
+            }
+            for (int i = 0; i < fileChunks.size(); i++) {
+                FileChunk fileChunk = fileChunks.get(i);
                 SecretKey chunkKey = fileChunk.getChunkKey();
                 IvParameterSpec iv = new IvParameterSpec(fileChunk.getInitializationVector());
 
-                InputStream chunkStream = _chunkManager.getChunkDataAsStream(fileChunk.getChunkID());
-                try {
-                    CryptoUtils.decryptWithSecretKey(chunkStream, targetStream, chunkKey, iv);
-                } finally {
-                    chunkStream.close();
+                ByteBuffer chunkData = awaitChunks(nextChunk).get(fileChunk.getChunkID());
+                nextChunk = null;
+                if (i + 1 < fileChunks.size()) {
+                    nextChunk = _chunkManager.getChunkBuffers(Collections.singletonList(fileChunks.get(i + 1).getChunkID()));
                 }
+
+                CryptoUtils.decryptWithSecretKey(chunkData, targetStream, chunkKey, iv);
             }
         } finally {
+            if (nextChunk != null) {
+                nextChunk.cancel(false);
+            }
             targetStream.close();
         }
     }
 
+    /**
+     * Waits for a batch of chunk operations started on the Chunk Manager to finish, unwrapping the exception that made
+     * it fail.
+     */
+    private <T> T awaitChunks(CompletableFuture<T> chunkFuture) throws NoSuchChunkException, IOException {
+        try {
+            return chunkFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for file chunks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NoSuchChunkException) {
+                throw (NoSuchChunkException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to access the file chunks", e.getCause());
+        }
+    }
+
     private String mimeTypeForFile(java.io.File fileToBeAdded) {
         // TODO - Make this method actually do something useful
         return "application/octet-stream";
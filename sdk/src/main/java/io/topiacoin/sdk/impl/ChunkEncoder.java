@@ -0,0 +1,407 @@
+package io.topiacoin.sdk.impl;
+
+import io.topiacoin.chunks.ChunkManager;
+import io.topiacoin.chunks.exceptions.DuplicateChunkException;
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.core.Configuration;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.CryptographicException;
+import io.topiacoin.crypto.HashUtils;
+import io.topiacoin.model.DataModel;
+import io.topiacoin.model.FileChunk;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Splits a file into chunks, then hashes, compresses, encrypts and stores each chunk, producing the FileChunk metadata
+ * for the file.
+ * <p>
+ * The work is done as a pipeline. The calling thread reads the file and keeps the whole-file hash, and each chunk it
+ * reads is handed on to the hashing, compressing, encrypting and storing stages in turn. Each stage has its own pool
+ * of threads, so while one chunk is being compressed, the next can be hashed and the previous one encrypted or stored.
+ * The number of chunks in the pipeline at once is limited, which bounds the memory used to roughly three chunks' worth
+ * of buffers per chunk in flight, however large the file is.
+ * <p>
+ * The size of each pool and the number of chunks in flight can be set with the following configuration options:
+ * chunk.encoder.hashThreads, chunk.encoder.compressThreads, chunk.encoder.encryptThreads,
+ * chunk.encoder.storeThreads and chunk.encoder.maxChunksInFlight. Setting everything to 1 processes one chunk at a
+ * time, the same as a plain loop would.
+ */
+public class ChunkEncoder {
+
+    private static final Log _log = LogFactory.getLog(ChunkEncoder.class);
+
+    private final DataModel _dataModel;
+    private final ChunkManager _chunkManager;
+    private final int _maxChunksInFlight;
+
+    private final ExecutorService _hashExecutor;
+    private final ExecutorService _compressExecutor;
+    private final ExecutorService _encryptExecutor;
+    private final ExecutorService _storeExecutor;
+
+    private final AtomicLong _bytesStored = new AtomicLong();
+    private final AtomicLong _bytesReused = new AtomicLong();
+
+    /**
+     * Creates a ChunkEncoder whose pools are sized from the configuration. Any option that isn't configured is sized
+     * from the number of available processors.
+     */
+    public ChunkEncoder(Configuration configuration, DataModel dataModel, ChunkManager chunkManager) {
+        this(dataModel, chunkManager,
+                configuration.getConfigurationOption("chunk.encoder.hashThreads", 1),
+                configuration.getConfigurationOption("chunk.encoder.compressThreads", Runtime.getRuntime().availableProcessors()),
+                configuration.getConfigurationOption("chunk.encoder.encryptThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                configuration.getConfigurationOption("chunk.encoder.storeThreads", 1),
+                configuration.getConfigurationOption("chunk.encoder.maxChunksInFlight", 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ChunkEncoder(DataModel dataModel, ChunkManager chunkManager,
+                        int hashThreads, int compressThreads, int encryptThreads, int storeThreads,
+                        int maxChunksInFlight) {
+        if (hashThreads < 1 || compressThreads < 1 || encryptThreads < 1 || storeThreads < 1 || maxChunksInFlight < 1) {
+            throw new IllegalArgumentException("Every stage needs at least one thread, and at least one chunk must be allowed in flight");
+        }
+        _dataModel = dataModel;
+        _chunkManager = chunkManager;
+        _maxChunksInFlight = maxChunksInFlight;
+        _hashExecutor = Executors.newFixedThreadPool(hashThreads, new StageThreadFactory("hash"));
+        _compressExecutor = Executors.newFixedThreadPool(compressThreads, new StageThreadFactory("compress"));
+        _encryptExecutor = Executors.newFixedThreadPool(encryptThreads, new StageThreadFactory("encrypt"));
+        _storeExecutor = Executors.newFixedThreadPool(storeThreads, new StageThreadFactory("store"));
+    }
+
+    /**
+     * Chunks and encodes the specified file, storing each new chunk in the Chunk Manager. If a chunk with the same
+     * clear text is already known to the data model and still stored, that chunk is referenced again rather than
+     * encrypted and stored a second time. This method
+     * returns once every chunk has been stored, or once the first failure has been detected and the chunks already in
+     * flight have drained out of the pipeline. If the file fails to encode, the chunks stored for it and the references
+     * taken on reused chunks are removed again.
+     *
+     * @param file      The file to be encoded
+     * @param chunkSize The number of bytes of the file to put into each chunk
+     *
+     * @return The FileChunks of the file, in order, and the hash of the whole file.
+     */
+    public EncodedFile encode(java.io.File file, int chunkSize)
+            throws IOException, CryptographicException, InsufficientSpaceException, DuplicateChunkException, NoSuchAlgorithmException {
+
+        MessageDigest sha256File = MessageDigest.getInstance("SHA-256");
+        Semaphore chunksInFlight = new Semaphore(_maxChunksInFlight);
+        Queue<byte[]> bufferPool = new ConcurrentLinkedQueue<>();
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<CompletableFuture<FileChunk>> pendingChunks = new ArrayList<>();
+
+        try (InputStream fileInputStream = new FileInputStream(file)) {
+            long chunkIndex = 0;
+            while (!failed.get()) {
+                chunksInFlight.acquireUninterruptibly();
+                byte[] clearChunk = bufferPool.poll();
+                if (clearChunk == null) {
+                    clearChunk = new byte[chunkSize];
+                }
+
+                int bytesRead;
+                try {
+                    bytesRead = readChunk(fileInputStream, clearChunk);
+                } catch (IOException e) {
+                    chunksInFlight.release();
+                    failed.set(true);
+                    releaseChunks(pendingChunks);
+                    throw e;
+                }
+                if (bytesRead <= 0) {
+                    chunksInFlight.release();
+                    break;
+                }
+
+                // Update the file Hash digest with the current chunk.
+                sha256File.update(clearChunk, 0, bytesRead);
+
+                final ChunkWork work = new ChunkWork(chunkIndex++, clearChunk, bytesRead);
+                CompletableFuture<FileChunk> pendingChunk = CompletableFuture
+                        .supplyAsync(() -> hash(work), _hashExecutor)
+                        .thenApplyAsync(this::compress, _compressExecutor)
+                        .thenApplyAsync(this::encrypt, _encryptExecutor)
+                        .thenApplyAsync(this::store, _storeExecutor);
+                pendingChunk.whenComplete((fileChunk, t) -> {
+                    if (t != null) {
+                        failed.set(true);
+                    }
+                    bufferPool.offer(work.clearChunk);
+                    chunksInFlight.release();
+                });
+                pendingChunks.add(pendingChunk);
+
+                if (bytesRead < chunkSize) {
+                    break;
+                }
+            }
+        }
+
+        List<FileChunk> fileChunks = new ArrayList<>(pendingChunks.size());
+        try {
+            CompletableFuture.allOf(pendingChunks.toArray(new CompletableFuture<?>[pendingChunks.size()])).join();
+            for (CompletableFuture<FileChunk> pendingChunk : pendingChunks) {
+                fileChunks.add(pendingChunk.join());
+            }
+        } catch (CompletionException e) {
+            releaseChunks(pendingChunks);
+            throw unwrap(e);
+        }
+
+        return new EncodedFile(fileChunks, sha256File);
+    }
+
+    /**
+     * Returns the number of encrypted bytes this encoder has stored in the Chunk Manager.
+     */
+    public long getBytesStored() {
+        return _bytesStored.get();
+    }
+
+    /**
+     * Returns the number of encrypted bytes this encoder did not need to store, because the chunks were already in the
+     * Chunk Manager.
+     */
+    public long getBytesReused() {
+        return _bytesReused.get();
+    }
+
+    /**
+     * Stops the stage threads. Any file currently being encoded will fail.
+     */
+    public void shutdown() {
+        _hashExecutor.shutdownNow();
+        _compressExecutor.shutdownNow();
+        _encryptExecutor.shutdownNow();
+        _storeExecutor.shutdownNow();
+    }
+
+    // -------- Pipeline Stages --------
+
+    private ChunkWork hash(ChunkWork work) {
+        work.clearHash = HashUtils.sha256String(work.clearChunk, 0, work.clearSize);
+
+        // Check to see if a chunk with this clear hash already exists.
+        FileChunk existingFileChunk = _dataModel.getFileChunkWithClearHash(work.clearHash);
+        if (existingFileChunk != null) {
+            // Only reuse the chunk if its data is still here, otherwise it has to be encoded and stored again.
+            if (_chunkManager.addChunkReference(existingFileChunk.getChunkID())) {
+                // There is an existing chunk we can reuse.  Copy it, then update the
+                // chunk index of the copy to match where the chunk fits into this file.
+                work.fileChunk = new FileChunk(existingFileChunk);
+                work.fileChunk.setIndex(work.index);
+                _bytesReused.addAndGet(existingFileChunk.getCipherTextSize());
+            } else {
+                _log.debug("Chunk " + existingFileChunk.getChunkID() + " is no longer stored, encoding it again");
+            }
+        }
+        return work;
+    }
+
+    private ChunkWork compress(ChunkWork work) {
+        if (work.fileChunk != null) {
+            return work;
+        }
+        try {
+            // Incompressible data grows slightly, so leave room for the GZIP header and block overhead.
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(work.clearSize + 64);
+            GZIPOutputStream gzos = new GZIPOutputStream(baos);
+            gzos.write(work.clearChunk, 0, work.clearSize);
+            gzos.close();
+            work.stageData = baos.toByteArray();
+            return work;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private ChunkWork encrypt(ChunkWork work) {
+        if (work.fileChunk != null) {
+            return work;
+        }
+        try {
+            SecretKey chunkKey = CryptoUtils.generateAESKey();
+            IvParameterSpec iv = CryptoUtils.generateIV(chunkKey.getAlgorithm());
+            byte[] cipherChunk = CryptoUtils.encryptWithSecretKey(work.stageData, chunkKey, iv);
+            work.stageData = cipherChunk;
+
+            // Create the File Chunk Model object
+            FileChunk fileChunk = new FileChunk();
+            fileChunk.setIndex(work.index);
+            fileChunk.setChunkID(HashUtils.sha256String(UUID.randomUUID().toString() + System.currentTimeMillis()));
+            fileChunk.setClearTextSize(work.clearSize);
+            fileChunk.setCipherTextSize(cipherChunk.length);
+            fileChunk.setClearTextHash(work.clearHash);
+            fileChunk.setCipherTextHash(HashUtils.sha256String(cipherChunk));
+            fileChunk.setCompressionAlgorithm("GZIP");
+            fileChunk.setChunkKey(chunkKey);
+            fileChunk.setInitializationVector(iv.getIV());
+            work.fileChunk = fileChunk;
+            work.isNew = true;
+            return work;
+        } catch (CryptographicException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private FileChunk store(ChunkWork work) {
+        if (work.isNew) {
+            try {
+                // Save the encrypted chunk in the chunk manager
+                _chunkManager.addChunk(work.fileChunk.getChunkID(), work.stageData);
+                _bytesStored.addAndGet(work.stageData.length);
+            } catch (DuplicateChunkException | InsufficientSpaceException | IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                work.stageData = null;
+            }
+        }
+        return work.fileChunk;
+    }
+
+    // -------- Private Methods --------
+
+    /**
+     * Fills the buffer from the stream, unless the stream ends first. Every chunk but the last is always full.
+     */
+    private int readChunk(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int bytesRead = inputStream.read(buffer, total, buffer.length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    /**
+     * Waits for the chunks of an abandoned encode to drain out of the pipeline, then removes each one that made it
+     * through - the new chunks that were stored, and the references taken on the chunks that were reused.
+     */
+    private void releaseChunks(List<CompletableFuture<FileChunk>> pendingChunks) {
+        for (CompletableFuture<FileChunk> pendingChunk : pendingChunks) {
+            FileChunk fileChunk;
+            try {
+                fileChunk = pendingChunk.join();
+            } catch (CompletionException e) {
+                _log.debug("Chunk failed while abandoning encode", e);
+                continue;
+            }
+            if (!_chunkManager.removeChunk(fileChunk.getChunkID())) {
+                _log.warn("Unable to release chunk " + fileChunk.getChunkID() + " of an abandoned encode");
+            }
+        }
+    }
+
+    private IOException unwrap(CompletionException e)
+            throws IOException, CryptographicException, InsufficientSpaceException, DuplicateChunkException {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof CryptographicException) {
+            throw (CryptographicException) cause;
+        } else if (cause instanceof InsufficientSpaceException) {
+            throw (InsufficientSpaceException) cause;
+        } else if (cause instanceof DuplicateChunkException) {
+            throw (DuplicateChunkException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException("Failed to encode chunk", cause);
+    }
+
+    // -------- Inner Classes --------
+
+    /**
+     * The result of encoding a file.
+     */
+    public static class EncodedFile {
+        private final List<FileChunk> _fileChunks;
+        private final String _hashAlgorithm;
+        private final byte[] _fileHash;
+
+        EncodedFile(List<FileChunk> fileChunks, MessageDigest fileDigest) {
+            _fileChunks = fileChunks;
+            _hashAlgorithm = fileDigest.getAlgorithm();
+            _fileHash = fileDigest.digest();
+        }
+
+        public List<FileChunk> getFileChunks() {
+            return _fileChunks;
+        }
+
+        public String getHashAlgorithm() {
+            return _hashAlgorithm;
+        }
+
+        public byte[] getFileHash() {
+            return _fileHash;
+        }
+    }
+
+    /**
+     * The state of one chunk as it moves through the pipeline. Each stage hands it on to the next, so it is only ever
+     * touched by one thread at a time.
+     */
+    private static class ChunkWork {
+        final long index;
+        final byte[] clearChunk;
+        final int clearSize;
+        String clearHash;
+        byte[] stageData;
+        FileChunk fileChunk;
+        boolean isNew;
+
+        ChunkWork(long index, byte[] clearChunk, int clearSize) {
+            this.index = index;
+            this.clearChunk = clearChunk;
+            this.clearSize = clearSize;
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String _stageName;
+        private final AtomicInteger _threadCount = new AtomicInteger();
+
+        StageThreadFactory(String stageName) {
+            _stageName = stageName;
+        }
+
+        @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ChunkEncoder-" + _stageName + "-" + _threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
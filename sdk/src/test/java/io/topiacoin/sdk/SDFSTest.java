@@ -27,17 +27,19 @@ import org.junit.Test;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
@@ -525,12 +527,11 @@ public class SDFSTest {
         // Create the Encrypted Chunk Data
         byte[] chunkData1 = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. Morbi sit amet magna et neque semper auctor. Maecenas ullamcorper elit vitae pellentesque feugiat. Nam vitae felis elit. Praesent vehicula nunc orci, a fermentum tortor sodales condimentum. Cras non nulla blandit diam finibus auctor. Aliquam vel maximus turpis. Curabitur non luctus leo.".getBytes("UTF-8");
         byte[] cipherData1 = CryptoUtils.encryptWithSecretKey(chunkData1, chunkKey, iv);
-        InputStream chunkStream1 = new ByteArrayInputStream(cipherData1);
 
         // Establish the Mock Object Expectations
         EasyMock.reset(chunkManager);
-        EasyMock.expect(chunkManager.hasChunk(chunkID)).andReturn(true);
-        EasyMock.expect(chunkManager.getChunkDataAsStream(chunkID)).andReturn(chunkStream1);
+        EasyMock.expect(chunkManager.hasChunks(Arrays.asList(chunkID))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID, true)));
+        EasyMock.expect(chunkManager.getChunkBuffers(Arrays.asList(chunkID))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID, ByteBuffer.wrap(cipherData1))));
         EasyMock.replay(chunkManager);
 
         String targetDirectory = "./target";
@@ -642,18 +643,18 @@ public class SDFSTest {
         // Create the Encrypted Chunk Data
         byte[] chunkData1 = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. Morbi sit amet magna et neque semper auctor. Maecenas ullamcorper elit vitae pellentesque feugiat. Nam vitae felis elit. ".getBytes("UTF-8");
         byte[] cipherData1 = CryptoUtils.encryptWithSecretKey(chunkData1, chunkKey1, iv1);
-        InputStream chunkStream1 = new ByteArrayInputStream(cipherData1);
 
         byte[] chunkData2 = "Praesent vehicula nunc orci, a fermentum tortor sodales condimentum. Cras non nulla blandit diam finibus auctor. Aliquam vel maximus turpis. Curabitur non luctus leo.".getBytes("UTF-8");
         byte[] cipherData2 = CryptoUtils.encryptWithSecretKey(chunkData2, chunkKey2, iv2);
-        InputStream chunkStream2 = new ByteArrayInputStream(cipherData2);
 
         // Establish the Mock Object Expectations
         EasyMock.reset(chunkManager);
-        EasyMock.expect(chunkManager.hasChunk(chunkID1)).andReturn(true);
-        EasyMock.expect(chunkManager.getChunkDataAsStream(chunkID1)).andReturn(chunkStream1);
-        EasyMock.expect(chunkManager.hasChunk(chunkID2)).andReturn(true);
-        EasyMock.expect(chunkManager.getChunkDataAsStream(chunkID2)).andReturn(chunkStream2);
+        Map<String, Boolean> haveChunks = new LinkedHashMap<>();
+        haveChunks.put(chunkID1, true);
+        haveChunks.put(chunkID2, true);
+        EasyMock.expect(chunkManager.hasChunks(Arrays.asList(chunkID1, chunkID2))).andReturn(CompletableFuture.completedFuture(haveChunks));
+        EasyMock.expect(chunkManager.getChunkBuffers(Arrays.asList(chunkID1))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID1, ByteBuffer.wrap(cipherData1))));
+        EasyMock.expect(chunkManager.getChunkBuffers(Arrays.asList(chunkID2))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID2, ByteBuffer.wrap(cipherData2))));
         EasyMock.replay(chunkManager);
 
         String targetDirectory = "./target";
@@ -751,7 +752,7 @@ public class SDFSTest {
 
         // Establish the Mock Object Expectations
         EasyMock.reset(chunkManager);
-        EasyMock.expect(chunkManager.hasChunk(chunkID)).andReturn(false);
+        EasyMock.expect(chunkManager.hasChunks(Arrays.asList(chunkID))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID, false)));
         EasyMock.replay(chunkManager);
 
         String targetDirectory = "./target";
@@ -814,7 +815,7 @@ public class SDFSTest {
 
         // Establish the Mock Object Expectations
         EasyMock.reset(chunkManager);
-        EasyMock.expect(chunkManager.hasChunk(chunkID)).andReturn(false);
+        EasyMock.expect(chunkManager.hasChunks(Arrays.asList(chunkID))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID, false)));
         EasyMock.replay(chunkManager);
 
         String targetDirectory = "./target";
@@ -882,7 +883,7 @@ public class SDFSTest {
 
         // Establish the Mock Object Expectations
         EasyMock.reset(chunkManager);
-        EasyMock.expect(chunkManager.hasChunk(chunkID)).andReturn(false);
+        EasyMock.expect(chunkManager.hasChunks(Arrays.asList(chunkID))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID, false)));
         EasyMock.replay(chunkManager);
 
         String targetDirectory = "./target";
@@ -939,7 +940,7 @@ public class SDFSTest {
 
         // Establish the Mock Object Expectations
         EasyMock.reset(chunkManager);
-        EasyMock.expect(chunkManager.hasChunk(chunkID)).andReturn(false);
+        EasyMock.expect(chunkManager.hasChunks(Arrays.asList(chunkID))).andReturn(CompletableFuture.completedFuture(Collections.singletonMap(chunkID, false)));
         EasyMock.replay(chunkManager);
 
         String targetDirectory = "./target";
@@ -1035,6 +1036,14 @@ public class SDFSTest {
 
         String chunkID = fileCapture.getValue().getVersions().get(0).getFileChunks().get(0).getChunkID();
         assertEquals(chunkIDCapture.getValue(), chunkID);
+
+        // Shutting down stops the threads that encoded the file
+        sdfs.shutdown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hasChunkEncoderThreads() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(hasChunkEncoderThreads());
     }
 
     @Test
@@ -1120,5 +1129,16 @@ public class SDFSTest {
 
         String chunkID = fileCapture.getValue().getVersions().get(0).getFileChunks().get(0).getChunkID();
         assertEquals(chunkIDCapture.getValue(), chunkID);
+
+        sdfs.shutdown();
+    }
+
+    private boolean hasChunkEncoderThreads() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("ChunkEncoder-")) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,285 @@
+package io.topiacoin.sdk.impl;
+
+import io.topiacoin.chunks.ChunkManager;
+import io.topiacoin.chunks.exceptions.InsufficientSpaceException;
+import io.topiacoin.core.impl.DefaultConfiguration;
+import io.topiacoin.crypto.CryptoUtils;
+import io.topiacoin.crypto.HashUtils;
+import io.topiacoin.model.DataModel;
+import io.topiacoin.model.FileChunk;
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class ChunkEncoderTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Test
+    public void testEncodeFileWithMultipleChunks() throws Exception {
+        byte[] fileData = createFileData(CHUNK_SIZE * 5 + CHUNK_SIZE / 2);
+        java.io.File file = writeFile("encodeMultipleChunks.dat", fileData);
+
+        DataModel dataModel = new DataModel(new DefaultConfiguration()) {
+            // This anonymous subclass exists so that we can bypass the singleton instance for testing.
+        };
+
+        final Map<String, byte[]> storedChunks = new ConcurrentHashMap<>();
+        ChunkManager chunkManager = EasyMock.createMock(ChunkManager.class);
+        chunkManager.addChunk(anyString(), anyObject(byte[].class));
+        expectLastCall().andAnswer(() -> {
+            storedChunks.put((String) getCurrentArguments()[0], (byte[]) getCurrentArguments()[1]);
+            return null;
+        }).times(6);
+        replay(chunkManager);
+
+        ChunkEncoder encoder = new ChunkEncoder(dataModel, chunkManager, 2, 3, 2, 1, 4);
+        try {
+            ChunkEncoder.EncodedFile encodedFile = encoder.encode(file, CHUNK_SIZE);
+
+            List<FileChunk> fileChunks = encodedFile.getFileChunks();
+            assertEquals(6, fileChunks.size());
+            for (int i = 0; i < fileChunks.size(); i++) {
+                FileChunk fileChunk = fileChunks.get(i);
+                byte[] expectedData = Arrays.copyOfRange(fileData, i * CHUNK_SIZE, Math.min(fileData.length, (i + 1) * CHUNK_SIZE));
+                byte[] cipherChunk = storedChunks.get(fileChunk.getChunkID());
+
+                assertEquals(i, fileChunk.getIndex());
+                assertNotNull(cipherChunk);
+                assertEquals(expectedData.length, fileChunk.getClearTextSize());
+                assertEquals(cipherChunk.length, fileChunk.getCipherTextSize());
+                assertEquals(HashUtils.sha256String(expectedData), fileChunk.getClearTextHash());
+                assertEquals(HashUtils.sha256String(cipherChunk), fileChunk.getCipherTextHash());
+                assertArrayEquals(expectedData, decode(fileChunk, cipherChunk));
+            }
+
+            assertEquals("SHA-256", encodedFile.getHashAlgorithm());
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(fileData), encodedFile.getFileHash());
+        } finally {
+            encoder.shutdown();
+        }
+
+        verify(chunkManager);
+    }
+
+    @Test
+    public void testEncodeReusesExistingChunks() throws Exception {
+        byte[] fileData = createFileData(CHUNK_SIZE * 3);
+        java.io.File file = writeFile("encodeExistingChunks.dat", fileData);
+
+        final FileChunk existingChunk = new FileChunk();
+        existingChunk.setChunkID("existing-chunk-id");
+        existingChunk.setClearTextSize(CHUNK_SIZE);
+        existingChunk.setCipherTextSize(CHUNK_SIZE + 16);
+        DataModel dataModel = new DataModel(new DefaultConfiguration()) {
+            @Override
+            public FileChunk getFileChunkWithClearHash(String clearChunkHash) {
+                return existingChunk;
+            }
+        };
+
+        // No chunks should be stored, as every chunk already exists
+        ChunkManager chunkManager = EasyMock.createMock(ChunkManager.class);
+        expect(chunkManager.addChunkReference("existing-chunk-id")).andReturn(true).times(3);
+        replay(chunkManager);
+
+        ChunkEncoder encoder = new ChunkEncoder(dataModel, chunkManager, 1, 1, 1, 1, 1);
+        try {
+            List<FileChunk> fileChunks = encoder.encode(file, CHUNK_SIZE).getFileChunks();
+
+            assertEquals(3, fileChunks.size());
+            for (int i = 0; i < fileChunks.size(); i++) {
+                assertEquals("existing-chunk-id", fileChunks.get(i).getChunkID());
+                assertEquals(i, fileChunks.get(i).getIndex());
+            }
+            assertEquals(0, encoder.getBytesStored());
+            assertEquals(3 * (CHUNK_SIZE + 16), encoder.getBytesReused());
+        } finally {
+            encoder.shutdown();
+        }
+
+        verify(chunkManager);
+    }
+
+    @Test
+    public void testEncodeStoresChunkWhoseDataIsGone() throws Exception {
+        byte[] fileData = createFileData(CHUNK_SIZE * 2);
+        java.io.File file = writeFile("encodeMissingChunks.dat", fileData);
+
+        final FileChunk existingChunk = new FileChunk();
+        existingChunk.setChunkID("purged-chunk-id");
+        DataModel dataModel = new DataModel(new DefaultConfiguration()) {
+            @Override
+            public FileChunk getFileChunkWithClearHash(String clearChunkHash) {
+                return existingChunk;
+            }
+        };
+
+        // The existing chunk has been purged, so each chunk has to be stored again
+        final Map<String, byte[]> storedChunks = new ConcurrentHashMap<>();
+        ChunkManager chunkManager = EasyMock.createMock(ChunkManager.class);
+        expect(chunkManager.addChunkReference("purged-chunk-id")).andReturn(false).times(2);
+        chunkManager.addChunk(anyString(), anyObject(byte[].class));
+        expectLastCall().andAnswer(() -> {
+            storedChunks.put((String) getCurrentArguments()[0], (byte[]) getCurrentArguments()[1]);
+            return null;
+        }).times(2);
+        replay(chunkManager);
+
+        ChunkEncoder encoder = new ChunkEncoder(dataModel, chunkManager, 1, 1, 1, 1, 2);
+        try {
+            List<FileChunk> fileChunks = encoder.encode(file, CHUNK_SIZE).getFileChunks();
+
+            assertEquals(2, fileChunks.size());
+            long bytesStored = 0;
+            for (FileChunk fileChunk : fileChunks) {
+                assertNotEquals("purged-chunk-id", fileChunk.getChunkID());
+                bytesStored += storedChunks.get(fileChunk.getChunkID()).length;
+            }
+            assertEquals(bytesStored, encoder.getBytesStored());
+            assertEquals(0, encoder.getBytesReused());
+        } finally {
+            encoder.shutdown();
+        }
+
+        verify(chunkManager);
+    }
+
+    @Test
+    public void testEncodeFailsWhenChunkCannotBeStored() throws Exception {
+        byte[] fileData = createFileData(CHUNK_SIZE * 4);
+        java.io.File file = writeFile("encodeStoreFailure.dat", fileData);
+
+        DataModel dataModel = new DataModel(new DefaultConfiguration()) {
+            // This anonymous subclass exists so that we can bypass the singleton instance for testing.
+        };
+
+        ChunkManager chunkManager = EasyMock.createNiceMock(ChunkManager.class);
+        chunkManager.addChunk(anyString(), anyObject(byte[].class));
+        expectLastCall().andThrow(new InsufficientSpaceException("Out of space")).anyTimes();
+        replay(chunkManager);
+
+        ChunkEncoder encoder = new ChunkEncoder(dataModel, chunkManager, 1, 2, 2, 1, 2);
+        try {
+            encoder.encode(file, CHUNK_SIZE);
+            fail("Expected an InsufficientSpaceException");
+        } catch (InsufficientSpaceException e) {
+            // NOP - Expected Exception
+        } finally {
+            encoder.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedEncodeReleasesItsChunks() throws Exception {
+        byte[] fileData = createFileData(CHUNK_SIZE * 4);
+        java.io.File file = writeFile("encodeReleaseFailure.dat", fileData);
+
+        // The first chunk is reused, the second is stored, and storing the third fails
+        final String reusedClearHash = HashUtils.sha256String(Arrays.copyOfRange(fileData, 0, CHUNK_SIZE));
+        final FileChunk existingChunk = new FileChunk();
+        existingChunk.setChunkID("existing-chunk-id");
+        DataModel dataModel = new DataModel(new DefaultConfiguration()) {
+            @Override
+            public FileChunk getFileChunkWithClearHash(String clearChunkHash) {
+                return (reusedClearHash.equals(clearChunkHash) ? existingChunk : null);
+            }
+        };
+
+        final List<String> storedChunkIDs = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> removedChunkIDs = Collections.synchronizedList(new ArrayList<String>());
+        ChunkManager chunkManager = EasyMock.createMock(ChunkManager.class);
+        expect(chunkManager.addChunkReference("existing-chunk-id")).andReturn(true);
+        chunkManager.addChunk(anyString(), anyObject(byte[].class));
+        expectLastCall().andAnswer(() -> {
+            if (storedChunkIDs.size() == 1) {
+                throw new InsufficientSpaceException("Out of space");
+            }
+            storedChunkIDs.add((String) getCurrentArguments()[0]);
+            return null;
+        }).atLeastOnce();
+        expect(chunkManager.removeChunk(anyString())).andAnswer(() -> {
+            removedChunkIDs.add((String) getCurrentArguments()[0]);
+            return true;
+        }).anyTimes();
+        replay(chunkManager);
+
+        ChunkEncoder encoder = new ChunkEncoder(dataModel, chunkManager, 1, 1, 1, 1, 1);
+        try {
+            encoder.encode(file, CHUNK_SIZE);
+            fail("Expected an InsufficientSpaceException");
+        } catch (InsufficientSpaceException e) {
+            // NOP - Expected Exception
+        } finally {
+            encoder.shutdown();
+        }
+
+        // The reference taken on the reused chunk, and every chunk stored, is removed again
+        List<String> expectedChunkIDs = new ArrayList<>(storedChunkIDs);
+        expectedChunkIDs.add("existing-chunk-id");
+        Collections.sort(expectedChunkIDs);
+        List<String> actualChunkIDs = new ArrayList<>(removedChunkIDs);
+        Collections.sort(actualChunkIDs);
+        assertFalse(storedChunkIDs.isEmpty());
+        assertEquals(expectedChunkIDs, actualChunkIDs);
+        verify(chunkManager);
+    }
+
+    // -------- Private Methods --------
+
+    private byte[] createFileData(int length) {
+        // Half random and half repeated data, so that the chunks are partly compressible
+        byte[] fileData = new byte[length];
+        Random random = new Random(length);
+        for (int i = 0; i < length; i += 1024) {
+            if ((i / 1024) % 2 == 0) {
+                byte[] block = new byte[Math.min(1024, length - i)];
+                random.nextBytes(block);
+                System.arraycopy(block, 0, fileData, i, block.length);
+            } else {
+                Arrays.fill(fileData, i, Math.min(length, i + 1024), (byte) i);
+            }
+        }
+        return fileData;
+    }
+
+    private java.io.File writeFile(String name, byte[] fileData) throws Exception {
+        java.io.File file = new java.io.File("./target/" + name);
+        file.getParentFile().mkdirs();
+        file.deleteOnExit();
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(fileData);
+        outputStream.close();
+        return file;
+    }
+
+    private byte[] decode(FileChunk fileChunk, byte[] cipherChunk) throws Exception {
+        byte[] compressed = CryptoUtils.decryptWithSecretKey(cipherChunk, fileChunk.getChunkKey(), new IvParameterSpec(fileChunk.getInitializationVector()));
+        ByteArrayOutputStream clearStream = new ByteArrayOutputStream();
+        InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) > 0) {
+            clearStream.write(buffer, 0, bytesRead);
+        }
+        inputStream.close();
+        return clearStream.toByteArray();
+    }
+}
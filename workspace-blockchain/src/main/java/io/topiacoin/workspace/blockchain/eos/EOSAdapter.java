@@ -5,12 +5,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.topiacoin.eosrpcadapter.EOSRPCAdapter;
 import io.topiacoin.eosrpcadapter.exceptions.ChainException;
 import io.topiacoin.eosrpcadapter.exceptions.WalletException;
-import io.topiacoin.eosrpcadapter.messages.ChainInfo;
 import io.topiacoin.eosrpcadapter.messages.ErrorResponse;
-import io.topiacoin.eosrpcadapter.messages.RequiredKeys;
-import io.topiacoin.eosrpcadapter.messages.SignedTransaction;
 import io.topiacoin.eosrpcadapter.messages.TableRows;
-import io.topiacoin.eosrpcadapter.messages.Transaction;
 import io.topiacoin.model.File;
 import io.topiacoin.model.FileTag;
 import io.topiacoin.model.FileVersion;
@@ -35,7 +31,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,16 +45,23 @@ public class EOSAdapter {
     private URL nodeURL;
     private URL walletURL;
     private EOSRPCAdapter _eosRpcAdapter;
+    private EOSTransactionBuilder _transactionBuilder;
     private long _lastModified = 0;
     private final String contractAccount;
 
     private ObjectMapper objectMapper;
 
-    private TimeExpiringCache<String, Files> filesCache = new TimeExpiringCache<>(250);
-    private TimeExpiringCache<String, TableRows> entityLocksCache = new TimeExpiringCache<>(250);
-    private TimeExpiringCache<String, TableRows> fileTagsCache = new TimeExpiringCache<>(250);
-    private TimeExpiringCache<String, TableRows> fileReceiptsCache = new TimeExpiringCache<>(250);
-    private TimeExpiringCache<String, Messages> messagesCache = new TimeExpiringCache<>(250);
+    // Cached table lookups are grouped by workspace, so that a change to one workspace leaves the others cached.
+    // Each cache is weighed by the number of table rows it holds.
+    private static final long CACHE_TTL_MS = 250;
+    private static final int CACHE_MAX_ENTRIES = 1000;
+    private static final long CACHE_MAX_ROWS = 20000;
+
+    private TimeExpiringCache<String, Files> filesCache = new TimeExpiringCache<>(CACHE_TTL_MS, CACHE_MAX_ENTRIES, CACHE_MAX_ROWS, (key, files) -> files.getFiles().size() + 1);
+    private TimeExpiringCache<String, TableRows> entityLocksCache = new TimeExpiringCache<>(CACHE_TTL_MS, CACHE_MAX_ENTRIES, CACHE_MAX_ROWS, (key, rows) -> rows.rows.size() + 1);
+    private TimeExpiringCache<String, TableRows> fileTagsCache = new TimeExpiringCache<>(CACHE_TTL_MS, CACHE_MAX_ENTRIES, CACHE_MAX_ROWS, (key, rows) -> rows.rows.size() + 1);
+    private TimeExpiringCache<String, TableRows> fileReceiptsCache = new TimeExpiringCache<>(CACHE_TTL_MS, CACHE_MAX_ENTRIES, CACHE_MAX_ROWS, (key, rows) -> rows.rows.size() + 1);
+    private TimeExpiringCache<String, Messages> messagesCache = new TimeExpiringCache<>(CACHE_TTL_MS, CACHE_MAX_ENTRIES, CACHE_MAX_ROWS, (key, messages) -> messages.getMessages().size() + 1);
 
     public EOSAdapter(String eosNodeURL, String eosWalletURL) {
         this.eosNodeURL = eosNodeURL;
@@ -77,6 +79,7 @@ public class EOSAdapter {
         }
 
         _eosRpcAdapter = new EOSRPCAdapter(nodeURL, walletURL);
+        _transactionBuilder = new EOSTransactionBuilder(_eosRpcAdapter, contractAccount);
         objectMapper = new ObjectMapper();
     }
 
@@ -98,22 +101,7 @@ public class EOSAdapter {
             args.put("workspaceDescription", description);
             args.put("key", ownerKey);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(owner);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(owner, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "create", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("create", args, owner);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -162,22 +150,7 @@ public class EOSAdapter {
             args.put("guid", guid);
             args.put("workspaceDescription", description);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(owner);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(owner, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "update", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("update", args, owner);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -201,22 +174,7 @@ public class EOSAdapter {
             args.put("newowner", newOwner);
             args.put("guid", guid);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(owner);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(owner, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "offerowner", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("offerowner", args, owner);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -239,22 +197,7 @@ public class EOSAdapter {
             Map<String, Object> args = new HashMap<>();
             args.put("guid", guid);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "acceptowner", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("acceptowner", args, user);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -277,22 +220,7 @@ public class EOSAdapter {
             Map<String, Object> args = new HashMap<>();
             args.put("guid", guid);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "rescindowner", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("rescindowner", args, user);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -315,24 +243,13 @@ public class EOSAdapter {
             Map<String, Object> args = new HashMap<>();
             args.put("guid", guid);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
+            _transactionBuilder.pushAction("destroy", args, user);
 
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "destroy", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            filesCache.expireAll();
+            filesCache.expireGroup(guid);
+            entityLocksCache.expireGroup(guid);
+            fileTagsCache.expireGroup(guid);
+            fileReceiptsCache.expireGroup(guid);
+            messagesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -359,22 +276,7 @@ public class EOSAdapter {
             args.put("key", inviteeKey);
             args.put("permissions", new ArrayList<>());
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(owner);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(owner, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "invite", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("invite", args, owner);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -399,22 +301,7 @@ public class EOSAdapter {
             args.put("remover", user);
             args.put("removee", member);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "remove", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("remove", args, user);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -507,22 +394,7 @@ public class EOSAdapter {
             args.put("guid", guid);
             args.put("invitee", invitee);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(invitee);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(invitee, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "accept", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("accept", args, invitee);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -546,22 +418,7 @@ public class EOSAdapter {
             args.put("guid", guid);
             args.put("invitee", invitee);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(invitee);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(invitee, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "decline", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("decline", args, invitee);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -586,24 +443,9 @@ public class EOSAdapter {
             args.put("locker", user);
             args.put("lockee", targetUser);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
+            _transactionBuilder.pushAction("lockmember", args, user);
 
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "lockmember", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            entityLocksCache.expireAll();
+            entityLocksCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -628,24 +470,9 @@ public class EOSAdapter {
             args.put("locker", user);
             args.put("lockee", targetUser);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
+            _transactionBuilder.pushAction("unlockmember", args, user);
 
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "unlockmember", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            entityLocksCache.expireAll();
+            entityLocksCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -684,24 +511,9 @@ public class EOSAdapter {
 
             args.put("fileMetadata", metadata);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "addfile", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("addfile", args, user);
 
-            filesCache.expireAll();
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -727,24 +539,9 @@ public class EOSAdapter {
             args.put("fileID", fileID);
             args.put("versionID", (versionID != null ? versionID : NULL_UINT128));
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
+            _transactionBuilder.pushAction("removefile", args, user);
 
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "removefile", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            filesCache.expireAll();
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -824,7 +621,7 @@ public class EOSAdapter {
         }
 
         Files fetchedFiles = new Files(files, hasMore, (hasMore ? newContinuationToken : null));
-        filesCache.put(cacheKey, fetchedFiles);
+        filesCache.putInGroup(guid, cacheKey, fetchedFiles);
 
         return fetchedFiles;
     }
@@ -886,24 +683,10 @@ public class EOSAdapter {
             args.put("fileID", fileID);
             args.put("versionID", versionID);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
+            _transactionBuilder.pushAction("ackfile", args, user);
 
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "ackfile", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            fileReceiptsCache.expireAll();
+            fileReceiptsCache.expireGroup(guid);
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -929,22 +712,8 @@ public class EOSAdapter {
             args.put("message", message);
             args.put("mimeType", mimeType);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "addmessage", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("addmessage", args, user);
+            messagesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1008,7 +777,7 @@ public class EOSAdapter {
         }
 
         Messages fetchedMessages = new Messages(messages, hasMore, (hasMore ? newContinuationToken : null));
-        messagesCache.put(cacheKey, fetchedMessages);
+        messagesCache.putInGroup(guid, cacheKey, fetchedMessages);
         return fetchedMessages;
     }
 
@@ -1045,22 +814,7 @@ public class EOSAdapter {
             args.put("user", user);
             args.put("msgID", msgID);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "ackmessage", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("ackmessage", args, user);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1088,24 +842,10 @@ public class EOSAdapter {
             args.put("isPublic", (isPublic ? 1 : 0));
             args.put("value", tagValue);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
+            _transactionBuilder.pushAction("addtag", args, user);
 
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "addtag", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            fileTagsCache.expireAll();
+            fileTagsCache.expireGroup(guid);
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1133,24 +873,10 @@ public class EOSAdapter {
             args.put("isPublic", (isPublic ? 1 : 0));
             args.put("value", tagValue);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "removetag", args, scopes, authorizations, expirationDate);
+            _transactionBuilder.pushAction("removetag", args, user);
 
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            fileTagsCache.expireAll();
+            fileTagsCache.expireGroup(guid);
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1175,24 +901,10 @@ public class EOSAdapter {
             args.put("user", user);
             args.put("fileID", fileID);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
+            _transactionBuilder.pushAction("lockfile", args, user);
 
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "lockfile", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            entityLocksCache.expireAll();
+            entityLocksCache.expireGroup(guid);
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1217,24 +929,10 @@ public class EOSAdapter {
             args.put("user", user);
             args.put("fileID", fileID);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
+            _transactionBuilder.pushAction("unlockfile", args, user);
 
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "unlockfile", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            entityLocksCache.expireAll();
+            entityLocksCache.expireGroup(guid);
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1260,24 +958,10 @@ public class EOSAdapter {
             args.put("fileID", fileID);
             args.put("versionID", versionID);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
+            _transactionBuilder.pushAction("lockver", args, user);
 
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "lockver", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
-
-            entityLocksCache.expireAll();
+            entityLocksCache.expireGroup(guid);
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1303,24 +987,10 @@ public class EOSAdapter {
             args.put("fileID", fileID);
             args.put("versionID", versionID);
 
-            ChainInfo info = _eosRpcAdapter.chain().getInfo();
-
-            List<String> scopes = new ArrayList<>();
-            scopes.add(user);
-
-            List<Transaction.Authorization> authorizations = new ArrayList<>();
-            authorizations.add(new Transaction.Authorization(user, "active"));
-
-            Date expirationDate = new Date(System.currentTimeMillis() + 30000);
-
-            Transaction initTX = _eosRpcAdapter.chain().createRawTransaction(contractAccount, "unlockver", args, scopes, authorizations, expirationDate);
-
-            List<String> availableKeys = _eosRpcAdapter.wallet().getPublicKeys();
-            RequiredKeys requiredKeys = _eosRpcAdapter.chain().getRequiredKeys(initTX, availableKeys);
-            SignedTransaction signedInitTx = _eosRpcAdapter.wallet().signTransaction(initTX, requiredKeys.required_keys, info.chain_id);
-            _eosRpcAdapter.chain().pushTransaction(signedInitTx);
+            _transactionBuilder.pushAction("unlockver", args, user);
 
-            entityLocksCache.expireAll();
+            entityLocksCache.expireGroup(guid);
+            filesCache.expireGroup(guid);
         } catch (ChainException e) {
             if (e.getCause() instanceof ChainException) {
                 Exception extractedException = extractExceptionForRootCause((ChainException) e.getCause());
@@ -1366,7 +1036,7 @@ public class EOSAdapter {
 //                System.out.println("rows: " + rows);
 
                     hasMore = rows.more;
-                    entityLocksCache.put(cacheKey, rows);
+                    entityLocksCache.putInGroup(guid, cacheKey, rows);
                 }
 
                 for (Map<String, Object> row : rows.rows) {
@@ -1415,7 +1085,7 @@ public class EOSAdapter {
                             true);
 //                System.out.println("rows: " + rows);
                     hasMore = rows.more;
-                    fileTagsCache.put(cacheKey, rows);
+                    fileTagsCache.putInGroup(guid, cacheKey, rows);
                 }
 
                 for (Map<String, Object> row : rows.rows) {
@@ -1468,7 +1138,7 @@ public class EOSAdapter {
 //                System.out.println("rows: " + rows);
 
                     hasMore = rows.more;
-                    fileReceiptsCache.put(cacheKey, rows);
+                    fileReceiptsCache.putInGroup(guid, cacheKey, rows);
                 }
 
                 for (Map<String, Object> row : rows.rows) {
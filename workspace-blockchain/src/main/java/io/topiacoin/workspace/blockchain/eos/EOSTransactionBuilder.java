@@ -0,0 +1,176 @@
+package io.topiacoin.workspace.blockchain.eos;
+
+import io.topiacoin.eosrpcadapter.EOSRPCAdapter;
+import io.topiacoin.eosrpcadapter.exceptions.ChainException;
+import io.topiacoin.eosrpcadapter.exceptions.WalletException;
+import io.topiacoin.eosrpcadapter.messages.ChainInfo;
+import io.topiacoin.eosrpcadapter.messages.RequiredKeys;
+import io.topiacoin.eosrpcadapter.messages.SignedTransaction;
+import io.topiacoin.eosrpcadapter.messages.Transaction;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds, signs and pushes the single-action transactions used by the EOSAdapter.
+ *
+ * Pushing a transaction needs the chain ID, the public keys held by the wallet, and the subset of those keys required
+ * to authorize the transaction. None of these change from one transaction to the next, so rather than asking the
+ * chain and wallet for them every time, they are fetched once and cached:
+ *  - The chain ID is kept until a push fails.
+ *  - The wallet's public keys are kept for a limited time, and dropped if signing fails.
+ *  - The required keys are kept per action and authorizing account, since they depend only on the account's
+ *    permission, and dropped if signing or pushing a transaction with them fails, or if the wallet's keys change.
+ * Once these are cached, pushing an action only needs the wallet to sign the transaction and the chain to push it.
+ */
+public class EOSTransactionBuilder {
+
+    private static final long TRANSACTION_LIFETIME_MS = 30000;
+    private static final long DEFAULT_PUBLIC_KEY_TTL_MS = 60000;
+
+    private final Log _log = LogFactory.getLog(this.getClass());
+
+    private final EOSRPCAdapter _eosRpcAdapter;
+    private final String _contractAccount;
+    private final long _publicKeyTTL;
+
+    private volatile String _chainID;
+    private volatile List<String> _publicKeys;
+    private volatile long _publicKeysExpiration;
+    private final Map<String, List<String>> _requiredKeysCache = new ConcurrentHashMap<>();
+
+    public EOSTransactionBuilder(EOSRPCAdapter eosRpcAdapter, String contractAccount) {
+        this(eosRpcAdapter, contractAccount, DEFAULT_PUBLIC_KEY_TTL_MS);
+    }
+
+    public EOSTransactionBuilder(EOSRPCAdapter eosRpcAdapter, String contractAccount, long publicKeyTTL) {
+        _eosRpcAdapter = eosRpcAdapter;
+        _contractAccount = contractAccount;
+        _publicKeyTTL = publicKeyTTL;
+    }
+
+    /**
+     * Pushes a transaction containing a single action on the contract, authorized by the active permission of the
+     * specified account, which is also the transaction's scope.
+     *
+     * @param action The name of the contract action
+     * @param args   The arguments of the action
+     * @param actor  The account authorizing the action
+     *
+     * @throws ChainException  If the chain rejects the transaction, or cannot be reached
+     * @throws WalletException If the wallet is unable to sign the transaction
+     */
+    public void pushAction(String action, Map<String, Object> args, String actor) throws ChainException, WalletException {
+        String chainID = getChainID();
+
+        List<String> scopes = new ArrayList<>();
+        scopes.add(actor);
+
+        List<Transaction.Authorization> authorizations = new ArrayList<>();
+        authorizations.add(new Transaction.Authorization(actor, "active"));
+
+        Date expirationDate = new Date(System.currentTimeMillis() + TRANSACTION_LIFETIME_MS);
+
+        Transaction transaction = createTransaction(action, args, scopes, authorizations, expirationDate);
+
+        String signatureKey = action + ":" + actor + "@active";
+        List<String> requiredKeys = getRequiredKeys(signatureKey, transaction);
+
+        SignedTransaction signedTransaction;
+        try {
+            signedTransaction = signTransaction(transaction, requiredKeys, chainID);
+        } catch (WalletException e) {
+            // The wallet may have been locked, or had its keys changed
+            _publicKeys = null;
+            _requiredKeysCache.clear();
+            throw e;
+        }
+
+        try {
+            pushTransaction(signedTransaction);
+        } catch (ChainException e) {
+            // We can't tell an authorization failure from any other rejection, so assume the cached info is stale
+            _requiredKeysCache.remove(signatureKey);
+            _chainID = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Drops all of the cached chain and wallet information.
+     */
+    public void invalidate() {
+        _chainID = null;
+        _publicKeys = null;
+        _requiredKeysCache.clear();
+    }
+
+    // -------- RPC Calls --------
+
+    protected ChainInfo fetchChainInfo() throws ChainException {
+        return _eosRpcAdapter.chain().getInfo();
+    }
+
+    protected Transaction createTransaction(String action, Map<String, Object> args, List<String> scopes, List<Transaction.Authorization> authorizations, Date expirationDate) throws ChainException {
+        return _eosRpcAdapter.chain().createRawTransaction(_contractAccount, action, args, scopes, authorizations, expirationDate);
+    }
+
+    protected List<String> fetchPublicKeys() throws WalletException {
+        return _eosRpcAdapter.wallet().getPublicKeys();
+    }
+
+    protected RequiredKeys fetchRequiredKeys(Transaction transaction, List<String> availableKeys) throws ChainException {
+        return _eosRpcAdapter.chain().getRequiredKeys(transaction, availableKeys);
+    }
+
+    protected SignedTransaction signTransaction(Transaction transaction, List<String> requiredKeys, String chainID) throws WalletException {
+        return _eosRpcAdapter.wallet().signTransaction(transaction, requiredKeys, chainID);
+    }
+
+    protected void pushTransaction(SignedTransaction signedTransaction) throws ChainException {
+        _eosRpcAdapter.chain().pushTransaction(signedTransaction);
+    }
+
+    // -------- Private Methods --------
+
+    private String getChainID() throws ChainException {
+        String chainID = _chainID;
+        if (chainID == null) {
+            chainID = fetchChainInfo().chain_id;
+            _chainID = chainID;
+        }
+        return chainID;
+    }
+
+    private List<String> getPublicKeys() throws WalletException {
+        List<String> publicKeys = _publicKeys;
+        if (publicKeys == null || System.currentTimeMillis() >= _publicKeysExpiration) {
+            List<String> fetchedKeys = fetchPublicKeys();
+            fetchedKeys = (fetchedKeys != null ? Collections.unmodifiableList(new ArrayList<>(fetchedKeys)) : Collections.<String>emptyList());
+            if (publicKeys != null && !publicKeys.equals(fetchedKeys)) {
+                _log.info("Wallet keys have changed, discarding cached required keys");
+                _requiredKeysCache.clear();
+            }
+            publicKeys = fetchedKeys;
+            _publicKeysExpiration = System.currentTimeMillis() + _publicKeyTTL;
+            _publicKeys = publicKeys;
+        }
+        return publicKeys;
+    }
+
+    private List<String> getRequiredKeys(String signatureKey, Transaction transaction) throws ChainException, WalletException {
+        List<String> availableKeys = getPublicKeys();
+        List<String> requiredKeys = _requiredKeysCache.get(signatureKey);
+        if (requiredKeys == null) {
+            requiredKeys = fetchRequiredKeys(transaction, availableKeys).required_keys;
+            _requiredKeysCache.put(signatureKey, requiredKeys);
+        }
+        return requiredKeys;
+    }
+}
@@ -1,66 +1,260 @@
 package io.topiacoin.workspace.blockchain.util;
 
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A cache whose entries expire a fixed time after they are added.
+ *
+ * The cache is safe to use from multiple threads. It is bounded both by the number of entries and by their total
+ * weight, as determined by the cache's Weigher, and evicts the least recently used entries when either bound is
+ * exceeded. Expired entries are removed when they are looked up, and periodically swept out in the background so that
+ * entries which are never read again do not hold memory until they are evicted.
+ *
+ * Entries can be added to a group, allowing all of the entries in the group to be expired at once without disturbing
+ * the rest of the cache.
+ */
 public class TimeExpiringCache<K,V>{
 
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final long MIN_SWEEP_INTERVAL_MS = 100;
+    private static final long MAX_SWEEP_INTERVAL_MS = 60000;
+
+    private static final ScheduledExecutorService sweepExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "TimeExpiringCache Sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final long defaultTimeToLive;
-    private Map<K, ExpiringEntry<V>> expiringMap;
+    private final int maxEntries;
+    private final long maxWeight;
+    private final Weigher<? super K, ? super V> weigher;
+
+    private final LinkedHashMap<K, ExpiringEntry<V>> expiringMap;
+    private final Map<Object, Set<K>> groups;
+    private long totalWeight;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
 
     public TimeExpiringCache(long defaultTimeToLive) {
+        this(defaultTimeToLive, DEFAULT_MAX_ENTRIES, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Creates a new cache bounded by the number and total weight of its entries.
+     *
+     * @param defaultTimeToLive The time, in milliseconds, that entries remain in the cache unless otherwise specified
+     * @param maxEntries        The maximum number of entries held by the cache
+     * @param maxWeight         The maximum total weight of the entries held by the cache
+     * @param weigher           The Weigher used to determine the weight of each entry, or null to give every entry a
+     *                          weight of 1
+     */
+    public TimeExpiringCache(long defaultTimeToLive, int maxEntries, long maxWeight, Weigher<? super K, ? super V> weigher) {
+        if (maxEntries <= 0 || maxWeight <= 0) {
+            throw new IllegalArgumentException("The cache bounds must be positive");
+        }
         this.defaultTimeToLive = defaultTimeToLive;
-        expiringMap = new HashMap<>() ;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        expiringMap = new LinkedHashMap<>(16, 0.75f, true);
+        groups = new HashMap<>();
+
+        long sweepInterval = Math.min(Math.max(defaultTimeToLive, MIN_SWEEP_INTERVAL_MS), MAX_SWEEP_INTERVAL_MS);
+        Sweeper sweeper = new Sweeper(this);
+        sweeper.future = sweepExecutor.scheduleWithFixedDelay(sweeper, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
     }
 
     public void put(K key, V value) {
-        long expirationTime = System.currentTimeMillis() + defaultTimeToLive ;
-        ExpiringEntry<V> entry = new ExpiringEntry<>(value, expirationTime);
-        expiringMap.put(key, entry);
+        put(key, value, defaultTimeToLive, null);
     }
 
     public void put(K key, V value, long timeToLive) {
+        put(key, value, timeToLive, null);
+    }
+
+    /**
+     * Adds an entry to the cache as a member of the specified group.
+     */
+    public void putInGroup(Object group, K key, V value) {
+        put(key, value, defaultTimeToLive, group);
+    }
+
+    public synchronized void put(K key, V value, long timeToLive, Object group) {
         long expirationTime = System.currentTimeMillis() + timeToLive ;
-        ExpiringEntry<V> entry = new ExpiringEntry<>(value, expirationTime);
-        expiringMap.put(key, entry);
+        long weight = (weigher != null ? weigher.weigh(key, value) : 1);
+        if (weight > maxWeight) {
+            // The entry could never fit, so don't flush the rest of the cache trying to make room for it.
+            removeEntry(key);
+            return;
+        }
+
+        ExpiringEntry<V> entry = new ExpiringEntry<>(value, expirationTime, weight, group);
+        ExpiringEntry<V> oldEntry = expiringMap.put(key, entry);
+        if (oldEntry != null) {
+            unlinkEntry(key, oldEntry);
+        }
+        totalWeight += weight;
+        if (group != null) {
+            groups.computeIfAbsent(group, g -> new HashSet<>()).add(key);
+        }
+
+        evictIfNecessary();
     }
 
-    public V get(K key){
+    public synchronized V get(K key){
         V value = null ;
         ExpiringEntry<V> expiringEntry = expiringMap.get(key);
         if ( expiringEntry != null) {
             if (!expiringEntry.isExpired()) {
                 value = expiringEntry.value;
             } else {
-                expiringMap.remove(key, expiringEntry);
+                removeEntry(key);
             }
         }
+        if (value != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
         return value;
     }
 
-    public V remove(K key){
+    public synchronized V remove(K key){
         V value = null ;
-        ExpiringEntry<V> expiringEntry = expiringMap.remove(key);
+        ExpiringEntry<V> expiringEntry = removeEntry(key);
         if ( expiringEntry != null && !expiringEntry.isExpired()) {
             value = expiringEntry.value ;
         }
         return value;
     }
 
+    /**
+     * Removes all of the entries that were added to the specified group.
+     */
+    public synchronized void expireGroup(Object group) {
+        Set<K> keys = groups.remove(group);
+        if (keys != null) {
+            for (K key : keys) {
+                ExpiringEntry<V> entry = expiringMap.remove(key);
+                if (entry != null) {
+                    totalWeight -= entry.weight;
+                }
+            }
+        }
+    }
 
-    public void expireAll() {
+    public synchronized void expireAll() {
         expiringMap.clear();
+        groups.clear();
+        totalWeight = 0;
     }
 
+    /**
+     * Removes all of the expired entries from the cache. This is done periodically in the background, so there is
+     * normally no need to call it directly.
+     *
+     * @return The number of entries removed
+     */
+    public synchronized int removeExpired() {
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<K, ExpiringEntry<V>>> iterator = expiringMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<K, ExpiringEntry<V>> mapEntry = iterator.next();
+            if (now >= mapEntry.getValue().expirationTime) {
+                iterator.remove();
+                unlinkEntry(mapEntry.getKey(), mapEntry.getValue());
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return expiringMap.size();
+    }
+
+    public synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    // -------- Private Methods --------
+
+    private ExpiringEntry<V> removeEntry(K key) {
+        ExpiringEntry<V> entry = expiringMap.remove(key);
+        if (entry != null) {
+            unlinkEntry(key, entry);
+        }
+        return entry;
+    }
+
+    private void unlinkEntry(K key, ExpiringEntry<V> entry) {
+        totalWeight -= entry.weight;
+        if (entry.group != null) {
+            Set<K> keys = groups.get(entry.group);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    groups.remove(entry.group);
+                }
+            }
+        }
+    }
+
+    private void evictIfNecessary() {
+        Iterator<Map.Entry<K, ExpiringEntry<V>>> iterator = expiringMap.entrySet().iterator();
+        while ((expiringMap.size() > maxEntries || totalWeight > maxWeight) && iterator.hasNext()) {
+            Map.Entry<K, ExpiringEntry<V>> eldest = iterator.next();
+            iterator.remove();
+            unlinkEntry(eldest.getKey(), eldest.getValue());
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Determines the weight of the entries in a cache.
+     */
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
 
     private static class ExpiringEntry<V> {
-        private V value ;
-        private long expirationTime;
+        private final V value ;
+        private final long expirationTime;
+        private final long weight;
+        private final Object group;
 
-        public ExpiringEntry(V value, long expirationTime) {
+        public ExpiringEntry(V value, long expirationTime, long weight, Object group) {
             this.value = value;
             this.expirationTime = expirationTime;
+            this.weight = weight;
+            this.group = group;
         }
 
         public V getValue() {
@@ -75,4 +269,27 @@ public class TimeExpiringCache<K,V>{
             return System.currentTimeMillis() >= expirationTime;
         }
     }
+
+    /**
+     * Periodically sweeps a cache. The cache is only weakly referenced so that the sweeper doesn't keep it alive, and
+     * the sweeper cancels itself once the cache has been collected.
+     */
+    private static class Sweeper implements Runnable {
+        private final WeakReference<TimeExpiringCache<?, ?>> cacheRef;
+        private volatile ScheduledFuture<?> future;
+
+        Sweeper(TimeExpiringCache<?, ?> cache) {
+            cacheRef = new WeakReference<>(cache);
+        }
+
+        @Override
+        public void run() {
+            TimeExpiringCache<?, ?> cache = cacheRef.get();
+            if (cache != null) {
+                cache.removeExpired();
+            } else if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
 }
@@ -0,0 +1,151 @@
+package io.topiacoin.workspace.blockchain.eos;
+
+import io.topiacoin.eosrpcadapter.messages.ChainInfo;
+import io.topiacoin.eosrpcadapter.messages.RequiredKeys;
+import io.topiacoin.eosrpcadapter.messages.SignedTransaction;
+import io.topiacoin.eosrpcadapter.messages.Transaction;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EOSTransactionBuilderTest {
+
+    @Test
+    public void testRepeatedActionsOnlySignAndPush() throws Exception {
+        CountingTransactionBuilder builder = new CountingTransactionBuilder(60000);
+
+        builder.pushAction("addfile", new HashMap<>(), "user");
+
+        // The first transaction has to look everything up.
+        assertEquals(1, builder.chainInfoCount);
+        assertEquals(1, builder.createCount);
+        assertEquals(1, builder.publicKeyCount);
+        assertEquals(1, builder.requiredKeyCount);
+        assertEquals(1, builder.signCount);
+        assertEquals(1, builder.pushCount);
+
+        for (int i = 0; i < 10; i++) {
+            builder.pushAction("addfile", new HashMap<>(), "user");
+        }
+
+        // Subsequent transactions only build, sign and push.
+        assertEquals(1, builder.chainInfoCount);
+        assertEquals(11, builder.createCount);
+        assertEquals(1, builder.publicKeyCount);
+        assertEquals(1, builder.requiredKeyCount);
+        assertEquals(11, builder.signCount);
+        assertEquals(11, builder.pushCount);
+        assertEquals(Arrays.asList("KEY1"), builder.lastSigningKeys);
+        assertEquals("chain-id", builder.lastChainID);
+    }
+
+    @Test
+    public void testRequiredKeysAreCachedPerActionAndActor() throws Exception {
+        CountingTransactionBuilder builder = new CountingTransactionBuilder(60000);
+
+        builder.pushAction("addfile", new HashMap<>(), "user");
+        builder.pushAction("addfile", new HashMap<>(), "other");
+        builder.pushAction("addmessage", new HashMap<>(), "user");
+        builder.pushAction("addfile", new HashMap<>(), "other");
+
+        assertEquals(1, builder.chainInfoCount);
+        assertEquals(1, builder.publicKeyCount);
+        assertEquals(3, builder.requiredKeyCount);
+        assertEquals(4, builder.pushCount);
+    }
+
+    @Test
+    public void testChangedWalletKeysInvalidateRequiredKeys() throws Exception {
+        CountingTransactionBuilder builder = new CountingTransactionBuilder(100);
+
+        builder.pushAction("addfile", new HashMap<>(), "user");
+
+        // Once the public keys expire, they are fetched again.  If they are unchanged, the required keys are kept.
+        Thread.sleep(150);
+        builder.pushAction("addfile", new HashMap<>(), "user");
+        assertEquals(2, builder.publicKeyCount);
+        assertEquals(1, builder.requiredKeyCount);
+
+        // If they have changed, the required keys are fetched again.
+        builder.walletKeys = Arrays.asList("KEY2");
+        Thread.sleep(150);
+        builder.pushAction("addfile", new HashMap<>(), "user");
+        assertEquals(3, builder.publicKeyCount);
+        assertEquals(2, builder.requiredKeyCount);
+        assertEquals(Arrays.asList("KEY2"), builder.lastSigningKeys);
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        CountingTransactionBuilder builder = new CountingTransactionBuilder(60000);
+
+        builder.pushAction("addfile", new HashMap<>(), "user");
+        builder.invalidate();
+        builder.pushAction("addfile", new HashMap<>(), "user");
+
+        assertEquals(2, builder.chainInfoCount);
+        assertEquals(2, builder.publicKeyCount);
+        assertEquals(2, builder.requiredKeyCount);
+    }
+
+    /**
+     * A transaction builder whose chain and wallet are stubbed out, and which counts the calls made to each.
+     */
+    private static class CountingTransactionBuilder extends EOSTransactionBuilder {
+        int chainInfoCount;
+        int createCount;
+        int publicKeyCount;
+        int requiredKeyCount;
+        int signCount;
+        int pushCount;
+        List<String> walletKeys = Arrays.asList("KEY1");
+        List<String> lastSigningKeys;
+        String lastChainID;
+
+        CountingTransactionBuilder(long publicKeyTTL) {
+            super(null, "inita", publicKeyTTL);
+        }
+
+        @Override protected ChainInfo fetchChainInfo() {
+            chainInfoCount++;
+            ChainInfo info = new ChainInfo();
+            info.chain_id = "chain-id";
+            return info;
+        }
+
+        @Override protected Transaction createTransaction(String action, Map<String, Object> args, List<String> scopes, List<Transaction.Authorization> authorizations, Date expirationDate) {
+            createCount++;
+            return null;
+        }
+
+        @Override protected List<String> fetchPublicKeys() {
+            publicKeyCount++;
+            return new ArrayList<>(walletKeys);
+        }
+
+        @Override protected RequiredKeys fetchRequiredKeys(Transaction transaction, List<String> availableKeys) {
+            requiredKeyCount++;
+            RequiredKeys requiredKeys = new RequiredKeys();
+            requiredKeys.required_keys = new ArrayList<>(availableKeys);
+            return requiredKeys;
+        }
+
+        @Override protected SignedTransaction signTransaction(Transaction transaction, List<String> requiredKeys, String chainID) {
+            signCount++;
+            lastSigningKeys = requiredKeys;
+            lastChainID = chainID;
+            return null;
+        }
+
+        @Override protected void pushTransaction(SignedTransaction signedTransaction) {
+            pushCount++;
+        }
+    }
+}
@@ -2,6 +2,13 @@ package io.topiacoin.workspace.blockchain.util;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 public class TimeExpiringCacheTest {
@@ -42,4 +49,139 @@ public class TimeExpiringCacheTest {
         fetchedValue = expiringCache.get(key);
         assertNull ( fetchedValue) ;
     }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        TimeExpiringCache<String, String> expiringCache = new TimeExpiringCache<>(60000, 2, Long.MAX_VALUE, null);
+
+        expiringCache.put("a", "1");
+        expiringCache.put("b", "2");
+        assertNotNull(expiringCache.get("a"));
+        expiringCache.put("c", "3");
+
+        assertEquals(2, expiringCache.size());
+        assertNotNull(expiringCache.get("a"));
+        assertNull(expiringCache.get("b"));
+        assertNotNull(expiringCache.get("c"));
+        assertEquals(1, expiringCache.getEvictionCount());
+    }
+
+    @Test
+    public void testCacheIsBoundedByWeight() throws Exception {
+        TimeExpiringCache<String, String> expiringCache = new TimeExpiringCache<>(60000, 100, 10, (key, value) -> value.length());
+
+        expiringCache.put("a", "aaaa");
+        expiringCache.put("b", "bbbb");
+        assertEquals(8, expiringCache.getWeight());
+
+        expiringCache.put("c", "cccc");
+        assertEquals(8, expiringCache.getWeight());
+        assertNull(expiringCache.get("a"));
+        assertNotNull(expiringCache.get("c"));
+
+        // Replacing an entry replaces its weight
+        expiringCache.put("c", "c");
+        assertEquals(5, expiringCache.getWeight());
+
+        // An entry that can never fit is not cached, and does not flush the cache
+        expiringCache.put("d", "ddddddddddddddd");
+        assertNull(expiringCache.get("d"));
+        assertEquals(2, expiringCache.size());
+    }
+
+    @Test
+    public void testExpireGroup() throws Exception {
+        TimeExpiringCache<String, String> expiringCache = new TimeExpiringCache<>(60000);
+
+        expiringCache.putInGroup(1L, "1:a", "foo");
+        expiringCache.putInGroup(1L, "1:b", "bar");
+        expiringCache.putInGroup(2L, "2:a", "baz");
+        expiringCache.put("other", "qux");
+
+        expiringCache.expireGroup(1L);
+
+        assertNull(expiringCache.get("1:a"));
+        assertNull(expiringCache.get("1:b"));
+        assertNotNull(expiringCache.get("2:a"));
+        assertNotNull(expiringCache.get("other"));
+        assertEquals(2, expiringCache.size());
+
+        // An entry re-added outside of the group is not removed with it
+        expiringCache.putInGroup(2L, "shared", "foo");
+        expiringCache.put("shared", "bar");
+        expiringCache.expireGroup(2L);
+        assertNull(expiringCache.get("2:a"));
+        assertEquals("bar", expiringCache.get("shared"));
+    }
+
+    @Test
+    public void testHitAndMissCounts() throws Exception {
+        TimeExpiringCache<String, String> expiringCache = new TimeExpiringCache<>(60000);
+
+        expiringCache.get("foo");
+        expiringCache.put("foo", "bar");
+        expiringCache.get("foo");
+        expiringCache.get("foo");
+        expiringCache.remove("foo");
+        expiringCache.get("foo");
+
+        assertEquals(2, expiringCache.getHitCount());
+        assertEquals(2, expiringCache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredEntriesAreSwept() throws Exception {
+        TimeExpiringCache<String, String> expiringCache = new TimeExpiringCache<>(60000);
+
+        expiringCache.put("foo", "bar", 10);
+        expiringCache.put("baz", "qux");
+        Thread.sleep(25);
+
+        assertEquals(1, expiringCache.removeExpired());
+        assertEquals(1, expiringCache.size());
+
+        // The background sweep removes entries that are never looked up again
+        expiringCache = new TimeExpiringCache<>(10);
+        expiringCache.put("foo", "bar");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (expiringCache.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, expiringCache.size());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        TimeExpiringCache<Integer, Integer> expiringCache = new TimeExpiringCache<>(60000, 50, 200, (key, value) -> value % 7 + 1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int group = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        int key = i % 100;
+                        Integer value = expiringCache.get(key);
+                        if (value != null) {
+                            assertEquals(key, value.intValue());
+                        }
+                        expiringCache.putInGroup(group, key, key);
+                        if (i % 500 == 0) {
+                            expiringCache.expireGroup(group);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(expiringCache.size() <= 50);
+        assertTrue(expiringCache.getWeight() <= 200);
+        assertEquals(40000, expiringCache.getHitCount() + expiringCache.getMissCount());
+    }
 }